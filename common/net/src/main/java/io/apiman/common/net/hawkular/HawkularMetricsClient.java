@@ -286,6 +286,28 @@ public class HawkularMetricsClient {
         }
     }
 
+    /**
+     * Adds one or more data points for multiple gauges all at once.
+     * @param tenantId
+     * @param data
+     */
+    public void addMultipleGaugeDataPoints(String tenantId, List<MetricLongBean> data) {
+        try {
+            URL endpoint = serverUrl.toURI().resolve("gauges/raw").toURL(); //$NON-NLS-1$
+            Request request = new Request.Builder()
+                    .url(endpoint)
+                    .post(toBody(data))
+                    .header("Hawkular-Tenant", tenantId) //$NON-NLS-1$
+                    .build();
+            Response response = httpClient.newCall(request).execute();
+            if (response.code() >= 400) {
+                throw hawkularMetricsError(response);
+            }
+        } catch (URISyntaxException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Gets a list of buckets containing aggregate information about data in the
      * indicated counter.  The number of buckets is determined by the bucket size
@@ -222,9 +222,7 @@ public class ThreeScaleImmutableRegistry extends InMemoryRegistry implements Asy
             apis.clear();
             clients.clear();
             failureHandlers.clear();
-            allRegistries.stream()
-                .map(ThreeScaleImmutableRegistry::getMap)
-                .forEach(Map::clear);
+            allRegistries.forEach(ThreeScaleImmutableRegistry::clear);
             dataProcessed = false;
             // Load again from scratch.
             fetchResource();
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.beans.exceptions;
+
+import io.apiman.gateway.engine.beans.PolicyFailure;
+import io.apiman.gateway.engine.beans.PolicyFailureType;
+
+/**
+ * Thrown (or rather, passed to the connection handler) when a request is not sent to
+ * the back-end API at all, because the gateway is protecting that back-end (e.g. its
+ * circuit breaker is open).  The engine reports these to the client as a policy
+ * failure rather than an error.
+ */
+public class ConnectorRejectedException extends ConnectorException {
+
+    private static final long serialVersionUID = 4360387150209815217L;
+
+    public static final int CIRCUIT_OPEN = 10015;
+    public static final int CONCURRENCY_LIMIT_EXCEEDED = 10016;
+
+    private final int failureCode;
+
+    /**
+     * Constructor.
+     * @param failureCode the failure code
+     * @param message an error message
+     */
+    public ConnectorRejectedException(int failureCode, String message) {
+        super(message);
+        this.failureCode = failureCode;
+        setStatusCode(503);
+    }
+
+    /**
+     * @return the failure code
+     */
+    public int getFailureCode() {
+        return failureCode;
+    }
+
+    /**
+     * @return the policy failure to report to the client
+     */
+    public PolicyFailure getPolicyFailure() {
+        PolicyFailure failure = new PolicyFailure(PolicyFailureType.Other, failureCode, getMessage());
+        failure.setResponseCode(getStatusCode());
+        return failure;
+    }
+
+}
@@ -64,4 +64,12 @@ public interface IEngine {
      */
     IApiRequestPathParser getApiRequestPathParser();
 
+    /**
+     * Shuts down the engine, giving the registry, metrics and components that need
+     * it (see {@link IRequiresShutdown}) a chance to release their resources.  This
+     * may block for a short while, so should not be called on an event loop.
+     */
+    default void shutdown() {
+    }
+
 }
@@ -37,4 +37,17 @@ public interface IEngineResult extends IReadStream<ApiResponse>, IAbortable  {
      */
     public PolicyFailure getPolicyFailure();
 
+    /**
+     * Asks for the response body to stop arriving for now (e.g. because the client cannot
+     * keep up with it).  Optional - by default this does nothing, and chunks keep arriving.
+     */
+    default void pause() {
+    }
+
+    /**
+     * Asks for the response body to start arriving again after {@link #pause()}.
+     */
+    default void resume() {
+    }
+
 }
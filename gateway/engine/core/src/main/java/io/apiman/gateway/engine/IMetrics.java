@@ -15,6 +15,7 @@
  */
 package io.apiman.gateway.engine;
 
+import io.apiman.gateway.engine.metrics.BackendHealthMetric;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
 /**
@@ -39,4 +40,22 @@ public interface IMetrics {
      * @param registry the component registry
      */
     public void setComponentRegistry(IComponentRegistry registry); 
+
+    /**
+     * Per-policy profiling:  one in every N requests has the time spent in each of its
+     * policies recorded (see {@link RequestMetric#getPolicyMetrics()}).  Returns 0 (the
+     * default) to disable profiling altogether.
+     * @return N, or 0 to disable policy profiling
+     */
+    default int getPolicyProfilingRate() {
+        return 0;
+    }
+
+    /**
+     * Records a change in the health of a back-end API endpoint, as seen by the
+     * gateway's circuit breaker (if enabled).  Ignored by default.
+     * @param metric the back-end health metric
+     */
+    default void recordBackendHealth(BackendHealthMetric metric) {
+    }
 }
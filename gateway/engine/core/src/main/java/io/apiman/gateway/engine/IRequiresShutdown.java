@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine;
+
+
+/**
+ * Components that need to release resources (or write out buffered data) when the
+ * gateway is shut down should implement this interface.
+ */
+public interface IRequiresShutdown {
+
+    /**
+     * Called by the engine when it is shut down (e.g. the gateway is undeployed).
+     * This may block for a short while.
+     */
+    public void shutdown();
+}
@@ -16,8 +16,10 @@
 package io.apiman.gateway.engine.components;
 
 import io.apiman.gateway.engine.IComponent;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 
 /**
@@ -44,4 +46,28 @@ public interface IRateLimiterComponent extends IComponent {
     void accept(String bucketId, RateBucketPeriod period, long limit, long increment,
             IAsyncResultHandler<RateLimitResponse> handler);
 
+    /**
+     * Adds another request to the given rate bucket, using the given algorithm to
+     * decide whether the request fits within the limit.  The default implementation
+     * only supports fixed windows:  any other algorithm is rejected (with an
+     * {@link UnsupportedOperationException}) rather than silently enforced as a
+     * fixed window.
+     * @param bucketId
+     * @param period
+     * @param algorithm
+     * @param limit
+     * @param increment
+     * @param handler
+     */
+    default void accept(String bucketId, RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit,
+            long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        if (algorithm == null || algorithm == RateBucketAlgorithm.FixedWindow) {
+            accept(bucketId, period, limit, increment, handler);
+        } else {
+            handler.handle(AsyncResultImpl.create(new UnsupportedOperationException(
+                    "The " + algorithm + " rate limiting algorithm is not supported by " + getClass().getSimpleName()), //$NON-NLS-1$ //$NON-NLS-2$
+                    RateLimitResponse.class));
+        }
+    }
+
 }
@@ -58,6 +58,7 @@ public abstract class AbstractEngineFactory implements IEngineFactory {
         IConnectorFactory cfactory = createConnectorFactory(pluginRegistry);
         IPolicyFactory pfactory = createPolicyFactory(pluginRegistry);
         IMetrics metrics = createMetrics(pluginRegistry);
+        cfactory = wrapConnectorFactory(cfactory, metrics);
         IDelegateFactory logFactory = createLoggerFactory(pluginRegistry);
         IApiRequestPathParser pathParser = createRequestPathParser(pluginRegistry);
 
@@ -105,6 +106,17 @@ public abstract class AbstractEngineFactory implements IEngineFactory {
      */
     protected abstract IConnectorFactory createConnectorFactory(IPluginRegistry pluginRegistry);
 
+    /**
+     * Wraps the connector factory (e.g. to add a circuit breaker).  Returns the
+     * connector factory unchanged by default.
+     * @param connectorFactory the connector factory
+     * @param metrics the metrics
+     * @return the (possibly wrapped) connector factory
+     */
+    protected IConnectorFactory wrapConnectorFactory(IConnectorFactory connectorFactory, IMetrics metrics) {
+        return connectorFactory;
+    }
+
     /**
      * Creates a policy factory.
      * @param pluginRegistry the plugin registry
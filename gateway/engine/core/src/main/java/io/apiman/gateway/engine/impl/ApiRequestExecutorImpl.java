@@ -38,15 +38,18 @@ import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.Policy;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.beans.exceptions.ApiNotFoundException;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorRejectedException;
 import io.apiman.gateway.engine.beans.exceptions.InvalidApiException;
 import io.apiman.gateway.engine.beans.exceptions.InvalidContractException;
 import io.apiman.gateway.engine.beans.exceptions.RequestAbortedException;
 import io.apiman.gateway.engine.components.IBufferFactoryComponent;
 import io.apiman.gateway.engine.i18n.Messages;
+import io.apiman.gateway.engine.impl.CompiledPolicyCache.CompiledPolicies;
 import io.apiman.gateway.engine.io.ByteBuffer;
 import io.apiman.gateway.engine.io.BytesPayloadIO;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.IPayloadIO;
+import io.apiman.gateway.engine.io.IReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.io.JsonPayloadIO;
 import io.apiman.gateway.engine.io.SoapPayloadIO;
@@ -64,13 +67,14 @@ import io.apiman.gateway.engine.policy.RequestChain;
 import io.apiman.gateway.engine.policy.ResponseChain;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.lang3.text.StrLookup;
 import org.apache.commons.lang3.text.StrSubstitutor;
@@ -107,6 +111,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
     private IPolicyContext context;
     private List<Policy> policies;
     private final IPolicyFactory policyFactory;
+    private final CompiledPolicyCache policyCache;
     private final IConnectorFactory connectorFactory;
     private final IBufferFactoryComponent bufferFactory;
     private boolean finished = false;
@@ -149,11 +154,32 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
             IAsyncResultHandler<IEngineResult> resultHandler, IRegistry registry, IPolicyContext context,
             IPolicyFactory policyFactory, IConnectorFactory connectorFactory, IMetrics metrics,
             IBufferFactoryComponent bufferFactory) {
+        this(apiRequest, resultHandler, registry, context, policyFactory, null, connectorFactory, metrics,
+                bufferFactory);
+    }
+
+    /**
+     * Constructs a new {@link ApiRequestExecutorImpl}.
+     * @param apiRequest the api request
+     * @param resultHandler the result handler
+     * @param registry the registry
+     * @param context the context
+     * @param policyFactory the policy factory
+     * @param policyCache the cache of compiled policies shared by all requests (may be null)
+     * @param connectorFactory the connector factory
+     * @param metrics the metrics instance
+     * @param bufferFactory the buffer factory
+     */
+    public ApiRequestExecutorImpl(ApiRequest apiRequest,
+            IAsyncResultHandler<IEngineResult> resultHandler, IRegistry registry, IPolicyContext context,
+            IPolicyFactory policyFactory, CompiledPolicyCache policyCache, IConnectorFactory connectorFactory,
+            IMetrics metrics, IBufferFactoryComponent bufferFactory) {
         this.request = apiRequest;
         this.registry = registry;
         this.resultHandler = wrapResultHandler(resultHandler);
         this.context = context;
         this.policyFactory = policyFactory;
+        this.policyCache = policyCache;
         this.connectorFactory = connectorFactory;
         this.policyFailureHandler = createPolicyFailureHandler();
         this.policyErrorHandler = createPolicyErrorHandler();
@@ -183,7 +209,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                     doRecord = false; // don't record the metric now because we need to record # of bytes downloaded, which hasn't happened yet
                 }
             }
-            requestMetric.setRequestEnd(new Date());
+            requestMetric.markRequestEnd();
             if (doRecord) {
                 metrics.record(requestMetric);
             }
@@ -227,7 +253,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         stripApiKey();
 
         // Fill out some of the basic metrics structure.
-        requestMetric.setRequestStart(new Date());
+        requestMetric.markRequestStart();
         requestMetric.setUrl(request.getUrl());
         requestMetric.setResource(request.getDestination());
         requestMetric.setMethod(request.getType());
@@ -235,6 +261,12 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         requestMetric.setApiId(request.getApiId());
         requestMetric.setApiVersion(request.getApiVersion());
 
+        // Sample the requests to profile the policies of (if enabled)
+        int profilingRate = metrics.getPolicyProfilingRate();
+        if (profilingRate > 0 && ThreadLocalRandom.current().nextInt(profilingRate) == 0) {
+            requestMetric.setPolicyMetrics(Collections.synchronizedList(new ArrayList<>()));
+        }
+
         // Set request metric
         context.setAttribute(PolicyContextKeys.REQUEST_METRIC, requestMetric);
 
@@ -264,7 +296,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                 // TODO check for a null connector
 
                 // Open up a connection to the back-end if we're given the OK from the request chain
-                requestMetric.setApiStart(new Date());
+                requestMetric.markApiStart();
                 // Attach the response handler here.
                 apiConnection = connector.connect(req, createApiConnectionResponseHandler());
 
@@ -282,6 +314,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                 // of the implementation as to how they should cope with the chunks.
                 handleStream();
             });
+            requestMetric.markRequestChainStart();
             requestChain.doApply(request);
         };
 
@@ -532,7 +565,8 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
     }
 
     /**
-     * Response API property replacements
+     * Response API property replacements.  Property replacements in the policy
+     * configuration are resolved when the policies are loaded (see {@link #loadPolicies(IAsyncHandler)}).
      */
     protected void resolvePropertyReplacements(Api api) {
         if (api == null) {
@@ -548,8 +582,6 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
             value = resolveProperties(value);
             entry.setValue(value);
         }
-
-        resolvePropertyReplacements(api.getApiPolicies());
     }
 
     /**
@@ -563,7 +595,6 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         if (api != null) {
             resolvePropertyReplacements(api);
         }
-        resolvePropertyReplacements(apiContract.getPolicies());
     }
 
     /**
@@ -621,14 +652,21 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
      * Get/resolve the list of policies into a list of policies with config.  This operation is
      * done asynchronously so that plugins can be downloaded if needed.  Any errors in resolving
      * the policies will be reported back via the policyErrorHandler.
+     *
+     * The resolved policies of an API or contract are cached, so this is only done the first
+     * time the API or contract is used (and again after its policies change).
      */
     private void loadPolicies(final IAsyncHandler<List<PolicyWithConfiguration>> handler) {
-        final Set<Integer> totalCounter = new HashSet<>();
-        final Set<Integer> errorCounter = new TreeSet<>();
-        final List<PolicyWithConfiguration> rval = new ArrayList<>(policies.size());
-        final List<Throwable> errors = new ArrayList<>(policies.size());
-        final int numPolicies = policies.size();
-        int index = 0;
+        // Keyed on the policies as published, i.e. before any property replacement
+        final CompiledPolicyCache.Key cacheKey = policyCache == null ? null : CompiledPolicyCache.keyOf(policies);
+        if (cacheKey != null) {
+            CompiledPolicies compiled = policyCache.get(cacheKey);
+            if (compiled != null) {
+                hasDataPolicy = compiled.hasDataPolicy();
+                handler.handle(compiled.getPolicies());
+                return;
+            }
+        }
 
         // If there aren't any policies, then no need to asynchronously load them!
         if (policies.isEmpty()) {
@@ -636,6 +674,15 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
             return;
         }
 
+        resolvePropertyReplacements(policies);
+
+        final Set<Integer> totalCounter = new HashSet<>();
+        final Set<Integer> errorCounter = new TreeSet<>();
+        final List<PolicyWithConfiguration> rval = new ArrayList<>(policies.size());
+        final List<Throwable> errors = new ArrayList<>(policies.size());
+        final int numPolicies = policies.size();
+        int index = 0;
+
         for (final Policy policy : policies) {
             rval.add(null);
             errors.add(null);
@@ -672,6 +719,9 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                         //Policy errorPolicy = policies.get(errorIdx);
                         policyErrorHandler.handle(error);
                     } else {
+                        if (cacheKey != null) {
+                            policyCache.put(cacheKey, new CompiledPolicies(rval, hasDataPolicy));
+                        }
                         handler.handle(rval);
                     }
                 }
@@ -686,7 +736,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
     private IAsyncResultHandler<IApiConnectionResponse> createApiConnectionResponseHandler() {
         return (IAsyncResult<IApiConnectionResponse> result) -> {
             if (result.isSuccess()) {
-                requestMetric.setApiEnd(new Date());
+                requestMetric.markApiEnd();
                 // The result came back. NB: still need to put it through the response chain.
                 apiConnectionResponse = result.getResult();
                 ApiResponse apiResponse = apiConnectionResponse.getHead();
@@ -694,19 +744,23 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
 
                 // Execute the response chain to evaluate the response.
                 responseChain = createResponseChain((ApiResponse response) -> {
+                    requestMetric.markResponseChainEnd();
                     // Send the api response to the caller.
                     final EngineResultImpl engineResult = new EngineResultImpl(response);
                     engineResult.setConnectorResponseStream(apiConnectionResponse);
 
                     resultHandler.handle(AsyncResultImpl.create(engineResult));
 
-                    // We've come all the way through the response chain successfully
-                    responseChain.bodyHandler(buffer -> {
+                    // We've come all the way through the response chain successfully.  Without
+                    // any data policies the chain would only pass the body through untouched,
+                    // so in that case take the body straight from the back-end response.
+                    IReadStream<ApiResponse> responseBody = hasDataPolicy ? responseChain : apiConnectionResponse;
+                    responseBody.bodyHandler(buffer -> {
                         requestMetric.setBytesDownloaded(requestMetric.getBytesDownloaded() + buffer.length());
                         engineResult.write(buffer);
                     });
 
-                    responseChain.endHandler(isEnd -> {
+                    responseBody.endHandler(isEnd -> {
                         engineResult.end();
                         finished = true;
                         metrics.record(requestMetric);
@@ -716,13 +770,18 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                     apiConnectionResponse.transmit();
                 });
 
-                // Write data from the back-end response into the response chain.
-                apiConnectionResponse.bodyHandler(buffer -> responseChain.write(buffer));
+                if (hasDataPolicy) {
+                    // Write data from the back-end response into the response chain.
+                    apiConnectionResponse.bodyHandler(buffer -> responseChain.write(buffer));
 
-                // Indicate back-end response is finished to the response chain.
-                apiConnectionResponse.endHandler(isEnd -> responseChain.end());
+                    // Indicate back-end response is finished to the response chain.
+                    apiConnectionResponse.endHandler(isEnd -> responseChain.end());
+                }
 
                 responseChain.doApply(apiResponse);
+            } else if (result.getError() instanceof ConnectorRejectedException) {
+                // The back-end is being protected (e.g. its circuit is open) - not an error as such
+                policyFailureHandler.handle(((ConnectorRejectedException) result.getError()).getPolicyFailure());
             } else {
                 resultHandler.handle(AsyncResultImpl.create(result.getError()));
             }
@@ -742,12 +801,22 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                 if (streamFinished) {
                     throw new IllegalStateException("Attempted write after #end() was called."); //$NON-NLS-1$
                 }
-                requestChain.write(buffer);
+                if (hasDataPolicy) {
+                    requestChain.write(buffer);
+                } else {
+                    // No policy can touch the body, so pass it straight to the connector
+                    requestMetric.setBytesUploaded(requestMetric.getBytesUploaded() + buffer.length());
+                    apiConnection.write(buffer);
+                }
             }
 
             @Override
             public void end() {
-                requestChain.end();
+                if (hasDataPolicy) {
+                    requestChain.end();
+                } else {
+                    apiConnection.end();
+                }
                 streamFinished = true;
             }
 
@@ -804,6 +873,9 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
      */
     private Chain<ApiRequest> createRequestChain(IAsyncHandler<ApiRequest> requestHandler) {
         RequestChain chain = new RequestChain(policyImpls, context);
+        if (requestMetric.getPolicyMetrics() != null) {
+            chain.profile("request", requestMetric.getPolicyMetrics()); //$NON-NLS-1$
+        }
         chain.headHandler(requestHandler);
         chain.policyFailureHandler(failure -> {
             // Jump straight to the response leg.
@@ -823,6 +895,9 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
      */
     private Chain<ApiResponse> createResponseChain(IAsyncHandler<ApiResponse> responseHandler) {
         ResponseChain chain = new ResponseChain(policyImpls, context);
+        if (requestMetric.getPolicyMetrics() != null) {
+            chain.profile("response", requestMetric.getPolicyMetrics()); //$NON-NLS-1$
+        }
         chain.headHandler(responseHandler);
         chain.policyFailureHandler(result -> {
             if (apiConnectionResponse != null) {
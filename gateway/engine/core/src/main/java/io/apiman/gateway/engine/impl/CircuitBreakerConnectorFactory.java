@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IMetrics;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorRejectedException;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric.CircuitState;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wraps another {@link IConnectorFactory} to protect the back-end API endpoints (and
+ * the gateway itself) from slow or failing back-ends.  Each endpoint gets:
+ *
+ * <ul>
+ *   <li>a circuit breaker:  after 'failureThreshold' consecutive failures (connection
+ *   errors or 502/503/504 responses) the circuit opens, and requests to the endpoint
+ *   fail fast for 'openMillis'.  A single trial request is then let through, which
+ *   either closes the circuit again or re-opens it.</li>
+ *   <li>an adaptive (AIMD) concurrency limit on the number of requests awaiting a
+ *   response from the endpoint:  the limit grows by one per 'limit' successful
+ *   responses and is cut by 'backoff' on every failure, or on every response slower
+ *   than 'latencyThreshold' (if set).  Requests over the limit fail fast.</li>
+ * </ul>
+ *
+ * Requests that fail fast never reach the wrapped connector; they are reported to the
+ * client as a (503) policy failure - see {@link ConnectorRejectedException}.  Every
+ * change in the state of a circuit is reported via
+ * {@link IMetrics#recordBackendHealth(BackendHealthMetric)}.
+ *
+ * The endpoint a request goes to is only chosen inside the wrapped connector, so an API
+ * that is load balanced over several endpoints (lb.endpoints, in the Vert.x gateway) gets
+ * a single circuit for all of them, keyed by its endpoint plus the additional endpoints.
+ * That circuit only opens once the API's endpoints fail as a whole; a single failing
+ * endpoint among them is ejected by the load balancer instead.
+ *
+ * Configuration (in the connector factory config):
+ * <ul>
+ *   <li>circuit-breaker.enabled - wrap the connector factory (default false)</li>
+ *   <li>circuit-breaker.failureThreshold - consecutive failures that open the circuit (default 5)</li>
+ *   <li>circuit-breaker.openMillis - how long the circuit stays open (default 30000)</li>
+ *   <li>circuit-breaker.limit.initial - the initial concurrency limit (default 20)</li>
+ *   <li>circuit-breaker.limit.min - the smallest concurrency limit (default 1)</li>
+ *   <li>circuit-breaker.limit.max - the largest concurrency limit (default 1000)</li>
+ *   <li>circuit-breaker.limit.backoff - the factor the limit is cut by (default 0.9)</li>
+ *   <li>circuit-breaker.limit.latencyThreshold - response time (in millis) above which
+ *   the limit is cut (default 0, disabled)</li>
+ * </ul>
+ */
+public class CircuitBreakerConnectorFactory implements IConnectorFactory {
+
+    public static final String CONFIG_PREFIX = "circuit-breaker."; //$NON-NLS-1$
+
+    private final IConnectorFactory delegate;
+    private final IMetrics metrics;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final double initialLimit;
+    private final double minLimit;
+    private final double maxLimit;
+    private final double backoff;
+    private final long latencyThreshold;
+    private final ConcurrentMap<String, Backend> backends = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param delegate the wrapped connector factory
+     * @param metrics the metrics to report the state of the circuits to
+     * @param config the connector factory config
+     */
+    public CircuitBreakerConnectorFactory(IConnectorFactory delegate, IMetrics metrics, Map<String, String> config) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.failureThreshold = (int) getLong(config, "failureThreshold", 5); //$NON-NLS-1$
+        this.openMillis = getLong(config, "openMillis", 30000); //$NON-NLS-1$
+        this.minLimit = Math.max(1, getDouble(config, "limit.min", 1)); //$NON-NLS-1$
+        this.maxLimit = Math.max(minLimit, getDouble(config, "limit.max", 1000)); //$NON-NLS-1$
+        this.initialLimit = Math.min(maxLimit, Math.max(minLimit, getDouble(config, "limit.initial", 20))); //$NON-NLS-1$
+        this.backoff = getDouble(config, "limit.backoff", 0.9); //$NON-NLS-1$
+        this.latencyThreshold = getLong(config, "limit.latencyThreshold", 0); //$NON-NLS-1$
+    }
+
+    /**
+     * @param config the connector factory config
+     * @return true if the circuit breaker is enabled in the given connector factory config
+     */
+    public static boolean isEnabled(Map<String, String> config) {
+        return "true".equals(config.get(CONFIG_PREFIX + "enabled")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IConnectorFactory#createConnector(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.auth.RequiredAuthType, boolean, io.apiman.gateway.engine.IConnectorConfig)
+     */
+    @Override
+    public IApiConnector createConnector(ApiRequest request, Api api, RequiredAuthType requiredAuthType,
+            boolean hasDataPolicy, IConnectorConfig connectorConfig) {
+        IApiConnector connector = delegate.createConnector(request, api, requiredAuthType, hasDataPolicy, connectorConfig);
+        Backend backend = getBackend(getBackendKey(api));
+        return (req, handler) -> {
+            ConnectorRejectedException rejection = backend.tryAcquire();
+            if (rejection != null) {
+                handler.handle(AsyncResultImpl.create(rejection));
+                return new RejectedConnection();
+            }
+            long start = System.currentTimeMillis();
+            AtomicBoolean released = new AtomicBoolean();
+            IApiConnection connection;
+            try {
+                connection = connector.connect(req, (IAsyncResult<IApiConnectionResponse> result) -> {
+                    if (released.compareAndSet(false, true)) {
+                        backend.release(isSuccess(result), System.currentTimeMillis() - start);
+                    }
+                    handler.handle(result);
+                });
+            } catch (RuntimeException e) {
+                if (released.compareAndSet(false, true)) {
+                    backend.release(false, System.currentTimeMillis() - start);
+                }
+                throw e;
+            }
+            return new GuardedConnection(connection, () -> {
+                if (released.compareAndSet(false, true)) {
+                    backend.abandon();
+                }
+            });
+        };
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IConnectorFactory#createConnectorConfig(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.beans.Api)
+     */
+    @Override
+    public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
+        return delegate.createConnectorConfig(request, api);
+    }
+
+    /**
+     * @return the wrapped connector factory
+     */
+    public IConnectorFactory getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @param api the API
+     * @return the key of the circuit of the API's back-end:  its endpoint, plus any
+     *         endpoints it is load balanced over
+     */
+    static String getBackendKey(Api api) {
+        String additional = api.getEndpointProperties() == null ? null : api.getEndpointProperties().get("lb.endpoints"); //$NON-NLS-1$
+        if (additional == null || additional.trim().isEmpty()) {
+            return api.getEndpoint();
+        }
+        return api.getEndpoint() + "," + additional.replace(" ", ""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    private Backend getBackend(String endpoint) {
+        Backend backend = backends.get(endpoint);
+        if (backend == null) {
+            backend = new Backend(endpoint);
+            Backend existing = backends.putIfAbsent(endpoint, backend);
+            if (existing != null) {
+                backend = existing;
+            }
+        }
+        return backend;
+    }
+
+    private static boolean isSuccess(IAsyncResult<IApiConnectionResponse> result) {
+        if (result.isError()) {
+            return false;
+        }
+        int code = result.getResult().getHead().getCode();
+        return code != 502 && code != 503 && code != 504;
+    }
+
+    private static long getLong(Map<String, String> config, String key, long defaultValue) {
+        String value = config.get(CONFIG_PREFIX + key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private static double getDouble(Map<String, String> config, String key, double defaultValue) {
+        String value = config.get(CONFIG_PREFIX + key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * The circuit and the concurrency limit of a single back-end endpoint.  All
+     * access must be synchronized on the backend.
+     */
+    private final class Backend {
+
+        private final String endpoint;
+        private CircuitState state = CircuitState.CLOSED;
+        private long openUntil;
+        private boolean trialInFlight;
+        private int consecutiveFailures;
+        private double limit = initialLimit;
+        private int inFlight;
+
+        /**
+         * Constructor.
+         * @param endpoint the endpoint
+         */
+        Backend(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Tries to let a request through to the endpoint.
+         * @return null if the request may proceed, otherwise the reason it may not
+         */
+        ConnectorRejectedException tryAcquire() {
+            BackendHealthMetric change = null;
+            try {
+                synchronized (this) {
+                    if (state == CircuitState.OPEN) {
+                        if (System.currentTimeMillis() < openUntil) {
+                            return circuitOpen();
+                        }
+                        change = transition(CircuitState.HALF_OPEN);
+                    }
+                    if (state == CircuitState.HALF_OPEN && trialInFlight) {
+                        return circuitOpen();
+                    }
+                    if (inFlight >= (int) limit) {
+                        return new ConnectorRejectedException(ConnectorRejectedException.CONCURRENCY_LIMIT_EXCEEDED,
+                                "Too many concurrent requests to the back-end API (limit " + (int) limit + ")."); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                    if (state == CircuitState.HALF_OPEN) {
+                        trialInFlight = true;
+                    }
+                    inFlight++;
+                    return null;
+                }
+            } finally {
+                report(change);
+            }
+        }
+
+        /**
+         * Called once the outcome of a request is known.
+         * @param success whether the request succeeded
+         * @param latency how long the endpoint took to respond (in millis)
+         */
+        void release(boolean success, long latency) {
+            BackendHealthMetric change = null;
+            synchronized (this) {
+                inFlight--;
+                if (success) {
+                    consecutiveFailures = 0;
+                    if (latencyThreshold > 0 && latency > latencyThreshold) {
+                        decreaseLimit();
+                    } else if (inFlight + 1 >= limit / 2) {
+                        // Only grow the limit while it is actually being used
+                        limit = Math.min(maxLimit, limit + 1 / limit);
+                    }
+                    if (state == CircuitState.HALF_OPEN) {
+                        change = transition(CircuitState.CLOSED);
+                    }
+                } else {
+                    consecutiveFailures++;
+                    decreaseLimit();
+                    if (state == CircuitState.HALF_OPEN
+                            || (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+                        openUntil = System.currentTimeMillis() + openMillis;
+                        change = transition(CircuitState.OPEN);
+                    }
+                }
+            }
+            report(change);
+        }
+
+        /**
+         * Called when a request was aborted before its outcome was known.
+         */
+        synchronized void abandon() {
+            inFlight--;
+            if (state == CircuitState.HALF_OPEN) {
+                trialInFlight = false;
+            }
+        }
+
+        private ConnectorRejectedException circuitOpen() {
+            return new ConnectorRejectedException(ConnectorRejectedException.CIRCUIT_OPEN,
+                    "The back-end API is unavailable (circuit open)."); //$NON-NLS-1$
+        }
+
+        private void decreaseLimit() {
+            limit = Math.max(minLimit, limit * backoff);
+        }
+
+        private BackendHealthMetric transition(CircuitState newState) {
+            state = newState;
+            trialInFlight = false;
+            BackendHealthMetric metric = new BackendHealthMetric();
+            metric.setTimestamp(new Date());
+            metric.setEndpoint(endpoint);
+            metric.setState(newState);
+            metric.setConcurrencyLimit((int) limit);
+            metric.setInFlight(inFlight);
+            metric.setConsecutiveFailures(consecutiveFailures);
+            return metric;
+        }
+
+        private void report(BackendHealthMetric change) {
+            if (change != null && metrics != null) {
+                metrics.recordBackendHealth(change);
+            }
+        }
+    }
+
+    /**
+     * Passes everything through to the real connection, but also lets the backend
+     * know if the request is aborted before the outcome is known.
+     */
+    private static final class GuardedConnection implements IApiConnection {
+
+        private final IApiConnection connection;
+        private final Runnable onAbort;
+
+        GuardedConnection(IApiConnection connection, Runnable onAbort) {
+            this.connection = connection;
+            this.onAbort = onAbort;
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            connection.write(chunk);
+        }
+
+        @Override
+        public void end() {
+            connection.end();
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            onAbort.run();
+            connection.abort(t);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return connection.isFinished();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        @Override
+        public void drainHandler(IAsyncHandler<Void> drainHandler) {
+            connection.drainHandler(drainHandler);
+        }
+
+        @Override
+        public boolean isFull() {
+            return connection.isFull();
+        }
+    }
+
+    /**
+     * The connection handed out for a rejected request:  the request body is
+     * simply discarded.
+     */
+    private static final class RejectedConnection implements IApiConnection {
+
+        private boolean finished;
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+        }
+
+        @Override
+        public void end() {
+            finished = true;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            finished = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.policy.PolicyWithConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Caches the resolved policies (policy instance + parsed configuration) of an API
+ * or contract, so that the policies don't have to be loaded and their configuration
+ * parsed again on every request.
+ *
+ * Entries are keyed by the content of the {@link Policy} list of the API or contract
+ * (each policy's implementation and configuration), so it makes no difference whether
+ * the registry hands out the same list every time or a new copy of it.  A changed API
+ * or contract is simply a cache miss.  The key must be taken before the configuration
+ * is modified (e.g. by property replacement).  The cache is bounded, evicting the least
+ * recently used entries (see {@link LruCache}).
+ */
+public class CompiledPolicyCache {
+
+    private static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final LruCache<Key, CompiledPolicies> cache;
+
+    /**
+     * Constructor.
+     */
+    public CompiledPolicyCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param maxSize the maximum number of cached entries
+     */
+    public CompiledPolicyCache(int maxSize) {
+        this.cache = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Creates the cache key of the given policies (a snapshot of their current content).
+     * @param policies the API or contract policies
+     * @return the cache key
+     */
+    public static Key keyOf(List<Policy> policies) {
+        return new Key(policies);
+    }
+
+    /**
+     * Gets the compiled form of the given policies, or null if they haven't been
+     * compiled yet.
+     * @param key the key of the API or contract policies
+     */
+    public CompiledPolicies get(Key key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Caches the compiled form of the given policies.
+     * @param key the key of the API or contract policies
+     * @param compiled the compiled policies
+     */
+    public void put(Key key, CompiledPolicies compiled) {
+        cache.put(key, compiled);
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * The policies of an API or contract, resolved and ready to be used to build
+     * the request and response chains.
+     */
+    public static final class CompiledPolicies {
+
+        private final List<PolicyWithConfiguration> policies;
+        private final boolean hasDataPolicy;
+
+        /**
+         * Constructor.
+         * @param policies the resolved policies
+         * @param hasDataPolicy whether any of the policies is a data policy
+         */
+        public CompiledPolicies(List<PolicyWithConfiguration> policies, boolean hasDataPolicy) {
+            this.policies = Collections.unmodifiableList(policies);
+            this.hasDataPolicy = hasDataPolicy;
+        }
+
+        /**
+         * @return the resolved policies
+         */
+        public List<PolicyWithConfiguration> getPolicies() {
+            return policies;
+        }
+
+        /**
+         * @return true if any of the policies is a data policy
+         */
+        public boolean hasDataPolicy() {
+            return hasDataPolicy;
+        }
+    }
+
+    /**
+     * The cache key:  the implementation and configuration of each of the policies.
+     */
+    public static final class Key {
+        private final String[] content;
+        private final int hash;
+
+        private Key(List<Policy> policies) {
+            content = new String[policies.size() * 2];
+            int i = 0;
+            for (Policy policy : policies) {
+                content[i++] = policy.getPolicyImpl();
+                content[i++] = policy.getPolicyJsonConfig();
+            }
+            hash = Arrays.hashCode(content);
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(content, other.content);
+        }
+    }
+
+}
@@ -118,6 +118,18 @@ public class ConfigDrivenEngineFactory extends AbstractEngineFactory {
         return create(c, config);
     }
 
+    /**
+     * @see io.apiman.gateway.engine.impl.AbstractEngineFactory#wrapConnectorFactory(io.apiman.gateway.engine.IConnectorFactory, io.apiman.gateway.engine.IMetrics)
+     */
+    @Override
+    protected IConnectorFactory wrapConnectorFactory(IConnectorFactory connectorFactory, IMetrics metrics) {
+        Map<String, String> config = engineConfig.getConnectorFactoryConfig();
+        if (CircuitBreakerConnectorFactory.isEnabled(config)) {
+            return new CircuitBreakerConnectorFactory(connectorFactory, metrics, config);
+        }
+        return connectorFactory;
+    }
+
     /**
      * @see io.apiman.gateway.engine.impl.AbstractEngineFactory#createPolicyFactory(io.apiman.gateway.engine.IPluginRegistry)
      */
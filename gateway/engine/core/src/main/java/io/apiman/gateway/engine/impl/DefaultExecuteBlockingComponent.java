@@ -21,16 +21,57 @@ import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Default implementation just passes through (i.e. assumes blocking execution pattern).
  *
+ * Optionally ('virtualThreads' set to true) the blocking code is instead run on a new
+ * virtual thread, when the JDK supports them - see {@link VirtualThreads}.
+ *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 public class DefaultExecuteBlockingComponent implements IExecuteBlockingComponent {
 
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     */
+    public DefaultExecuteBlockingComponent() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public DefaultExecuteBlockingComponent(Map<String, String> config) {
+        if ("true".equals(config.get("virtualThreads"))) { //$NON-NLS-1$ //$NON-NLS-2$
+            executor = VirtualThreads.getExecutor();
+        } else {
+            executor = null;
+        }
+    }
+
     @Override
     public <T> void executeBlocking(IAsyncHandler<IAsyncFuture<T>> blockingCode, IAsyncResultHandler<T> resultHandler) {
         IAsyncFuture<T> wrapped = passthrough(resultHandler);
+        if (executor != null) {
+            try {
+                executor.execute(() -> execute(blockingCode, wrapped));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Fall through and run it on this thread instead
+            }
+        }
+        execute(blockingCode, wrapped);
+    }
+
+    private <T> void execute(IAsyncHandler<IAsyncFuture<T>> blockingCode, IAsyncFuture<T> wrapped) {
         try {
             blockingCode.handle(wrapped);
         } catch (Exception e) {
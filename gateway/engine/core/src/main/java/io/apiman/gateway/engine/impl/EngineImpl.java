@@ -29,6 +29,7 @@ import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.IPluginRegistry;
 import io.apiman.gateway.engine.IRegistry;
 import io.apiman.gateway.engine.IRequiresInitialization;
+import io.apiman.gateway.engine.IRequiresShutdown;
 import io.apiman.gateway.engine.Version;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.ApiRequest;
@@ -55,6 +56,7 @@ public class EngineImpl implements IEngine {
     private IMetrics metrics;
     private IDelegateFactory logFactory;
     private IApiRequestPathParser requestPathParser;
+    private final CompiledPolicyCache policyCache = new CompiledPolicyCache();
 
     /**
      * Constructor.
@@ -103,6 +105,14 @@ public class EngineImpl implements IEngine {
         return Version.get().getVersionString();
     }
 
+    /**
+     * @see io.apiman.gateway.engine.IEngine#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        shutdown(registry, pluginRegistry, componentRegistry, connectorFactory, policyFactory, metrics);
+    }
+
     /**
      * @see io.apiman.gateway.engine.IEngine#executor(ApiRequest, IAsyncResultHandler)
      */
@@ -114,6 +124,7 @@ public class EngineImpl implements IEngine {
                 registry,
                 new PolicyContextImpl(getComponentRegistry(), getLogFactory()),
                 policyFactory,
+                policyCache,
                 getConnectorFactory(),
                 getMetrics(),
                 bufferFactory);
@@ -241,6 +252,10 @@ public class EngineImpl implements IEngine {
             if (o instanceof IRequiresInitialization) {
                 ((IRequiresInitialization) o).initialize();
             }
+            // The registry is usually wrapped - make sure the real one gets initialized too
+            if (o instanceof SecureRegistryWrapper) {
+                initialize(((SecureRegistryWrapper) o).getDelegate());
+            }
             // Make sure to also initialize all components!
             if (o instanceof IComponentRegistry) {
                 Collection<IComponent> components = ((IComponentRegistry) o).getComponents();
@@ -250,4 +265,21 @@ public class EngineImpl implements IEngine {
             }
         }
     }
+
+    private void shutdown(Object... m) {
+        for (Object o : m) {
+            if (o instanceof IRequiresShutdown) {
+                ((IRequiresShutdown) o).shutdown();
+            }
+            if (o instanceof SecureRegistryWrapper) {
+                shutdown(((SecureRegistryWrapper) o).getDelegate());
+            }
+            if (o instanceof IComponentRegistry) {
+                Collection<IComponent> components = ((IComponentRegistry) o).getComponents();
+                for (IComponent component : components) {
+                    shutdown(component);
+                }
+            }
+        }
+    }
 }
@@ -120,6 +120,22 @@ public class EngineResultImpl extends AbstractStream<ApiResponse> implements IEn
         connectorResponseStream.abort(t);
     }
 
+    /**
+     * @see io.apiman.gateway.engine.IEngineResult#pause()
+     */
+    @Override
+    public void pause() {
+        connectorResponseStream.pause();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IEngineResult#resume()
+     */
+    @Override
+    public void resume() {
+        connectorResponseStream.resume();
+    }
+
     /**
      * @param connectorResponseStream the connectorResponseStream to set
      */
@@ -26,27 +26,60 @@ import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An in-memory implementation of the {@link ICacheStoreComponent} interface.
  * This implementation simply stores cached data in memory.
  *
+ * Lookups are lock-free.  The size of the cached data is bounded (maxCacheSize,
+ * in bytes) using a segmented LRU policy:  new entries go into a probationary
+ * segment and are promoted to a protected segment (80% of the cache) once they
+ * are read again, so a burst of one-off responses can only push out other
+ * one-off responses.  Expired entries are removed by a background sweep (every
+ * expirySweepPeriod milliseconds) as well as when they are read.
+ *
+ * Cached bodies are stored on the heap.  Setting offHeap to true stores them in
+ * direct (off-heap) buffers instead, so that large caches do not add to the GC
+ * load - but the direct memory of evicted entries is only released once they are
+ * garbage collected, so -XX:MaxDirectMemorySize must leave room for well over
+ * maxCacheSize when entries are evicted (or expire) at a high rate.
+ *
  * @author eric.wittmann@redhat.com
  */
 @DependsOnComponents( { IBufferFactoryComponent.class } )
 public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
 
-    private Object mapMutex = new Object();
-    private Object cacheSizeMutex = new Object();
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int TRANSMIT_CHUNK_SIZE = 64 * 1024;
 
-    private Map<String, Long> expireOnMap = new HashMap<>();
-    private Map<String, Object> objectCache = new LinkedHashMap<>();
-    private Map<String, IApimanBuffer> dataCache = new HashMap<>();
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    // Guarded by evictionLock - the segments, each in LRU order
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Map<String, CacheEntry> probation = new LinkedHashMap<>();
+    private final Map<String, CacheEntry> protectedSegment = new LinkedHashMap<>();
     private long cacheSize = 0;
+    private long protectedSize = 0;
+
     private long maxCacheSize = 10 * 1024 * 1024L; // 10 MB
+    private boolean offHeap = false;
+    private long expirySweepPeriod = 60 * 1000L; // 1 minute
+    private final AtomicBoolean sweeperStarted = new AtomicBoolean();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
 
     private IBufferFactoryComponent bufferFactory;
 
@@ -65,6 +98,14 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
         if (mcs != null) {
             maxCacheSize = new Long(mcs);
         }
+        String oh = config.get("offHeap"); //$NON-NLS-1$
+        if (oh != null) {
+            offHeap = Boolean.parseBoolean(oh);
+        }
+        String esp = config.get("expirySweepPeriod"); //$NON-NLS-1$
+        if (esp != null) {
+            expirySweepPeriod = new Long(esp);
+        }
     }
 
     /**
@@ -72,11 +113,7 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
      */
     @Override
     public <T> void put(String cacheKey, T jsonObject, long timeToLive) throws IOException {
-        synchronized (mapMutex) {
-            expireOnMap.put(cacheKey, System.currentTimeMillis() + (timeToLive * 1000));
-            objectCache.put(cacheKey, jsonObject);
-            dataCache.put(cacheKey, null);
-        }
+        store(cacheKey, new CacheEntry(jsonObject, null, expiresOn(timeToLive)));
     }
 
     /**
@@ -86,11 +123,7 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     public <T> ISignalWriteStream putBinary(final String cacheKey, final T jsonObject, final long timeToLive)
             throws IOException {
         final IApimanBuffer buffer = bufferFactory.createBuffer();
-        synchronized (mapMutex) {
-            expireOnMap.put(cacheKey, System.currentTimeMillis() + (timeToLive * 1000));
-            objectCache.put(cacheKey, jsonObject);
-            dataCache.put(cacheKey, buffer);
-        }
+        final long expiresOn = expiresOn(timeToLive);
         return new ISignalWriteStream() {
             private boolean finished = false;
             @Override
@@ -108,21 +141,10 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
             @Override
             public void end() {
                 finished = true;
-                synchronized (cacheSizeMutex) {
-                    cacheSize += buffer.length();
-                    if (cacheSize > maxCacheSize) {
-                        synchronized (mapMutex) {
-                            while (cacheSize > maxCacheSize) {
-                                String cacheKey = objectCache.keySet().iterator().next();
-                                objectCache.remove(cacheKey);
-                                expireOnMap.remove(cacheKey);
-                                IApimanBuffer removedBuffer = dataCache.remove(cacheKey);
-                                if (removedBuffer != null) {
-                                    cacheSize -= removedBuffer.length();
-                                }
-                            }
-                        }
-                    }
+                // Only cache the entry once the body is complete.  Entries that can never
+                // fit are not cached at all.
+                if (buffer.length() <= maxCacheSize) {
+                    store(cacheKey, new CacheEntry(jsonObject, toBody(buffer), expiresOn));
                 }
             }
         };
@@ -134,31 +156,8 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     @Override
     @SuppressWarnings("unchecked")
     public <T> void get(String cacheKey, Class<T> type, IAsyncResultHandler<T> handler) {
-        boolean expired = false;
-        Object rval;
-        synchronized (mapMutex) {
-            rval = objectCache.get(cacheKey);
-            if (rval != null) {
-                Long expiresOn = expireOnMap.get(cacheKey);
-                if (System.currentTimeMillis() > expiresOn ) {
-                    expired = true;
-                }
-            }
-        }
-        if (expired) {
-            synchronized (cacheSizeMutex) {
-                synchronized (mapMutex) {
-                    objectCache.remove(cacheKey);
-                    expireOnMap.remove(cacheKey);
-                    IApimanBuffer buffer = dataCache.remove(cacheKey);
-                    if (buffer != null) {
-                        cacheSize -= buffer.length();
-                    }
-                }
-            }
-            rval = null;
-        }
-        handler.handle(AsyncResultImpl.create((T) rval));
+        CacheEntry entry = lookup(cacheKey);
+        handler.handle(AsyncResultImpl.create(entry == null ? null : (T) entry.head));
     }
 
     /**
@@ -167,43 +166,15 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     @Override
     public <T> void getBinary(String cacheKey, Class<T> type,
             IAsyncResultHandler<ISignalReadStream<T>> handler) {
-        boolean expired = false;
+        CacheEntry entry = lookup(cacheKey);
         ISignalReadStream<T> rval;
-        Object object;
-
-        IApimanBuffer buffer;
-        synchronized (mapMutex) {
-            object = objectCache.get(cacheKey);
-            if (object != null) {
-                Long expiresOn = expireOnMap.get(cacheKey);
-                if (System.currentTimeMillis() > expiresOn ) {
-                    expired = true;
-                }
-            }
-            buffer = dataCache.get(cacheKey);
-            if (buffer == null) {
-                object = null;
-            }
-        }
 
-        if (object == null) {
-            rval = null;
-        } else if (expired) {
-            synchronized (cacheSizeMutex) {
-                synchronized (mapMutex) {
-                    objectCache.remove(cacheKey);
-                    expireOnMap.remove(cacheKey);
-                    dataCache.remove(cacheKey);
-                    if (buffer != null) {
-                        cacheSize -= buffer.length();
-                    }
-                }
-            }
+        if (entry == null || entry.body == null) {
             rval = null;
         } else {
             @SuppressWarnings("unchecked")
-            final T head = (T) object;
-            final IApimanBuffer data = buffer;
+            final T head = (T) entry.head;
+            final ByteBuffer data = entry.body.duplicate();
             rval = new ISignalReadStream<T>() {
                 IAsyncHandler<IApimanBuffer> bodyHandler;
                 IAsyncHandler<Void> endHandler;
@@ -231,7 +202,11 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
                 }
                 @Override
                 public void transmit() {
-                    bodyHandler.handle(data);
+                    while (data.hasRemaining() && !finished) {
+                        byte[] chunk = new byte[Math.min(data.remaining(), TRANSMIT_CHUNK_SIZE)];
+                        data.get(chunk);
+                        bodyHandler.handle(bufferFactory.createBuffer(chunk));
+                    }
                     endHandler.handle(null);
                 }
             };
@@ -240,6 +215,229 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
         handler.handle(AsyncResultImpl.create(rval));
     }
 
+    /**
+     * Gets a live entry from the cache, recording the hit (or miss).
+     * @param cacheKey
+     */
+    private CacheEntry lookup(String cacheKey) {
+        CacheEntry entry = cache.get(cacheKey);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            if (remove(cacheKey, entry)) {
+                expirations.incrementAndGet();
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // Reordering the segments is best effort - skip it rather than wait for the lock.
+        if (evictionLock.tryLock()) {
+            try {
+                onAccess(cacheKey, entry);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds (or replaces) an entry, evicting entries as needed to keep the cache
+     * within its maximum size.
+     * @param cacheKey
+     * @param entry
+     */
+    private void store(String cacheKey, CacheEntry entry) {
+        startSweeper();
+        evictionLock.lock();
+        try {
+            CacheEntry old = cache.put(cacheKey, entry);
+            if (old != null) {
+                unlink(cacheKey, old);
+            }
+            probation.put(cacheKey, entry);
+            cacheSize += entry.size;
+            while (cacheSize > maxCacheSize) {
+                Map<String, CacheEntry> segment = probation.isEmpty() ? protectedSegment : probation;
+                Iterator<Map.Entry<String, CacheEntry>> victims = segment.entrySet().iterator();
+                Map.Entry<String, CacheEntry> victim = victims.next();
+                cache.remove(victim.getKey(), victim.getValue());
+                unlink(victim.getKey(), victim.getValue());
+                evictions.incrementAndGet();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given entry (unless it has already been replaced).
+     * @return true if the entry was removed
+     */
+    private boolean remove(String cacheKey, CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            if (cache.remove(cacheKey, entry)) {
+                unlink(cacheKey, entry);
+                return true;
+            }
+            return false;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all expired entries from the cache.
+     */
+    protected void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+            if (entry.getValue().isExpired(now) && remove(entry.getKey(), entry.getValue())) {
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Promotes an entry that was read to the protected segment, or moves it to the
+     * most recently used end of it.  Must hold the eviction lock.
+     */
+    private void onAccess(String cacheKey, CacheEntry entry) {
+        if (entry.isProtected) {
+            if (protectedSegment.remove(cacheKey, entry)) {
+                protectedSegment.put(cacheKey, entry);
+            }
+            return;
+        }
+        if (!probation.remove(cacheKey, entry)) {
+            return; // already evicted or replaced
+        }
+        entry.isProtected = true;
+        protectedSegment.put(cacheKey, entry);
+        protectedSize += entry.size;
+
+        // Demote the least recently used protected entries to the probationary segment.
+        long maxProtectedSize = maxCacheSize / 100 * PROTECTED_PERCENT;
+        Iterator<Map.Entry<String, CacheEntry>> iter = protectedSegment.entrySet().iterator();
+        while (protectedSize > maxProtectedSize && iter.hasNext()) {
+            Map.Entry<String, CacheEntry> demoted = iter.next();
+            iter.remove();
+            demoted.getValue().isProtected = false;
+            protectedSize -= demoted.getValue().size;
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Removes an entry from its segment.  Must hold the eviction lock.
+     */
+    private void unlink(String cacheKey, CacheEntry entry) {
+        if (entry.isProtected) {
+            if (protectedSegment.remove(cacheKey, entry)) {
+                protectedSize -= entry.size;
+                cacheSize -= entry.size;
+            }
+        } else if (probation.remove(cacheKey, entry)) {
+            cacheSize -= entry.size;
+        }
+    }
+
+    /**
+     * Copies the body of an entry into its (read-only) storage buffer.
+     */
+    private ByteBuffer toBody(IApimanBuffer buffer) {
+        byte[] bytes = buffer.getBytes();
+        if (!offHeap) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        ByteBuffer body = ByteBuffer.allocateDirect(bytes.length);
+        body.put(bytes);
+        body.flip();
+        return body.asReadOnlyBuffer();
+    }
+
+    private static long expiresOn(long timeToLive) {
+        return System.currentTimeMillis() + (timeToLive * 1000);
+    }
+
+    /**
+     * Starts the background expiry sweep (once).  The sweeper only holds a weak
+     * reference to the cache store so that it stops once the store is discarded.
+     */
+    private void startSweeper() {
+        if (expirySweepPeriod <= 0 || !sweeperStarted.compareAndSet(false, true)) {
+            return;
+        }
+        final WeakReference<InMemoryCacheStoreComponent> storeRef = new WeakReference<>(this);
+        final long period = expirySweepPeriod;
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                InMemoryCacheStoreComponent store = storeRef.get();
+                if (store == null) {
+                    return;
+                }
+                store.removeExpired();
+            }
+        }, "InMemoryCacheStoreExpiry"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of cache lookups that found a live entry
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cache lookups that found no (live) entry
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to keep the cache within its maximum size
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries removed because they expired
+     */
+    public long getExpiredCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public int getEntryCount() {
+        return cache.size();
+    }
+
+    /**
+     * @return the size (in bytes) of the cached data
+     */
+    public long getCacheSize() {
+        evictionLock.lock();
+        try {
+            return cacheSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
     /**
      * @param bufferFactory the bufferFactory to set
      */
@@ -247,4 +445,27 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
         this.bufferFactory = bufferFactory;
     }
 
+    /**
+     * A cache entry:  the head object and (optionally) the body.
+     */
+    private static final class CacheEntry {
+        private final Object head;
+        private final ByteBuffer body;
+        private final long expiresOn;
+        private final int size;
+        // Guarded by the eviction lock
+        private boolean isProtected;
+
+        CacheEntry(Object head, ByteBuffer body, long expiresOn) {
+            this.head = head;
+            this.body = body;
+            this.expiresOn = expiresOn;
+            this.size = body == null ? 0 : body.capacity();
+        }
+
+        boolean isExpired(long now) {
+            return now > expiresOn;
+        }
+    }
+
 }
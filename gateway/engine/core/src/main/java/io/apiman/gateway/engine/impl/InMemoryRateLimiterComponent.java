@@ -19,26 +19,50 @@ import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
+import io.apiman.gateway.engine.rates.SlidingWindowRateBucket;
+import io.apiman.gateway.engine.rates.TokenRateBucket;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * A simple in-memory implementation of a rate limiter.  This is non-persistent
  * and does not work in a cluster.
  *
+ * Buckets are held in a concurrent map and updated with CAS operations (of the
+ * bucket's period and count together), so concurrent requests never contend on a lock
+ * and the result handler is always invoked outside of any critical section.
+ * The sliding window and token bucket algorithms are also supported; their
+ * buckets are locked individually, so only requests for the same bucket contend.
+ *
  * @author eric.wittmann@redhat.com
  */
 public class InMemoryRateLimiterComponent implements IRateLimiterComponent {
 
-    private Map<String, RateLimiterBucket> buckets = new HashMap<>();
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SlidingWindowRateBucket> slidingWindowBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenRateBucket> tokenBuckets = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
 
     /**
      * Constructor.
      */
     public InMemoryRateLimiterComponent() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor.
+     * @param clock supplies the current time (in millis)
+     */
+    InMemoryRateLimiterComponent(LongSupplier clock) {
+        this.clock = clock;
     }
 
     /**
@@ -46,27 +70,120 @@ public class InMemoryRateLimiterComponent implements IRateLimiterComponent {
      */
     @Override
     public void accept(String bucketId, RateBucketPeriod period, long limit, long increment, IAsyncResultHandler<RateLimitResponse> handler) {
-        RateLimiterBucket bucket;
-        synchronized (buckets) {
-            bucket = buckets.get(bucketId);
-            if (bucket == null) {
-                bucket = new RateLimiterBucket();
-                buckets.put(bucketId, bucket);
+        long now = clock.getAsLong();
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null) {
+            bucket = new Bucket(RateLimiterBucket.getPeriodBoundary(now, period));
+            Bucket existing = buckets.putIfAbsent(bucketId, bucket);
+            if (existing != null) {
+                bucket = existing;
             }
-            bucket.resetIfNecessary(period);
+        }
 
-            RateLimitResponse response = new RateLimitResponse();
-            if (bucket.getCount() > limit) {
+        RateLimitResponse response = new RateLimitResponse();
+        Window window;
+        long count;
+        while (true) {
+            Window current = bucket.window;
+            // Starts a new period if the current one has elapsed
+            window = now >= current.boundary ? new Window(RateLimiterBucket.getPeriodBoundary(now, period), 0) : current;
+            count = window.count;
+            if (count > limit) {
+                // Nothing to update (a new period always starts with a count of zero)
                 response.setAccepted(false);
-            } else {
-                response.setAccepted(bucket.getCount() < limit);
-                bucket.setCount(bucket.getCount() + increment);
-                bucket.setLast(System.currentTimeMillis());
+                break;
             }
-            int reset = (int) (bucket.getResetMillis(period) / 1000L);
-            response.setReset(reset);
-            response.setRemaining(limit - bucket.getCount());
-            handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
+            Window next = new Window(window.boundary, count + increment);
+            if (Bucket.WINDOW.compareAndSet(bucket, current, next)) {
+                response.setAccepted(count < limit);
+                count = next.count;
+                break;
+            }
+        }
+        response.setReset((int) ((window.boundary - now) / 1000L));
+        response.setRemaining(limit - count);
+        handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(String bucketId, RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit,
+            long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        RateLimitResponse response;
+        switch (algorithm) {
+        case SlidingWindow:
+            response = getOrCreate(slidingWindowBuckets, bucketId, SlidingWindowRateBucket::new).accept(clock.getAsLong(), period, limit, increment);
+            break;
+        case TokenBucket:
+            response = getOrCreate(tokenBuckets, bucketId, TokenRateBucket::new).accept(clock.getAsLong(), period, limit, increment);
+            break;
+        case FixedWindow:
+        default:
+            accept(bucketId, period, limit, increment, handler);
+            return;
+        }
+        handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
+    }
+
+    /**
+     * Gets the bucket with the given id, creating it if necessary.  Unlike
+     * computeIfAbsent, this never locks when the bucket already exists.
+     * @param map the bucket map
+     * @param bucketId the bucket id
+     * @param factory creates a new bucket
+     */
+    private static <T> T getOrCreate(ConcurrentMap<String, T> map, String bucketId, Supplier<T> factory) {
+        T bucket = map.get(bucketId);
+        if (bucket == null) {
+            bucket = factory.get();
+            T existing = map.putIfAbsent(bucketId, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * A rate bucket:  its current period, replaced (via CAS) by a new one whenever the
+     * count changes or a new period starts.  Replacing both together means that a count
+     * can never be applied to the wrong period.
+     */
+    private static final class Bucket {
+
+        private static final AtomicReferenceFieldUpdater<Bucket, Window> WINDOW =
+                AtomicReferenceFieldUpdater.newUpdater(Bucket.class, Window.class, "window"); //$NON-NLS-1$
+
+        private volatile Window window;
+
+        /**
+         * Constructor.
+         * @param boundary the end of the period in which the bucket was created
+         */
+        Bucket(long boundary) {
+            this.window = new Window(boundary, 0);
+        }
+    }
+
+    /**
+     * A period of a rate bucket:  the timestamp at which it ends and the number of units
+     * consumed in it.
+     */
+    private static final class Window {
+
+        private final long boundary;
+        private final long count;
+
+        /**
+         * Constructor.
+         * @param boundary the end of the period
+         * @param count the units consumed
+         */
+        Window(long boundary, long count) {
+            this.boundary = boundary;
+            this.count = count;
         }
     }
 
@@ -29,14 +29,36 @@ import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
 import io.apiman.gateway.engine.beans.exceptions.RegistrationException;
 import io.apiman.gateway.engine.i18n.Messages;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 /**
  * An in-memory implementation of the registry.
  *
+ * Lookups never take a lock.  Writes are serialized and, besides storing the
+ * entities in the registry map, maintain two read-optimised indexes:
+ * <ul>
+ *   <li>a contract index, mapping (apiKey, apiOrg, apiId, apiVersion) to a
+ *       pre-built {@link ApiContract}, so resolving the contract for a request
+ *       is a single hash lookup</li>
+ *   <li>an index of API and client ids/versions per organization, held as
+ *       immutable snapshots, so the list operations don't have to scan every
+ *       entity in the registry</li>
+ * </ul>
+ * Subclasses that store their entities in a map shared with other nodes (and
+ * so may be modified behind this instance's back) must disable the indexes
+ * by overriding {@link #isIndexed()}.
+ *
  * @author eric.wittmann@redhat.com
  */
 public class InMemoryRegistry implements IRegistry {
@@ -44,6 +66,11 @@ public class InMemoryRegistry implements IRegistry {
     private final Map<String, Object> map = new ConcurrentHashMap<>();
     private final Object mutex = new Object();
 
+    private final Map<ContractKey, ApiContract> contracts = new ConcurrentHashMap<>();
+    // Guarded by mutex - (apiIdx -> contracts for that API) used to rebuild the contract index
+    private final Map<String, Map<ContractKey, Client>> contractsByApi = new HashMap<>();
+    private final ConcurrentMap<String, OrgIndex> orgs = new ConcurrentHashMap<>();
+
     /**
      * Constructor.
      */
@@ -58,6 +85,10 @@ public class InMemoryRegistry implements IRegistry {
         synchronized (mutex) {
             String apiIdx = getApiIndex(api);
             getMap().put(apiIdx, api);
+            if (isIndexed()) {
+                indexApiContracts(apiIdx, api);
+                getOrgIndex(api.getOrganizationId()).addApi(api.getApiId(), api.getVersion());
+            }
         }
         handler.handle(AsyncResultImpl.create((Void) null));
     }
@@ -73,6 +104,9 @@ public class InMemoryRegistry implements IRegistry {
             Api removedApi = (Api) getMap().remove(apiIdx);
             if (removedApi == null) {
                 error = new ApiNotFoundException(Messages.i18n.format("InMemoryRegistry.ApiNotFound")); //$NON-NLS-1$
+            } else if (isIndexed()) {
+                indexApiContracts(apiIdx, null);
+                getOrgIndex(removedApi.getOrganizationId()).removeApi(removedApi.getApiId(), removedApi.getVersion());
             }
         }
         if (error == null) {
@@ -107,6 +141,10 @@ public class InMemoryRegistry implements IRegistry {
                 String clientIdx = getClientIndex(client);
                 getMap().put(clientIdx, client);
                 getMap().put(client.getApiKey(), client);
+                if (isIndexed()) {
+                    indexClientContracts(client);
+                    getOrgIndex(client.getOrganizationId()).addClient(client.getClientId(), client.getVersion());
+                }
 
                 handler.handle(AsyncResultImpl.create((Void) null));
             } else {
@@ -142,10 +180,26 @@ public class InMemoryRegistry implements IRegistry {
                 }
             } else {
                 getMap().remove(oldClient.getApiKey());
+                if (isIndexed()) {
+                    unindexClientContracts(oldClient);
+                    getOrgIndex(oldClient.getOrganizationId()).removeClient(oldClient.getClientId(), oldClient.getVersion());
+                }
             }
         }
     }
 
+    /**
+     * Clears all entities (and indexes) from the registry.
+     */
+    public void clear() {
+        synchronized (mutex) {
+            getMap().clear();
+            contracts.clear();
+            contractsByApi.clear();
+            orgs.clear();
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.IRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -167,11 +221,7 @@ public class InMemoryRegistry implements IRegistry {
      * @param apiKey
      */
     protected Client getClientInternal(String idx) {
-        Client client;
-        synchronized (mutex) {
-            client = (Client) getMap().get(idx);
-        }
-        return client;
+        return (Client) getMap().get(idx);
     }
 
     /**
@@ -180,14 +230,19 @@ public class InMemoryRegistry implements IRegistry {
     @Override
     public void getContract(String apiOrganizationId, String apiId, String apiVersion, String apiKey,
             IAsyncResultHandler<ApiContract> handler) {
-        Client client = null;
-        Api api = null;
+        if (isIndexed()) {
+            ApiContract contract = contracts.get(new ContractKey(apiKey, apiOrganizationId, apiId, apiVersion));
+            if (contract != null) {
+                handler.handle(AsyncResultImpl.create(contract));
+                return;
+            }
+        }
 
+        // Not indexed (or no such contract) - resolve it from the registry map, which
+        // also tells us why it could not be found.
         String apiIdx = getApiIndex(apiOrganizationId, apiId, apiVersion);
-        synchronized (mutex) {
-            client = (Client) getMap().get(apiKey);
-            api = (Api) getMap().get(apiIdx);
-        }
+        Client client = (Client) getMap().get(apiKey);
+        Api api = (Api) getMap().get(apiIdx);
         if (client == null) {
             Exception error = new ClientNotFoundException(Messages.i18n.format("InMemoryRegistry.NoClientForAPIKey", apiKey)); //$NON-NLS-1$
             handler.handle(AsyncResultImpl.create(error, ApiContract.class));
@@ -200,14 +255,7 @@ public class InMemoryRegistry implements IRegistry {
             return;
         }
 
-        Contract matchedContract = null;
-        for (Contract contract : client.getContracts()) {
-            if (contract.matches(apiOrganizationId, apiId, apiVersion)) {
-                matchedContract = contract;
-                break;
-            }
-        }
-
+        Contract matchedContract = findContract(client, apiOrganizationId, apiId, apiVersion);
         if (matchedContract == null) {
             Exception error = new NoContractFoundException(Messages.i18n.format("InMemoryRegistry.NoContractFound", //$NON-NLS-1$
                     client.getClientId(), api.getApiId()));
@@ -222,6 +270,10 @@ public class InMemoryRegistry implements IRegistry {
     @Override
     public void listClients(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
         // For now, ignore paging, but it's there for future. Would need to ensure stable ordering.
+        if (isIndexed()) {
+            handler.handle(AsyncResultImpl.create(getOrgIndex(organizationId).listClients()));
+            return;
+        }
         List<String> res = map.entrySet().stream()
                 .map(Map.Entry::getValue)
                 .filter(entity -> entity instanceof Client)
@@ -236,6 +288,10 @@ public class InMemoryRegistry implements IRegistry {
     @Override
     public void listClientVersions(String organizationId, String clientId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
         // For now, ignore paging, but it's there for future. Would need to ensure stable ordering.
+        if (isIndexed()) {
+            handler.handle(AsyncResultImpl.create(getOrgIndex(organizationId).listClientVersions(clientId)));
+            return;
+        }
         List<String> res = map.entrySet().stream()
                 .map(Map.Entry::getValue)
                 .filter(entity -> entity instanceof Client)
@@ -250,6 +306,10 @@ public class InMemoryRegistry implements IRegistry {
     @Override
     public void listApis(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
         // For now, ignore paging, but it's there for future. Would need to ensure stable ordering.
+        if (isIndexed()) {
+            handler.handle(AsyncResultImpl.create(getOrgIndex(organizationId).listApis()));
+            return;
+        }
         List<String> res = map.entrySet().stream()
                 .map(Map.Entry::getValue)
                 .filter(entity -> entity instanceof Api)
@@ -264,6 +324,10 @@ public class InMemoryRegistry implements IRegistry {
     @Override
     public void listApiVersions(String organizationId, String apiId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
         // For now, ignore paging, but it's there for future. Would need to ensure stable ordering.
+        if (isIndexed()) {
+            handler.handle(AsyncResultImpl.create(getOrgIndex(organizationId).listApiVersions(apiId)));
+            return;
+        }
         List<String> res = map.entrySet().stream()
                 .map(Map.Entry::getValue)
                 .filter(entity -> entity instanceof Api)
@@ -277,7 +341,14 @@ public class InMemoryRegistry implements IRegistry {
 
     @Override
     public void listOrgs(IAsyncResultHandler<List<String>> handler) {
-        // TODO: We should track set of OrgId -> AtomicCounter if this API has meaningfully high usage.
+        if (isIndexed()) {
+            List<String> res = orgs.entrySet().stream()
+                    .filter(entry -> !entry.getValue().isEmpty())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+            handler.handle(AsyncResultImpl.create(res));
+            return;
+        }
         List<String> res = map.entrySet().stream()
                 .map(Map.Entry::getValue)
                 .map(elem -> {
@@ -311,11 +382,106 @@ public class InMemoryRegistry implements IRegistry {
      */
     private Api getApiInternal(String apiOrgId, String apiId, String apiVersion) {
         String key = getApiIndex(apiOrgId, apiId, apiVersion);
-        Api api;
-        synchronized (mutex) {
-            api = (Api) getMap().get(key);
+        return (Api) getMap().get(key);
+    }
+
+    /**
+     * Whether the contract and organization indexes are maintained and used for
+     * lookups.  They are only consistent if every change to the registry map is
+     * made through this instance, so subclasses whose map is shared with other
+     * nodes should return false.
+     */
+    protected boolean isIndexed() {
+        return true;
+    }
+
+    /**
+     * Adds a client's contracts to the contract index.  Must hold the mutex.
+     * @param client the client
+     */
+    private void indexClientContracts(Client client) {
+        for (Contract contract : client.getContracts()) {
+            String apiIdx = getApiIndex(contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion());
+            ContractKey key = new ContractKey(client.getApiKey(), contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion());
+            Map<ContractKey, Client> apiContracts = contractsByApi.get(apiIdx);
+            if (apiContracts == null) {
+                apiContracts = new HashMap<>();
+                contractsByApi.put(apiIdx, apiContracts);
+            }
+            apiContracts.put(key, client);
+            Api api = (Api) getMap().get(apiIdx);
+            if (api != null) {
+                contracts.put(key, new ApiContract(api, client, contract.getPlan(), contract.getPolicies()));
+            }
+        }
+    }
+
+    /**
+     * Removes a client's contracts from the contract index.  Must hold the mutex.
+     * @param client the client
+     */
+    private void unindexClientContracts(Client client) {
+        for (Contract contract : client.getContracts()) {
+            String apiIdx = getApiIndex(contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion());
+            ContractKey key = new ContractKey(client.getApiKey(), contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion());
+            contracts.remove(key);
+            Map<ContractKey, Client> apiContracts = contractsByApi.get(apiIdx);
+            if (apiContracts != null) {
+                apiContracts.remove(key);
+                if (apiContracts.isEmpty()) {
+                    contractsByApi.remove(apiIdx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds (or, when the API has been retired, removes) the indexed contracts
+     * of an API.  Must hold the mutex.
+     * @param apiIdx the API index
+     * @param api the published API, or null if it was retired
+     */
+    private void indexApiContracts(String apiIdx, Api api) {
+        Map<ContractKey, Client> apiContracts = contractsByApi.get(apiIdx);
+        if (apiContracts == null) {
+            return;
+        }
+        for (Entry<ContractKey, Client> entry : apiContracts.entrySet()) {
+            ContractKey key = entry.getKey();
+            if (api == null) {
+                contracts.remove(key);
+            } else {
+                Contract contract = findContract(entry.getValue(), key.apiOrgId, key.apiId, key.apiVersion);
+                contracts.put(key, new ApiContract(api, entry.getValue(), contract.getPlan(), contract.getPolicies()));
+            }
+        }
+    }
+
+    /**
+     * Finds the client's contract with the given API.
+     */
+    private static Contract findContract(Client client, String apiOrgId, String apiId, String apiVersion) {
+        for (Contract contract : client.getContracts()) {
+            if (contract.matches(apiOrgId, apiId, apiVersion)) {
+                return contract;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param orgId the organization id
+     */
+    private OrgIndex getOrgIndex(String orgId) {
+        OrgIndex index = orgs.get(orgId);
+        if (index == null) {
+            index = new OrgIndex();
+            OrgIndex existing = orgs.putIfAbsent(orgId, index);
+            if (existing != null) {
+                index = existing;
+            }
         }
-        return api;
+        return index;
     }
 
     /**
@@ -361,4 +527,123 @@ public class InMemoryRegistry implements IRegistry {
         return map;
     }
 
+    /**
+     * Key of the contract index:  the client's API key plus the API's coordinates.
+     */
+    private static final class ContractKey {
+        private final String apiKey;
+        private final String apiOrgId;
+        private final String apiId;
+        private final String apiVersion;
+        private final int hash;
+
+        ContractKey(String apiKey, String apiOrgId, String apiId, String apiVersion) {
+            this.apiKey = apiKey;
+            this.apiOrgId = apiOrgId;
+            this.apiId = apiId;
+            this.apiVersion = apiVersion;
+            int h = String.valueOf(apiKey).hashCode();
+            h = 31 * h + String.valueOf(apiOrgId).hashCode();
+            h = 31 * h + String.valueOf(apiId).hashCode();
+            h = 31 * h + String.valueOf(apiVersion).hashCode();
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ContractKey)) {
+                return false;
+            }
+            ContractKey other = (ContractKey) obj;
+            return hash == other.hash && equal(apiKey, other.apiKey) && equal(apiOrgId, other.apiOrgId)
+                    && equal(apiId, other.apiId) && equal(apiVersion, other.apiVersion);
+        }
+
+        private static boolean equal(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * The ids and versions of the APIs and clients of a single organization.  Each
+     * is an immutable snapshot that is replaced (under the registry mutex) on change,
+     * so reads need no locking.
+     */
+    private static final class OrgIndex {
+        private volatile Map<String, List<String>> apis = Collections.emptyMap();
+        private volatile Map<String, List<String>> clients = Collections.emptyMap();
+
+        void addApi(String apiId, String version) {
+            apis = add(apis, apiId, version);
+        }
+
+        void removeApi(String apiId, String version) {
+            apis = remove(apis, apiId, version);
+        }
+
+        void addClient(String clientId, String version) {
+            clients = add(clients, clientId, version);
+        }
+
+        void removeClient(String clientId, String version) {
+            clients = remove(clients, clientId, version);
+        }
+
+        List<String> listApis() {
+            return new ArrayList<>(apis.keySet());
+        }
+
+        List<String> listApiVersions(String apiId) {
+            return new ArrayList<>(apis.getOrDefault(apiId, Collections.emptyList()));
+        }
+
+        List<String> listClients() {
+            return new ArrayList<>(clients.keySet());
+        }
+
+        List<String> listClientVersions(String clientId) {
+            return new ArrayList<>(clients.getOrDefault(clientId, Collections.emptyList()));
+        }
+
+        boolean isEmpty() {
+            return apis.isEmpty() && clients.isEmpty();
+        }
+
+        private static Map<String, List<String>> add(Map<String, List<String>> snapshot, String id, String version) {
+            List<String> versions = snapshot.getOrDefault(id, Collections.emptyList());
+            if (versions.contains(version)) {
+                return snapshot;
+            }
+            Set<String> newVersions = new LinkedHashSet<>(versions);
+            newVersions.add(version);
+            Map<String, List<String>> newSnapshot = new LinkedHashMap<>(snapshot);
+            newSnapshot.put(id, Collections.unmodifiableList(new ArrayList<>(newVersions)));
+            return Collections.unmodifiableMap(newSnapshot);
+        }
+
+        private static Map<String, List<String>> remove(Map<String, List<String>> snapshot, String id, String version) {
+            List<String> versions = snapshot.getOrDefault(id, Collections.emptyList());
+            if (!versions.contains(version)) {
+                return snapshot;
+            }
+            List<String> newVersions = new ArrayList<>(versions);
+            newVersions.remove(version);
+            Map<String, List<String>> newSnapshot = new LinkedHashMap<>(snapshot);
+            if (newVersions.isEmpty()) {
+                newSnapshot.remove(id);
+            } else {
+                newSnapshot.put(id, Collections.unmodifiableList(newVersions));
+            }
+            return Collections.unmodifiableMap(newSnapshot);
+        }
+    }
+
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.util.ReflectionUtils;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A rate limiter that wraps another (typically distributed) rate limiter component
+ * and avoids a remote round trip for every request.  Rather than incrementing the
+ * shared bucket by one per request, each node leases a block of requests from the
+ * shared bucket and then serves requests locally until the block is used up or
+ * the rate period resets.
+ *
+ * Because the shared bucket is always incremented by the full lease before any
+ * of it is handed out, the gateway never admits more requests than the limit
+ * (apart from clock skew between nodes around a period boundary).  The price is
+ * that leased but unused requests are unavailable to other nodes until the period
+ * resets, so the lease size adapts to the rate observed for each bucket: it aims to
+ * cover 'lease.targetMillis' worth of traffic, bounded by 'lease.minSize' and
+ * 'lease.maxSize', and never exceeds a tenth of the limit.
+ *
+ * Only fixed window, single-unit requests are leased.  Anything else (e.g. the
+ * byte counts recorded by the transfer quota policy) is passed straight through
+ * to the wrapped component.
+ *
+ * Configuration:
+ * <ul>
+ *   <li>delegate - the classname of the wrapped rate limiter component</li>
+ *   <li>delegate.* - configuration passed on to the wrapped component</li>
+ *   <li>lease.minSize - smallest lease (default 1)</li>
+ *   <li>lease.maxSize - largest lease (default 1000)</li>
+ *   <li>lease.targetMillis - how much traffic a lease should cover (default 1000)</li>
+ * </ul>
+ */
+public class LeasingRateLimiterComponent implements IRateLimiterComponent {
+
+    private static final String DELEGATE_PREFIX = "delegate."; //$NON-NLS-1$
+    private static final int MAX_LEASE_FRACTION = 10;
+
+    private final IRateLimiterComponent delegate;
+    private final long minLeaseSize;
+    private final long maxLeaseSize;
+    private final long leaseTargetMillis;
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param delegate the wrapped rate limiter
+     */
+    public LeasingRateLimiterComponent(IRateLimiterComponent delegate) {
+        this(delegate, 1, 1000, 1000);
+    }
+
+    /**
+     * Constructor.
+     * @param delegate the wrapped rate limiter
+     * @param minLeaseSize the smallest lease
+     * @param maxLeaseSize the largest lease
+     * @param leaseTargetMillis the amount of traffic (in millis) a lease should cover
+     */
+    public LeasingRateLimiterComponent(IRateLimiterComponent delegate, long minLeaseSize, long maxLeaseSize,
+            long leaseTargetMillis) {
+        this.delegate = delegate;
+        this.minLeaseSize = Math.max(1, minLeaseSize);
+        this.maxLeaseSize = Math.max(this.minLeaseSize, maxLeaseSize);
+        this.leaseTargetMillis = leaseTargetMillis;
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public LeasingRateLimiterComponent(Map<String, String> config) {
+        this(createDelegate(config), getLong(config, "lease.minSize", 1), //$NON-NLS-1$
+                getLong(config, "lease.maxSize", 1000), getLong(config, "lease.targetMillis", 1000)); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(String bucketId, RateBucketPeriod period, long limit, long increment,
+            IAsyncResultHandler<RateLimitResponse> handler) {
+        if (increment != 1) {
+            delegate.accept(bucketId, period, limit, increment, handler);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Lease lease = leases.get(bucketId);
+        if (lease == null) {
+            lease = new Lease();
+            Lease existing = leases.putIfAbsent(bucketId, lease);
+            if (existing != null) {
+                lease = existing;
+            }
+        }
+
+        RateLimitResponse response;
+        long leaseSize;
+        synchronized (lease) {
+            response = lease.tryAccept(now);
+            if (response == null) {
+                if (lease.fetching) {
+                    lease.waiters.add(handler);
+                    return;
+                }
+                lease.fetching = true;
+                leaseSize = lease.nextLeaseSize(now, limit);
+            } else {
+                leaseSize = 0;
+            }
+        }
+        if (response != null) {
+            handler.handle(AsyncResultImpl.create(response));
+        } else {
+            fetchLease(lease, bucketId, period, limit, leaseSize, handler);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(String bucketId, RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit,
+            long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        if (algorithm == RateBucketAlgorithm.FixedWindow) {
+            accept(bucketId, period, limit, increment, handler);
+        } else {
+            delegate.accept(bucketId, period, algorithm, limit, increment, handler);
+        }
+    }
+
+    /**
+     * Reserves a block of requests from the wrapped rate limiter.  The request that
+     * triggered the lease, and any that queued up while it was in flight, are
+     * answered from the new lease.
+     */
+    private void fetchLease(final Lease lease, final String bucketId, final RateBucketPeriod period,
+            final long limit, final long leaseSize, final IAsyncResultHandler<RateLimitResponse> handler) {
+        delegate.accept(bucketId, period, limit, leaseSize, new IAsyncResultHandler<RateLimitResponse>() {
+            @Override
+            public void handle(IAsyncResult<RateLimitResponse> result) {
+                List<IAsyncResultHandler<RateLimitResponse>> answered = new ArrayList<>();
+                List<RateLimitResponse> responses = new ArrayList<>();
+                List<IAsyncResultHandler<RateLimitResponse>> failed = new ArrayList<>();
+                long nextLeaseSize = 0;
+                IAsyncResultHandler<RateLimitResponse> nextHandler = null;
+                long now = System.currentTimeMillis();
+                synchronized (lease) {
+                    List<IAsyncResultHandler<RateLimitResponse>> handlers = new ArrayList<>(lease.waiters.size() + 1);
+                    handlers.add(handler);
+                    handlers.addAll(lease.waiters);
+                    lease.waiters.clear();
+                    if (result.isError()) {
+                        lease.fetching = false;
+                        failed.addAll(handlers);
+                    } else {
+                        lease.granted(now, period, leaseSize, result.getResult());
+                        for (IAsyncResultHandler<RateLimitResponse> h : handlers) {
+                            RateLimitResponse response = lease.tryAccept(now);
+                            if (response != null) {
+                                answered.add(h);
+                                responses.add(response);
+                            } else if (nextHandler == null) {
+                                nextHandler = h;
+                            } else {
+                                lease.waiters.add(h);
+                            }
+                        }
+                        if (nextHandler == null) {
+                            lease.fetching = false;
+                        } else {
+                            nextLeaseSize = lease.nextLeaseSize(now, limit);
+                        }
+                    }
+                }
+                for (IAsyncResultHandler<RateLimitResponse> h : failed) {
+                    h.handle(AsyncResultImpl.<RateLimitResponse>create(result.getError()));
+                }
+                for (int i = 0; i < answered.size(); i++) {
+                    answered.get(i).handle(AsyncResultImpl.create(responses.get(i)));
+                }
+                if (nextHandler != null) {
+                    fetchLease(lease, bucketId, period, limit, nextLeaseSize, nextHandler);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the wrapped rate limiter from the configuration.
+     * @param config the config
+     */
+    private static IRateLimiterComponent createDelegate(Map<String, String> config) {
+        String classname = config.get("delegate"); //$NON-NLS-1$
+        if (classname == null) {
+            throw new RuntimeException("No 'delegate' configured - configuration of " + LeasingRateLimiterComponent.class.getName() + " failed."); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        Map<String, String> delegateConfig = new HashMap<>();
+        for (Entry<String, String> entry : config.entrySet()) {
+            if (entry.getKey().startsWith(DELEGATE_PREFIX)) {
+                delegateConfig.put(entry.getKey().substring(DELEGATE_PREFIX.length()), entry.getValue());
+            }
+        }
+        try {
+            Class<?> c = ReflectionUtils.loadClass(classname);
+            if (c == null) {
+                throw new RuntimeException("Rate limiter class not found: " + classname); //$NON-NLS-1$
+            }
+            try {
+                Constructor<?> constructor = c.getConstructor(Map.class);
+                return (IRateLimiterComponent) constructor.newInstance(delegateConfig);
+            } catch (NoSuchMethodException e) {
+                return (IRateLimiterComponent) c.newInstance();
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a long value from the config.
+     */
+    private static long getLong(Map<String, String> config, String key, long defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * The local state for a single bucket:  the requests leased from the wrapped
+     * rate limiter that have not been used yet, and the observed request rate.
+     * All access must be synchronized on the lease.
+     */
+    private final class Lease {
+
+        private long tokens;
+        private long expiresOn;
+        private long remoteRemaining;
+        private long rejectedUntil;
+        private long rejectedRemaining;
+
+        private boolean fetching;
+        private final List<IAsyncResultHandler<RateLimitResponse>> waiters = new ArrayList<>();
+
+        private long requests;
+        private long lastLeaseOn;
+
+        /**
+         * Tries to accept a single request locally.  Returns null if the wrapped rate
+         * limiter must be consulted.
+         * @param now the current time
+         */
+        RateLimitResponse tryAccept(long now) {
+            if (now < rejectedUntil) {
+                // The shared bucket is used up until the period resets
+                return response(false, rejectedRemaining, rejectedUntil - now);
+            }
+            if (now < expiresOn && tokens > 0) {
+                requests++;
+                tokens--;
+                return response(true, remoteRemaining + tokens, expiresOn - now);
+            }
+            return null;
+        }
+
+        /**
+         * Records the result of leasing the given number of requests.
+         * @param now the current time
+         * @param period the period
+         * @param leaseSize the number of requests asked for
+         * @param result the result from the wrapped rate limiter
+         */
+        void granted(long now, RateBucketPeriod period, long leaseSize, RateLimitResponse result) {
+            // The wrapped limiter increments by the full lease even if that overshoots
+            // the limit - only the part below the limit may actually be used.
+            long granted = result.isAccepted() ? leaseSize + Math.min(0, result.getRemaining()) : 0;
+            long boundary = RateLimiterBucket.getPeriodBoundary(now, period);
+            if (granted > 0) {
+                tokens = granted;
+                expiresOn = boundary;
+                remoteRemaining = Math.max(0, result.getRemaining());
+            } else {
+                tokens = 0;
+                rejectedUntil = boundary;
+                rejectedRemaining = Math.min(-1, result.getRemaining());
+            }
+        }
+
+        /**
+         * Works out how many requests to lease next, based on the request rate seen
+         * since the previous lease.
+         * @param now the current time
+         * @param limit the limit
+         */
+        long nextLeaseSize(long now, long limit) {
+            long size = minLeaseSize;
+            if (lastLeaseOn > 0 && now > lastLeaseOn) {
+                double requestsPerMilli = (requests + 1) / (double) (now - lastLeaseOn);
+                size = Math.max(size, (long) Math.ceil(requestsPerMilli * leaseTargetMillis));
+            }
+            lastLeaseOn = now;
+            requests = 0;
+            return Math.max(1, Math.min(Math.min(size, maxLeaseSize), limit / MAX_LEASE_FRACTION));
+        }
+
+        private RateLimitResponse response(boolean accepted, long remaining, long resetMillis) {
+            RateLimitResponse response = new RateLimitResponse();
+            response.setAccepted(accepted);
+            response.setRemaining(remaining);
+            response.setReset((int) (resetMillis / 1000L));
+            return response;
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent cache bounded to a maximum number of entries, which evicts the
+ * (approximately) least recently used entries once it is full.
+ *
+ * Lookups are as cheap as those of the underlying {@link ConcurrentHashMap}:  the
+ * access time of an entry is read from a clock that only ticks when an entry is
+ * added, so cache hits don't all write to it.  Once the cache is over its maximum
+ * size the least recently used tenth of it is evicted in one go.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class LruCache<K, V> {
+
+    private final ConcurrentMap<K, Entry<V>> cache = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final Object evictionMutex = new Object();
+
+    /**
+     * Constructor.
+     * @param maxSize the maximum number of entries
+     */
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the cached value of the given key.
+     * @param key the key
+     * @return the value, or null if it isn't cached
+     */
+    public V get(K key) {
+        Entry<V> entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        // Approximately LRU:  the access time is only as precise as the clock.
+        long now = clock.get();
+        if (entry.lastAccess != now) {
+            entry.lastAccess = now;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches the given value, evicting the least recently used entries if the cache
+     * is then over its maximum size.
+     * @param key the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        cache.put(key, new Entry<>(value, clock.incrementAndGet()));
+        if (cache.size() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of entries evicted so far
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Evicts the least recently used tenth of the cache.
+     */
+    private void evict() {
+        synchronized (evictionMutex) {
+            int toEvict = cache.size() - maxSize;
+            if (toEvict <= 0) {
+                return;
+            }
+            toEvict = Math.max(toEvict, maxSize / 10);
+            List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(cache.entrySet());
+            entries.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+            for (int i = 0; i < toEvict && i < entries.size(); i++) {
+                if (cache.remove(entries.get(i).getKey()) != null) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached value and when it was last used.
+     */
+    private static final class Entry<V> {
+        private final V value;
+        private volatile long lastAccess;
+
+        Entry(V value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+}
@@ -31,17 +31,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Wraps any {@link IRegistry} implementation to provide some encryption to
  * sensitive information.
  *
+ * Decryption is memoized per API/client version:  the same encrypted value is only
+ * ever decrypted once, so that serving a request normally doesn't involve any
+ * crypto.  The memoized values of an API or client are dropped when it is
+ * (re-)published, retired, registered or unregistered.
+ *
  * @author eric.wittmann@redhat.com
  */
 public class SecureRegistryWrapper implements IRegistry {
 
+    private static final int MAX_MEMOIZED_VALUES = 1000;
+
     private final IRegistry delegate;
     private final IDataEncrypter encrypter;
+    private final ConcurrentMap<String, DecryptionMemo> memos = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -53,11 +63,19 @@ public class SecureRegistryWrapper implements IRegistry {
         this.encrypter = encrypter;
     }
 
+    /**
+     * @return the wrapped registry
+     */
+    public IRegistry getDelegate() {
+        return delegate;
+    }
+
     /**
      * @see io.apiman.gateway.engine.IRegistry#publishApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
     public void publishApi(Api api, IAsyncResultHandler<Void> handler) {
+        invalidate(api.getOrganizationId(), api.getApiId(), api.getVersion(), EntityType.Api);
         List<Policy> policies = api.getApiPolicies();
         encryptPolicies(api.getOrganizationId(), api.getApiId(), api.getVersion(), EntityType.Api, policies);
         encryptEndpointProperties(api.getOrganizationId(), api.getApiId(), api.getVersion(), EntityType.Api, api.getEndpointProperties());
@@ -71,6 +89,7 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     @Override
     public void registerClient(Client client, IAsyncResultHandler<Void> handler) {
+        invalidate(client.getOrganizationId(), client.getClientId(), client.getVersion(), EntityType.ClientApp);
         Set<Contract> contracts = client.getContracts();
         if (contracts != null) {
             for (Contract contract : contracts) {
@@ -92,6 +111,7 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     @Override
     public void retireApi(Api api, IAsyncResultHandler<Void> handler) {
+        invalidate(api.getOrganizationId(), api.getApiId(), api.getVersion(), EntityType.Api);
         delegate.retireApi(api, handler);
     }
 
@@ -100,6 +120,7 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     @Override
     public void unregisterClient(Client client, IAsyncResultHandler<Void> handler) {
+        invalidate(client.getOrganizationId(), client.getClientId(), client.getVersion(), EntityType.ClientApp);
         delegate.unregisterClient(client, handler);
     }
 
@@ -236,10 +257,10 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     protected void decryptPolicies(String orgId, String entityId, String entityVersion, EntityType entityType, List<Policy> policies) {
         if (policies != null) {
-            DataEncryptionContext ctx = new DataEncryptionContext(orgId, entityId, entityVersion, entityType);
+            DecryptionMemo memo = getMemo(orgId, entityId, entityVersion, entityType);
             for (Policy policy : policies) {
                 String encryptedConfig = policy.getPolicyJsonConfig();
-                policy.setPolicyJsonConfig(encrypter.decrypt(encryptedConfig, ctx));
+                policy.setPolicyJsonConfig(memo.decrypt(encryptedConfig));
             }
         }
     }
@@ -249,13 +270,37 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     protected void decryptEndpointProperties(String orgId, String entityId, String entityVersion, EntityType entityType, Map<String, String> endpointProperties) {
         if (endpointProperties != null) {
-            DataEncryptionContext ctx = new DataEncryptionContext(orgId, entityId, entityVersion, entityType);
+            DecryptionMemo memo = getMemo(orgId, entityId, entityVersion, entityType);
             for (Entry<String, String> entry : endpointProperties.entrySet()) {
-                entry.setValue(encrypter.decrypt(entry.getValue(), ctx));
+                entry.setValue(memo.decrypt(entry.getValue()));
             }
         }
     }
 
+    /**
+     * Gets the decryption memo for the given API or client version.
+     */
+    private DecryptionMemo getMemo(String orgId, String entityId, String entityVersion, EntityType entityType) {
+        String key = memoKey(orgId, entityId, entityVersion, entityType);
+        DecryptionMemo memo = memos.get(key);
+        if (memo == null) {
+            memo = memos.computeIfAbsent(key,
+                    k -> new DecryptionMemo(new DataEncryptionContext(orgId, entityId, entityVersion, entityType)));
+        }
+        return memo;
+    }
+
+    /**
+     * Drops the memoized decrypted values of the given API or client version.
+     */
+    private void invalidate(String orgId, String entityId, String entityVersion, EntityType entityType) {
+        memos.remove(memoKey(orgId, entityId, entityVersion, entityType));
+    }
+
+    private static String memoKey(String orgId, String entityId, String entityVersion, EntityType entityType) {
+        return entityType + "|" + orgId + "|" + entityId + "|" + entityVersion; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
     @Override
     public void listApiVersions(String organizationId, String apiId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
         delegate.listApiVersions(organizationId, apiId, page, pageSize, handler);
@@ -271,4 +316,35 @@ public class SecureRegistryWrapper implements IRegistry {
         delegate.listClientVersions(organizationId, clientId, page, pageSize, handler);
     }
 
+    /**
+     * The decrypted values of a single API or client version, keyed by their
+     * encrypted values.
+     */
+    private final class DecryptionMemo {
+        private final DataEncryptionContext ctx;
+        private final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+
+        DecryptionMemo(DataEncryptionContext ctx) {
+            this.ctx = ctx;
+        }
+
+        String decrypt(String encrypted) {
+            if (encrypted == null) {
+                return encrypter.decrypt(null, ctx);
+            }
+            String decrypted = values.get(encrypted);
+            if (decrypted == null) {
+                decrypted = encrypter.decrypt(encrypted, ctx);
+                if (decrypted != null) {
+                    if (values.size() >= MAX_MEMOIZED_VALUES) {
+                        // Only if the entity keeps changing behind our back - start again.
+                        values.clear();
+                    }
+                    values.put(encrypted, decrypted);
+                }
+            }
+            return decrypted;
+        }
+    }
+
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (JDK 21+) for the blocking (e.g. servlet) gateway platforms.
+ * The gateway is built for older JDKs, so they are looked up reflectively - when running
+ * on a JDK without virtual threads {@link #isAvailable()} returns false and callers should
+ * fall back to using platform threads.
+ */
+public final class VirtualThreads {
+
+    private static final ExecutorService executor = createExecutor();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if virtual threads are available on this JDK
+     */
+    public static boolean isAvailable() {
+        return executor != null;
+    }
+
+    /**
+     * Gets the shared executor that runs each task on a new virtual thread (named
+     * 'apiman-gateway-virtual-N').
+     * @return the executor, or null if virtual threads are not available
+     */
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Equivalent to:
+     *
+     *   Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("apiman-gateway-virtual-", 0).factory())
+     */
+    @SuppressWarnings("nls")
+    private static ExecutorService createExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "apiman-gateway-virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+}
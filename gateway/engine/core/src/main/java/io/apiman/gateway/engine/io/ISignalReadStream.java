@@ -35,4 +35,18 @@ public interface ISignalReadStream<H> extends IReadStream<H>, IAbortable {
      * {@link #endHandler(IAsyncHandler)} will arrive until this has been invoked.
      */
     void transmit();
+
+    /**
+     * Asks the sender to temporarily stop sending (e.g. because the recipient cannot keep up).
+     * Optional - by default this does nothing, and data keeps arriving.
+     */
+    default void pause() {
+    }
+
+    /**
+     * Asks the sender to resume sending after {@link #pause()}.  Must not begin transmission
+     * if {@link #transmit()} has not yet been called.
+     */
+    default void resume() {
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.metrics;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The state of the circuit breaker and concurrency limiter that protect a single
+ * back-end API endpoint.  Reported to the metrics subsystem whenever the circuit
+ * changes state.
+ */
+public class BackendHealthMetric implements Serializable {
+
+    private static final long serialVersionUID = 6913380563745932810L;
+
+    /**
+     * The state of a circuit breaker.
+     */
+    public static enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private Date timestamp;
+    private String endpoint;
+    private CircuitState state;
+    private int concurrencyLimit;
+    private int inFlight;
+    private int consecutiveFailures;
+
+    /**
+     * Constructor.
+     */
+    public BackendHealthMetric() {
+    }
+
+    /**
+     * @return when the state changed
+     */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param timestamp the timestamp to set
+     */
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the back-end endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @param endpoint the endpoint to set
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the (new) state of the circuit
+     */
+    public CircuitState getState() {
+        return state;
+    }
+
+    /**
+     * @param state the state to set
+     */
+    public void setState(CircuitState state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the current concurrency limit
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @param concurrencyLimit the concurrencyLimit to set
+     */
+    public void setConcurrencyLimit(int concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * @return the number of requests awaiting a response from the endpoint
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @param inFlight the inFlight to set
+     */
+    public void setInFlight(int inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * @return the number of consecutive failed requests
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @param consecutiveFailures the consecutiveFailures to set
+     */
+    public void setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+        return "BackendHealthMetric [timestamp=" + timestamp + ", endpoint=" + endpoint + ", state=" + state
+                + ", concurrencyLimit=" + concurrencyLimit + ", inFlight=" + inFlight
+                + ", consecutiveFailures=" + consecutiveFailures + "]";
+    }
+
+}
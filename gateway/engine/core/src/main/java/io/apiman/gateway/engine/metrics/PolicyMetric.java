@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.metrics;
+
+import java.io.Serializable;
+
+/**
+ * Profiling information about a single policy in the request or response policy
+ * chain of a (sampled) request.  Reported to the metrics subsystem as part of the
+ * {@link RequestMetric}.
+ *
+ * All durations are in nanoseconds.
+ */
+public class PolicyMetric implements Serializable {
+
+    private static final long serialVersionUID = -2291428651476093925L;
+
+    private String policyImpl;
+    private String chain;
+    private long applyDuration;
+    private long waitDuration;
+    private long dataDuration;
+    private long dataBytes;
+
+    /**
+     * Constructor.
+     */
+    public PolicyMetric() {
+    }
+
+    /**
+     * Constructor.
+     * @param policyImpl the policy implementation (class name)
+     * @param chain the chain (request or response)
+     */
+    public PolicyMetric(String policyImpl, String chain) {
+        this.policyImpl = policyImpl;
+        this.chain = chain;
+    }
+
+    /**
+     * @return the policy implementation (class name)
+     */
+    public String getPolicyImpl() {
+        return policyImpl;
+    }
+
+    /**
+     * @param policyImpl the policyImpl to set
+     */
+    public void setPolicyImpl(String policyImpl) {
+        this.policyImpl = policyImpl;
+    }
+
+    /**
+     * @return the chain the policy was applied in (request or response)
+     */
+    public String getChain() {
+        return chain;
+    }
+
+    /**
+     * @param chain the chain to set
+     */
+    public void setChain(String chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * @return the time spent (synchronously) in the policy's apply method
+     */
+    public long getApplyDuration() {
+        return applyDuration;
+    }
+
+    /**
+     * @param applyDuration the applyDuration to set
+     */
+    public void setApplyDuration(long applyDuration) {
+        this.applyDuration = applyDuration;
+    }
+
+    /**
+     * @return the time between the policy's apply method returning and the policy
+     *         continuing the chain (e.g. waiting on a rate limiter or an LDAP server)
+     */
+    public long getWaitDuration() {
+        return waitDuration;
+    }
+
+    /**
+     * @param waitDuration the waitDuration to set
+     */
+    public void setWaitDuration(long waitDuration) {
+        this.waitDuration = waitDuration;
+    }
+
+    /**
+     * @return the time spent in the policy's data handler
+     */
+    public long getDataDuration() {
+        return dataDuration;
+    }
+
+    /**
+     * @param dataDuration the dataDuration to set
+     */
+    public void setDataDuration(long dataDuration) {
+        this.dataDuration = dataDuration;
+    }
+
+    /**
+     * @return the number of bytes written into the policy's data handler
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @param dataBytes the dataBytes to set
+     */
+    public void setDataBytes(long dataBytes) {
+        this.dataBytes = dataBytes;
+    }
+
+}
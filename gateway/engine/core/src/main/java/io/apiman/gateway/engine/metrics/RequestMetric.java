@@ -20,7 +20,9 @@ import io.apiman.gateway.engine.IMetrics;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Metric information about a single request processed by the API Gateway.
@@ -60,6 +62,20 @@ public class RequestMetric implements Serializable {
     private long bytesUploaded;
     private long bytesDownloaded;
     private Map<String, String> attributes = new HashMap<>();
+    private List<PolicyMetric> policyMetrics;
+
+    // Monotonic (System.nanoTime) stamps - only meaningful within this JVM, so not serialized.
+    private transient long requestStartNanos;
+    private transient long requestChainStartNanos;
+    private transient long apiStartNanos;
+    private transient long apiEndNanos;
+    private transient long responseChainStartNanos;
+
+    private long requestDurationNanos = -1;
+    private long apiDurationNanos = -1;
+    private long gatewayDurationNanos = -1;
+    private long requestPoliciesDurationNanos = -1;
+    private long responsePoliciesDurationNanos = -1;
 
     /**
      * Constructor.
@@ -67,6 +83,78 @@ public class RequestMetric implements Serializable {
     public RequestMetric() {
     }
 
+    /**
+     * Marks the start of the request.  This is the only wall-clock time taken:  the
+     * other stamps are monotonic, and the wall-clock times of the API start and end
+     * and of the request end are derived from them (so that the durations are precise
+     * and not affected by the system clock being changed during the request).
+     */
+    public void markRequestStart() {
+        this.requestStartNanos = System.nanoTime();
+        this.requestStart = new Date();
+    }
+
+    /**
+     * Marks the start of the request policy chain.
+     */
+    public void markRequestChainStart() {
+        this.requestChainStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Marks the start of the back-end API request, which is also the end of the
+     * request policy chain.
+     */
+    public void markApiStart() {
+        this.apiStartNanos = System.nanoTime();
+        if (requestChainStartNanos != 0) {
+            this.requestPoliciesDurationNanos = apiStartNanos - requestChainStartNanos;
+        }
+    }
+
+    /**
+     * Marks the arrival of the back-end API response, which is also the start of the
+     * response policy chain.
+     */
+    public void markApiEnd() {
+        this.apiEndNanos = System.nanoTime();
+        this.responseChainStartNanos = apiEndNanos;
+        this.apiDurationNanos = apiEndNanos - apiStartNanos;
+        this.apiDuration = TimeUnit.NANOSECONDS.toMillis(apiDurationNanos);
+    }
+
+    /**
+     * Marks the end of the response policy chain.
+     */
+    public void markResponseChainEnd() {
+        if (responseChainStartNanos != 0) {
+            this.responsePoliciesDurationNanos = System.nanoTime() - responseChainStartNanos;
+        }
+    }
+
+    /**
+     * Marks the end of the request, and derives the durations and the remaining
+     * wall-clock times from the monotonic stamps.
+     */
+    public void markRequestEnd() {
+        if (requestStart == null) {
+            return;
+        }
+        long requestEndNanos = System.nanoTime();
+        this.requestDurationNanos = requestEndNanos - requestStartNanos;
+        this.requestDuration = TimeUnit.NANOSECONDS.toMillis(requestDurationNanos);
+        this.gatewayDurationNanos = requestDurationNanos - Math.max(apiDurationNanos, 0);
+
+        long startMillis = requestStart.getTime();
+        this.requestEnd = new Date(startMillis + requestDuration);
+        if (apiStartNanos != 0) {
+            this.apiStart = new Date(startMillis + TimeUnit.NANOSECONDS.toMillis(apiStartNanos - requestStartNanos));
+        }
+        if (apiEndNanos != 0) {
+            this.apiEnd = new Date(startMillis + TimeUnit.NANOSECONDS.toMillis(apiEndNanos - requestStartNanos));
+        }
+    }
+
     /**
      * @return the apiDuration
      */
@@ -461,4 +549,91 @@ public class RequestMetric implements Serializable {
         this.attributes = attributes;
     }
 
+    /**
+     * @return the request duration in nanoseconds, or -1 if not known
+     */
+    public long getRequestDurationNanos() {
+        return requestDurationNanos;
+    }
+
+    /**
+     * @param requestDurationNanos the requestDurationNanos to set
+     */
+    public void setRequestDurationNanos(long requestDurationNanos) {
+        this.requestDurationNanos = requestDurationNanos;
+    }
+
+    /**
+     * @return the back-end API duration in nanoseconds, or -1 if the API wasn't called
+     */
+    public long getApiDurationNanos() {
+        return apiDurationNanos;
+    }
+
+    /**
+     * @param apiDurationNanos the apiDurationNanos to set
+     */
+    public void setApiDurationNanos(long apiDurationNanos) {
+        this.apiDurationNanos = apiDurationNanos;
+    }
+
+    /**
+     * @return the time spent in the gateway itself (the request duration less the
+     *         back-end API duration) in nanoseconds, or -1 if not known
+     */
+    public long getGatewayDurationNanos() {
+        return gatewayDurationNanos;
+    }
+
+    /**
+     * @param gatewayDurationNanos the gatewayDurationNanos to set
+     */
+    public void setGatewayDurationNanos(long gatewayDurationNanos) {
+        this.gatewayDurationNanos = gatewayDurationNanos;
+    }
+
+    /**
+     * @return the time spent in the request policy chain in nanoseconds, or -1 if
+     *         the chain didn't complete
+     */
+    public long getRequestPoliciesDurationNanos() {
+        return requestPoliciesDurationNanos;
+    }
+
+    /**
+     * @param requestPoliciesDurationNanos the requestPoliciesDurationNanos to set
+     */
+    public void setRequestPoliciesDurationNanos(long requestPoliciesDurationNanos) {
+        this.requestPoliciesDurationNanos = requestPoliciesDurationNanos;
+    }
+
+    /**
+     * @return the time spent in the response policy chain in nanoseconds, or -1 if
+     *         the chain didn't complete
+     */
+    public long getResponsePoliciesDurationNanos() {
+        return responsePoliciesDurationNanos;
+    }
+
+    /**
+     * @param responsePoliciesDurationNanos the responsePoliciesDurationNanos to set
+     */
+    public void setResponsePoliciesDurationNanos(long responsePoliciesDurationNanos) {
+        this.responsePoliciesDurationNanos = responsePoliciesDurationNanos;
+    }
+
+    /**
+     * @return the per-policy profiling metrics, or null if the request wasn't profiled
+     */
+    public List<PolicyMetric> getPolicyMetrics() {
+        return policyMetrics;
+    }
+
+    /**
+     * @param policyMetrics the policyMetrics to set
+     */
+    public void setPolicyMetrics(List<PolicyMetric> policyMetrics) {
+        this.policyMetrics = policyMetrics;
+    }
+
 }
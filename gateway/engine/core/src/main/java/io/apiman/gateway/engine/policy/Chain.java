@@ -22,9 +22,12 @@ import io.apiman.gateway.engine.io.AbstractStream;
 import io.apiman.gateway.engine.io.IAbortable;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.IReadWriteStream;
+import io.apiman.gateway.engine.metrics.PolicyMetric;
 
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Traverses and executes a series of policies according to implementor's
@@ -41,6 +44,10 @@ import java.util.List;
  * {@link #handleBody(IApimanBuffer)}; end of transmission indicated via
  * {@link #handleEnd()}.
  *
+ * When profiling is enabled (see {@link #profile(String, List)}) the time spent in
+ * each policy is recorded as a {@link PolicyMetric}.  Profiling is off by default,
+ * in which case the only cost is a null check per policy and per chunk.
+ *
  * @author Marc Savy <msavy@redhat.com>
  *
  * @param <H> Head type
@@ -60,6 +67,15 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
     private boolean firstElem = true;
     private PolicyFailure failure;
 
+    // Profiling state (unused unless profiling)
+    private String chainName;
+    private List<PolicyMetric> policyMetrics;
+    private Map<PolicyWithConfiguration, PolicyMetric> policyMetricMap;
+    private PolicyMetric applying;
+    private long applyStartNanos;
+    private long applyReturnNanos;
+    private long nestedDataNanos;
+
     /**
      * Constructor.
      * @param policies the policies
@@ -72,6 +88,19 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
         policyIterator = iterator();
     }
 
+    /**
+     * Enables profiling of the policies in this chain:  a {@link PolicyMetric} is
+     * added to the given list for each policy that is applied or has a data handler.
+     * Must be called before the chain is applied.
+     * @param chainName the name of the chain (request or response)
+     * @param policyMetrics the list to add the policy metrics to
+     */
+    public void profile(String chainName, List<PolicyMetric> policyMetrics) {
+        this.chainName = chainName;
+        this.policyMetrics = policyMetrics;
+        this.policyMetricMap = new IdentityHashMap<>();
+    }
+
     /**
      * Chain together the body handlers.
      */
@@ -81,7 +110,8 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
         while (iterator.hasNext()) {
             final PolicyWithConfiguration pwc = iterator.next();
             final IPolicy policy = pwc.getPolicy();
-            final IReadWriteStream<H> handler = getApiHandler(policy, pwc.getConfiguration());
+            final IReadWriteStream<H> handler = profiledApiHandler(pwc,
+                    getApiHandler(policy, pwc.getConfiguration()));
             if (handler == null) {
                 continue;
             }
@@ -139,6 +169,7 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
     @Override
     public void doApply(H apiObject) {
         try {
+            policyCompleted();
             this.apiObject = apiObject;
 
             if(firstElem) {
@@ -147,7 +178,12 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
             }
 
             if (policyIterator.hasNext()) {
-                applyPolicy(policyIterator.next(), getContext());
+                PolicyWithConfiguration policy = policyIterator.next();
+                if (policyMetrics == null) {
+                    applyPolicy(policy, getContext());
+                } else {
+                    profiledApplyPolicy(policy);
+                }
             } else {
                 handleHead(getHead());
             }
@@ -158,6 +194,7 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
 
     protected void doApplyFailure(PolicyFailure failure) {
         try {
+            policyCompleted();
             this.failure = failure;
 
             if(firstElem) {
@@ -187,6 +224,7 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
     @Override
     public void doSkip(H apiObject) {
         try {
+            policyCompleted();
             handleHead(getHead());
         } catch (Throwable error) {
             throwError(error);
@@ -292,6 +330,116 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
 //        }
     }
 
+    /**
+     * Applies the policy, recording the time spent in its apply method and (if it
+     * continues the chain asynchronously) the time spent waiting for it to continue.
+     * @param policy
+     */
+    private void profiledApplyPolicy(PolicyWithConfiguration policy) {
+        PolicyMetric metric = policyMetric(policy);
+        applying = metric;
+        applyReturnNanos = 0;
+        applyStartNanos = System.nanoTime();
+        applyPolicy(policy, getContext());
+        if (applying == metric) {
+            // The policy hasn't continued the chain yet, so it's now waiting on something.
+            applyReturnNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called when the policy being applied continues (or ends) the chain, to finish
+     * off its profiling.
+     */
+    protected void policyCompleted() {
+        PolicyMetric metric = applying;
+        if (metric == null) {
+            return;
+        }
+        applying = null;
+        long now = System.nanoTime();
+        if (applyReturnNanos == 0) {
+            metric.setApplyDuration(metric.getApplyDuration() + now - applyStartNanos);
+        } else {
+            metric.setApplyDuration(metric.getApplyDuration() + applyReturnNanos - applyStartNanos);
+            metric.setWaitDuration(metric.getWaitDuration() + now - applyReturnNanos);
+        }
+    }
+
+    /**
+     * When profiling, wraps the data handler of the given policy so that the bytes
+     * written into it and the time spent in it are recorded.  The time spent further
+     * down the chain (in later handlers) is not included.
+     * @param policy
+     * @param handler
+     */
+    private IReadWriteStream<H> profiledApiHandler(PolicyWithConfiguration policy, IReadWriteStream<H> handler) {
+        if (policyMetrics == null || handler == null) {
+            return handler;
+        }
+        final PolicyMetric metric = policyMetric(policy);
+        return new IReadWriteStream<H>() {
+            @Override
+            public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+                // Time spent downstream, to be excluded from the time spent in this handler.
+                handler.bodyHandler(chunk -> {
+                    long start = System.nanoTime();
+                    bodyHandler.handle(chunk);
+                    nestedDataNanos += System.nanoTime() - start;
+                });
+            }
+
+            @Override
+            public void endHandler(IAsyncHandler<Void> endHandler) {
+                handler.endHandler(endHandler);
+            }
+
+            @Override
+            public H getHead() {
+                return handler.getHead();
+            }
+
+            @Override
+            public boolean isFinished() {
+                return handler.isFinished();
+            }
+
+            @Override
+            public void write(IApimanBuffer chunk) {
+                long outerNanos = nestedDataNanos;
+                nestedDataNanos = 0;
+                long start = System.nanoTime();
+                try {
+                    handler.write(chunk);
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    metric.setDataBytes(metric.getDataBytes() + chunk.length());
+                    metric.setDataDuration(metric.getDataDuration() + elapsed - nestedDataNanos);
+                    nestedDataNanos = outerNanos;
+                }
+            }
+
+            @Override
+            public void end() {
+                handler.end();
+            }
+        };
+    }
+
+    /**
+     * Gets (creating if necessary) the profiling metric of the given policy.
+     * @param policy
+     */
+    private PolicyMetric policyMetric(PolicyWithConfiguration policy) {
+        PolicyMetric metric = policyMetricMap.get(policy);
+        if (metric == null) {
+            metric = new PolicyMetric(policy.getPolicy().getClass().getName(), chainName);
+            policyMetricMap.put(policy, metric);
+            policyMetrics.add(metric);
+        }
+        return metric;
+    }
+
     protected void executeInPolicyContextLoader(ClassLoader classloader, Procedure procedure) {
         ClassLoader oldCtxLoader = Thread.currentThread().getContextClassLoader();
         try {
@@ -23,26 +23,46 @@ import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.exceptions.PolicyNotFoundException;
+import io.apiman.gateway.engine.impl.LruCache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * An implementation of the {@link IPolicyFactory} interface.
  *
+ * Policy instances are cached by policy spec.  Parsed policy configurations are
+ * cached by policy spec and configuration data, in a cache that is bounded by the
+ * "config.cacheSize" setting (the least recently used configurations are evicted
+ * once it is full).
+ *
  * @author eric.wittmann@redhat.com
  */
 public class PolicyFactoryImpl implements IPolicyFactory {
 
+    private static final int DEFAULT_CONFIG_CACHE_SIZE = 10000;
+
     private IPluginRegistry pluginRegistry;
-    private Map<String, IPolicy> policyCache = new HashMap<>();
-    private Map<String, Object> policyConfigCache = new HashMap<>();
+    private Map<String, IPolicy> policyCache = new ConcurrentHashMap<>();
+    private final LruCache<ConfigKey, Object> policyConfigCache;
+    // Plugin policies currently being loaded -> the handlers waiting for them
+    private final Map<String, List<IAsyncResultHandler<IPolicy>>> pendingPolicyLoads = new HashMap<>();
+
+    private final LongAdder configCacheHits = new LongAdder();
+    private final LongAdder configCacheMisses = new LongAdder();
 
     /**
      * Constructor.
      * @param config the configuration
      */
     public PolicyFactoryImpl(Map<String, String> config) {
+        String cacheSize = config.get("config.cacheSize"); //$NON-NLS-1$
+        this.policyConfigCache = new LruCache<>(cacheSize == null ? DEFAULT_CONFIG_CACHE_SIZE : Integer.parseInt(cacheSize));
     }
 
     /**
@@ -58,25 +78,56 @@ public class PolicyFactoryImpl implements IPolicyFactory {
      */
     @Override
     public Object loadConfig(IPolicy policy, String policySpec, String configData) {
-        synchronized (policyConfigCache) {
-            String cacheKey = policySpec + "||" + configData; //$NON-NLS-1$
-            if (policyConfigCache.containsKey(cacheKey)) {
-                return policyConfigCache.get(cacheKey);
-            }
-            Object config;
-
-            ClassLoader oldCtxLoader = Thread.currentThread().getContextClassLoader();
-            try {
-                Thread.currentThread().setContextClassLoader(policy.getClass().getClassLoader());
-                config = policy.parseConfiguration(configData);
-            } finally {
-                Thread.currentThread().setContextClassLoader(oldCtxLoader);
-            }
+        ConfigKey cacheKey = new ConfigKey(policySpec, configData);
+        Object cached = policyConfigCache.get(cacheKey);
+        if (cached != null) {
+            configCacheHits.increment();
+            return cached;
+        }
+        configCacheMisses.increment();
 
-            policyConfigCache.put(cacheKey, config);
+        // Not synchronized - parsing the same config twice is harmless.
+        Object config;
+        ClassLoader oldCtxLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(policy.getClass().getClassLoader());
+            config = policy.parseConfiguration(configData);
+        } finally {
+            Thread.currentThread().setContextClassLoader(oldCtxLoader);
+        }
 
-            return config;
+        if (config != null) {
+            policyConfigCache.put(cacheKey, config);
         }
+        return config;
+    }
+
+    /**
+     * @return the number of policy configurations currently cached
+     */
+    public int getConfigCacheSize() {
+        return policyConfigCache.size();
+    }
+
+    /**
+     * @return the number of times a policy configuration was found in the cache
+     */
+    public long getConfigCacheHits() {
+        return configCacheHits.sum();
+    }
+
+    /**
+     * @return the number of times a policy configuration had to be parsed
+     */
+    public long getConfigCacheMisses() {
+        return configCacheMisses.sum();
+    }
+
+    /**
+     * @return the number of policy configurations evicted from the cache
+     */
+    public long getConfigCacheEvictions() {
+        return policyConfigCache.getEvictions();
     }
 
     /**
@@ -89,10 +140,11 @@ public class PolicyFactoryImpl implements IPolicyFactory {
             return;
         }
 
-        // Not synchronized - don't care if we create 2 or 3 of these, it's not worth
-        // the synchronization overhead to protect against that.
-        if (policyCache.containsKey(policyImpl)) {
-            handler.handle(AsyncResultImpl.create(policyCache.get(policyImpl)));
+        // Not synchronized - don't care if we create 2 or 3 of these (from the classpath),
+        // it's not worth the synchronization overhead to protect against that.
+        IPolicy cachedPolicy = policyCache.get(policyImpl);
+        if (cachedPolicy != null) {
+            handler.handle(AsyncResultImpl.create(cachedPolicy));
             return;
         }
 
@@ -145,11 +197,39 @@ public class PolicyFactoryImpl implements IPolicyFactory {
     }
 
     /**
-     * Loads a policy from a plugin.
+     * Loads a policy from a plugin.  Loading a plugin can be slow (it may need to be
+     * downloaded) so concurrent requests for the same policy share a single load.
      * @param policyImpl
      * @param handler
      */
     private void doLoadFromPlugin(final String policyImpl, final IAsyncResultHandler<IPolicy> handler) {
+        synchronized (pendingPolicyLoads) {
+            List<IAsyncResultHandler<IPolicy>> waiting = pendingPolicyLoads.get(policyImpl);
+            if (waiting != null) {
+                waiting.add(handler);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(handler);
+            pendingPolicyLoads.put(policyImpl, waiting);
+        }
+        doLoadFromPluginInternal(policyImpl, (IAsyncResult<IPolicy> result) -> {
+            List<IAsyncResultHandler<IPolicy>> waiting;
+            synchronized (pendingPolicyLoads) {
+                waiting = pendingPolicyLoads.remove(policyImpl);
+            }
+            for (IAsyncResultHandler<IPolicy> waiter : waiting) {
+                waiter.handle(result);
+            }
+        });
+    }
+
+    /**
+     * Loads a policy from a plugin.
+     * @param policyImpl
+     * @param handler
+     */
+    private void doLoadFromPluginInternal(final String policyImpl, final IAsyncResultHandler<IPolicy> handler) {
         PluginCoordinates coordinates = PluginCoordinates.fromPolicySpec(policyImpl);
         if (coordinates == null) {
             handler.handle(AsyncResultImpl.<IPolicy>create(new PolicyNotFoundException(policyImpl)));
@@ -189,4 +269,45 @@ public class PolicyFactoryImpl implements IPolicyFactory {
         });
     }
 
+    /**
+     * The config cache key:  the policy spec and the config data.  The config data is
+     * usually the very same string on every request (and strings cache their hash code),
+     * so lookups are cheap.
+     */
+    private static final class ConfigKey {
+        private final String policySpec;
+        private final String configData;
+        private final int hash;
+
+        ConfigKey(String policySpec, String configData) {
+            this.policySpec = policySpec;
+            this.configData = configData;
+            this.hash = 31 * Objects.hashCode(policySpec) + Objects.hashCode(configData);
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ConfigKey)) {
+                return false;
+            }
+            ConfigKey other = (ConfigKey) obj;
+            return hash == other.hash && Objects.equals(configData, other.configData)
+                    && Objects.equals(policySpec, other.policySpec);
+        }
+    }
+
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+/**
+ * The algorithm used to decide whether a request fits within a rate limit.
+ *
+ * <ul>
+ *   <li>FixedWindow - counts requests within calendar aligned windows (e.g. the current
+ *       minute).  Cheapest, but allows a burst of up to twice the limit across a window
+ *       boundary.</li>
+ *   <li>SlidingWindow - weights the count of the previous window by how much of it still
+ *       overlaps a window ending now, which smooths out boundary bursts.</li>
+ *   <li>TokenBucket - the bucket holds up to 'limit' tokens and is refilled continuously
+ *       at 'limit' tokens per period.</li>
+ * </ul>
+ */
+public enum RateBucketAlgorithm {
+
+    FixedWindow, SlidingWindow, TokenBucket;
+
+}
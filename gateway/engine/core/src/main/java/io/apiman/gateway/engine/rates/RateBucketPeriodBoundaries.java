@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Computes the boundary timestamp (i.e. the moment the period resets) of each
+ * {@link RateBucketPeriod} in a given time zone.
+ *
+ * The most recently computed period window is cached for every {@link RateBucketPeriod},
+ * so the common case of many requests falling within the same second, minute, hour
+ * etc. is answered with two long comparisons and without any allocation.  The
+ * window is only recomputed (using java.time) once a timestamp falls outside it.
+ */
+public class RateBucketPeriodBoundaries {
+
+    private static final RateBucketPeriodBoundaries systemDefault = new RateBucketPeriodBoundaries(ZoneId.systemDefault());
+
+    private final ZoneId zone;
+    private final AtomicReferenceArray<Window> windows = new AtomicReferenceArray<>(RateBucketPeriod.values().length);
+
+    /**
+     * @return the boundaries calculator for the system default time zone
+     */
+    public static RateBucketPeriodBoundaries systemDefault() {
+        return systemDefault;
+    }
+
+    /**
+     * Constructor.
+     * @param zone the time zone in which period boundaries are computed
+     */
+    public RateBucketPeriodBoundaries(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Gets the boundary timestamp for the given rate bucket period.  In other words,
+     * returns the timestamp associated with when the rate period containing the
+     * given timestamp will reset.
+     * @param timestamp the timestamp (epoch millis)
+     * @param period the period
+     * @return the boundary timestamp (epoch millis)
+     */
+    public long getBoundary(long timestamp, RateBucketPeriod period) {
+        return getWindow(timestamp, period).end;
+    }
+
+    /**
+     * Gets the timestamp at which the rate period containing the given timestamp
+     * started.
+     * @param timestamp the timestamp (epoch millis)
+     * @param period the period
+     * @return the start timestamp (epoch millis)
+     */
+    public long getStart(long timestamp, RateBucketPeriod period) {
+        return getWindow(timestamp, period).start;
+    }
+
+    /**
+     * Returns the (possibly cached) window of the period containing the given timestamp.
+     * @param timestamp the timestamp
+     * @param period the period
+     */
+    private Window getWindow(long timestamp, RateBucketPeriod period) {
+        int idx = period.ordinal();
+        Window window = windows.get(idx);
+        if (window != null && timestamp >= window.start && timestamp < window.end) {
+            return window;
+        }
+        window = computeWindow(timestamp, period);
+        windows.set(idx, window);
+        return window;
+    }
+
+    /**
+     * Computes the [start, end) window of the period that contains the given timestamp.
+     * @param timestamp the timestamp
+     * @param period the period
+     */
+    private Window computeWindow(long timestamp, RateBucketPeriod period) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        ZonedDateTime start;
+        ZonedDateTime end;
+        switch (period) {
+        case Second:
+            start = time.truncatedTo(ChronoUnit.SECONDS);
+            end = start.plusSeconds(1);
+            break;
+        case Minute:
+            start = time.truncatedTo(ChronoUnit.MINUTES);
+            end = start.plusMinutes(1);
+            break;
+        case Hour:
+            start = time.truncatedTo(ChronoUnit.HOURS);
+            end = start.plusHours(1);
+            break;
+        case Day:
+            start = time.toLocalDate().atStartOfDay(zone);
+            end = time.toLocalDate().plusDays(1).atStartOfDay(zone);
+            break;
+        case Month:
+            start = time.toLocalDate().with(TemporalAdjusters.firstDayOfMonth()).atStartOfDay(zone);
+            end = time.toLocalDate().with(TemporalAdjusters.firstDayOfNextMonth()).atStartOfDay(zone);
+            break;
+        case Year:
+            start = time.toLocalDate().with(TemporalAdjusters.firstDayOfYear()).atStartOfDay(zone);
+            end = time.toLocalDate().with(TemporalAdjusters.firstDayOfNextYear()).atStartOfDay(zone);
+            break;
+        default:
+            return new Window(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        return new Window(start.toInstant().toEpochMilli(), end.toInstant().toEpochMilli());
+    }
+
+    /**
+     * An immutable [start, end) period window.
+     */
+    private static final class Window {
+        private final long start;
+        private final long end;
+
+        Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+}
@@ -18,7 +18,6 @@ package io.apiman.gateway.engine.rates;
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
 
 import java.io.Serializable;
-import java.util.Calendar;
 
 /**
  * May be used by {@link IRateLimiterComponent} implementations.
@@ -78,50 +77,8 @@ public class RateLimiterBucket implements Serializable {
      * @param timestamp
      * @param period
      */
-    private static long getPeriodBoundary(long timestamp, RateBucketPeriod period) {
-        Calendar lastCal = Calendar.getInstance();
-        lastCal.setTimeInMillis(timestamp);
-        switch (period) {
-        case Second:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.add(Calendar.SECOND, 1);
-            return lastCal.getTimeInMillis();
-        case Minute:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.add(Calendar.MINUTE, 1);
-            return lastCal.getTimeInMillis();
-        case Hour:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.set(Calendar.MINUTE, 0);
-            lastCal.add(Calendar.HOUR_OF_DAY, 1);
-            return lastCal.getTimeInMillis();
-        case Day:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.set(Calendar.MINUTE, 0);
-            lastCal.set(Calendar.HOUR_OF_DAY, 0);
-            lastCal.add(Calendar.DAY_OF_YEAR, 1);
-            return lastCal.getTimeInMillis();
-        case Month:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.set(Calendar.MINUTE, 0);
-            lastCal.set(Calendar.HOUR_OF_DAY, 0);
-            lastCal.set(Calendar.DAY_OF_MONTH, 1);
-            lastCal.add(Calendar.MONTH, 1);
-            return lastCal.getTimeInMillis();
-        case Year:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.set(Calendar.MINUTE, 0);
-            lastCal.set(Calendar.HOUR_OF_DAY, 0);
-            lastCal.set(Calendar.DAY_OF_YEAR, 1);
-            lastCal.add(Calendar.YEAR, 1);
-            return lastCal.getTimeInMillis();
-        }
-        return Long.MAX_VALUE;
+    public static long getPeriodBoundary(long timestamp, RateBucketPeriod period) {
+        return RateBucketPeriodBoundaries.systemDefault().getBoundary(timestamp, period);
     }
 
     /**
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+
+import java.io.Serializable;
+
+/**
+ * A rate bucket implementing the sliding window counter algorithm.  Counts are
+ * kept for the current and the previous period window; the effective count is the
+ * current count plus the previous count weighted by how much of the previous window
+ * still overlaps a window of the same length ending now.  May be used by
+ * {@link IRateLimiterComponent} implementations.
+ */
+public class SlidingWindowRateBucket implements Serializable {
+
+    private static final long serialVersionUID = -4718930652087133592L;
+
+    private long windowStart;
+    private long windowEnd;
+    private long currentCount;
+    private long previousCount;
+
+    /**
+     * Constructor.
+     */
+    public SlidingWindowRateBucket() {
+    }
+
+    /**
+     * Adds the given increment to the bucket if the limit has not yet been reached.
+     * The accepted/remaining/reset semantics are the same as those of the fixed
+     * window algorithm, except that they are based on the weighted count.
+     * @param now the current time
+     * @param period the period
+     * @param limit the limit
+     * @param increment the increment
+     * @return the rate limit response
+     */
+    public synchronized RateLimitResponse accept(long now, RateBucketPeriod period, long limit, long increment) {
+        RateBucketPeriodBoundaries boundaries = RateBucketPeriodBoundaries.systemDefault();
+        long start = boundaries.getStart(now, period);
+        long end = boundaries.getBoundary(now, period);
+        if (start != windowStart) {
+            previousCount = start == windowEnd ? currentCount : 0;
+            currentCount = 0;
+            windowStart = start;
+            windowEnd = end;
+        }
+        double previousWeight = (end - now) / (double) (end - start);
+
+        RateLimitResponse response = new RateLimitResponse();
+        long count = weightedCount(previousWeight);
+        if (count < limit) {
+            // Only accepted requests are counted - rejected ones must not starve later ones
+            response.setAccepted(true);
+            currentCount += increment;
+            count = weightedCount(previousWeight);
+        } else {
+            response.setAccepted(false);
+        }
+        response.setReset((int) ((end - now) / 1000L));
+        response.setRemaining(Math.max(0, limit - count));
+        return response;
+    }
+
+    /**
+     * @param previousWeight the fraction of the previous window to include
+     */
+    private long weightedCount(double previousWeight) {
+        return currentCount + (long) Math.ceil(previousCount * previousWeight);
+    }
+
+}
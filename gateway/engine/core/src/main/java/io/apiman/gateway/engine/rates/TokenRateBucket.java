@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+
+import java.io.Serializable;
+
+/**
+ * A rate bucket implementing the token bucket algorithm.  The bucket holds at most
+ * 'limit' tokens and is continuously refilled at a rate of 'limit' tokens per period,
+ * so bursts are capped at 'limit' and sustained traffic is spread evenly over the
+ * period.  May be used by {@link IRateLimiterComponent} implementations.
+ */
+public class TokenRateBucket implements Serializable {
+
+    private static final long serialVersionUID = 2384109571036553125L;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor.
+     */
+    public TokenRateBucket() {
+    }
+
+    /**
+     * Takes the given increment worth of tokens from the bucket if at least one whole
+     * token is left (the bucket may be overdrawn by the request that is accepted).  The accepted/remaining semantics mirror those of the fixed window
+     * algorithm (the number of tokens used plays the role of the count); the reset is the
+     * number of seconds until the bucket is full again.
+     * @param now the current time
+     * @param period the period
+     * @param limit the limit (bucket capacity)
+     * @param increment the number of tokens to take
+     * @return the rate limit response
+     */
+    public synchronized RateLimitResponse accept(long now, RateBucketPeriod period, long limit, long increment) {
+        RateBucketPeriodBoundaries boundaries = RateBucketPeriodBoundaries.systemDefault();
+        long periodMillis = boundaries.getBoundary(now, period) - boundaries.getStart(now, period);
+        double tokensPerMilli = limit / (double) periodMillis;
+        if (lastRefill == 0) {
+            // First use - start with a full bucket
+            tokens = limit;
+        } else if (now > lastRefill) {
+            tokens = Math.min(limit, tokens + (now - lastRefill) * tokensPerMilli);
+        }
+        lastRefill = Math.max(lastRefill, now);
+
+        RateLimitResponse response = new RateLimitResponse();
+        if (tokens >= 1) {
+            // Only accepted requests use up tokens - rejected ones must not starve later ones
+            response.setAccepted(true);
+            tokens -= increment;
+        } else {
+            response.setAccepted(false);
+        }
+        response.setReset((long) Math.ceil((limit - tokens) / tokensPerMilli / 1000d));
+        response.setRemaining((long) Math.floor(Math.max(0, tokens)));
+        return response;
+    }
+
+}
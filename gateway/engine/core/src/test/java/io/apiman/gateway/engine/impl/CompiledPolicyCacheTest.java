@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.impl.CompiledPolicyCache.CompiledPolicies;
+import io.apiman.gateway.engine.policy.PolicyWithConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+@SuppressWarnings("nls")
+public class CompiledPolicyCacheTest {
+
+    @Test
+    public void testContent() {
+        CompiledPolicyCache cache = new CompiledPolicyCache();
+        List<Policy> policies = policies("{}");
+        Assert.assertNull(cache.get(CompiledPolicyCache.keyOf(policies)));
+
+        CompiledPolicies compiled = new CompiledPolicies(new ArrayList<PolicyWithConfiguration>(), true);
+        cache.put(CompiledPolicyCache.keyOf(policies), compiled);
+        Assert.assertSame(compiled, cache.get(CompiledPolicyCache.keyOf(policies)));
+        Assert.assertTrue(cache.get(CompiledPolicyCache.keyOf(policies)).hasDataPolicy());
+
+        // A copy of the same policies (e.g. as loaded from a database) doesn't need compiling again
+        Assert.assertSame(compiled, cache.get(CompiledPolicyCache.keyOf(policies("{}"))));
+
+        // Changed policies do
+        Assert.assertNull(cache.get(CompiledPolicyCache.keyOf(policies("{ \"a\": 1 }"))));
+        List<Policy> more = policies("{}");
+        more.addAll(policies("{}"));
+        Assert.assertNull(cache.get(CompiledPolicyCache.keyOf(more)));
+    }
+
+    @Test
+    public void testKeySnapshot() {
+        CompiledPolicyCache cache = new CompiledPolicyCache();
+        List<Policy> policies = policies("${value}");
+        CompiledPolicyCache.Key key = CompiledPolicyCache.keyOf(policies);
+        // e.g. property replacement
+        policies.get(0).setPolicyJsonConfig("replaced");
+        CompiledPolicies compiled = new CompiledPolicies(new ArrayList<PolicyWithConfiguration>(), false);
+        cache.put(key, compiled);
+        Assert.assertSame(compiled, cache.get(CompiledPolicyCache.keyOf(policies("${value}"))));
+    }
+
+    @Test
+    public void testBounded() {
+        CompiledPolicyCache cache = new CompiledPolicyCache(10);
+        CompiledPolicies used = new CompiledPolicies(new ArrayList<PolicyWithConfiguration>(), false);
+        cache.put(CompiledPolicyCache.keyOf(policies("used")), used);
+        for (int i = 0; i < 100; i++) {
+            cache.put(CompiledPolicyCache.keyOf(policies("{ \"i\": " + i + " }")),
+                    new CompiledPolicies(new ArrayList<PolicyWithConfiguration>(), false));
+            Assert.assertSame(used, cache.get(CompiledPolicyCache.keyOf(policies("used"))));
+        }
+        Assert.assertTrue(cache.size() <= 10);
+    }
+
+    private static List<Policy> policies(String config) {
+        Policy policy = new Policy();
+        policy.setPolicyImpl("class:io.apiman.gateway.engine.policies.IgnoredResourcesPolicy");
+        policy.setPolicyJsonConfig(config);
+        List<Policy> policies = new ArrayList<>();
+        policies.add(policy);
+        return policies;
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package io.apiman.gateway.engine.impl;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -23,8 +24,10 @@ import static org.mockito.Mockito.verify;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.io.AbstractStream;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.IReadWriteStream;
+import io.apiman.gateway.engine.metrics.PolicyMetric;
 import io.apiman.gateway.engine.policy.IPolicyContext;
 import io.apiman.gateway.engine.policy.PolicyWithConfiguration;
 import io.apiman.gateway.engine.policy.RequestChain;
@@ -137,5 +140,38 @@ public class DataPolicyChainTest {
         verify(policyOne).getResponseDataHandler(mockResponse, mockContext, configuration);
     }
 
+    @Test
+    public void shouldProfileDataHandlers() {
+        policyOne.setDataRequestHandler(new AbstractStream<ApiRequest>() {
+            @Override
+            public ApiRequest getHead() {
+                return mockRequest;
+            }
+
+            @Override
+            protected void handleHead(ApiRequest head) {
+            }
+        });
+        policies.add(pwcOne);
+        given(mockBuffer.length()).willReturn(7);
+
+        List<PolicyMetric> policyMetrics = new ArrayList<>();
+        requestChain = new RequestChain(policies, mockContext);
+        requestChain.profile("request", policyMetrics);
 
+        requestChain.bodyHandler(mockBodyHandler);
+        requestChain.endHandler(mockEndHandler);
+
+        requestChain.doApply(mockRequest);
+        requestChain.write(mockBuffer);
+        requestChain.write(mockBuffer);
+        requestChain.end();
+
+        verify(mockBodyHandler, times(2)).handle(mockBuffer);
+        verify(mockEndHandler, times(1)).handle((Void) null);
+
+        assertEquals(1, policyMetrics.size());
+        assertEquals("request", policyMetrics.get(0).getChain());
+        assertEquals(14, policyMetrics.get(0).getDataBytes());
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+@SuppressWarnings("nls")
+public class InMemoryCacheStoreComponentTest {
+
+    @Test
+    public void testPutAndGetBinary() throws Exception {
+        InMemoryCacheStoreComponent store = createStore(1024, true);
+        putBinary(store, "key1", "head1", "Hello World", 60);
+
+        Assert.assertEquals("head1", get(store, "key1"));
+        Assert.assertEquals("Hello World", getBody(store, "key1"));
+        Assert.assertNull(getBody(store, "key2"));
+        Assert.assertEquals(11, store.getCacheSize());
+        Assert.assertEquals(2, store.getHitCount());
+        Assert.assertEquals(1, store.getMissCount());
+    }
+
+    @Test
+    public void testIncompleteEntryNotVisible() throws Exception {
+        InMemoryCacheStoreComponent store = createStore(1024, false);
+        ISignalWriteStream stream = store.putBinary("key1", "head1", 60);
+        stream.write(new ByteBufferFactoryComponent().createBuffer("partial"));
+        Assert.assertNull(getBody(store, "key1"));
+        stream.abort(new Exception());
+        Assert.assertNull(getBody(store, "key1"));
+        Assert.assertEquals(0, store.getEntryCount());
+    }
+
+    @Test
+    public void testSegmentedEviction() throws Exception {
+        InMemoryCacheStoreComponent store = createStore(100, true);
+        putBinary(store, "a", "a", body(40), 60);
+        putBinary(store, "b", "b", body(40), 60);
+        // Reading "a" protects it - "b" is only in the probationary segment.
+        Assert.assertNotNull(getBody(store, "a"));
+
+        putBinary(store, "c", "c", body(40), 60);
+        Assert.assertNotNull(get(store, "a"));
+        Assert.assertNull(get(store, "b"));
+        Assert.assertNotNull(get(store, "c"));
+        Assert.assertEquals(1, store.getEvictionCount());
+        Assert.assertEquals(80, store.getCacheSize());
+
+        // Never cache something that can't fit
+        putBinary(store, "d", "d", body(101), 60);
+        Assert.assertNull(get(store, "d"));
+        Assert.assertEquals(2, store.getEntryCount());
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        InMemoryCacheStoreComponent store = createStore(100, true);
+        putBinary(store, "a", "a1", body(40), 60);
+        getBody(store, "a");
+        putBinary(store, "a", "a2", body(30), 60);
+        Assert.assertEquals("a2", get(store, "a"));
+        Assert.assertEquals(30, store.getCacheSize());
+        Assert.assertEquals(1, store.getEntryCount());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        InMemoryCacheStoreComponent store = createStore(1024, true);
+        putBinary(store, "a", "a", body(10), 0);
+        putBinary(store, "b", "b", body(10), 60);
+        store.put("c", "c", 0);
+        Thread.sleep(5);
+
+        store.removeExpired();
+        Assert.assertEquals(1, store.getEntryCount());
+        Assert.assertEquals(10, store.getCacheSize());
+        Assert.assertEquals(2, store.getExpiredCount());
+        Assert.assertNull(get(store, "a"));
+        Assert.assertEquals("b", get(store, "b"));
+    }
+
+    private static InMemoryCacheStoreComponent createStore(long maxCacheSize, boolean offHeap) {
+        Map<String, String> config = new HashMap<>();
+        config.put("maxCacheSize", String.valueOf(maxCacheSize));
+        config.put("offHeap", String.valueOf(offHeap));
+        config.put("expirySweepPeriod", "0");
+        InMemoryCacheStoreComponent store = new InMemoryCacheStoreComponent(config);
+        store.setBufferFactory(new ByteBufferFactoryComponent());
+        return store;
+    }
+
+    private static void putBinary(InMemoryCacheStoreComponent store, String key, String head, String body,
+            long ttl) throws Exception {
+        ISignalWriteStream stream = store.putBinary(key, head, ttl);
+        stream.write(new ByteBufferFactoryComponent().createBuffer(body));
+        stream.end();
+    }
+
+    private static String get(InMemoryCacheStoreComponent store, String key) {
+        AtomicReference<String> ref = new AtomicReference<>();
+        store.get(key, String.class, result -> ref.set(result.getResult()));
+        return ref.get();
+    }
+
+    private static String getBody(InMemoryCacheStoreComponent store, String key) {
+        AtomicReference<ISignalReadStream<String>> ref = new AtomicReference<>();
+        store.getBinary(key, String.class, result -> ref.set(result.getResult()));
+        if (ref.get() == null) {
+            return null;
+        }
+        StringBuilder body = new StringBuilder();
+        ref.get().bodyHandler(buffer -> body.append(buffer.getString(0, buffer.length())));
+        ref.get().endHandler(v -> {});
+        ref.get().transmit();
+        return body.toString();
+    }
+
+    private static String body(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+@SuppressWarnings("nls")
+public class InMemoryRateLimiterComponentTest {
+
+    @Test
+    public void testAcceptUntilLimit() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        for (int i = 1; i <= 5; i++) {
+            RateLimitResponse response = accept(limiter, "bucket", 5);
+            Assert.assertTrue(response.isAccepted());
+            Assert.assertEquals(5 - i, response.getRemaining());
+            Assert.assertTrue(response.getReset() <= 3600);
+        }
+        // The request that pushes the count over the limit is rejected but still counted...
+        RateLimitResponse response = accept(limiter, "bucket", 5);
+        Assert.assertFalse(response.isAccepted());
+        Assert.assertEquals(-1, response.getRemaining());
+        // ...after which the count no longer moves.
+        response = accept(limiter, "bucket", 5);
+        Assert.assertFalse(response.isAccepted());
+        Assert.assertEquals(-1, response.getRemaining());
+
+        // Distinct buckets are independent
+        response = accept(limiter, "other-bucket", 5);
+        Assert.assertTrue(response.isAccepted());
+        Assert.assertEquals(4, response.getRemaining());
+    }
+
+    @Test
+    public void testConcurrentAccept() throws Exception {
+        final InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        final int threads = 8;
+        final int requestsPerThread = 5000;
+        final int buckets = 10;
+        final long limit = 1000;
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < requestsPerThread; i++) {
+                        if (accept(limiter, "bucket-" + (i % buckets), limit).isAccepted()) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(buckets * limit, accepted.get());
+    }
+
+    @Test
+    public void testConcurrentAcceptAcrossPeriods() throws Exception {
+        final AtomicLong now = new AtomicLong(1500000000000L);
+        final InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent(now::get);
+        final int threads = 8;
+        final int requestsPerThread = 500;
+        final long limit = 100;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int second = 0; second < 5; second++) {
+            // The threads race to start each new period
+            now.addAndGet(1000);
+            final AtomicInteger accepted = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(() -> {
+                    try {
+                        start.await();
+                        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            limiter.accept("bucket", RateBucketPeriod.Second, limit, 1, result -> response.set(result.getResult()));
+                            if (response.get().isAccepted()) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            Assert.assertNull(error.get());
+            // Every second gets exactly its limit
+            Assert.assertEquals(limit, accepted.get());
+        }
+    }
+
+    @Test
+    public void testSlidingWindowAcceptUntilLimit() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        for (int i = 1; i <= 5; i++) {
+            RateLimitResponse response = accept(limiter, RateBucketAlgorithm.SlidingWindow, "bucket", 5);
+            Assert.assertTrue(response.isAccepted());
+            Assert.assertEquals(5 - i, response.getRemaining());
+        }
+        Assert.assertFalse(accept(limiter, RateBucketAlgorithm.SlidingWindow, "bucket", 5).isAccepted());
+        Assert.assertFalse(accept(limiter, RateBucketAlgorithm.SlidingWindow, "bucket", 5).isAccepted());
+        // Buckets are kept separately per algorithm
+        Assert.assertTrue(accept(limiter, RateBucketAlgorithm.FixedWindow, "bucket", 5).isAccepted());
+    }
+
+    @Test
+    public void testTokenBucketAcceptUntilLimit() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        for (int i = 1; i <= 5; i++) {
+            RateLimitResponse response = accept(limiter, RateBucketAlgorithm.TokenBucket, "bucket", 5);
+            Assert.assertTrue(response.isAccepted());
+            Assert.assertEquals(5 - i, response.getRemaining());
+            Assert.assertTrue(response.getReset() > 0);
+        }
+        Assert.assertFalse(accept(limiter, RateBucketAlgorithm.TokenBucket, "bucket", 5).isAccepted());
+        Assert.assertFalse(accept(limiter, RateBucketAlgorithm.TokenBucket, "bucket", 5).isAccepted());
+    }
+
+    @Test
+    public void testTokenBucketRefill() throws Exception {
+        AtomicLong now = new AtomicLong(1500000000000L);
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent(now::get);
+        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+        // 10 tokens per second, i.e. one every 100ms
+        for (int i = 0; i < 10; i++) {
+            limiter.accept("bucket", RateBucketPeriod.Second, RateBucketAlgorithm.TokenBucket, 10, 1, result -> response.set(result.getResult()));
+            Assert.assertTrue(response.get().isAccepted());
+        }
+        limiter.accept("bucket", RateBucketPeriod.Second, RateBucketAlgorithm.TokenBucket, 10, 1, result -> response.set(result.getResult()));
+        Assert.assertFalse(response.get().isAccepted());
+        now.addAndGet(350);
+        limiter.accept("bucket", RateBucketPeriod.Second, RateBucketAlgorithm.TokenBucket, 10, 1, result -> response.set(result.getResult()));
+        Assert.assertTrue(response.get().isAccepted());
+    }
+
+    private static RateLimitResponse accept(InMemoryRateLimiterComponent limiter, String bucketId, long limit) {
+        return accept(limiter, RateBucketAlgorithm.FixedWindow, bucketId, limit);
+    }
+
+    private static RateLimitResponse accept(InMemoryRateLimiterComponent limiter, RateBucketAlgorithm algorithm,
+            String bucketId, long limit) {
+        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+        limiter.accept(bucketId, RateBucketPeriod.Hour, algorithm, limit, 1, result -> response.set(result.getResult()));
+        return response.get();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.exceptions.ApiRetiredException;
+import io.apiman.gateway.engine.beans.exceptions.ClientNotFoundException;
+import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+@SuppressWarnings("nls")
+public class InMemoryRegistryTest {
+
+    @Test
+    public void testGetContract() {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        registry.publishApi(api("Org1", "Api1", "1.0"), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.0", "key1", contract("Org1", "Api1", "1.0", "Gold")), result -> {});
+
+        ApiContract contract = getContract(registry, "Org1", "Api1", "1.0", "key1").getResult();
+        Assert.assertEquals("Gold", contract.getPlan());
+        Assert.assertEquals("Api1", contract.getApi().getApiId());
+        Assert.assertEquals("Client1", contract.getClient().getClientId());
+
+        // Re-publishing the API must be reflected in the contract
+        Api republished = api("Org1", "Api1", "1.0");
+        republished.setEndpoint("http://localhost:8080/republished");
+        registry.publishApi(republished, result -> {});
+        contract = getContract(registry, "Org1", "Api1", "1.0", "key1").getResult();
+        Assert.assertEquals("http://localhost:8080/republished", contract.getApi().getEndpoint());
+    }
+
+    @Test
+    public void testGetContractErrors() {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        registry.publishApi(api("Org1", "Api1", "1.0"), result -> {});
+        registry.publishApi(api("Org1", "Api2", "1.0"), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.0", "key1", contract("Org1", "Api1", "1.0", "Gold")), result -> {});
+
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key2").getError() instanceof ClientNotFoundException);
+        Assert.assertTrue(getContract(registry, "Org1", "Api2", "1.0", "key1").getError() instanceof NoContractFoundException);
+
+        registry.retireApi(api("Org1", "Api1", "1.0"), result -> {});
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key1").getError() instanceof ApiRetiredException);
+
+        // Publishing the API again restores the contract
+        registry.publishApi(api("Org1", "Api1", "1.0"), result -> {});
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key1").isSuccess());
+
+        registry.unregisterClient(client("Org2", "Client1", "1.0", "key1"), result -> {});
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key1").getError() instanceof ClientNotFoundException);
+    }
+
+    @Test
+    public void testReregisterClient() {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        registry.publishApi(api("Org1", "Api1", "1.0"), result -> {});
+        registry.publishApi(api("Org1", "Api2", "1.0"), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.0", "key1", contract("Org1", "Api1", "1.0", "Gold")), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.0", "key2", contract("Org1", "Api2", "1.0", "Silver")), result -> {});
+
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key1").getError() instanceof ClientNotFoundException);
+        Assert.assertTrue(getContract(registry, "Org1", "Api1", "1.0", "key2").getError() instanceof NoContractFoundException);
+        Assert.assertEquals("Silver", getContract(registry, "Org1", "Api2", "1.0", "key2").getResult().getPlan());
+    }
+
+    @Test
+    public void testList() {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        registry.publishApi(api("Org1", "Api1", "1.0"), result -> {});
+        registry.publishApi(api("Org1", "Api1", "2.0"), result -> {});
+        registry.publishApi(api("Org1", "Api2", "1.0"), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.0", "key1"), result -> {});
+        registry.registerClient(client("Org2", "Client1", "1.1", "key2"), result -> {});
+
+        Assert.assertEquals(Arrays.asList("Api1", "Api2"), list(handler -> registry.listApis("Org1", 0, 0, handler)));
+        Assert.assertEquals(Arrays.asList("1.0", "2.0"), list(handler -> registry.listApiVersions("Org1", "Api1", 0, 0, handler)));
+        Assert.assertEquals(Arrays.asList("Client1"), list(handler -> registry.listClients("Org2", 0, 0, handler)));
+        Assert.assertEquals(Arrays.asList("1.0", "1.1"), list(handler -> registry.listClientVersions("Org2", "Client1", 0, 0, handler)));
+        Assert.assertEquals(Arrays.asList("Org1", "Org2"), sorted(list(handler -> registry.listOrgs(handler))));
+        Assert.assertEquals(Collections.emptyList(), list(handler -> registry.listApis("Org3", 0, 0, handler)));
+
+        registry.retireApi(api("Org1", "Api1", "1.0"), result -> {});
+        registry.retireApi(api("Org1", "Api1", "2.0"), result -> {});
+        registry.unregisterClient(client("Org2", "Client1", "1.0", "key1"), result -> {});
+        Assert.assertEquals(Arrays.asList("Api2"), list(handler -> registry.listApis("Org1", 0, 0, handler)));
+        Assert.assertEquals(Arrays.asList("1.1"), list(handler -> registry.listClientVersions("Org2", "Client1", 0, 0, handler)));
+
+        registry.clear();
+        Assert.assertEquals(Collections.emptyList(), list(handler -> registry.listOrgs(handler)));
+        Assert.assertEquals(Collections.emptyList(), list(handler -> registry.listApis("Org1", 0, 0, handler)));
+    }
+
+    private static IAsyncResult<ApiContract> getContract(InMemoryRegistry registry, String orgId, String apiId,
+            String version, String apiKey) {
+        AtomicReference<IAsyncResult<ApiContract>> ref = new AtomicReference<>();
+        registry.getContract(orgId, apiId, version, apiKey, ref::set);
+        return ref.get();
+    }
+
+    private static List<String> list(Consumer<IAsyncResultHandler<List<String>>> call) {
+        AtomicReference<List<String>> ref = new AtomicReference<>();
+        call.accept(result -> ref.set(result.getResult()));
+        return ref.get();
+    }
+
+    private static List<String> sorted(List<String> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+    private static Api api(String orgId, String apiId, String version) {
+        Api api = new Api();
+        api.setOrganizationId(orgId);
+        api.setApiId(apiId);
+        api.setVersion(version);
+        return api;
+    }
+
+    private static Client client(String orgId, String clientId, String version, String apiKey, Contract ... contracts) {
+        Client client = new Client();
+        client.setOrganizationId(orgId);
+        client.setClientId(clientId);
+        client.setVersion(version);
+        client.setApiKey(apiKey);
+        for (Contract contract : contracts) {
+            client.addContract(contract);
+        }
+        return client;
+    }
+
+    private static Contract contract(String apiOrgId, String apiId, String apiVersion, String plan) {
+        Contract contract = new Contract();
+        contract.setApiOrgId(apiOrgId);
+        contract.setApiId(apiId);
+        contract.setApiVersion(apiVersion);
+        contract.setPlan(plan);
+        return contract;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.logging.IDelegateFactory;
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IApiRequestExecutor;
+import io.apiman.gateway.engine.IApiRequestPathParser;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IEngine;
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.util.PassthroughDataPolicy;
+import io.apiman.gateway.engine.util.PassthroughPolicy;
+
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the throughput of request and response bodies through the engine, with a
+ * (pass-through) data policy in the chain and without one - in which case the body
+ * bypasses the policy chain entirely.  Bodies are sent in 8K chunks to/from an in-memory
+ * back-end, so only the cost of the engine itself is measured.
+ *
+ * Only run when the 'apiman.test.load' system property is set to true, e.g.
+ * <pre>mvn test -Dtest=PassthroughBenchmarkTest -Dapiman.test.load=true</pre>
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class PassthroughBenchmarkTest {
+
+    private static final Logger logger = Logger.getLogger(PassthroughBenchmarkTest.class.getName());
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue("Set -Dapiman.test.load=true to run the benchmark", Boolean.getBoolean("apiman.test.load"));
+        for (String policyImpl : new String[] { PassthroughPolicy.QUALIFIED_NAME, PassthroughDataPolicy.QUALIFIED_NAME }) {
+            IEngine engine = createEngine(policyImpl);
+            // Warm up
+            run(engine, MB, 100);
+
+            logger.info(policyImpl + ":");
+            report(engine, KB, 10000);
+            report(engine, MB, 100);
+            report(engine, 100 * MB, 2);
+        }
+    }
+
+    private void report(IEngine engine, long bodySize, int iterations) {
+        long start = System.nanoTime();
+        run(engine, bodySize, iterations);
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        double mbPerSecond = 2.0 * bodySize * iterations / MB / seconds;
+        logger.info(String.format("  %9d byte bodies: %8.1f requests/s, %8.1f MB/s (request + response)",
+                bodySize, iterations / seconds, mbPerSecond));
+    }
+
+    private void run(IEngine engine, long bodySize, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            long[] received = new long[1];
+            boolean[] ended = new boolean[1];
+            IApiRequestExecutor executor = engine.executor(createRequest(bodySize), result -> {
+                Assert.assertTrue(result.isSuccess());
+                IEngineResult engineResult = result.getResult();
+                engineResult.bodyHandler(chunk -> received[0] += chunk.length());
+                engineResult.endHandler(v -> ended[0] = true);
+            });
+            executor.streamHandler(connectorStream -> {
+                writeBody(bodySize, chunk -> connectorStream.write(chunk));
+                connectorStream.end();
+            });
+            executor.execute();
+            Assert.assertTrue(ended[0]);
+            Assert.assertEquals(bodySize, received[0]);
+        }
+    }
+
+    private static void writeBody(long bodySize, Consumer<IApimanBuffer> writer) {
+        ByteBuffer buffer = new ByteBuffer(new byte[CHUNK_SIZE], CHUNK_SIZE);
+        for (long remaining = bodySize; remaining > 0; remaining -= CHUNK_SIZE) {
+            writer.accept(remaining >= CHUNK_SIZE ? buffer : new ByteBuffer(new byte[(int) remaining], (int) remaining));
+        }
+    }
+
+    private static ApiRequest createRequest(long bodySize) {
+        ApiRequest request = new ApiRequest();
+        request.setApiKey("client-12345");
+        request.setApiId("TestApi");
+        request.setApiOrgId("TestOrg");
+        request.setApiVersion("1.0");
+        request.setDestination("/");
+        request.setUrl("http://localhost:9999/");
+        request.setType("POST");
+        request.getHeaders().put("Content-Length", String.valueOf(bodySize));
+        return request;
+    }
+
+    private static IEngine createEngine(String policyImpl) {
+        DefaultEngineFactory factory = new DefaultEngineFactory() {
+            @Override
+            protected IComponentRegistry createComponentRegistry(IPluginRegistry pluginRegistry) {
+                return new DefaultComponentRegistry() {
+                    @Override
+                    protected void registerBufferFactoryComponent() {
+                        addComponent(IBufferFactoryComponent.class, new ByteBufferFactoryComponent());
+                    }
+                };
+            }
+
+            @Override
+            protected IConnectorFactory createConnectorFactory(IPluginRegistry pluginRegistry) {
+                return new EchoConnectorFactory();
+            }
+
+            @Override
+            protected IDelegateFactory createLoggerFactory(IPluginRegistry pluginRegistry) {
+                return null;
+            }
+
+            @Override
+            protected IApiRequestPathParser createRequestPathParser(IPluginRegistry pluginRegistry) {
+                return new DefaultRequestPathParser(null);
+            }
+
+            @Override
+            protected void complete() {
+            }
+        };
+        IEngine engine = factory.createEngine();
+
+        Api api = new Api();
+        api.setEndpointType("test");
+        api.setEndpoint("test:endpoint");
+        api.setOrganizationId("TestOrg");
+        api.setApiId("TestApi");
+        api.setVersion("1.0");
+
+        Policy policy = new Policy();
+        policy.setPolicyImpl(policyImpl);
+        policy.setPolicyJsonConfig("{}");
+        Contract contract = new Contract();
+        contract.setPlan("Gold");
+        contract.setApiId("TestApi");
+        contract.setApiOrgId("TestOrg");
+        contract.setApiVersion("1.0");
+        contract.setPolicies(Collections.singletonList(policy));
+        Client client = new Client();
+        client.setClientId("TestApp");
+        client.setOrganizationId("TestOrg");
+        client.setVersion("1.0");
+        client.setApiKey("client-12345");
+        client.addContract(contract);
+
+        engine.getRegistry().publishApi(api, result -> {});
+        engine.getRegistry().registerClient(client, result -> {});
+        return engine;
+    }
+
+    /**
+     * Back-end that consumes the request body and responds with a body of the same size.
+     */
+    private static class EchoConnectorFactory implements IConnectorFactory {
+
+        @Override
+        public IApiConnector createConnector(ApiRequest request, Api api, RequiredAuthType requiredAuthType,
+                boolean hasDataPolicy, IConnectorConfig connectorConfig) {
+            return (req, handler) -> new EchoConnection(handler);
+        }
+
+        @Override
+        public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
+            return new TestConnectorConfigImpl();
+        }
+    }
+
+    private static class EchoConnection implements IApiConnection {
+
+        private final IAsyncResultHandler<IApiConnectionResponse> handler;
+        private long bodySize;
+        private boolean finished;
+
+        EchoConnection(IAsyncResultHandler<IApiConnectionResponse> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            bodySize += chunk.length();
+        }
+
+        @Override
+        public void end() {
+            finished = true;
+            ApiResponse response = new ApiResponse();
+            response.setCode(200);
+            response.setMessage("OK");
+            handler.handle(AsyncResultImpl.create(new MockApiConnectionResponse() {
+                @Override
+                protected void handleHead(ApiResponse head) {
+                }
+
+                @Override
+                public ApiResponse getHead() {
+                    return response;
+                }
+
+                @Override
+                public void transmit() {
+                    writeBody(bodySize, this::write);
+                    end();
+                }
+
+                @Override
+                public void abort(Throwable t) {
+                }
+            }));
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            finished = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !finished;
+        }
+    }
+
+}
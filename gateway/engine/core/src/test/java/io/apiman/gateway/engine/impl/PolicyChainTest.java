@@ -22,6 +22,8 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -36,6 +38,7 @@ import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.metrics.PolicyMetric;
 import io.apiman.gateway.engine.policy.IPolicy;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
@@ -258,4 +261,55 @@ public class PolicyChainTest {
         verify(skipPolicy, times(1)).apply(mockRequest, mockContext, null, requestChain);
         verify(policyOne, never()).apply(mockRequest, mockContext, null, requestChain);
     }
+
+    @Test
+    public void shouldProfilePolicies() throws InterruptedException {
+        final List<IPolicyChain<ApiRequest>> waiting = new ArrayList<>();
+        IPolicy asyncPolicy = new IPolicy() {
+
+            @Override
+            public Object parseConfiguration(String jsonConfiguration) throws ConfigurationParseException {
+                return null;
+            }
+
+            @Override
+            public void apply(ApiRequest request, IPolicyContext context, Object config,
+                    IPolicyChain<ApiRequest> chain) {
+                waiting.add(chain);
+            }
+
+            @Override
+            public void apply(ApiResponse response, IPolicyContext context, Object config,
+                    IPolicyChain<ApiResponse> chain) {
+               chain.doApply(response);
+            }
+        };
+
+        policies.add(pwcOne);
+        policies.add(new PolicyWithConfiguration(asyncPolicy, null));
+        policies.add(pwcTwo);
+
+        List<PolicyMetric> policyMetrics = new ArrayList<>();
+        requestChain = new RequestChain(policies, mockContext);
+        requestChain.profile("request", policyMetrics);
+        requestChain.bodyHandler(mockBodyHandler);
+        requestChain.endHandler(mockEndHandler);
+
+        requestChain.doApply(mockRequest);
+        assertEquals(2, policyMetrics.size());
+        Thread.sleep(10);
+        waiting.get(0).doApply(mockRequest);
+        requestChain.end();
+
+        assertEquals(3, policyMetrics.size());
+        for (PolicyMetric policyMetric : policyMetrics) {
+            assertEquals("request", policyMetric.getChain());
+            assertTrue(policyMetric.getApplyDuration() > 0);
+        }
+        assertEquals(asyncPolicy.getClass().getName(), policyMetrics.get(1).getPolicyImpl());
+        assertTrue(policyMetrics.get(1).getWaitDuration() >= 10000000L);
+        assertEquals(0, policyMetrics.get(0).getWaitDuration());
+        assertEquals(0, policyMetrics.get(2).getWaitDuration());
+        verify(mockEndHandler, times(1)).handle((Void) null);
+    }
 }
@@ -15,6 +15,10 @@
  */
 package io.apiman.gateway.engine.impl;
 
+import io.apiman.common.plugin.Plugin;
+import io.apiman.common.plugin.PluginCoordinates;
+import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.exceptions.PolicyNotFoundException;
@@ -24,8 +28,11 @@ import io.apiman.gateway.engine.policy.PolicyFactoryImpl;
 import io.apiman.gateway.engine.util.PassthroughPolicy;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -76,6 +83,64 @@ public class PolicyLoadTest {
         });
     }
 
+    @Test
+    public void testConfigCache() {
+        PolicyFactoryImpl factory = new PolicyFactoryImpl(Collections.singletonMap("config.cacheSize", "10"));
+        PassthroughPolicy policy = new PassthroughPolicy();
+        Object config = factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 1 }");
+        Assert.assertSame(config, factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 1 }"));
+        Assert.assertEquals(1, factory.getConfigCacheHits());
+        Assert.assertEquals(1, factory.getConfigCacheMisses());
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("{ \"b\" : " + i + " }", factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"b\" : " + i + " }"));
+        }
+        Assert.assertTrue(factory.getConfigCacheSize() <= 10);
+        Assert.assertEquals(101 - factory.getConfigCacheSize(), factory.getConfigCacheEvictions());
+    }
+
+    @Test
+    public void testConfigCacheKeepsRecentlyUsed() {
+        PolicyFactoryImpl factory = new PolicyFactoryImpl(Collections.singletonMap("config.cacheSize", "10"));
+        PassthroughPolicy policy = new PassthroughPolicy();
+        // An equal (but not the same) config string hits the cache too
+        Object hot = factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, new String("{ \"hot\" : 1 }"));
+        for (int i = 0; i < 100; i++) {
+            factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"b\" : " + i + " }");
+            Assert.assertSame(hot, factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, new String("{ \"hot\" : 1 }")));
+        }
+        Assert.assertEquals(100, factory.getConfigCacheHits());
+        Assert.assertEquals(101, factory.getConfigCacheMisses());
+    }
+
+    @Test
+    public void testConcurrentPluginLoads() {
+        List<IAsyncResultHandler<Plugin>> pluginLoads = new ArrayList<>();
+        policyFactory.setPluginRegistry(new IPluginRegistry() {
+            @Override
+            public Future<IAsyncResult<Plugin>> loadPlugin(PluginCoordinates coordinates, IAsyncResultHandler<Plugin> handler) {
+                pluginLoads.add(handler);
+                return null;
+            }
+        });
+
+        List<IAsyncResult<IPolicy>> results = new ArrayList<>();
+        String policyImpl = "plugin:io.apiman.test:test-plugin:1.0/org.example.TestPolicy";
+        policyFactory.loadPolicy(policyImpl, result -> results.add(result));
+        policyFactory.loadPolicy(policyImpl, result -> results.add(result));
+        Assert.assertEquals("Should load the plugin only once", 1, pluginLoads.size());
+        Assert.assertTrue(results.isEmpty());
+
+        pluginLoads.get(0).handle(AsyncResultImpl.create(new Exception("not found"), Plugin.class));
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0).isError());
+        Assert.assertTrue(results.get(1).isError());
+
+        // Once done, a new load can be started
+        policyFactory.loadPolicy(policyImpl, result -> results.add(result));
+        Assert.assertEquals(2, pluginLoads.size());
+    }
+
     /**
      * @return the number of policies in the factory
      */
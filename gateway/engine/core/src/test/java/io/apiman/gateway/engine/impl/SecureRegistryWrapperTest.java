@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.util.crypt.DataEncryptionContext;
+import io.apiman.common.util.crypt.IDataEncrypter;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Policy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+@SuppressWarnings("nls")
+public class SecureRegistryWrapperTest {
+
+    @Test
+    public void testDecryptionIsMemoized() {
+        CountingEncrypter encrypter = new CountingEncrypter();
+        SecureRegistryWrapper registry = new SecureRegistryWrapper(new CopyingRegistry(), encrypter);
+        registry.publishApi(api("config-1", "secret-1"), result -> {});
+        // The values are decrypted again once published
+        Assert.assertEquals(2, encrypter.decrypted.get());
+
+        for (int i = 0; i < 100; i++) {
+            Api api = getApi(registry);
+            Assert.assertEquals("config-1", api.getApiPolicies().get(0).getPolicyJsonConfig());
+            Assert.assertEquals("secret-1", api.getEndpointProperties().get("password"));
+        }
+        Assert.assertEquals(2, encrypter.decrypted.get());
+
+        // Re-publishing the API must not serve the old values
+        registry.publishApi(api("config-2", "secret-2"), result -> {});
+        Api api = getApi(registry);
+        Assert.assertEquals("config-2", api.getApiPolicies().get(0).getPolicyJsonConfig());
+        Assert.assertEquals("secret-2", api.getEndpointProperties().get("password"));
+        Assert.assertEquals(4, encrypter.decrypted.get());
+    }
+
+    private static Api getApi(SecureRegistryWrapper registry) {
+        AtomicReference<Api> ref = new AtomicReference<>();
+        registry.getApi("Org1", "Api1", "1.0", result -> ref.set(result.getResult()));
+        return ref.get();
+    }
+
+    private static Api api(String config, String password) {
+        Api api = new Api();
+        api.setOrganizationId("Org1");
+        api.setApiId("Api1");
+        api.setVersion("1.0");
+        Policy policy = new Policy();
+        policy.setPolicyImpl("class:Policy");
+        policy.setPolicyJsonConfig(config);
+        List<Policy> policies = new ArrayList<>();
+        policies.add(policy);
+        api.setApiPolicies(policies);
+        Map<String, String> endpointProperties = new HashMap<>();
+        endpointProperties.put("password", password);
+        api.setEndpointProperties(endpointProperties);
+        return api;
+    }
+
+    /**
+     * Stores (and hands out) copies of the published APIs, like the registries
+     * backed by an external store do.
+     */
+    private static class CopyingRegistry extends InMemoryRegistry {
+
+        @Override
+        public void publishApi(Api api, IAsyncResultHandler<Void> handler) {
+            super.publishApi(copy(api), handler);
+        }
+
+        @Override
+        public void getApi(String organizationId, String apiId, String apiVersion,
+                IAsyncResultHandler<Api> handler) {
+            super.getApi(organizationId, apiId, apiVersion,
+                    result -> handler.handle(AsyncResultImpl.create(copy(result.getResult()))));
+        }
+
+        private static Api copy(Api api) {
+            Api copy = api(null, null);
+            copy.getApiPolicies().get(0).setPolicyJsonConfig(api.getApiPolicies().get(0).getPolicyJsonConfig());
+            copy.setEndpointProperties(new HashMap<>(api.getEndpointProperties()));
+            return copy;
+        }
+    }
+
+    private static class CountingEncrypter implements IDataEncrypter {
+
+        private final AtomicInteger decrypted = new AtomicInteger();
+
+        @Override
+        public String encrypt(String plainText, DataEncryptionContext context) {
+            return "$CRYPT::" + plainText;
+        }
+
+        @Override
+        public String decrypt(String encryptedText, DataEncryptionContext context) {
+            decrypted.incrementAndGet();
+            return encryptedText.substring("$CRYPT::".length());
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Verifies {@link RateBucketPeriodBoundaries} against the {@link Calendar} based
+ * computation it replaced.
+ */
+@SuppressWarnings("nls")
+public class RateBucketPeriodBoundariesTest {
+
+    private static final String[] ZONES = { "UTC", "Europe/London", "America/New_York", "Australia/Sydney", "Asia/Kolkata" };
+
+    @Test
+    public void testMonthAndYearRollover() {
+        for (String zone : ZONES) {
+            assertMatchesCalendar(zone, LocalDateTime.of(2016, 12, 31, 23, 59, 59), 2000, 1);
+            assertMatchesCalendar(zone, LocalDateTime.of(2016, 1, 31, 23, 59, 0), 2 * 60 * 1000, 250);
+            assertMatchesCalendar(zone, LocalDateTime.of(2016, 2, 28, 23, 0, 0), 26 * 60 * 60 * 1000L, 60 * 1000);
+            assertMatchesCalendar(zone, LocalDateTime.of(2015, 2, 28, 23, 0, 0), 2 * 60 * 60 * 1000L, 999);
+        }
+    }
+
+    @Test
+    public void testDstTransitions() {
+        // Spring forward
+        assertMatchesCalendar("America/New_York", LocalDateTime.of(2016, 3, 13, 0, 0, 0), 4 * 60 * 60 * 1000L, 997);
+        assertMatchesCalendar("Europe/London", LocalDateTime.of(2016, 3, 27, 0, 0, 0), 3 * 60 * 60 * 1000L, 997);
+        assertMatchesCalendar("Australia/Sydney", LocalDateTime.of(2016, 10, 2, 1, 0, 0), 2 * 60 * 60 * 1000L, 997);
+        // Fall back
+        assertMatchesCalendar("America/New_York", LocalDateTime.of(2016, 11, 5, 23, 0, 0), 60 * 60 * 1000L, 997);
+        assertMatchesCalendar("America/New_York", LocalDateTime.of(2016, 11, 6, 2, 0, 0), 4 * 60 * 60 * 1000L, 997);
+        assertMatchesCalendar("Europe/London", LocalDateTime.of(2016, 10, 30, 2, 0, 0), 2 * 60 * 60 * 1000L, 997);
+    }
+
+    @Test
+    public void testDstOverlapHour() {
+        // During the repeated hour the next hourly boundary is one hour after the
+        // start of the (first or second) occurrence of that hour.
+        ZoneId zone = ZoneId.of("America/New_York");
+        RateBucketPeriodBoundaries boundaries = new RateBucketPeriodBoundaries(zone);
+        long firstOneAm = LocalDateTime.of(2016, 11, 6, 1, 0, 0).atZone(zone).withEarlierOffsetAtOverlap().toInstant().toEpochMilli();
+        long secondOneAm = firstOneAm + 60 * 60 * 1000L;
+        Assert.assertEquals(secondOneAm, boundaries.getBoundary(firstOneAm + 30 * 60 * 1000L, RateBucketPeriod.Hour));
+        Assert.assertEquals(secondOneAm + 60 * 60 * 1000L, boundaries.getBoundary(secondOneAm + 30 * 60 * 1000L, RateBucketPeriod.Hour));
+        Assert.assertEquals(LocalDateTime.of(2016, 11, 7, 0, 0, 0).atZone(zone).toInstant().toEpochMilli(),
+                boundaries.getBoundary(firstOneAm, RateBucketPeriod.Day));
+    }
+
+    @Test
+    public void testCachedWindow() {
+        RateBucketPeriodBoundaries boundaries = new RateBucketPeriodBoundaries(ZoneId.of("UTC"));
+        long start = LocalDateTime.of(2016, 6, 1, 12, 0, 0).atZone(ZoneId.of("UTC")).toInstant().toEpochMilli();
+        for (long ts = start; ts < start + 60 * 1000L; ts += 7) {
+            Assert.assertEquals(start + 60 * 1000L, boundaries.getBoundary(ts, RateBucketPeriod.Minute));
+        }
+        Assert.assertEquals(start + 2 * 60 * 1000L, boundaries.getBoundary(start + 60 * 1000L, RateBucketPeriod.Minute));
+        // Going backwards in time must not be answered from the cached window
+        Assert.assertEquals(start, boundaries.getBoundary(start - 1, RateBucketPeriod.Minute));
+    }
+
+    /**
+     * Walks from the given local time for the given number of millis and checks that
+     * every period boundary matches the one computed by {@link Calendar}.
+     */
+    private static void assertMatchesCalendar(String zoneId, LocalDateTime from, long duration, long step) {
+        ZoneId zone = ZoneId.of(zoneId);
+        TimeZone timeZone = TimeZone.getTimeZone(zoneId);
+        RateBucketPeriodBoundaries boundaries = new RateBucketPeriodBoundaries(zone);
+        long start = from.atZone(zone).toInstant().toEpochMilli();
+        for (long ts = start; ts < start + duration; ts += step) {
+            for (RateBucketPeriod period : RateBucketPeriod.values()) {
+                Assert.assertEquals(zoneId + " " + period + " @ " + ts, calendarBoundary(timeZone, ts, period),
+                        boundaries.getBoundary(ts, period));
+            }
+        }
+    }
+
+    /**
+     * The original {@link Calendar} based implementation.
+     */
+    private static long calendarBoundary(TimeZone timeZone, long timestamp, RateBucketPeriod period) {
+        Calendar lastCal = Calendar.getInstance(timeZone);
+        lastCal.setTimeInMillis(timestamp);
+        switch (period) {
+        case Second:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.add(Calendar.SECOND, 1);
+            return lastCal.getTimeInMillis();
+        case Minute:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.set(Calendar.SECOND, 0);
+            lastCal.add(Calendar.MINUTE, 1);
+            return lastCal.getTimeInMillis();
+        case Hour:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.set(Calendar.SECOND, 0);
+            lastCal.set(Calendar.MINUTE, 0);
+            lastCal.add(Calendar.HOUR_OF_DAY, 1);
+            return lastCal.getTimeInMillis();
+        case Day:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.set(Calendar.SECOND, 0);
+            lastCal.set(Calendar.MINUTE, 0);
+            lastCal.set(Calendar.HOUR_OF_DAY, 0);
+            lastCal.add(Calendar.DAY_OF_YEAR, 1);
+            return lastCal.getTimeInMillis();
+        case Month:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.set(Calendar.SECOND, 0);
+            lastCal.set(Calendar.MINUTE, 0);
+            lastCal.set(Calendar.HOUR_OF_DAY, 0);
+            lastCal.set(Calendar.DAY_OF_MONTH, 1);
+            lastCal.add(Calendar.MONTH, 1);
+            return lastCal.getTimeInMillis();
+        case Year:
+            lastCal.set(Calendar.MILLISECOND, 0);
+            lastCal.set(Calendar.SECOND, 0);
+            lastCal.set(Calendar.MINUTE, 0);
+            lastCal.set(Calendar.HOUR_OF_DAY, 0);
+            lastCal.set(Calendar.DAY_OF_YEAR, 1);
+            lastCal.add(Calendar.YEAR, 1);
+            return lastCal.getTimeInMillis();
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ */
+public class SlidingWindowRateBucketTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void testBurstAcrossBoundaryIsSmoothed() {
+        SlidingWindowRateBucket bucket = new SlidingWindowRateBucket();
+        long minuteStart = (System.currentTimeMillis() / MINUTE) * MINUTE;
+
+        // Use up the whole limit at the end of a minute
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(bucket.accept(minuteStart + 50 * 1000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+        }
+        Assert.assertFalse(bucket.accept(minuteStart + 55 * 1000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+
+        // A fixed window would accept another 10 right after the boundary
+        long nextMinute = minuteStart + MINUTE;
+        Assert.assertFalse(bucket.accept(nextMinute + 1000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+
+        // Half way through the next minute half of the previous count has slid out
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (bucket.accept(nextMinute + 30 * 1000L, RateBucketPeriod.Minute, 10, 1).isAccepted()) {
+                accepted++;
+            }
+        }
+        Assert.assertEquals(5, accepted);
+
+        // Rejected requests were not counted, so they don't hold back later ones
+        Assert.assertTrue(bucket.accept(nextMinute + 45 * 1000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+
+        // Two minutes on, nothing of the old windows remains
+        Assert.assertEquals(9, bucket.accept(nextMinute + 2 * MINUTE, RateBucketPeriod.Minute, 10, 1).getRemaining());
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenRateBucketTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void testRejectedRequestsDoNotUseTokens() {
+        TokenRateBucket bucket = new TokenRateBucket();
+        long minuteStart = (System.currentTimeMillis() / MINUTE) * MINUTE;
+
+        // Empty the bucket
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(bucket.accept(minuteStart, RateBucketPeriod.Minute, 10, 1).isAccepted());
+        }
+
+        // Hammer it while it is empty
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse(bucket.accept(minuteStart, RateBucketPeriod.Minute, 10, 1).isAccepted());
+        }
+        Assert.assertEquals(0, bucket.accept(minuteStart, RateBucketPeriod.Minute, 10, 1).getRemaining());
+
+        // One token drips back in every 6 seconds, regardless of the rejections
+        Assert.assertTrue(bucket.accept(minuteStart + 6000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+        Assert.assertFalse(bucket.accept(minuteStart + 6000L, RateBucketPeriod.Minute, 10, 1).isAccepted());
+    }
+
+}
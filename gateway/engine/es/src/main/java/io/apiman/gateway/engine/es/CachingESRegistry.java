@@ -62,6 +62,53 @@ public abstract class CachingESRegistry extends ESRegistry {
         }
     }
 
+    /**
+     * Adds (or replaces) the given api in the cache.
+     * @param api
+     */
+    protected void cacheApi(Api api) {
+        String apiIdx = getApiIdx(api.getOrganizationId(), api.getApiId(), api.getVersion());
+        synchronized (mutex) {
+            apiCache.put(apiIdx, api);
+        }
+    }
+
+    /**
+     * Removes the given api from the cache.
+     * @param orgId
+     * @param apiId
+     * @param version
+     */
+    protected void uncacheApi(String orgId, String apiId, String version) {
+        String apiIdx = getApiIdx(orgId, apiId, version);
+        synchronized (mutex) {
+            apiCache.remove(apiIdx);
+        }
+    }
+
+    /**
+     * Adds (or replaces) the given client in the cache.
+     * @param client
+     */
+    protected void cacheClient(Client client) {
+        synchronized (mutex) {
+            clientCache.put(client.getApiKey(), client);
+        }
+    }
+
+    /**
+     * Removes the given client from the cache, whatever its api key.
+     * @param orgId
+     * @param clientId
+     * @param version
+     */
+    protected void uncacheClient(String orgId, String clientId, String version) {
+        synchronized (mutex) {
+            clientCache.values().removeIf(client -> orgId.equals(client.getOrganizationId())
+                    && clientId.equals(client.getClientId()) && version.equals(client.getVersion()));
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.jdbc.ESRegistry#getContract(java.lang.String, java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -17,32 +17,79 @@
 package io.apiman.gateway.engine.es;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.metrics.RequestMetric;
+import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.Bulk;
 import io.searchbox.core.Bulk.Builder;
 import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
 import io.searchbox.core.Index;
 
 /**
  * An elasticsearch implementation of the {@link IMetrics} interface.
  *
+ * Metrics are queued by {@link #record(RequestMetric)}, which never blocks:  when the
+ * queue is full the configured overflow policy decides which metrics are dropped.  A
+ * consumer thread collects the queued metrics into batches (flushed when the batch is
+ * full or the flush interval has elapsed) and sends each batch as an asynchronous bulk
+ * request, with a bounded number of bulk requests in flight at once.  Failed bulk
+ * requests (or just the failed items of a partially failed one) are retried with
+ * exponential backoff.
+ *
  * @author eric.wittmann@redhat.com
  */
 public class ESMetrics extends AbstractESComponent implements IMetrics {
 
     private static final int DEFAULT_QUEUE_SIZE = 10000;
     private static final int DEFAULT_BATCH_SIZE = 1000;
-    
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_RETRY_BACKOFF = 500;
+    private static final int DEFAULT_SAMPLE_RATE = 10;
+
+    /**
+     * What to do with a metric when the queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** Drop the oldest queued metric to make room for the new one. */
+        dropOldest,
+        /** Drop the new metric. */
+        dropNewest,
+        /** Once the queue is half full, only queue one in every N metrics (and drop the new metric when it is full). */
+        sample
+    }
+
     protected IComponentRegistry componentRegistry;
-    private final BlockingQueue<RequestMetric> queue;
+    private final BlockingDeque<RequestMetric> queue;
+    private final int queueSize;
     private final int batchSize;
+    private final long flushInterval;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+    private final int policyProfilingRate;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retryExecutor;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
 
     /**
      * Constructor.
@@ -51,23 +98,38 @@ public class ESMetrics extends AbstractESComponent implements IMetrics {
     public ESMetrics(Map<String, String> config) {
         super(config);
 
-        int queueSize = DEFAULT_QUEUE_SIZE;
-        String queueSizeConfig = config.get("queue.size"); //$NON-NLS-1$
-        if (queueSizeConfig != null) {
-            queueSize = new Integer(queueSizeConfig);
-        }
+        queueSize = getInt(config, "queue.size", DEFAULT_QUEUE_SIZE); //$NON-NLS-1$
         queue = new LinkedBlockingDeque<>(queueSize);
-        
-        int batchSize = DEFAULT_BATCH_SIZE;
-        String batchSizeConfig = config.get("batch.size"); //$NON-NLS-1$
-        if (batchSizeConfig != null) {
-            batchSize = new Integer(batchSizeConfig);
-        }
-        this.batchSize = batchSize;
-        
+        batchSize = getInt(config, "batch.size", DEFAULT_BATCH_SIZE); //$NON-NLS-1$
+        flushInterval = getLong(config, "batch.flushInterval", DEFAULT_FLUSH_INTERVAL); //$NON-NLS-1$
+        maxRetries = getInt(config, "retry.max", DEFAULT_MAX_RETRIES); //$NON-NLS-1$
+        retryBackoff = getLong(config, "retry.backoff", DEFAULT_RETRY_BACKOFF); //$NON-NLS-1$
+        sampleRate = Math.max(1, getInt(config, "overflow.sampleRate", DEFAULT_SAMPLE_RATE)); //$NON-NLS-1$
+        inFlight = new Semaphore(Math.max(1, getInt(config, "maxInFlight", DEFAULT_MAX_IN_FLIGHT))); //$NON-NLS-1$
+        policyProfilingRate = getInt(config, "policyProfiling.rate", 0); //$NON-NLS-1$
+
+        String overflowConfig = config.get("overflow.policy"); //$NON-NLS-1$
+        overflowPolicy = overflowConfig == null ? OverflowPolicy.dropNewest : OverflowPolicy.valueOf(overflowConfig);
+
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ESMetricsRetry"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+
         startConsumerThread();
     }
 
+    private static int getInt(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : new Integer(value);
+    }
+
+    private static long getLong(Map<String, String> config, String key, long defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : new Long(value);
+    }
+
     /**
      * @see io.apiman.gateway.engine.IMetrics#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
      */
@@ -76,63 +138,216 @@ public class ESMetrics extends AbstractESComponent implements IMetrics {
         componentRegistry = registry;
     }
 
+    /**
+     * The per-policy metrics of profiled requests are indexed along with the rest of
+     * the request metric.
+     * @see io.apiman.gateway.engine.IMetrics#getPolicyProfilingRate()
+     */
+    @Override
+    public int getPolicyProfilingRate() {
+        return policyProfilingRate;
+    }
+
     /**
      * @see io.apiman.gateway.engine.IMetrics#record(io.apiman.gateway.engine.metrics.RequestMetric)
      */
     @Override
     public void record(RequestMetric metric) {
-        try {
-            queue.put(metric);
-        } catch (Exception e) {
-            e.printStackTrace();
+        switch (overflowPolicy) {
+        case dropOldest:
+            while (!queue.offerLast(metric)) {
+                if (queue.pollFirst() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+            break;
+        case sample:
+            if (queue.size() >= queueSize / 2 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+            // fall through
+        case dropNewest:
+        default:
+            if (!queue.offerLast(metric)) {
+                dropped.incrementAndGet();
+                return;
+            }
         }
+        queued.incrementAndGet();
     }
 
     /**
      * Starts a thread which will serially pull information off the blocking
-     * queue and submit that information to hawkular metrics.
+     * queue and submit that information to elasticsearch.
      */
-    private void startConsumerThread() {
+    protected void startConsumerThread() {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                while (Boolean.TRUE) {
+                // An interrupt (processQueue() restores the flag) stops the consumer
+                while (!Thread.currentThread().isInterrupted()) {
                     processQueue();
                 }
             }
         }, "ESMetricsConsumer"); //$NON-NLS-1$
         thread.setDaemon(true);
-        thread.start();        
+        thread.start();
     }
 
     /**
-     * Process the next item in the queue.
+     * Collects the next batch of metrics from the queue and sends it.  Blocks while
+     * the maximum number of bulk requests are in flight.
      */
     protected void processQueue() {
         try {
-            Collection<RequestMetric> batch = new ArrayList<>(this.batchSize);
-            RequestMetric rm = queue.take();
+            RequestMetric rm = queue.pollFirst(flushInterval, TimeUnit.MILLISECONDS);
+            if (rm == null) {
+                return;
+            }
+            List<RequestMetric> batch = new ArrayList<>(this.batchSize);
             batch.add(rm);
-			queue.drainTo(batch, this.batchSize - 1);
-			
-			Builder builder = new Bulk.Builder();
-			for (RequestMetric metric : batch) {
-	            Index index = new Index.Builder(metric).refresh(false)
-	                    .index(getIndexName())
-	                    .type("request").build(); //$NON-NLS-1$
-				builder.addAction(index);
-			}
-            
-            BulkResult result = getClient().execute(builder.build());
-            if (!result.isSucceeded()) {
-                System.err.println("Failed to add metric(s) to ES: " + result.getErrorMessage()); //$NON-NLS-1$
+            long flushAt = System.currentTimeMillis() + flushInterval;
+            while (batch.size() < this.batchSize) {
+                if (queue.drainTo(batch, this.batchSize - batch.size()) > 0) {
+                    continue;
+                }
+                long wait = flushAt - System.currentTimeMillis();
+                rm = wait > 0 ? queue.pollFirst(wait, TimeUnit.MILLISECONDS) : null;
+                if (rm == null) {
+                    break;
+                }
+                batch.add(rm);
             }
+
+            inFlight.acquire();
+            send(batch, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // TODO better logging of this unlikely error
             System.err.println("Error adding metric to ES:"); //$NON-NLS-1$
             e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a batch of metrics to elasticsearch as a single asynchronous bulk request.
+     * The caller must hold an in-flight permit, which is released once the batch has
+     * been sent (or has failed for good).
+     * @param batch the metrics
+     * @param attempt the number of previous (failed) attempts
+     */
+    private void send(final List<RequestMetric> batch, final int attempt) {
+        Builder builder = new Bulk.Builder();
+        for (RequestMetric metric : batch) {
+            Index index = new Index.Builder(metric).refresh(false)
+                    .index(getIndexName())
+                    .type("request").build(); //$NON-NLS-1$
+            builder.addAction(index);
+        }
+
+        try {
+            getClient().executeAsync(builder.build(), new JestResultHandler<BulkResult>() {
+                @Override
+                public void completed(BulkResult result) {
+                    if (result.isSucceeded()) {
+                        batchDone(batch.size(), 0);
+                        return;
+                    }
+                    List<RequestMetric> failedMetrics = getFailedMetrics(batch, result);
+                    // Only the failed metrics are retried - retrying the others would duplicate them.
+                    sent.addAndGet(batch.size() - failedMetrics.size());
+                    retry(failedMetrics, attempt, result.getErrorMessage());
+                }
+                @Override
+                public void failed(Exception e) {
+                    retry(batch, attempt, e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            retry(batch, attempt, e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the metrics of a batch that failed to be indexed:  those whose bulk items have
+     * an error, or the whole batch if the bulk request failed as a whole.
+     */
+    private static List<RequestMetric> getFailedMetrics(List<RequestMetric> batch, BulkResult result) {
+        List<BulkResultItem> items = result.getItems();
+        if (items.size() != batch.size() || result.getFailedItems().isEmpty()) {
+            return batch;
+        }
+        List<RequestMetric> failedMetrics = new ArrayList<>();
+        // The items are in the same order as the bulk actions
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).error != null) {
+                failedMetrics.add(batch.get(i));
+            }
+        }
+        return failedMetrics;
+    }
+
+    /**
+     * Retries a failed batch after a backoff, unless it has already been retried
+     * the maximum number of times.
+     */
+    private void retry(final List<RequestMetric> batch, final int attempt, String errorMessage) {
+        if (attempt >= maxRetries) {
+            System.err.println("Failed to add metric(s) to ES: " + errorMessage); //$NON-NLS-1$
+            batchDone(0, batch.size());
             return;
         }
+        try {
+            retryExecutor.schedule(() -> send(batch, attempt + 1), retryBackoff << attempt, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            batchDone(0, batch.size());
+        }
+    }
+
+    /**
+     * Records the outcome of a batch and releases its in-flight permit.
+     */
+    private void batchDone(int sentCount, int failedCount) {
+        sent.addAndGet(sentCount);
+        failed.addAndGet(failedCount);
+        inFlight.release();
+    }
+
+    /**
+     * @return the number of metrics queued since startup
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of metrics currently waiting in the queue
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of metrics successfully sent to elasticsearch
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of metrics dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of metrics that could not be sent to elasticsearch
+     */
+    public long getFailedCount() {
+        return failed.get();
     }
 
     /**
@@ -22,21 +22,47 @@ import io.apiman.gateway.engine.components.rate.RateLimitResponse;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
 import io.searchbox.client.JestResult;
-import io.searchbox.core.Get;
-import io.searchbox.core.Index;
-import io.searchbox.params.Parameters;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Update;
 
+import java.io.IOException;
 import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
 
+import com.google.gson.JsonObject;
+
 /**
- * An elasticsearch implementation of the rate limiter component.
+ * An elasticsearch implementation of the rate limiter component.  Each request
+ * is a single (async) scripted upsert of the rate bucket, so the bucket is checked
+ * and incremented atomically by elasticsearch itself.
  *
  * @author eric.wittmann@redhat.com
  */
 public class ESRateLimiterComponent extends AbstractESComponent implements IRateLimiterComponent {
 
+    /**
+     * Resets the bucket if it was last used in a previous period, then increments it
+     * unless it is already over the limit (in which case it is left alone).
+     */
+    @SuppressWarnings("nls")
+    private static final String ACCEPT_SCRIPT =
+            "if (ctx._source.boundary != params.boundary) {" +
+            "  ctx._source.count = 0L;" +
+            "  ctx._source.boundary = params.boundary;" +
+            "}" +
+            "if (ctx._source.count > params.limit) {" +
+            "  ctx.op = 'none';" +
+            "} else {" +
+            "  ctx._source.count += params.increment;" +
+            "  ctx._source.last = params.now;" +
+            "}";
+
+    // Conflicts are first retried by elasticsearch itself, then by us.
+    private static final int ES_CONFLICT_RETRIES = 5;
+    private static final int MAX_CONFLICT_RETRIES = 10;
+    private static final int HTTP_CONFLICT = 409;
+
     /**
      * Constructor.
      * @param config the configuration
@@ -51,84 +77,105 @@ public class ESRateLimiterComponent extends AbstractESComponent implements IRate
     @Override
     public void accept(final String bucketId, final RateBucketPeriod period, final long limit,
             final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
-        final String id = id(bucketId);
-
-        try {
-            Get get = new Get.Builder(getIndexName(), id).type("rateBucket").build(); //$NON-NLS-1$
-            JestResult result = getClient().execute(get);
-            RateLimiterBucket bucket;
-            long version;
-            if (result.isSucceeded()) {
-                // use the existing bucket
-                version = result.getJsonObject().get("_version").getAsLong(); //$NON-NLS-1$
-                bucket = result.getSourceAsObject(RateLimiterBucket.class);
-            } else {
-                // make a new bucket
-                version = 0;
-                bucket = new RateLimiterBucket();
-            }
-            bucket.resetIfNecessary(period);
-
-            final RateLimitResponse rlr = new RateLimitResponse();
-            if (bucket.getCount() > limit) {
-                rlr.setAccepted(false);
-            } else {
-                rlr.setAccepted(bucket.getCount() < limit);
-                bucket.setCount(bucket.getCount() + increment);
-                bucket.setLast(System.currentTimeMillis());
-            }
-            int reset = (int) (bucket.getResetMillis(period) / 1000L);
-            rlr.setReset(reset);
-            rlr.setRemaining(limit - bucket.getCount());
-            updateBucketAndReturn(id, bucket, rlr, version, bucketId, period, limit, increment, handler);
-        } catch (Throwable e) {
-            handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
-        }
+        accept(id(bucketId), period, limit, increment, handler, 0);
     }
 
     /**
-     * Update the bucket in ES and then return the rate limit response to the
-     * original handler.  If the update fails because we have a stale version,
-     * then try the whole thing again (because we conflicted with another
-     * request).
+     * Checks and increments the bucket with a scripted upsert.  If the update fails
+     * because another request kept updating the bucket at the same time, then
+     * try again.
      * @param id
-     * @param bucket
-     * @param rlr
-     * @param version
-     * @param limit
      * @param period
-     * @param bucketId
+     * @param limit
      * @param increment
      * @param handler
+     * @param attempt
      */
-    protected void updateBucketAndReturn(final String id, final RateLimiterBucket bucket,
-            final RateLimitResponse rlr, final long version, final String bucketId,
-            final RateBucketPeriod period, final long limit, final long increment,
-            final IAsyncResultHandler<RateLimitResponse> handler) {
-
-    	Index.Builder builder = new Index.Builder(bucket).refresh(false).index(getIndexName());
-    	if (version>0) {
-    		builder.setParameter(Parameters.VERSION, String.valueOf(version));
-        }
-    	Index index = builder.setParameter(Parameters.OP_TYPE, "index") //$NON-NLS-1$
-    			             .type("rateBucket").id(id).build(); //$NON-NLS-1$          
+    protected void accept(final String id, final RateBucketPeriod period, final long limit,
+            final long increment, final IAsyncResultHandler<RateLimitResponse> handler, final int attempt) {
+        final long now = System.currentTimeMillis();
+        final long boundary = RateLimiterBucket.getPeriodBoundary(now, period);
         try {
-            getClient().execute(index);
-            handler.handle(AsyncResultImpl.create(rlr));
+            Update update = new Update.Builder(updatePayload(now, boundary, limit, increment))
+                    .index(getIndexName())
+                    .type("rateBucket").id(id) //$NON-NLS-1$
+                    .setParameter("retry_on_conflict", ES_CONFLICT_RETRIES) //$NON-NLS-1$
+                    .setParameter("_source", true) //$NON-NLS-1$
+                    .build();
+            getClient().executeAsync(update, new JestResultHandler<JestResult>() {
+                @Override
+                public void completed(JestResult result) {
+                    if (result.isSucceeded()) {
+                        handler.handle(AsyncResultImpl.create(response(result, now, boundary, limit, increment)));
+                    } else if (result.getResponseCode() == HTTP_CONFLICT && attempt < MAX_CONFLICT_RETRIES) {
+                        accept(id, period, limit, increment, handler, attempt + 1);
+                    } else {
+                        failed(new IOException(result.getErrorMessage()));
+                    }
+                }
+                @Override
+                public void failed(Exception e) {
+                    handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
+                }
+            });
         } catch (Throwable e) {
-            // FIXME need to fix this now that we've switched to jest!
-//            if (ESUtils.rootCause(e) instanceof VersionConflictEngineException) {
-//                // If we got a version conflict, then it means some other request
-//                // managed to update the ES document since we retrieved it.  Therefore
-//                // everything we've done is out of date, so we should do it all
-//                // over again.
-//                accept(bucketId, period, limit, increment, handler);
-//            } else {
-                handler.handle(AsyncResultImpl.<RateLimitResponse>create(e));
-//            }
+            handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
         }
     }
 
+    /**
+     * Creates the scripted upsert request body.
+     * @param now
+     * @param boundary
+     * @param limit
+     * @param increment
+     */
+    private static String updatePayload(long now, long boundary, long limit, long increment) {
+        JsonObject params = new JsonObject();
+        params.addProperty("now", now); //$NON-NLS-1$
+        params.addProperty("boundary", boundary); //$NON-NLS-1$
+        params.addProperty("limit", limit); //$NON-NLS-1$
+        params.addProperty("increment", increment); //$NON-NLS-1$
+
+        JsonObject script = new JsonObject();
+        script.addProperty("lang", "painless"); //$NON-NLS-1$ //$NON-NLS-2$
+        script.addProperty("inline", ACCEPT_SCRIPT); //$NON-NLS-1$
+        script.add("params", params); //$NON-NLS-1$
+
+        JsonObject upsert = new JsonObject();
+        upsert.addProperty("count", 0); //$NON-NLS-1$
+        upsert.addProperty("last", now); //$NON-NLS-1$
+        upsert.addProperty("boundary", boundary); //$NON-NLS-1$
+
+        JsonObject payload = new JsonObject();
+        payload.addProperty("scripted_upsert", true); //$NON-NLS-1$
+        payload.add("script", script); //$NON-NLS-1$
+        payload.add("upsert", upsert); //$NON-NLS-1$
+        return payload.toString();
+    }
+
+    /**
+     * Creates the rate limit response from the result of the update.
+     * @param result
+     * @param now
+     * @param boundary
+     * @param limit
+     * @param increment
+     */
+    private static RateLimitResponse response(JestResult result, long now, long boundary, long limit,
+            long increment) {
+        JsonObject json = result.getJsonObject();
+        long count = json.getAsJsonObject("get").getAsJsonObject("_source").get("count").getAsLong(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        // A no-op means the bucket was already over the limit (and so wasn't incremented).
+        boolean incremented = !"noop".equals(json.get("result").getAsString()); //$NON-NLS-1$ //$NON-NLS-2$
+
+        RateLimitResponse rlr = new RateLimitResponse();
+        rlr.setAccepted(incremented && count - increment < limit);
+        rlr.setRemaining(limit - count);
+        rlr.setReset((int) ((boundary - now) / 1000L));
+        return rlr;
+    }
+
     /**
      * Base64 encode the bucket ID to make an ES-compatible ID.
      * @param bucketId
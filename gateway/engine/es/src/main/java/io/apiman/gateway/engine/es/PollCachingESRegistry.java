@@ -15,26 +15,43 @@
  */
 package io.apiman.gateway.engine.es;
 
-import java.io.IOException;
-import java.util.Map;
-
+import io.apiman.common.es.util.ESUtils;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
-import io.apiman.gateway.engine.beans.Client;
 import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
 import io.apiman.gateway.engine.es.beans.DataVersionBean;
+import io.apiman.gateway.engine.es.beans.RegistryChangeBean;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.Get;
 import io.searchbox.core.Index;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import io.searchbox.core.SearchResult.Hit;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.params.Parameters;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.google.gson.Gson;
 
 /**
  * Extends the {@link ESRegistry} to provide multi-node caching.  This caching solution
- * will work in a cluster, although it is a rather naive implementation.  The approach
- * taken is that whenever the ES index is modified, a "last modified" record is set in
- * elasticsearch.  The registry utilizes a thread to periodically poll the ES store to
- * check if the data has been changed.  If the data *has* been changed, then the cache
- * is invalidated.
+ * will work in a cluster.  The approach taken is that whenever an API or client is
+ * modified, a "change" record (with a cluster-wide sequence number) is stored for it
+ * in elasticsearch.  The registry utilizes a thread to periodically poll the ES store
+ * for the changes made since it last looked, and refreshes only the APIs and clients
+ * that changed in its cache.  The cache is pre-loaded with all of the APIs and clients
+ * (using a scroll) when polling starts.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -42,12 +59,31 @@ public class PollCachingESRegistry extends CachingESRegistry {
 
     private static final int DEFAULT_POLLING_INTERVAL = 10;
     private static final int DEFAULT_STARTUP_DELAY = 30;
+    private static final int DEFAULT_CHANGE_TIMEOUT = 60;
+
+    // Changes are numbered before they are stored, so a change can show up after one
+    // with a higher sequence number - so always look back a little way.
+    private static final long CHANGE_LOOKBACK = 50;
+    private static final int MAX_RECORD_ATTEMPTS = 3;
+    private static final int MAX_CHANGES = 1000;
+    private static final int SCROLL_PAGE_SIZE = 500;
+    private static final String SCROLL_TIMEOUT = "1m"; //$NON-NLS-1$
 
     private int pollIntervalMillis;
     private int startupDelayMillis;
+    // How long a change can take to show up in the ES store once it has been numbered.
+    private int changeTimeoutMillis;
 
     private boolean polling = false;
-    private String dataVersion = null;
+    // The sequence number the cache is in sync with, or -1 if it needs to be (re)loaded.
+    private long cacheSeq = -1;
+    // Change id -> sequence number of the recently applied changes.
+    private Map<String, Long> appliedChanges = new HashMap<>();
+    // The sequence numbers the cache was in sync with over the last change timeout: {time, seq}
+    private Deque<long[]> syncPoints = new ArrayDeque<>();
+    // The data version that was ahead of all of the changes (or 0), and when it was seen.
+    private long missingSeq = 0;
+    private long missingSince;
 
     /**
      * Constructor.
@@ -58,6 +94,7 @@ public class PollCachingESRegistry extends CachingESRegistry {
         
         String intervalVal = config.get("cache-polling-interval"); //$NON-NLS-1$
         String startupVal = config.get("cache-polling-startup-delay"); //$NON-NLS-1$
+        String changeTimeoutVal = config.get("cache-change-timeout"); //$NON-NLS-1$
 
         if (intervalVal != null) {
             pollIntervalMillis = new Integer(intervalVal) * 1000;
@@ -71,6 +108,12 @@ public class PollCachingESRegistry extends CachingESRegistry {
             startupDelayMillis = DEFAULT_STARTUP_DELAY * 1000;
         }
 
+        if (changeTimeoutVal != null) {
+            changeTimeoutMillis = new Integer(changeTimeoutVal) * 1000;
+        } else {
+            changeTimeoutMillis = DEFAULT_CHANGE_TIMEOUT * 1000;
+        }
+
         startCacheInvalidator();
     }
 
@@ -83,7 +126,8 @@ public class PollCachingESRegistry extends CachingESRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    uncacheApi(api.getOrganizationId(), api.getApiId(), api.getVersion());
+                    recordChange(apiChange(api));
                 }
                 handler.handle(result);
             }
@@ -99,7 +143,8 @@ public class PollCachingESRegistry extends CachingESRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    uncacheApi(api.getOrganizationId(), api.getApiId(), api.getVersion());
+                    recordChange(apiChange(api));
                 }
                 handler.handle(result);
             }
@@ -118,7 +163,8 @@ public class PollCachingESRegistry extends CachingESRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    uncacheClient(client.getOrganizationId(), client.getClientId(), client.getVersion());
+                    recordChange(clientChange(client));
                 }
                 handler.handle(result);
             }
@@ -134,7 +180,8 @@ public class PollCachingESRegistry extends CachingESRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    uncacheClient(client.getOrganizationId(), client.getClientId(), client.getVersion());
+                    recordChange(clientChange(client));
                 }
                 handler.handle(result);
             }
@@ -142,11 +189,22 @@ public class PollCachingESRegistry extends CachingESRegistry {
     }
 
     /**
-     * Stores a "dataversion" record in the ES store.  There is only a single one of these.  The
-     * return value of the add will include the version number of the entity.  This version
-     * number is what we use to determine whether our cache is stale.
+     * Stores a change record for an API or client in the ES store.  The sequence number
+     * of the change is the version number of the (single) "dataversion" record, which is
+     * updated first.  If the change can't be stored it is tried again (with a new sequence
+     * number) a couple of times; the other nodes reload their caches if it never is.
+     * @param change the change
+     */
+    protected void recordChange(RegistryChangeBean change) {
+        recordChange(change, 1);
+    }
+
+    /**
+     * Stores a change record, see {@link #recordChange(RegistryChangeBean)}.
+     * @param change the change
+     * @param attempt the attempt number
      */
-    protected void updateDataVersion() {
+    private void recordChange(RegistryChangeBean change, int attempt) {
         DataVersionBean dv = new DataVersionBean();
         dv.setUpdatedOn(System.currentTimeMillis());
         Index index = new Index.Builder(dv).refresh(false)
@@ -155,15 +213,50 @@ public class PollCachingESRegistry extends CachingESRegistry {
         getClient().executeAsync(index, new JestResultHandler<JestResult>() {
             @Override
             public void completed(JestResult result) {
-                dataVersion = null;
+                if (!result.isSucceeded()) {
+                    failed(new IOException(result.getErrorMessage()));
+                    return;
+                }
+                change.setSeq(result.getJsonObject().get("_version").getAsLong()); //$NON-NLS-1$
+                Index changeIndex = new Index.Builder(change).refresh(true)
+                        .index(getIndexName())
+                        .type("change").id(getChangeId(change)).build(); //$NON-NLS-1$
+                getClient().executeAsync(changeIndex, new JestResultHandler<JestResult>() {
+                    @Override
+                    public void completed(JestResult result) {
+                        if (!result.isSucceeded()) {
+                            failed(new IOException(result.getErrorMessage()));
+                        }
+                    }
+                    @Override
+                    public void failed(Exception e) {
+                        retryChange(change, attempt, e);
+                    }
+                });
             }
             @Override
             public void failed(Exception e) {
-                dataVersion = null;
+                retryChange(change, attempt, e);
             }
         });
     }
 
+    /**
+     * Called when a change could not be stored:  tries again, unless it has been tried
+     * often enough already.
+     * @param change the change
+     * @param attempt the number of the attempt that failed
+     * @param error the error
+     */
+    private void retryChange(RegistryChangeBean change, int attempt, Exception error) {
+        if (attempt < MAX_RECORD_ATTEMPTS) {
+            recordChange(change, attempt + 1);
+        } else {
+            // TODO need to use the gateway logger to log this!
+            error.printStackTrace();
+        }
+    }
+
     /**
      * Starts up a thread that polls the ES store for updates.
      */
@@ -175,6 +268,8 @@ public class PollCachingESRegistry extends CachingESRegistry {
                 // Wait for 30s on startup before starting to poll.
                 try { Thread.sleep(startupDelayMillis); } catch (InterruptedException e1) { e1.printStackTrace(); }
 
+                // The first check loads the whole cache.
+                checkCacheVersion();
                 while (polling) {
                     try { Thread.sleep(pollIntervalMillis); } catch (Exception e) { e.printStackTrace(); }
                     checkCacheVersion();
@@ -193,30 +288,255 @@ public class PollCachingESRegistry extends CachingESRegistry {
     }
 
     /**
-     * Checks the ES store to see if the 'dataVersion' entry has been updated with a newer
-     * version #.  If it has, then we need to invalidate our cache.
+     * Checks the ES store for APIs and clients that have changed since we last looked,
+     * and refreshes them in the cache.  (Re)loads the whole cache if it is not in sync
+     * with the store at all.
+     *
+     * Looks back at (at least) all of the changes numbered during the last change timeout,
+     * so that a change which was slow to show up is still applied.  A change that doesn't
+     * show up within the timeout was lost, so the cache is then reloaded.
      */
     protected void checkCacheVersion() {
-        // Be very aggressive in invalidating the cache.
-        boolean invalidate = true;
+        if (cacheSeq < 0) {
+            loadCache();
+            return;
+        }
         try {
-            Get get = new Get.Builder(getDefaultIndexName(), "instance").type("dataVersion").build(); //$NON-NLS-1$ //$NON-NLS-2$
-            JestResult result = getClient().execute(get);
-            if (result.isSucceeded()) {
-                String latestDV = result.getJsonObject().get("_version").getAsString(); //$NON-NLS-1$
-                if (latestDV != null && dataVersion != null && latestDV.equals(dataVersion)) {
-                    invalidate = false;
-                } else {
-                    dataVersion = latestDV;
+            long now = System.currentTimeMillis();
+            // Get the data version first:  the changes up to it are all numbered by now.
+            long dataVersion = getDataVersion();
+            // Keep the last sync point from before the change timeout, and the ones since.
+            while (syncPoints.size() > 1) {
+                Iterator<long[]> points = syncPoints.iterator();
+                points.next();
+                if (now - points.next()[0] < changeTimeoutMillis) {
+                    break;
                 }
+                syncPoints.removeFirst();
+            }
+            List<RegistryChangeBean> changes = getChanges(getLookbackSeq());
+            if (changes == null) {
+                // Too much has changed - simpler to start over.
+                loadCache();
+                return;
             }
+            long latestSeq = cacheSeq;
+            for (RegistryChangeBean change : changes) {
+                String changeId = getChangeId(change);
+                Long appliedSeq = appliedChanges.get(changeId);
+                if (appliedSeq == null || appliedSeq < change.getSeq()) {
+                    applyChange(change);
+                    appliedChanges.put(changeId, change.getSeq());
+                }
+                latestSeq = Math.max(latestSeq, change.getSeq());
+            }
+            if (missingSeq > latestSeq && now - missingSince > changeTimeoutMillis) {
+                // The change hasn't shown up in time, so it never will.
+                loadCache();
+                return;
+            }
+            if (missingSeq <= latestSeq) {
+                // The latest change may not have shown up yet.
+                missingSeq = dataVersion > latestSeq ? dataVersion : 0;
+                missingSince = now;
+            }
+            cacheSeq = latestSeq;
+            // Any change numbered from now on comes after the data version.
+            syncPoints.addLast(new long[] { now, Math.min(cacheSeq, dataVersion) });
+            long oldestSeq = getLookbackSeq();
+            appliedChanges.values().removeIf(seq -> seq <= oldestSeq);
         } catch (IOException e) {
             // TODO need to use the gateway logger to log this!
             e.printStackTrace();
+            // Be very aggressive in invalidating the cache.
+            invalidateCache();
+            cacheSeq = -1;
         }
-        if (invalidate) {
+    }
+
+    /**
+     * Clears the cache and then loads all of the APIs and clients into it.
+     */
+    protected void loadCache() {
+        try {
+            long now = System.currentTimeMillis();
+            // Get the sequence number first:  any change made while loading is applied again later.
+            long seq = getDataVersion();
+            invalidateCache();
+            scroll("api", Api.class, this::cacheApi); //$NON-NLS-1$
+            scroll("client", Client.class, this::cacheClient); //$NON-NLS-1$
+            appliedChanges.clear();
+            syncPoints.clear();
+            syncPoints.addLast(new long[] { now, seq });
+            missingSeq = 0;
+            cacheSeq = seq;
+        } catch (IOException e) {
+            // TODO need to use the gateway logger to log this!
+            e.printStackTrace();
             invalidateCache();
+            cacheSeq = -1;
+        }
+    }
+
+    /**
+     * Gets the sequence number to look for changes after:  the one the cache was in sync
+     * with a change timeout ago, and at least {@link #CHANGE_LOOKBACK} back.
+     */
+    private long getLookbackSeq() {
+        long seq = cacheSeq - CHANGE_LOOKBACK;
+        if (!syncPoints.isEmpty()) {
+            seq = Math.min(seq, syncPoints.peekFirst()[1]);
+        }
+        return seq;
+    }
+
+    /**
+     * Refreshes the API or client that changed in the cache.
+     * @param change the change
+     * @throws IOException
+     */
+    protected void applyChange(RegistryChangeBean change) throws IOException {
+        if (RegistryChangeBean.TYPE_API.equals(change.getEntityType())) {
+            uncacheApi(change.getOrgId(), change.getEntityId(), change.getEntityVersion());
+            // Fetches (and caches) the API, unless it has been retired
+            getApi(change.getOrgId(), change.getEntityId(), change.getEntityVersion());
+        } else if (RegistryChangeBean.TYPE_CLIENT.equals(change.getEntityType())) {
+            uncacheClient(change.getOrgId(), change.getEntityId(), change.getEntityVersion());
+            if (change.getApiKey() != null) {
+                // Fetches (and caches) the client, unless it has been unregistered
+                getClient(change.getApiKey());
+            }
+        }
+    }
+
+    /**
+     * Gets the version number of the 'dataVersion' entry, i.e. the sequence number of the
+     * latest change.
+     * @throws IOException
+     */
+    protected long getDataVersion() throws IOException {
+        Get get = new Get.Builder(getDefaultIndexName(), "instance").type("dataVersion").build(); //$NON-NLS-1$ //$NON-NLS-2$
+        JestResult result = getClient().execute(get);
+        if (result.isSucceeded()) {
+            return result.getJsonObject().get("_version").getAsLong(); //$NON-NLS-1$
+        } else if (result.getResponseCode() == 404) {
+            // Nothing has been published yet.
+            return 0;
+        } else {
+            throw new IOException(result.getErrorMessage());
+        }
+    }
+
+    /**
+     * Gets the changes with a sequence number greater than the one given, in order.
+     * @param seq the sequence number
+     * @return the changes, or null if there are too many of them
+     * @throws IOException
+     */
+    @SuppressWarnings("nls")
+    protected List<RegistryChangeBean> getChanges(long seq) throws IOException {
+        String query = "{" +
+                "  \"query\": {" +
+                "    \"range\": {" +
+                "      \"seq\": { \"gt\": " + seq + " }" +
+                "    }" +
+                "  }," +
+                "  \"sort\": [" +
+                "    { \"seq\": { \"order\": \"asc\", \"unmapped_type\": \"long\" } }" +
+                "  ]" +
+                "}";
+        Search search = new Search.Builder(query)
+                .addIndex(getIndexName())
+                .addType("change")
+                .setParameter(Parameters.SIZE, MAX_CHANGES)
+                .build();
+        SearchResult response = getClient().execute(search);
+        if (!response.isSucceeded()) {
+            throw new IOException(response.getErrorMessage());
+        }
+        if (response.getTotal() > MAX_CHANGES) {
+            return null;
+        }
+        List<RegistryChangeBean> changes = new ArrayList<>();
+        for (Hit<RegistryChangeBean, Void> hit : response.getHits(RegistryChangeBean.class)) {
+            changes.add(hit.source);
         }
+        return changes;
+    }
+
+    /**
+     * Scrolls through all of the entities of the given type in the ES store.
+     * @param type the entity type
+     * @param beanClass the entity bean class
+     * @param consumer called with each entity
+     * @throws IOException
+     */
+    @SuppressWarnings("nls")
+    private <T> void scroll(String type, Class<T> beanClass, Consumer<T> consumer) throws IOException {
+        Search search = new Search.Builder("{ \"query\": { \"match_all\": {} } }")
+                .addIndex(getIndexName())
+                .addType(type)
+                .setParameter(Parameters.SIZE, SCROLL_PAGE_SIZE)
+                .setParameter(Parameters.SCROLL, SCROLL_TIMEOUT)
+                .build();
+        SearchResult response = getClient().execute(search);
+        while (true) {
+            if (!response.isSucceeded()) {
+                throw new IOException(response.getErrorMessage());
+            }
+            List<Hit<T, Void>> hits = response.getHits(beanClass);
+            if (hits.isEmpty()) {
+                break;
+            }
+            for (Hit<T, Void> hit : hits) {
+                consumer.accept(hit.source);
+            }
+            String scrollId = response.getJsonObject().get("_scroll_id").getAsString();
+            SearchScroll scroll = new SearchScroll(new SearchScroll.Builder(scrollId, SCROLL_TIMEOUT)) {
+                @Override
+                public JestResult createNewElasticSearchResult(String responseBody, int statusCode,
+                        String reasonPhrase, Gson gson) {
+                    return createNewElasticSearchResult(new SearchResult(gson), responseBody, statusCode, reasonPhrase, gson);
+                }
+            };
+            response = (SearchResult) getClient().execute(scroll);
+        }
+    }
+
+    /**
+     * Creates the change record for an API.
+     * @param api
+     */
+    private static RegistryChangeBean apiChange(Api api) {
+        RegistryChangeBean change = new RegistryChangeBean();
+        change.setEntityType(RegistryChangeBean.TYPE_API);
+        change.setOrgId(api.getOrganizationId());
+        change.setEntityId(api.getApiId());
+        change.setEntityVersion(api.getVersion());
+        return change;
+    }
+
+    /**
+     * Creates the change record for a client.
+     * @param client
+     */
+    private static RegistryChangeBean clientChange(Client client) {
+        RegistryChangeBean change = new RegistryChangeBean();
+        change.setEntityType(RegistryChangeBean.TYPE_CLIENT);
+        change.setOrgId(client.getOrganizationId());
+        change.setEntityId(client.getClientId());
+        change.setEntityVersion(client.getVersion());
+        change.setApiKey(client.getApiKey());
+        return change;
+    }
+
+    /**
+     * Generates the document ID of the change record for an API or client.
+     * @param change
+     */
+    private static String getChangeId(RegistryChangeBean change) {
+        return ESUtils.escape(change.getEntityType() + ":" + change.getOrgId() + ":" //$NON-NLS-1$ //$NON-NLS-2$
+                + change.getEntityId() + ":" + change.getEntityVersion()); //$NON-NLS-1$
     }
 
 }
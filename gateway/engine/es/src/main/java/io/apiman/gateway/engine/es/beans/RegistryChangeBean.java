@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es.beans;
+
+/**
+ * A record of a change made to a single API or client in the ES registry store.
+ * There is (at most) one of these per API/client:  the sequence number is that of
+ * the most recent change, and is used by the caching registries to fetch only the
+ * APIs and clients that changed since they last looked.
+ */
+public class RegistryChangeBean {
+
+    public static final String TYPE_API = "api"; //$NON-NLS-1$
+    public static final String TYPE_CLIENT = "client"; //$NON-NLS-1$
+
+    private long seq;
+    private String entityType;
+    private String orgId;
+    private String entityId;
+    private String entityVersion;
+    private String apiKey;
+
+    /**
+     * Constructor.
+     */
+    public RegistryChangeBean() {
+    }
+
+    /**
+     * @return the sequence number of the change
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @param seq the seq to set
+     */
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * @return the type of entity that changed (api or client)
+     */
+    public String getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @param entityType the entityType to set
+     */
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    /**
+     * @return the organization id of the entity
+     */
+    public String getOrgId() {
+        return orgId;
+    }
+
+    /**
+     * @param orgId the orgId to set
+     */
+    public void setOrgId(String orgId) {
+        this.orgId = orgId;
+    }
+
+    /**
+     * @return the id of the entity
+     */
+    public String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @param entityId the entityId to set
+     */
+    public void setEntityId(String entityId) {
+        this.entityId = entityId;
+    }
+
+    /**
+     * @return the version of the entity
+     */
+    public String getEntityVersion() {
+        return entityVersion;
+    }
+
+    /**
+     * @param entityVersion the entityVersion to set
+     */
+    public void setEntityVersion(String entityVersion) {
+        this.entityVersion = entityVersion;
+    }
+
+    /**
+     * @return the api key of the client (if known)
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * @param apiKey the apiKey to set
+     */
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.metrics.RequestMetric;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Tests the queueing, batching and retrying of the {@link ESMetrics}, against a stubbed
+ * elasticsearch client which leaves it up to the test to complete the bulk requests.
+ */
+@SuppressWarnings("nls")
+public class ESMetricsTest {
+
+    private static final String CREATED = "{ \"index\": { \"_index\": \"apiman_metrics\", \"_type\": \"request\", \"status\": 201 } }";
+    private static final String REJECTED = "{ \"index\": { \"_index\": \"apiman_metrics\", \"_type\": \"request\", \"status\": 429, "
+            + "\"error\": { \"type\": \"es_rejected_execution_exception\", \"reason\": \"Queue full\" } } }";
+    private static final String CREATED_ONE = "{ \"took\": 1, \"errors\": false, \"items\": [ " + CREATED + " ] }";
+
+    @Test
+    public void testDropNewest() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("queue.size", "3", "overflow.policy", "dropNewest", "batch.flushInterval", "10"));
+        record(metrics, 0, 5);
+        Assert.assertEquals(3, metrics.getQueueDepth());
+        Assert.assertEquals(3, metrics.getQueuedCount());
+        Assert.assertEquals(2, metrics.getDroppedCount());
+
+        metrics.processQueue();
+        Assert.assertEquals(Arrays.asList("/0", "/1", "/2"), metrics.next().urls);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("queue.size", "3", "overflow.policy", "dropOldest", "batch.flushInterval", "10"));
+        record(metrics, 0, 5);
+        Assert.assertEquals(3, metrics.getQueueDepth());
+        Assert.assertEquals(2, metrics.getDroppedCount());
+
+        metrics.processQueue();
+        Assert.assertEquals(Arrays.asList("/2", "/3", "/4"), metrics.next().urls);
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        // Keeps one in (almost) never once half full
+        TestMetrics metrics = new TestMetrics(config("queue.size", "10", "overflow.policy", "sample",
+                "overflow.sampleRate", String.valueOf(Integer.MAX_VALUE)));
+        record(metrics, 0, 12);
+        Assert.assertEquals(5, metrics.getQueueDepth());
+        Assert.assertEquals(7, metrics.getDroppedCount());
+
+        // Keeps them all until full
+        metrics = new TestMetrics(config("queue.size", "10", "overflow.policy", "sample", "overflow.sampleRate", "1"));
+        record(metrics, 0, 12);
+        Assert.assertEquals(10, metrics.getQueueDepth());
+        Assert.assertEquals(2, metrics.getDroppedCount());
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("batch.size", "3", "batch.flushInterval", "100"));
+        record(metrics, 0, 7);
+        metrics.processQueue();
+        metrics.processQueue();
+        Assert.assertEquals(Arrays.asList("/0", "/1", "/2"), metrics.next().urls);
+        Assert.assertEquals(Arrays.asList("/3", "/4", "/5"), metrics.next().urls);
+
+        // A partial batch is sent once the flush interval has passed
+        long start = System.currentTimeMillis();
+        metrics.processQueue();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 90);
+        Assert.assertEquals(Arrays.asList("/6"), metrics.next().urls);
+
+        // Nothing to send
+        metrics.processQueue();
+        Assert.assertNull(metrics.requests.poll());
+    }
+
+    @Test
+    public void testRetryFailedItems() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("retry.backoff", "10", "batch.flushInterval", "10"));
+        record(metrics, 0, 3);
+        metrics.processQueue();
+        metrics.next().respond("{ \"took\": 1, \"errors\": true, \"items\": [ " + CREATED + ", " + REJECTED + ", " + CREATED + " ] }");
+
+        // Only the rejected metric is sent again
+        BulkRequest retry = metrics.next();
+        Assert.assertEquals(Arrays.asList("/1"), retry.urls);
+        Assert.assertEquals(2, metrics.getSentCount());
+        retry.respond(CREATED_ONE);
+        Assert.assertEquals(3, metrics.getSentCount());
+        Assert.assertEquals(0, metrics.getFailedCount());
+    }
+
+    @Test
+    public void testRetryBackoff() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("retry.max", "2", "retry.backoff", "100", "batch.flushInterval", "10"));
+        record(metrics, 0, 2);
+        metrics.processQueue();
+        metrics.next().fail();
+
+        // Backs off for longer each time
+        long start = System.currentTimeMillis();
+        BulkRequest retry = metrics.next();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 90);
+        Assert.assertEquals(Arrays.asList("/0", "/1"), retry.urls);
+        retry.respond("{ \"took\": 1, \"errors\": true, \"items\": [ " + REJECTED + ", " + REJECTED + " ] }");
+        start = System.currentTimeMillis();
+        retry = metrics.next();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 190);
+
+        // Until it gives up
+        retry.fail();
+        Assert.assertNull(metrics.requests.poll(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, metrics.getSentCount());
+        Assert.assertEquals(2, metrics.getFailedCount());
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        TestMetrics metrics = new TestMetrics(config("maxInFlight", "2", "batch.size", "1", "retry.backoff", "10"));
+        record(metrics, 0, 4);
+        Thread consumer = new Thread(() -> {
+            for (int i = 0; i < 4; i++) {
+                metrics.processQueue();
+            }
+        });
+        consumer.start();
+        BulkRequest first = metrics.next();
+        BulkRequest second = metrics.next();
+        // Waits for one of them to be done before sending another
+        Assert.assertNull(metrics.requests.poll(200, TimeUnit.MILLISECONDS));
+
+        // Still in flight while being retried
+        first.fail();
+        BulkRequest retry = metrics.next();
+        Assert.assertEquals(Arrays.asList("/0"), retry.urls);
+        Assert.assertNull(metrics.requests.poll(200, TimeUnit.MILLISECONDS));
+
+        second.respond(CREATED_ONE);
+        BulkRequest third = metrics.next();
+        Assert.assertEquals(Arrays.asList("/2"), third.urls);
+        Assert.assertNull(metrics.requests.poll(200, TimeUnit.MILLISECONDS));
+        retry.respond(CREATED_ONE);
+        third.respond(CREATED_ONE);
+        metrics.next().respond(CREATED_ONE);
+
+        consumer.join(5000);
+        Assert.assertFalse(consumer.isAlive());
+        Assert.assertEquals(4, metrics.getSentCount());
+    }
+
+    private static void record(ESMetrics metrics, int from, int to) {
+        for (int i = from; i < to; i++) {
+            RequestMetric metric = new RequestMetric();
+            metric.setUrl("/" + i);
+            metrics.record(metric);
+        }
+    }
+
+    private static Map<String, String> config(String... keysAndValues) {
+        Map<String, String> config = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            config.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return config;
+    }
+
+    /**
+     * A bulk request sent by the metrics, waiting for the test to complete it.
+     */
+    private static class BulkRequest {
+
+        private final Gson gson;
+        private final Action<?> action;
+        private final JestResultHandler<Object> handler;
+        private final List<String> urls = new ArrayList<>();
+
+        BulkRequest(Gson gson, Action<?> action, JestResultHandler<Object> handler) {
+            this.gson = gson;
+            this.action = action;
+            this.handler = handler;
+            // Every other line is a source document
+            String[] lines = action.getData(gson).split("\n");
+            for (int i = 1; i < lines.length; i += 2) {
+                urls.add(gson.fromJson(lines[i], JsonObject.class).get("url").getAsString());
+            }
+        }
+
+        public void respond(String json) {
+            handler.completed(action.createNewElasticSearchResult(json, 200, "OK", gson));
+        }
+
+        public void fail() {
+            handler.failed(new IOException("Connection refused"));
+        }
+    }
+
+    /**
+     * The metrics, without a consumer thread (the test processes the queue) and with a
+     * client that queues the bulk requests.
+     */
+    private static class TestMetrics extends ESMetrics {
+
+        private final Gson gson = new Gson();
+        private final BlockingQueue<BulkRequest> requests = new LinkedBlockingQueue<>();
+
+        public TestMetrics(Map<String, String> config) {
+            super(config);
+        }
+
+        /**
+         * Waits for the next bulk request.
+         */
+        public BulkRequest next() throws InterruptedException {
+            BulkRequest request = requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("Expected a bulk request", request);
+            return request;
+        }
+
+        @Override
+        protected void startConsumerThread() {
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected JestClient createClient() {
+            return (JestClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { JestClient.class },
+                    (proxy, method, args) -> {
+                        if ("executeAsync".equals(method.getName())) {
+                            requests.add(new BulkRequest(gson, (Action<?>) args[0], (JestResultHandler<Object>) args[1]));
+                        }
+                        return null;
+                    });
+        }
+    }
+
+}
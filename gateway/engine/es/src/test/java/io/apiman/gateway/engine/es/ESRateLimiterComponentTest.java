@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.common.es.util.ApimanEmbeddedElastic;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pl.allegro.tech.embeddedelasticsearch.PopularProperties;
+
+/**
+ * Tests the elasticsearch rate limiter component.
+ */
+@SuppressWarnings("nls")
+public class ESRateLimiterComponentTest {
+
+    private static ApimanEmbeddedElastic node;
+    private static ESRateLimiterComponent rateLimiter;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        File esDownloadCache = new File(System.getenv("HOME") + "/.cache/apiman/elasticsearch");
+        esDownloadCache.getParentFile().mkdirs();
+
+        node = ApimanEmbeddedElastic.builder()
+            .withPort(19251)
+            .withElasticVersion(ApimanEmbeddedElastic.getEsBuildVersion())
+            .withDownloadDirectory(esDownloadCache)
+            .withSetting(PopularProperties.CLUSTER_NAME, "apiman")
+            .withCleanInstallationDirectoryOnStop(true)
+            .build()
+            .start();
+
+        Map<String, String> config = new HashMap<>();
+        config.put("client.type", "jest");
+        config.put("client.protocol", "http");
+        config.put("client.host", "localhost");
+        config.put("client.port", "19251");
+        config.put("client.initialize", "true");
+        rateLimiter = new ESRateLimiterComponent(config);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        DefaultESClientFactory.clearClientCache();
+        node.stop();
+    }
+
+    @Test
+    public void testAccept() throws Exception {
+        RateLimitResponse response = accept("testAccept", 2);
+        Assert.assertTrue(response.isAccepted());
+        Assert.assertEquals(1, response.getRemaining());
+        response = accept("testAccept", 2);
+        Assert.assertTrue(response.isAccepted());
+        Assert.assertEquals(0, response.getRemaining());
+        response = accept("testAccept", 2);
+        Assert.assertFalse(response.isAccepted());
+        response = accept("testAccept", 2);
+        Assert.assertFalse(response.isAccepted());
+    }
+
+    @Test
+    public void testNoLostUpdates() throws Exception {
+        int requests = 200;
+        List<RateLimitResponse> responses = acceptConcurrently("testNoLostUpdates", 1000, requests);
+        for (RateLimitResponse response : responses) {
+            Assert.assertTrue(response.isAccepted());
+        }
+        // Every one of the concurrent increments must have been counted
+        Assert.assertEquals(1000 - requests - 1, accept("testNoLostUpdates", 1000).getRemaining());
+    }
+
+    @Test
+    public void testLimitUnderConcurrency() throws Exception {
+        List<RateLimitResponse> responses = acceptConcurrently("testLimitUnderConcurrency", 50, 100);
+        long accepted = responses.stream().filter(RateLimitResponse::isAccepted).count();
+        Assert.assertEquals(50, accepted);
+    }
+
+    private static RateLimitResponse accept(String bucketId, long limit) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<IAsyncResult<RateLimitResponse>> ref = new AtomicReference<>();
+        rateLimiter.accept(bucketId, RateBucketPeriod.Hour, limit, 1, result -> {
+            ref.set(result);
+            latch.countDown();
+        });
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        if (ref.get().isError()) {
+            throw new Exception(ref.get().getError());
+        }
+        return ref.get().getResult();
+    }
+
+    private static List<RateLimitResponse> acceptConcurrently(String bucketId, long limit, int requests) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch latch = new CountDownLatch(requests);
+        List<RateLimitResponse> responses = new ArrayList<>();
+        AtomicInteger errors = new AtomicInteger();
+        try {
+            for (int i = 0; i < requests; i++) {
+                executor.execute(() -> rateLimiter.accept(bucketId, RateBucketPeriod.Hour, limit, 1, result -> {
+                    if (result.isSuccess()) {
+                        synchronized (responses) {
+                            responses.add(result.getResult());
+                        }
+                    } else {
+                        result.getError().printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                    latch.countDown();
+                }));
+            }
+            Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(0, errors.get());
+        return responses;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.es.beans.RegistryChangeBean;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+/**
+ * Tests the change log, look-back and reload logic of the {@link PollCachingESRegistry},
+ * against an in-memory change log.
+ */
+@SuppressWarnings("nls")
+public class PollCachingESRegistryTest {
+
+    private TestRegistry registry;
+
+    @Before
+    public void setup() {
+        Map<String, String> config = new HashMap<>();
+        config.put("cache-change-timeout", "1");
+        registry = new TestRegistry(config);
+        // Loads the cache
+        registry.checkCacheVersion();
+        Assert.assertEquals(1, registry.loads);
+    }
+
+    @Test
+    public void testChanges() {
+        registry.show(registry.number("api1"));
+        registry.show(registry.number("api2"));
+        registry.checkCacheVersion();
+        Assert.assertEquals(Arrays.asList("api1:1", "api2:2"), registry.applied);
+
+        // Nothing new
+        registry.checkCacheVersion();
+        Assert.assertEquals(Arrays.asList("api1:1", "api2:2"), registry.applied);
+
+        // A newer change replaces the older one of the same entity
+        registry.show(registry.number("api1"));
+        registry.checkCacheVersion();
+        Assert.assertEquals(Arrays.asList("api1:1", "api2:2", "api1:3"), registry.applied);
+        Assert.assertEquals(1, registry.loads);
+    }
+
+    @Test
+    public void testLateChange() {
+        RegistryChangeBean late = registry.number("late");
+        registry.show(registry.number("api1"));
+        registry.checkCacheVersion();
+        Assert.assertEquals(Arrays.asList("api1:2"), registry.applied);
+
+        // Lots of changes are made before the late change shows up
+        for (int i = 0; i < 100; i++) {
+            registry.show(registry.number("api" + i));
+            registry.checkCacheVersion();
+        }
+        registry.show(late);
+        registry.checkCacheVersion();
+        Assert.assertTrue(registry.applied.contains("late:1"));
+        Assert.assertEquals(1, registry.loads);
+    }
+
+    @Test
+    public void testLookbackExpires() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            registry.show(registry.number("api" + i));
+        }
+        registry.checkCacheVersion();
+        Assert.assertEquals(-50, last(registry.lookbacks));
+
+        Thread.sleep(1100);
+        registry.checkCacheVersion();
+        registry.checkCacheVersion();
+        // Only looks back a little way once the change timeout has passed
+        Assert.assertEquals(50, last(registry.lookbacks));
+        Assert.assertEquals(100, registry.applied.size());
+        Assert.assertEquals(1, registry.loads);
+    }
+
+    @Test
+    public void testLostChange() throws Exception {
+        registry.show(registry.number("api1"));
+        registry.number("lost");
+        registry.checkCacheVersion();
+        registry.checkCacheVersion();
+        Assert.assertEquals(1, registry.loads);
+
+        // The change doesn't show up in time
+        Thread.sleep(1100);
+        registry.checkCacheVersion();
+        Assert.assertEquals(2, registry.loads);
+
+        // The reloaded cache is in sync
+        Thread.sleep(1100);
+        registry.checkCacheVersion();
+        Assert.assertEquals(2, registry.loads);
+    }
+
+    @Test
+    public void testMissingChangeShowsUp() throws Exception {
+        RegistryChangeBean slow = registry.number("slow");
+        registry.checkCacheVersion();
+        Thread.sleep(600);
+        registry.show(slow);
+        registry.show(registry.number("api1"));
+        registry.number("slow2");
+        registry.checkCacheVersion();
+
+        // Another change is missing now, but not for long enough
+        Thread.sleep(600);
+        registry.checkCacheVersion();
+        Assert.assertEquals(Arrays.asList("slow:1", "api1:2"), registry.applied);
+        Assert.assertEquals(1, registry.loads);
+    }
+
+    @Test
+    public void testRecordChange() {
+        registry.failures = 1;
+        registry.recordChange(change("api1"));
+        // The first attempt was lost, the second one got the next sequence number
+        Assert.assertEquals(2, registry.dataVersion);
+        Assert.assertEquals(Collections.singletonList(2L), seqs(registry));
+
+        // Doesn't try forever
+        registry.failures = 5;
+        registry.recordChange(change("api2"));
+        Assert.assertEquals(5, registry.dataVersion);
+        Assert.assertEquals(Collections.singletonList(2L), seqs(registry));
+    }
+
+    private static List<Long> seqs(TestRegistry registry) {
+        return registry.store.values().stream().map(RegistryChangeBean::getSeq).collect(Collectors.toList());
+    }
+
+    private static long last(List<Long> values) {
+        return values.get(values.size() - 1);
+    }
+
+    private static RegistryChangeBean change(String apiId) {
+        RegistryChangeBean change = new RegistryChangeBean();
+        change.setEntityType(RegistryChangeBean.TYPE_API);
+        change.setOrgId("Org");
+        change.setEntityId(apiId);
+        change.setEntityVersion("1.0");
+        return change;
+    }
+
+    /**
+     * A registry with an in-memory change log (and an ES client that only knows how to
+     * store the data version and the changes, and return no APIs or clients).
+     */
+    private static class TestRegistry extends PollCachingESRegistry {
+
+        private final Gson gson = new Gson();
+        private final Map<String, RegistryChangeBean> store = new HashMap<>();
+        private final List<String> applied = new ArrayList<>();
+        private final List<Long> lookbacks = new ArrayList<>();
+        private long dataVersion;
+        private int loads;
+        private int failures;
+
+        public TestRegistry(Map<String, String> config) {
+            super(config);
+        }
+
+        /**
+         * Numbers a change, which doesn't show up until it is shown.
+         */
+        public RegistryChangeBean number(String apiId) {
+            RegistryChangeBean change = change(apiId);
+            change.setSeq(++dataVersion);
+            return change;
+        }
+
+        public void show(RegistryChangeBean change) {
+            store.put(change.getEntityId(), change);
+        }
+
+        @Override
+        protected void startCacheInvalidator() {
+        }
+
+        @Override
+        protected long getDataVersion() throws IOException {
+            return dataVersion;
+        }
+
+        @Override
+        protected List<RegistryChangeBean> getChanges(long seq) throws IOException {
+            lookbacks.add(seq);
+            return store.values().stream()
+                    .filter(change -> change.getSeq() > seq)
+                    .sorted((c1, c2) -> Long.compare(c1.getSeq(), c2.getSeq()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        protected void applyChange(RegistryChangeBean change) throws IOException {
+            applied.add(change.getEntityId() + ":" + change.getSeq());
+        }
+
+        @Override
+        protected void loadCache() {
+            loads++;
+            super.loadCache();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected JestClient createClient() {
+            return (JestClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { JestClient.class },
+                    (proxy, method, args) -> {
+                        if ("execute".equals(method.getName())) {
+                            return respond((Action<?>) args[0], "{ \"hits\": { \"total\": 0, \"hits\": [] }, \"_scroll_id\": \"1\" }");
+                        } else if ("executeAsync".equals(method.getName())) {
+                            executeAsync((Action<?>) args[0], (JestResultHandler<Object>) args[1]);
+                        }
+                        return null;
+                    });
+        }
+
+        private void executeAsync(Action<?> action, JestResultHandler<Object> handler) {
+            String data = action.getData(gson);
+            if (!data.contains("entityType")) {
+                // The data version
+                handler.completed(respond(action, "{ \"_version\": " + (++dataVersion) + " }"));
+            } else if (failures > 0) {
+                failures--;
+                handler.failed(new IOException("Can't store the change"));
+            } else {
+                show(gson.fromJson(data, RegistryChangeBean.class));
+                handler.completed(respond(action, "{ \"result\": \"created\" }"));
+            }
+        }
+
+        private Object respond(Action<?> action, String json) {
+            return action.createNewElasticSearchResult(json, 200, "OK", gson);
+        }
+    }
+
+}
@@ -95,6 +95,9 @@ public class HawkularMetrics implements IMetrics {
         try {
             QueueItem item = queue.take();
             client.addMultipleCounterDataPoints(item.tenantId, item.data);
+            if (!item.gauges.isEmpty()) {
+                client.addMultipleGaugeDataPoints(item.tenantId, item.gauges);
+            }
         } catch (InterruptedException e) {
             // TODO better logging of this unlikely error
             e.printStackTrace();
@@ -111,8 +114,10 @@ public class HawkularMetrics implements IMetrics {
         // 1) # of total requests (always)
         // 2) # of failures (only when a failure)
         // 3) # of errors (only when an error)
+        // and the request, API, gateway and policy chain durations (in nanoseconds) as gauges
         String tenantId = metric.getApiOrgId();
         List<MetricLongBean> data = new ArrayList<>();
+        List<MetricLongBean> gauges = new ArrayList<>();
 
         // ******************************
         // API metrics
@@ -149,6 +154,14 @@ public class HawkularMetrics implements IMetrics {
                 erroredRequests.setType(MetricType.counter);
                 data.add(erroredRequests);
             }
+
+            // Durations
+            String prefix = "apis." + metric.getApiId() + "." + metric.getApiVersion() + ".Duration."; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            addDuration(gauges, prefix + "RequestNanos", metric.getRequestDurationNanos(), metric, tags); //$NON-NLS-1$
+            addDuration(gauges, prefix + "ApiNanos", metric.getApiDurationNanos(), metric, tags); //$NON-NLS-1$
+            addDuration(gauges, prefix + "GatewayNanos", metric.getGatewayDurationNanos(), metric, tags); //$NON-NLS-1$
+            addDuration(gauges, prefix + "RequestPoliciesNanos", metric.getRequestPoliciesDurationNanos(), metric, tags); //$NON-NLS-1$
+            addDuration(gauges, prefix + "ResponsePoliciesNanos", metric.getResponsePoliciesDurationNanos(), metric, tags); //$NON-NLS-1$
         }
 
         // ******************************
@@ -189,13 +202,28 @@ public class HawkularMetrics implements IMetrics {
         }
 
         try {
-            queue.put(new QueueItem(tenantId, data));
+            queue.put(new QueueItem(tenantId, data, gauges));
         } catch (InterruptedException e) {
             // TODO better logging of this unlikely error
             e.printStackTrace();
         }
     }
 
+    /**
+     * Adds a duration gauge data point, unless the duration isn't known (-1).
+     */
+    private static void addDuration(List<MetricLongBean> gauges, String id, long nanos, RequestMetric metric,
+            Map<String, String> tags) {
+        if (nanos < 0) {
+            return;
+        }
+        MetricLongBean duration = new MetricLongBean();
+        duration.addDataPoint(metric.getRequestStart(), nanos).setTags(tags);
+        duration.setId(id);
+        duration.setType(MetricType.gauge);
+        gauges.add(duration);
+    }
+
     /**
      * @see io.apiman.gateway.engine.IMetrics#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
      */
@@ -207,13 +235,15 @@ public class HawkularMetrics implements IMetrics {
     private static class QueueItem {
         public String tenantId;
         public List<MetricLongBean> data;
+        public List<MetricLongBean> gauges;
 
         /**
          * Constructor.
          */
-        public QueueItem(String tenantId, List<MetricLongBean> data) {
+        public QueueItem(String tenantId, List<MetricLongBean> data, List<MetricLongBean> gauges) {
             this.tenantId = tenantId;
             this.data = data;
+            this.gauges = gauges;
         }
     }
 }
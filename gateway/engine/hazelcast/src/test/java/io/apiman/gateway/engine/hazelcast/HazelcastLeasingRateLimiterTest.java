@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.hazelcast;
+
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.impl.LeasingRateLimiterComponent;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+
+/**
+ * Tests the {@link LeasingRateLimiterComponent} in front of an embedded
+ * Hazelcast backed rate limiter.
+ */
+@SuppressWarnings("nls")
+public class HazelcastLeasingRateLimiterTest {
+
+    private static HazelcastRateLimiterComponent hazelcast;
+
+    @BeforeClass
+    public static void startHazelcast() {
+        Config config = new Config();
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+        hazelcast = new HazelcastRateLimiterComponent(config);
+    }
+
+    @AfterClass
+    public static void stopHazelcast() {
+        Hazelcast.shutdownAll();
+    }
+
+    @Test
+    public void testLeasingNeverOverAdmits() {
+        AtomicInteger remoteCalls = new AtomicInteger();
+        IRateLimiterComponent counting = countingDelegate(remoteCalls);
+        // Two gateway nodes sharing the same Hazelcast backed bucket
+        LeasingRateLimiterComponent node1 = new LeasingRateLimiterComponent(counting);
+        LeasingRateLimiterComponent node2 = new LeasingRateLimiterComponent(counting);
+
+        int accepted = 0;
+        for (int i = 0; i < 15000; i++) {
+            LeasingRateLimiterComponent node = i % 2 == 0 ? node1 : node2;
+            if (accept(node, "over-admit", 10000).isAccepted()) {
+                accepted++;
+            }
+        }
+        Assert.assertTrue("Accepted " + accepted, accepted <= 10000);
+        // Leased but unused requests are bounded by the lease size (a tenth of the limit per node)
+        Assert.assertTrue("Accepted " + accepted, accepted >= 10000 - 2 * 1000);
+        Assert.assertTrue("Remote calls " + remoteCalls.get(), remoteCalls.get() < 500);
+    }
+
+    @Test
+    public void testSmallLimitsAreExact() {
+        LeasingRateLimiterComponent node1 = new LeasingRateLimiterComponent(hazelcast);
+        LeasingRateLimiterComponent node2 = new LeasingRateLimiterComponent(hazelcast);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(accept(i % 2 == 0 ? node1 : node2, "small", 5).isAccepted());
+        }
+        Assert.assertFalse(accept(node1, "small", 5).isAccepted());
+        Assert.assertFalse(accept(node2, "small", 5).isAccepted());
+    }
+
+    @Test
+    public void testNonUnitIncrementsPassThrough() {
+        AtomicInteger remoteCalls = new AtomicInteger();
+        LeasingRateLimiterComponent node = new LeasingRateLimiterComponent(countingDelegate(remoteCalls));
+        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+        node.accept("bytes", RateBucketPeriod.Hour, 1000, 600, result -> response.set(result.getResult()));
+        Assert.assertTrue(response.get().isAccepted());
+        Assert.assertEquals(400, response.get().getRemaining());
+        node.accept("bytes", RateBucketPeriod.Hour, 1000, 0, result -> response.set(result.getResult()));
+        Assert.assertEquals(400, response.get().getRemaining());
+        Assert.assertEquals(2, remoteCalls.get());
+    }
+
+    private static IRateLimiterComponent countingDelegate(AtomicInteger remoteCalls) {
+        return new IRateLimiterComponent() {
+            @Override
+            public void accept(String bucketId, RateBucketPeriod period, long limit, long increment,
+                    IAsyncResultHandler<RateLimitResponse> handler) {
+                remoteCalls.incrementAndGet();
+                hazelcast.accept(bucketId, period, limit, increment, handler);
+            }
+        };
+    }
+
+    private static RateLimitResponse accept(IRateLimiterComponent limiter, String bucketId, long limit) {
+        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+        limiter.accept(bucketId, RateBucketPeriod.Hour, limit, 1, result -> response.set(result.getResult()));
+        return response.get();
+    }
+
+}
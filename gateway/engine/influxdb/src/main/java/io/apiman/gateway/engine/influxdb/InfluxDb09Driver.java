@@ -103,6 +103,36 @@ public class InfluxDb09Driver {
         request.end();
     }
 
+    /**
+     * Write a batch of points to "/write". Must be valid Influx line format, one point per line.
+     *
+     * @param lineDocument document to write, UTF-8 encoded (and optionally gzipped)
+     * @param gzipped whether the document is gzipped
+     * @param handler handler called once the write has succeeded or failed
+     */
+    public void write(byte[] lineDocument, boolean gzipped, final IAsyncResultHandler<Void> handler) {
+        IHttpClientRequest request = httpClient.request(writeUrl.toString(), HttpMethod.POST,
+                result -> {
+                    if (result.isError()) {
+                        handler.handle(AsyncResultImpl.create(new InfluxException(result.getError())));
+                        return;
+                    }
+                    IHttpClientResponse response = result.getResult();
+                    if (response.getResponseCode() < 200 || response.getResponseCode() > 299) {
+                        handler.handle(AsyncResultImpl.create(new InfluxException(response)));
+                    } else {
+                        handler.handle(AsyncResultImpl.create((Void) null));
+                    }
+                    response.close();
+                });
+        request.addHeader("Content-Type", "text/plain"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (gzipped) {
+            request.addHeader("Content-Encoding", "gzip"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        request.write(lineDocument);
+        request.end();
+    }
+
     /**
      * List all databases
      *
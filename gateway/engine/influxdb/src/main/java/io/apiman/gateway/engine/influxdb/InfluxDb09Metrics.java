@@ -18,10 +18,10 @@ package io.apiman.gateway.engine.influxdb;
 import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.IRequiresInitialization;
+import io.apiman.gateway.engine.IRequiresShutdown;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IHttpClientComponent;
-import io.apiman.gateway.engine.components.http.IHttpClientResponse;
 import io.apiman.gateway.engine.i18n.Messages;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
@@ -36,10 +36,15 @@ import java.util.concurrent.CountDownLatch;
 /**
  * InfluxDB 0.9.x metrics implementation
  *
+ * Points are buffered and written in batches (of "batchSize" points, or every
+ * "flushInterval" millis), gzipped unless "gzip" is false.  At most
+ * "maxBufferedPoints" are buffered - further points are dropped.  Whatever is still
+ * buffered is written when the engine is shut down.
+ *
  * @author Marc Savy <msavy@redhat.com>
  */
 @SuppressWarnings("nls")
-public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
+public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization, IRequiresShutdown {
     private static final String USER = "username";
     private static final String PWORD = "password";
     private static final String INFLUX_ENDPOINT = "endpoint";
@@ -47,6 +52,12 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private static final String RETENTION_POLICY = "retentionPolicy";
     private static final String SERIES_NAME = "measurement";
     private static final String TIMEPRECISION = "ms";
+    private static final String BATCH_SIZE = "batchSize";
+    private static final String FLUSH_INTERVAL = "flushInterval";
+    private static final String MAX_BUFFERED_POINTS = "maxBufferedPoints";
+    private static final String MAX_IN_FLIGHT = "maxInFlight";
+    private static final String GZIP = "gzip";
+    private static final long CLOSE_TIMEOUT = 5000;
 
 
     private static final Map<String, String> DEFAULT_TAGS = new LinkedHashMap<>();
@@ -61,8 +72,14 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private IHttpClientComponent httpClient;
 
     private InfluxDb09Driver driver;
+    private InfluxDb09Writer writer;
     private String username;
     private String password;
+    private int batchSize;
+    private long flushInterval;
+    private int maxBufferedPoints;
+    private int maxInFlight;
+    private boolean gzip;
 
     /**
      * Constructor.
@@ -75,6 +92,11 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         this.seriesName = getMandatoryString(config, SERIES_NAME);
         this.username = getOptionalString(config, USER, null);
         this.password = getOptionalString(config, PWORD, null);
+        this.batchSize = Integer.parseInt(getOptionalString(config, BATCH_SIZE, "500"));
+        this.flushInterval = Long.parseLong(getOptionalString(config, FLUSH_INTERVAL, "1000"));
+        this.maxBufferedPoints = Integer.parseInt(getOptionalString(config, MAX_BUFFERED_POINTS, "10000"));
+        this.maxInFlight = Integer.parseInt(getOptionalString(config, MAX_IN_FLIGHT, "2"));
+        this.gzip = Boolean.parseBoolean(getOptionalString(config, GZIP, "true"));
     }
 
     /**
@@ -89,6 +111,19 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
             throw new ConfigurationParseException(Messages.i18n.format(
                     "InfluxDb09Metrics.databaseDoesNotExist", dbName));
         }
+
+        writer = new InfluxDb09Writer(driver, batchSize, flushInterval, maxBufferedPoints, maxInFlight, gzip);
+    }
+
+    /**
+     * Writes out the buffered points.
+     * @see io.apiman.gateway.engine.IRequiresShutdown#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        if (writer != null) {
+            writer.close(CLOSE_TIMEOUT);
+        }
     }
 
 
@@ -105,17 +140,14 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
      */
     @Override
     public void record(RequestMetric metric) {
-        driver.write(buildRequest(metric),
-                (InfluxException result) -> {
-                    if (result.isBadResponse()) {
-                        IHttpClientResponse response = result.getResponse();
-                        System.err.println(String.format("Influx stats error. Code: %s with message: '%s'",
-                                response.getResponseCode(),
-                                response.getResponseMessage()));
-                    } else {
-                        System.err.println(result.getMessage());
-                    }
-                });
+        writer.write(buildRequest(metric));
+    }
+
+    /**
+     * @return the buffered writer
+     */
+    public InfluxDb09Writer getWriter() {
+        return writer;
     }
 
     protected String buildRequest(RequestMetric metric) {
@@ -158,11 +190,16 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         write("failureReason", quote(metric.getFailureReason()), sb);
         write("error", Boolean.toString(metric.isError()), sb);
         write("errorMessage", quote(metric.getErrorMessage()), sb);
+        write("requestDurationNanos", nanos(metric.getRequestDurationNanos()), sb);
+        write("apiDurationNanos", nanos(metric.getApiDurationNanos()), sb);
+        write("gatewayDurationNanos", nanos(metric.getGatewayDurationNanos()), sb);
+        write("requestPoliciesDurationNanos", nanos(metric.getRequestPoliciesDurationNanos()), sb);
+        write("responsePoliciesDurationNanos", nanos(metric.getResponsePoliciesDurationNanos()), sb);
 
         sb.deleteCharAt(sb.length()-1);
         sb.append(' ');
 
-        // Timestamp in milliseconds. Newline would be needed after this point for batching.
+        // Timestamp in milliseconds. The writer adds the newline between points when batching.
         sb.append(System.currentTimeMillis());
 
         return sb.toString();
@@ -175,6 +212,12 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         sb.append(tagname).append("=").append(tagValue).append(",");
     }
 
+    private String nanos(long nanos) {
+        if (nanos < 0)
+            return null;
+        return Long.toString(nanos);
+    }
+
     private String quote(String item) {
         if (item == null)
             return null;
@@ -182,6 +225,8 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     }
 
     private String dateToLong(Date date) {
+        if (date == null)
+            return null;
         return Long.toString(date.getTime());
     }
 
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.influxdb;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buffers line-protocol points and writes them to influx in batches:  a batch is
+ * written once it holds enough points, or when the flush interval elapses.  At most
+ * a fixed number of points are buffered (the rest are dropped) and a fixed number of
+ * writes are in flight at once.  Batches are encoded (and gzipped) and written on the
+ * writer's own thread, never on the thread that records the point.
+ */
+public class InfluxDb09Writer {
+
+    private final InfluxDb09Driver driver;
+    private final int batchSize;
+    private final int maxPoints;
+    private final int maxInFlight;
+    private final boolean gzip;
+    private final ScheduledExecutorService flusher;
+
+    // Guarded by this
+    private StringBuilder buffer = new StringBuilder();
+    private int bufferedPoints;
+    private int inFlight;
+    private boolean flushPending;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param driver the influx driver
+     * @param batchSize the number of points that triggers a write
+     * @param flushInterval the maximum time (in millis) a point is buffered before being written
+     * @param maxPoints the maximum number of points buffered (further points are dropped)
+     * @param maxInFlight the maximum number of writes in flight at once
+     * @param gzip whether to gzip the written points
+     */
+    public InfluxDb09Writer(InfluxDb09Driver driver, int batchSize, long flushInterval, int maxPoints,
+            int maxInFlight, boolean gzip) {
+        this.driver = driver;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPoints = Math.max(this.batchSize, maxPoints);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.gzip = gzip;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "InfluxDb09MetricsFlusher"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers a point, writing the buffered points if there are enough of them.
+     * @param point the point, in line-protocol format
+     */
+    public void write(String point) {
+        synchronized (this) {
+            if (bufferedPoints >= maxPoints) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (bufferedPoints > 0) {
+                buffer.append('\n');
+            }
+            buffer.append(point);
+            bufferedPoints++;
+            if (bufferedPoints < batchSize) {
+                return;
+            }
+        }
+        requestFlush();
+    }
+
+    /**
+     * Asks the writer's thread to write the buffered points (unless it has already been
+     * asked, or too many writes are in flight).
+     */
+    private void requestFlush() {
+        synchronized (this) {
+            if (flushPending || inFlight >= maxInFlight) {
+                return;
+            }
+            flushPending = true;
+        }
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Closed
+            synchronized (this) {
+                flushPending = false;
+            }
+        }
+    }
+
+    /**
+     * Writes whatever points are buffered (unless too many writes are in flight).
+     */
+    public void flush() {
+        String batch;
+        int points;
+        synchronized (this) {
+            flushPending = false;
+            if (bufferedPoints == 0 || inFlight >= maxInFlight) {
+                return;
+            }
+            points = bufferedPoints;
+            batch = takeBuffer();
+        }
+        send(batch, points);
+    }
+
+    /**
+     * Takes the buffered points, counting the write as in flight.
+     */
+    private String takeBuffer() {
+        String batch = buffer.toString();
+        buffer = new StringBuilder(batch.length());
+        bufferedPoints = 0;
+        inFlight++;
+        return batch;
+    }
+
+    private void send(String batch, final int points) {
+        try {
+            driver.write(encode(batch), gzip, (IAsyncResult<Void> result) -> {
+                boolean more;
+                synchronized (this) {
+                    inFlight--;
+                    more = bufferedPoints >= batchSize;
+                    notifyAll();
+                }
+                if (result.isSuccess()) {
+                    written.addAndGet(points);
+                } else {
+                    failed.addAndGet(points);
+                    logError(result.getError());
+                }
+                if (more) {
+                    requestFlush();
+                }
+            });
+        } catch (Exception e) {
+            synchronized (this) {
+                inFlight--;
+                notifyAll();
+            }
+            failed.addAndGet(points);
+            logError(e);
+        }
+    }
+
+    private byte[] encode(String batch) throws IOException {
+        byte[] data = batch.getBytes(StandardCharsets.UTF_8);
+        if (!gzip) {
+            return data;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(baos)) {
+            gzipStream.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    @SuppressWarnings("nls")
+    private static void logError(Throwable error) {
+        if (error instanceof InfluxException && ((InfluxException) error).isBadResponse()) {
+            System.err.println(String.format("Influx stats error. Code: %s with message: '%s'",
+                    ((InfluxException) error).getResponse().getResponseCode(),
+                    ((InfluxException) error).getResponse().getResponseMessage()));
+        } else {
+            System.err.println(error.getMessage());
+        }
+    }
+
+    /**
+     * Writes whatever points are buffered and stops the writer, waiting (up to the given
+     * timeout) for the writes in flight to complete.
+     * @param timeout the timeout (in millis)
+     */
+    public void close(long timeout) {
+        long giveUpAt = System.currentTimeMillis() + timeout;
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Already closed
+            return;
+        }
+        flusher.shutdown();
+        try {
+            if (flusher.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    long wait;
+                    while (inFlight > 0 && (wait = giveUpAt - System.currentTimeMillis()) > 0) {
+                        wait(wait);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of points written to influx
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of points dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of points that failed to be written to influx
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of points currently buffered
+     */
+    public synchronized int getBufferedCount() {
+        return bufferedPoints;
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.influxdb;
+
+import io.apiman.gateway.engine.IComponent;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IHttpClientComponent;
+import io.apiman.gateway.engine.components.http.HttpMethod;
+import io.apiman.gateway.engine.components.http.IHttpClientRequest;
+import io.apiman.gateway.engine.components.http.IHttpClientResponse;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.metrics.RequestMetric;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the batched writes of {@link InfluxDb09Metrics} against a stub influx server.
+ */
+@SuppressWarnings("nls")
+public class InfluxDb09MetricsTest {
+
+    private HttpServer server;
+    private List<String> writes = new CopyOnWriteArrayList<>();
+    private volatile int writeStatus = 204;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/query", exchange -> respond(exchange, 200,
+                "{\"results\":[{\"series\":[{\"name\":\"databases\",\"columns\":[\"name\"],\"values\":[[\"apiman\"]]}]}]}"));
+        server.createContext("/write", exchange -> {
+            InputStream body = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            writes.add(new String(readAll(body), StandardCharsets.UTF_8));
+            respond(exchange, writeStatus, "");
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        InfluxDb09Metrics metrics = metrics("true");
+        // Full batches are written straight away, the rest when flushed
+        record(metrics, 10);
+        awaitWrites(1);
+        record(metrics, 10);
+        awaitWrites(2);
+        record(metrics, 5);
+        Assert.assertEquals(10, writes.get(0).split("\n").length);
+        Assert.assertEquals(10, writes.get(1).split("\n").length);
+        Assert.assertTrue(writes.get(0).startsWith("requests,generator=apiman-gateway,apiOrgId=\"TestOrg\""));
+
+        awaitWrites(3);
+        Assert.assertEquals(5, writes.get(2).split("\n").length);
+        Assert.assertEquals(25, metrics.getWriter().getWrittenCount());
+        Assert.assertEquals(0, metrics.getWriter().getDroppedCount());
+        metrics.getWriter().close(0);
+    }
+
+    @Test
+    public void testUncompressed() throws Exception {
+        InfluxDb09Metrics metrics = metrics("false");
+        record(metrics, 10);
+        awaitWrites(1);
+        Assert.assertEquals(10, writes.get(0).split("\n").length);
+        metrics.getWriter().close(0);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        InfluxDb09Metrics metrics = metrics("true");
+        record(metrics, 5);
+        metrics.getWriter().close(5000);
+        // Written without waiting for the flush interval
+        Assert.assertEquals(1, writes.size());
+        Assert.assertEquals(5, writes.get(0).split("\n").length);
+        Assert.assertEquals(5, metrics.getWriter().getWrittenCount());
+
+        // Nothing more is written
+        record(metrics, 10);
+        Thread.sleep(600);
+        Assert.assertEquals(1, writes.size());
+    }
+
+    @Test
+    public void testFailuresAndDrops() throws Exception {
+        writeStatus = 500;
+        InfluxDb09Metrics metrics = metrics("true");
+        record(metrics, 10);
+        awaitWrites(1);
+        metrics.getWriter().close(5000);
+        Assert.assertEquals(10, metrics.getWriter().getFailedCount());
+
+        // While a write is in flight points are buffered - at most 50 of them
+        List<IAsyncResultHandler<IHttpClientResponse>> pending = new CopyOnWriteArrayList<>();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        InfluxDb09Driver driver = new InfluxDb09Driver((endpoint, method, handler) -> {
+            pending.add(handler);
+            threads.add(Thread.currentThread().getName());
+            return new TestHttpClientComponent().request(endpoint, method, result -> {});
+        }, "localhost:1", null, null, "apiman", null, "ms");
+        InfluxDb09Writer writer = new InfluxDb09Writer(driver, 10, 60000, 50, 1, true);
+        for (int i = 0; i < 10; i++) {
+            writer.write("requests value=1");
+        }
+        long start = System.currentTimeMillis();
+        while (pending.isEmpty() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        // Not written (or gzipped) on the recording thread
+        Assert.assertEquals(Collections.singletonList("InfluxDb09MetricsFlusher"), threads);
+        for (int i = 0; i < 60; i++) {
+            writer.write("requests value=1");
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(1, pending.size());
+        Assert.assertEquals(50, writer.getBufferedCount());
+        Assert.assertEquals(10, writer.getDroppedCount());
+        writer.close(0);
+    }
+
+    private InfluxDb09Metrics metrics(String gzip) {
+        Map<String, String> config = new HashMap<>();
+        config.put("endpoint", "localhost:" + server.getAddress().getPort());
+        config.put("database", "apiman");
+        config.put("measurement", "requests");
+        config.put("batchSize", "10");
+        config.put("flushInterval", "500");
+        config.put("gzip", gzip);
+        InfluxDb09Metrics metrics = new InfluxDb09Metrics(config);
+        metrics.setComponentRegistry(new IComponentRegistry() {
+            @Override
+            public Collection<IComponent> getComponents() {
+                return Collections.emptyList();
+            }
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T extends IComponent> T getComponent(Class<T> componentType) {
+                return (T) new TestHttpClientComponent();
+            }
+        });
+        metrics.initialize();
+        return metrics;
+    }
+
+    private static void record(InfluxDb09Metrics metrics, int count) {
+        for (int i = 0; i < count; i++) {
+            metrics.record(metric());
+        }
+    }
+
+    private static RequestMetric metric() {
+        RequestMetric metric = new RequestMetric();
+        metric.setRequestStart(new Date());
+        metric.setRequestEnd(new Date());
+        metric.setApiStart(new Date());
+        metric.setApiEnd(new Date());
+        metric.setApiOrgId("TestOrg");
+        metric.setApiId("TestApi");
+        metric.setApiVersion("1.0");
+        metric.setMethod("GET");
+        metric.setResponseCode(200);
+        return metric;
+    }
+
+    private void awaitWrites(int count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (writes.size() < count && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, writes.size());
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(data);
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * A simple, synchronous http client (based on {@link HttpURLConnection}).
+     */
+    private static class TestHttpClientComponent implements IHttpClientComponent {
+        @Override
+        public IHttpClientRequest request(String endpoint, HttpMethod method,
+                IAsyncResultHandler<IHttpClientResponse> handler) {
+            return new IHttpClientRequest() {
+                private final Map<String, String> headers = new HashMap<>();
+                private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+                @Override
+                public void setConnectTimeout(int timeout) {
+                }
+                @Override
+                public void setReadTimeout(int timeout) {
+                }
+                @Override
+                public void addHeader(String headerName, String headerValue) {
+                    headers.put(headerName, headerValue);
+                }
+                @Override
+                public void removeHeader(String headerName) {
+                    headers.remove(headerName);
+                }
+                @Override
+                public void write(IApimanBuffer buffer) {
+                    write(buffer.getBytes());
+                }
+                @Override
+                public void write(byte[] data) {
+                    body.write(data, 0, data.length);
+                }
+                @Override
+                public void write(String data, String charsetName) {
+                    write(data.getBytes(StandardCharsets.UTF_8));
+                }
+                @Override
+                public void end() {
+                    try {
+                        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+                        connection.setRequestMethod(method.name());
+                        for (Map.Entry<String, String> header : headers.entrySet()) {
+                            connection.setRequestProperty(header.getKey(), header.getValue());
+                        }
+                        if (body.size() > 0) {
+                            connection.setDoOutput(true);
+                            try (OutputStream os = connection.getOutputStream()) {
+                                body.writeTo(os);
+                            }
+                        }
+                        final int code = connection.getResponseCode();
+                        final String message = connection.getResponseMessage();
+                        InputStream is = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+                        final String responseBody = is == null ? "" : new String(readAll(is), StandardCharsets.UTF_8);
+                        handler.handle(AsyncResultImpl.<IHttpClientResponse>create(new IHttpClientResponse() {
+                            @Override
+                            public int getResponseCode() {
+                                return code;
+                            }
+                            @Override
+                            public String getResponseMessage() {
+                                return message;
+                            }
+                            @Override
+                            public String getHeader(String headerName) {
+                                return connection.getHeaderField(headerName);
+                            }
+                            @Override
+                            public String getBody() {
+                                return responseBody;
+                            }
+                            @Override
+                            public void close() {
+                            }
+                        }));
+                    } catch (IOException e) {
+                        handler.handle(AsyncResultImpl.<IHttpClientResponse>create(e));
+                    }
+                }
+            };
+        }
+    }
+
+}
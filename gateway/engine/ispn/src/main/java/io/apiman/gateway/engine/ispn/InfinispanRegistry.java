@@ -72,6 +72,16 @@ public class InfinispanRegistry extends InMemoryRegistry {
         return cacheWrapper;
     }
 
+    /**
+     * The cache is shared with the other nodes in the cluster, so the local
+     * indexes can't be kept consistent with it.
+     * @see io.apiman.gateway.engine.impl.InMemoryRegistry#isIndexed()
+     */
+    @Override
+    protected boolean isIndexed() {
+        return false;
+    }
+
     /**
      * @return gets the registry cache
      */
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.jdbc;
+
+import io.apiman.gateway.engine.DependsOnComponents;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A variant of the {@link PollCachingJdbcRegistry} that is suitable for an async
+ * Gateway (e.g. vert.x).  APIs and clients that are in the (poll invalidated) cache
+ * are served directly, everything else - cache misses, publishing, listing - is
+ * run via the {@link IExecuteBlockingComponent}, so that a slow database never
+ * blocks the calling thread (e.g. an event loop).
+ *
+ * Example:
+ *
+ *     apiman-gateway.registry=io.apiman.gateway.engine.jdbc.AsyncJdbcRegistry
+ *     apiman-gateway.registry.datasource.jndi-location=java:jboss/datasources/apiman-gateway
+ */
+@DependsOnComponents({ IExecuteBlockingComponent.class })
+public class AsyncJdbcRegistry extends PollCachingJdbcRegistry {
+
+    private IExecuteBlockingComponent executeBlocking;
+
+    /**
+     * Constructor.
+     * @param config map of configuration options
+     */
+    public AsyncJdbcRegistry(Map<String, String> config) {
+        super(config);
+    }
+
+    /**
+     * @param executeBlocking the execute blocking component to set
+     */
+    public void setExecuteBlocking(IExecuteBlockingComponent executeBlocking) {
+        this.executeBlocking = executeBlocking;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.PollCachingJdbcRegistry#publishApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void publishApi(Api api, IAsyncResultHandler<Void> handler) {
+        blocking(h -> super.publishApi(api, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.PollCachingJdbcRegistry#retireApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void retireApi(Api api, IAsyncResultHandler<Void> handler) {
+        blocking(h -> super.retireApi(api, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.PollCachingJdbcRegistry#registerClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerClient(Client client, IAsyncResultHandler<Void> handler) {
+        blocking(h -> super.registerClient(client, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.PollCachingJdbcRegistry#unregisterClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterClient(Client client, IAsyncResultHandler<Void> handler) {
+        blocking(h -> super.unregisterClient(client, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.CachingJdbcRegistry#getApi(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getApi(String organizationId, String apiId, String apiVersion,
+            IAsyncResultHandler<Api> handler) {
+        Api api = getCachedApi(organizationId, apiId, apiVersion);
+        if (api != null) {
+            handler.handle(AsyncResultImpl.create(api));
+        } else {
+            blocking(h -> super.getApi(organizationId, apiId, apiVersion, h), handler);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#getClient(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getClient(String organizationId, String clientId, String clientVersion,
+            IAsyncResultHandler<Client> handler) {
+        blocking(h -> super.getClient(organizationId, clientId, clientVersion, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.CachingJdbcRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getClient(String apiKey, IAsyncResultHandler<Client> handler) {
+        Client client = getCachedClient(apiKey);
+        if (client != null) {
+            handler.handle(AsyncResultImpl.create(client));
+        } else {
+            blocking(h -> super.getClient(apiKey, h), handler);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.CachingJdbcRegistry#getContract(java.lang.String, java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getContract(String apiOrganizationId, String apiId, String apiVersion, String apiKey,
+            IAsyncResultHandler<ApiContract> handler) {
+        if (getCachedClient(apiKey) != null && getCachedApi(apiOrganizationId, apiId, apiVersion) != null) {
+            // Everything we need is cached - no need to go near the DB.
+            super.getContract(apiOrganizationId, apiId, apiVersion, apiKey, handler);
+        } else {
+            blocking(h -> super.getContract(apiOrganizationId, apiId, apiVersion, apiKey, h), handler);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#listApis(java.lang.String, int, int, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void listApis(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        blocking(h -> super.listApis(organizationId, page, pageSize, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#listOrgs(io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void listOrgs(IAsyncResultHandler<List<String>> handler) {
+        blocking(h -> super.listOrgs(h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#listApiVersions(java.lang.String, java.lang.String, int, int, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void listApiVersions(String organizationId, String apiId, int page, int pageSize,
+            IAsyncResultHandler<List<String>> handler) {
+        blocking(h -> super.listApiVersions(organizationId, apiId, page, pageSize, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#listClients(java.lang.String, int, int, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void listClients(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        blocking(h -> super.listClients(organizationId, page, pageSize, h), handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#listClientVersions(java.lang.String, java.lang.String, int, int, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void listClientVersions(String organizationId, String clientId, int page, int pageSize,
+            IAsyncResultHandler<List<String>> handler) {
+        blocking(h -> super.listClientVersions(organizationId, clientId, page, pageSize, h), handler);
+    }
+
+    /**
+     * Runs the given (blocking) registry call via the execute blocking component and
+     * passes its result to the handler.  If there is no execute blocking component
+     * (e.g. in a synchronous environment) the call is simply made directly.
+     * @param call the registry call
+     * @param handler the handler
+     */
+    private <T> void blocking(Consumer<IAsyncResultHandler<T>> call, IAsyncResultHandler<T> handler) {
+        if (executeBlocking == null) {
+            call.accept(handler);
+            return;
+        }
+        executeBlocking.<T>executeBlocking(future -> {
+            call.accept(result -> {
+                if (result.isSuccess()) {
+                    future.completed(result.getResult());
+                } else {
+                    future.fail(result.getError());
+                }
+            });
+        }, handler);
+    }
+
+}
@@ -144,6 +144,31 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
         return api;
     }
 
+    /**
+     * Gets the api from the cache only.
+     * @param orgId
+     * @param apiId
+     * @param version
+     * @return the cached api or null if it is not cached
+     */
+    protected Api getCachedApi(String orgId, String apiId, String version) {
+        String apiIdx = getApiId(orgId, apiId, version);
+        synchronized (mutex) {
+            return apiCache.get(apiIdx);
+        }
+    }
+
+    /**
+     * Gets the client from the cache only.
+     * @param apiKey
+     * @return the cached client or null if it is not cached
+     */
+    protected Client getCachedClient(String apiKey) {
+        synchronized (mutex) {
+            return clientCache.get(apiKey);
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -20,12 +20,23 @@ import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 
 /**
@@ -39,14 +50,82 @@ import org.apache.commons.dbutils.QueryRunner;
  *     apiman-gateway.registry=io.apiman.gateway.engine.jdbc.JdbcRegistry
  *     apiman-gateway.registry.datasource.jndi-location=java:jboss/datasources/apiman-gateway
  * 
+ * Metrics are written in batches (JDBC batch inserts in a single transaction) of up
+ * to "batch.size" metrics.  By default a batch is written as soon as the queue has
+ * been drained, but "batch.flushInterval" (millis) can be set to wait for more
+ * metrics to fill the batch.
+ * 
+ * When "rollups" is true, rather than one row per request in gw_requests, the
+ * metrics are aggregated per API, client and minute and added to the rows of
+ * gw_request_rollups.  Several rows may exist for the same API, client and minute
+ * (e.g. when written by more than one gateway), so queries should sum them.
+ * 
  * @author ewittman
  */
 public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
 
+    private static final Logger logger = Logger.getLogger(JdbcMetrics.class.getName());
+
     private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    @SuppressWarnings("nls")
+    private static final String INSERT_REQUEST_SQL = "INSERT INTO gw_requests ("
+            + "rstart, rend, duration, month, week, day, hour, minute, "
+            + "api_org_id, api_id, api_version, "
+            + "client_org_id, client_id, client_version, plan, "
+            + "user_id, resp_type, bytes_up, bytes_down, "
+            + "api_duration_ns, gateway_duration_ns, req_policies_duration_ns, resp_policies_duration_ns) VALUES ("
+            + "?, ?, ?, ?, ?, ?, ?, ?,"
+            + "?, ?, ?,"
+            + "?, ?, ?, ?,"
+            + "?, ?, ?, ?,"
+            + "?, ?, ?, ?)";
+    // For gw_requests tables created before the *_duration_ns columns were added.
+    @SuppressWarnings("nls")
+    private static final String INSERT_REQUEST_LEGACY_SQL = "INSERT INTO gw_requests ("
+            + "rstart, rend, duration, month, week, day, hour, minute, "
+            + "api_org_id, api_id, api_version, "
+            + "client_org_id, client_id, client_version, plan, "
+            + "user_id, resp_type, bytes_up, bytes_down) VALUES ("
+            + "?, ?, ?, ?, ?, ?, ?, ?,"
+            + "?, ?, ?,"
+            + "?, ?, ?, ?,"
+            + "?, ?, ?, ?)";
+    @SuppressWarnings("nls")
+    private static final String DURATION_COLUMNS_PROBE_SQL = "SELECT "
+            + "api_duration_ns, gateway_duration_ns, req_policies_duration_ns, resp_policies_duration_ns "
+            + "FROM gw_requests WHERE 1 = 0";
+    @SuppressWarnings("nls")
+    private static final String UPDATE_ROLLUP_SQL = "UPDATE gw_request_rollups SET "
+            + "requests = requests + ?, errors = errors + ?, failures = failures + ?, "
+            + "bytes_up = bytes_up + ?, bytes_down = bytes_down + ?, duration = duration + ? "
+            + "WHERE minute = ? AND api_org_id = ? AND api_id = ? AND api_version = ? AND ";
+    @SuppressWarnings("nls")
+    private static final String UPDATE_CLIENT_ROLLUP_SQL = UPDATE_ROLLUP_SQL
+            + "client_org_id = ? AND client_id = ? AND client_version = ?";
+    @SuppressWarnings("nls")
+    private static final String UPDATE_PUBLIC_ROLLUP_SQL = UPDATE_ROLLUP_SQL
+            + "client_org_id IS NULL AND client_id IS NULL AND client_version IS NULL";
+    @SuppressWarnings("nls")
+    private static final String INSERT_ROLLUP_SQL = "INSERT INTO gw_request_rollups ("
+            + "month, week, day, hour, minute, "
+            + "api_org_id, api_id, api_version, client_org_id, client_id, client_version, "
+            + "requests, errors, failures, bytes_up, bytes_down, duration) VALUES ("
+            + "?, ?, ?, ?, ?,"
+            + "?, ?, ?, ?, ?, ?,"
+            + "?, ?, ?, ?, ?, ?)";
 
     protected IComponentRegistry componentRegistry;
     protected final BlockingQueue<RequestMetric> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final boolean rollups;
+
+    // Only used by the consumer thread.
+    private final QueryRunner run = new QueryRunner();
+    private final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+    private Boolean durationColumns;
     
     private boolean stopped;
     private Thread thread;
@@ -64,6 +143,23 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
             queueSize = new Integer(queueSizeConfig);
         }
         queue = new LinkedBlockingDeque<>(queueSize);
+
+        int batchSize = DEFAULT_BATCH_SIZE;
+        String batchSizeConfig = config.get("batch.size"); //$NON-NLS-1$
+        if (batchSizeConfig != null) {
+            batchSize = new Integer(batchSizeConfig);
+        }
+        this.batchSize = Math.max(1, batchSize);
+
+        long flushInterval = 0;
+        String flushIntervalConfig = config.get("batch.flushInterval"); //$NON-NLS-1$
+        if (flushIntervalConfig != null) {
+            flushInterval = new Long(flushIntervalConfig);
+        }
+        this.flushInterval = flushInterval;
+
+        this.rollups = "true".equals(config.get("rollups")); //$NON-NLS-1$ //$NON-NLS-2$
+
         startConsumerThread();
     }
 
@@ -86,74 +182,212 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
     }
 
     /**
-     * Process the next item in the queue.
+     * Process the next batch of items in the queue.
      */
-    @SuppressWarnings("nls")
     protected void processQueue() {
+        List<RequestMetric> batch = new ArrayList<>();
         try {
-            RequestMetric metric = queue.take();
-            QueryRunner run = new QueryRunner(ds);
-
-            Calendar cal = Calendar.getInstance();
-            cal.setTimeZone(TimeZone.getTimeZone("UTC"));
-            cal.setTime(metric.getRequestStart());
-            
-            long rstart = cal.getTimeInMillis();
-            long rend = metric.getRequestEnd().getTime();
-            long duration = metric.getRequestDuration();
-            cal.set(Calendar.MILLISECOND, 0);
-            cal.set(Calendar.SECOND, 0);
-            long minute = cal.getTimeInMillis();
-            cal.set(Calendar.MINUTE, 0);
-            long hour = cal.getTimeInMillis();
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            long day = cal.getTimeInMillis();
-            cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
-            long week = cal.getTimeInMillis();
-            cal.set(Calendar.DAY_OF_MONTH, 1);
-            long month = cal.getTimeInMillis();
-            String api_org_id = metric.getApiOrgId();
-            String api_id = metric.getApiId();
-            String api_version = metric.getApiVersion();
-            String client_org_id = metric.getClientOrgId();
-            String client_id = metric.getClientId();
-            String client_version = metric.getClientVersion();
-            String plan = metric.getPlanId();
-            String user_id = metric.getUser();
-            String rtype = null;
-            if (metric.isFailure()) {
-                rtype = "failure";
-            } else if (metric.isError()) {
-                rtype = "error";
+            batch.add(queue.take());
+            long flushAt = System.currentTimeMillis() + flushInterval;
+            while (batch.size() < batchSize) {
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                    continue;
+                }
+                long wait = flushAt - System.currentTimeMillis();
+                RequestMetric metric = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (metric == null) {
+                    break;
+                }
+                batch.add(metric);
             }
-            long bytes_up = metric.getBytesUploaded();
-            long bytes_down = metric.getBytesDownloaded();
-
-            // Now insert a row for the metric.
-            run.update("INSERT INTO gw_requests ("
-                    + "rstart, rend, duration, month, week, day, hour, minute, "
-                    + "api_org_id, api_id, api_version, "
-                    + "client_org_id, client_id, client_version, plan, "
-                    + "user_id, resp_type, bytes_up, bytes_down) VALUES ("
-                    + "?, ?, ?, ?, ?, ?, ?, ?,"
-                    + "?, ?, ?,"
-                    + "?, ?, ?, ?,"
-                    + "?, ?, ?, ?)",
-                    rstart, rend, duration, month, week, day, hour, minute,
-                    api_org_id, api_id, api_version,
-                    client_org_id, client_id, client_version, plan,
-                    user_id, rtype, bytes_up, bytes_down
-                    );
         } catch (InterruptedException ie) {
             // This means that the thread was stopped.
+            if (batch.isEmpty()) {
+                return;
+            }
+        }
+
+        Connection conn = null;
+        try {
+            if (!rollups && durationColumns == null) {
+                durationColumns = hasDurationColumns();
+            }
+            conn = ds.getConnection();
+            conn.setAutoCommit(false);
+            if (rollups) {
+                writeRollups(conn, batch);
+            } else {
+                writeRequests(conn, batch);
+            }
+            DbUtils.commitAndClose(conn);
         } catch (Exception e) {
-            // TODO better logging of this unlikely error
-            System.err.println("Error adding metric to database:"); //$NON-NLS-1$
-            e.printStackTrace();
-            return;
+            DbUtils.rollbackAndCloseQuietly(conn);
+            logger.log(Level.SEVERE, "Error adding metric(s) to database", e); //$NON-NLS-1$
         }
     }
 
+    /**
+     * Inserts a row in gw_requests for each metric.
+     * @param conn
+     * @param batch
+     * @throws SQLException
+     */
+    private void writeRequests(Connection conn, List<RequestMetric> batch) throws SQLException {
+        Object[][] rows = new Object[batch.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            RequestMetric metric = batch.get(i);
+            String rtype = null;
+            if (metric.isFailure()) {
+                rtype = "failure"; //$NON-NLS-1$
+            } else if (metric.isError()) {
+                rtype = "error"; //$NON-NLS-1$
+            }
+            long[] periods = periods(metric.getRequestStart().getTime());
+            if (durationColumns) {
+                rows[i] = new Object[] {
+                        metric.getRequestStart().getTime(), metric.getRequestEnd().getTime(), metric.getRequestDuration(),
+                        periods[0], periods[1], periods[2], periods[3], periods[4],
+                        metric.getApiOrgId(), metric.getApiId(), metric.getApiVersion(),
+                        metric.getClientOrgId(), metric.getClientId(), metric.getClientVersion(), metric.getPlanId(),
+                        metric.getUser(), rtype, metric.getBytesUploaded(), metric.getBytesDownloaded(),
+                        nanos(metric.getApiDurationNanos()), nanos(metric.getGatewayDurationNanos()),
+                        nanos(metric.getRequestPoliciesDurationNanos()), nanos(metric.getResponsePoliciesDurationNanos())
+                };
+            } else {
+                rows[i] = new Object[] {
+                        metric.getRequestStart().getTime(), metric.getRequestEnd().getTime(), metric.getRequestDuration(),
+                        periods[0], periods[1], periods[2], periods[3], periods[4],
+                        metric.getApiOrgId(), metric.getApiId(), metric.getApiVersion(),
+                        metric.getClientOrgId(), metric.getClientId(), metric.getClientVersion(), metric.getPlanId(),
+                        metric.getUser(), rtype, metric.getBytesUploaded(), metric.getBytesDownloaded()
+                };
+            }
+        }
+        run.batch(conn, durationColumns ? INSERT_REQUEST_SQL : INSERT_REQUEST_LEGACY_SQL, rows);
+    }
+
+    /**
+     * Checks whether gw_requests has the *_duration_ns columns.  Tables created with an
+     * older DDL don't, in which case the durations are simply not written.  The probe
+     * runs on its own connection so that a failure can't spoil the batch transaction.
+     * @throws SQLException
+     */
+    private boolean hasDurationColumns() throws SQLException {
+        try (Connection conn = ds.getConnection(); Statement statement = conn.createStatement()) {
+            try {
+                statement.executeQuery(DURATION_COLUMNS_PROBE_SQL).close();
+                return true;
+            } catch (SQLException e) {
+                logger.warning("The gw_requests table has no *_duration_ns columns - request durations in nanoseconds will not be recorded."); //$NON-NLS-1$
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Aggregates the metrics per API, client and minute, then adds each aggregate
+     * to its row in gw_request_rollups (inserting the rows that don't exist yet).
+     * @param conn
+     * @param batch
+     * @throws SQLException
+     */
+    private void writeRollups(Connection conn, List<RequestMetric> batch) throws SQLException {
+        Map<RollupKey, long[]> rollupMap = new LinkedHashMap<>();
+        for (RequestMetric metric : batch) {
+            RollupKey key = new RollupKey(metric, periods(metric.getRequestStart().getTime()));
+            long[] totals = rollupMap.get(key);
+            if (totals == null) {
+                totals = new long[6];
+                rollupMap.put(key, totals);
+            }
+            totals[0]++;
+            totals[1] += metric.isError() ? 1 : 0;
+            totals[2] += metric.isFailure() ? 1 : 0;
+            totals[3] += metric.getBytesUploaded();
+            totals[4] += metric.getBytesDownloaded();
+            totals[5] += metric.getRequestDuration();
+        }
+
+        List<Map.Entry<RollupKey, long[]>> missing = updateRollups(conn, rollupMap);
+        if (!missing.isEmpty()) {
+            Object[][] rows = new Object[missing.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                RollupKey key = missing.get(i).getKey();
+                long[] totals = missing.get(i).getValue();
+                rows[i] = new Object[] {
+                        key.periods[0], key.periods[1], key.periods[2], key.periods[3], key.periods[4],
+                        key.apiOrgId, key.apiId, key.apiVersion, key.clientOrgId, key.clientId, key.clientVersion,
+                        totals[0], totals[1], totals[2], totals[3], totals[4], totals[5]
+                };
+            }
+            run.batch(conn, INSERT_ROLLUP_SQL, rows);
+        }
+    }
+
+    /**
+     * Adds the given aggregates to their existing rollup rows, returning the ones
+     * that have no row yet.  The updates are run one by one (rather than as a batch)
+     * because not every driver reports the update counts of a batch - there is only
+     * one per API, client and minute anyway.
+     */
+    private List<Map.Entry<RollupKey, long[]>> updateRollups(Connection conn, Map<RollupKey, long[]> rollupMap)
+            throws SQLException {
+        List<Map.Entry<RollupKey, long[]>> missing = new ArrayList<>();
+        for (Map.Entry<RollupKey, long[]> rollup : rollupMap.entrySet()) {
+            RollupKey key = rollup.getKey();
+            long[] totals = rollup.getValue();
+            List<Object> params = new ArrayList<>(13);
+            for (long total : totals) {
+                params.add(total);
+            }
+            params.add(key.periods[4]);
+            params.add(key.apiOrgId);
+            params.add(key.apiId);
+            params.add(key.apiVersion);
+            String sql = UPDATE_PUBLIC_ROLLUP_SQL;
+            if (key.clientId != null) {
+                params.add(key.clientOrgId);
+                params.add(key.clientId);
+                params.add(key.clientVersion);
+                sql = UPDATE_CLIENT_ROLLUP_SQL;
+            }
+            if (run.update(conn, sql, params.toArray()) == 0) {
+                missing.add(rollup);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Returns the start of the month, week, day, hour and minute (in that order) of
+     * the given time, in UTC.
+     * @param time
+     */
+    private long[] periods(long time) {
+        long[] periods = new long[5];
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.set(Calendar.SECOND, 0);
+        periods[4] = cal.getTimeInMillis();
+        cal.set(Calendar.MINUTE, 0);
+        periods[3] = cal.getTimeInMillis();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        periods[2] = cal.getTimeInMillis();
+        cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
+        periods[1] = cal.getTimeInMillis();
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        periods[0] = cal.getTimeInMillis();
+        return periods;
+    }
+
+    /**
+     * Unknown durations (-1) are stored as null.
+     * @param nanos
+     */
+    private static Long nanos(long nanos) {
+        return nanos < 0 ? null : nanos;
+    }
+
     /**
      * @see io.apiman.gateway.engine.IMetrics#record(io.apiman.gateway.engine.metrics.RequestMetric)
      */
@@ -182,4 +416,47 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
         thread.interrupt();
     }
 
+    /**
+     * Identifies a rollup row:  the API, the client and the minute.
+     */
+    private static final class RollupKey {
+        private final long[] periods;
+        private final String apiOrgId;
+        private final String apiId;
+        private final String apiVersion;
+        private final String clientOrgId;
+        private final String clientId;
+        private final String clientVersion;
+        private final int hash;
+
+        RollupKey(RequestMetric metric, long[] periods) {
+            this.periods = periods;
+            this.apiOrgId = metric.getApiOrgId();
+            this.apiId = metric.getApiId();
+            this.apiVersion = metric.getApiVersion();
+            boolean hasClient = metric.getClientId() != null;
+            this.clientOrgId = hasClient ? metric.getClientOrgId() : null;
+            this.clientId = hasClient ? metric.getClientId() : null;
+            this.clientVersion = hasClient ? metric.getClientVersion() : null;
+            this.hash = Objects.hash(periods[4], apiOrgId, apiId, apiVersion, clientOrgId, clientId, clientVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RollupKey)) {
+                return false;
+            }
+            RollupKey other = (RollupKey) obj;
+            return periods[4] == other.periods[4] && Objects.equals(apiOrgId, other.apiOrgId)
+                    && Objects.equals(apiId, other.apiId) && Objects.equals(apiVersion, other.apiVersion)
+                    && Objects.equals(clientOrgId, other.clientOrgId) && Objects.equals(clientId, other.clientId)
+                    && Objects.equals(clientVersion, other.clientVersion);
+        }
+    }
+
 }
@@ -47,6 +47,8 @@ import org.apache.commons.dbutils.handlers.AbstractListHandler;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 /**
  * A JDBC implementation of the gateway registry.  Only suitable for a
@@ -64,6 +66,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public class JdbcRegistry extends AbstractJdbcComponent implements IRegistry {
 
     protected static final ObjectMapper mapper = new ObjectMapper();
+    // Readers and writers are immutable and thread safe - build them once rather than per row.
+    private static final ObjectReader API_READER = mapper.readerFor(Api.class);
+    private static final ObjectReader CLIENT_READER = mapper.readerFor(Client.class);
+    private static final ObjectWriter API_WRITER = mapper.writerFor(Api.class);
+    private static final ObjectWriter CLIENT_WRITER = mapper.writerFor(Client.class);
 
     /**
      * Constructor.
@@ -89,7 +96,7 @@ public class JdbcRegistry extends AbstractJdbcComponent implements IRegistry {
                     api.getOrganizationId(), api.getApiId(), api.getVersion());
 
             // Now insert a row for the api.
-            String bean = mapper.writeValueAsString(api);
+            String bean = API_WRITER.writeValueAsString(api);
             run.update(conn, "INSERT INTO gw_apis (org_id, id, version, bean) VALUES (?, ?, ?, ?)",  //$NON-NLS-1$
                     api.getOrganizationId(), api.getApiId(), api.getVersion(), bean);
 
@@ -118,7 +125,7 @@ public class JdbcRegistry extends AbstractJdbcComponent implements IRegistry {
             run.update(conn, "DELETE FROM gw_clients WHERE org_id = ? AND id = ? AND version = ?",  //$NON-NLS-1$
                     client.getOrganizationId(), client.getClientId(), client.getVersion());
 
-            String bean = mapper.writeValueAsString(client);
+            String bean = CLIENT_WRITER.writeValueAsString(client);
             run.update(conn, "INSERT INTO gw_clients (api_key, org_id, id, version, bean) VALUES (?, ?, ?, ?, ?)",  //$NON-NLS-1$
                     client.getApiKey(), client.getOrganizationId(), client.getClientId(), client.getVersion(), bean);
 
@@ -426,7 +433,7 @@ public class JdbcRegistry extends AbstractJdbcComponent implements IRegistry {
                 return null;
             }
             try (InputStream is = rs.getAsciiStream(1)) {
-                return mapper.reader(Api.class).readValue(is);
+                return API_READER.readValue(is);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -437,7 +444,7 @@ public class JdbcRegistry extends AbstractJdbcComponent implements IRegistry {
                 return null;
             }
             try (InputStream is = rs.getAsciiStream(1)) {
-                return mapper.reader(Client.class).readValue(is);
+                return CLIENT_READER.readValue(is);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.jdbc;
+
+import io.apiman.common.logging.DefaultDelegateFactory;
+import io.apiman.common.logging.IDelegateFactory;
+import io.apiman.common.util.crypt.IDataEncrypter;
+import io.apiman.common.util.ddl.DdlParser;
+import io.apiman.gateway.engine.EngineConfigTuple;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IApiRequestPathParser;
+import io.apiman.gateway.engine.IComponent;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IEngine;
+import io.apiman.gateway.engine.IEngineConfig;
+import io.apiman.gateway.engine.IGatewayInitializer;
+import io.apiman.gateway.engine.IMetrics;
+import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.IPolicyErrorWriter;
+import io.apiman.gateway.engine.IPolicyFailureWriter;
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.IAsyncFuture;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
+import io.apiman.gateway.engine.impl.ByteBufferFactoryComponent;
+import io.apiman.gateway.engine.impl.ConfigDrivenEngineFactory;
+import io.apiman.gateway.engine.impl.DefaultDataEncrypter;
+import io.apiman.gateway.engine.impl.DefaultExecuteBlockingComponent;
+import io.apiman.gateway.engine.impl.DefaultPluginRegistry;
+import io.apiman.gateway.engine.impl.DefaultPolicyErrorWriter;
+import io.apiman.gateway.engine.impl.DefaultPolicyFailureWriter;
+import io.apiman.gateway.engine.impl.DefaultRequestPathParser;
+import io.apiman.gateway.engine.impl.InMemoryMetrics;
+import io.apiman.gateway.engine.policy.IPolicyFactory;
+import io.apiman.gateway.engine.policy.PolicyFactoryImpl;
+import io.apiman.test.common.util.TestUtil;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.InitialContext;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link AsyncJdbcRegistry}, when created by the engine from config (and
+ * so wrapped for encryption), gets the execute blocking component and uses it for cache
+ * misses only.
+ */
+@SuppressWarnings("nls")
+public class AsyncJdbcRegistryTest {
+
+    private static final String DB_JNDI_LOC = "java:/comp/env/jdbc/AsyncRegistryDS";
+    private static final String BLOCKING_THREAD = "blocking-test";
+
+    private static final AtomicInteger blockingCalls = new AtomicInteger();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        InitialContext ctx = TestUtil.initialContext();
+        TestUtil.ensureCtx(ctx, "java:/comp/env");
+        TestUtil.ensureCtx(ctx, "java:/comp/env/jdbc");
+        ctx.bind(DB_JNDI_LOC, createInMemoryDatasource());
+    }
+
+    @Test
+    public void shouldRunCacheMissesOnExecutor() throws Exception {
+        IEngine engine = new ConfigDrivenEngineFactory(new TestEngineConfig()).createEngine();
+
+        Api api = new Api();
+        api.setOrganizationId("TestOrg");
+        api.setApiId("TestApi");
+        api.setVersion("1.0");
+        api.setEndpoint("http://localhost:8080/");
+        api.setEndpointType("rest");
+        CountDownLatch published = new CountDownLatch(1);
+        engine.getRegistry().publishApi(api, result -> {
+            Assert.assertTrue(result.isSuccess());
+            published.countDown();
+        });
+        Assert.assertTrue(published.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, blockingCalls.get());
+
+        // Not cached yet: fetched from the DB on the blocking thread
+        Assert.assertEquals(BLOCKING_THREAD, getApi(engine));
+        Assert.assertEquals(2, blockingCalls.get());
+
+        // Now cached: served directly, on the calling thread
+        Assert.assertEquals(Thread.currentThread().getName(), getApi(engine));
+        Assert.assertEquals(2, blockingCalls.get());
+    }
+
+    /**
+     * Gets the test API from the registry, returning the name of the thread the result
+     * was delivered on.
+     */
+    private static String getApi(IEngine engine) throws Exception {
+        AtomicReference<String> thread = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        engine.getRegistry().getApi("TestOrg", "TestApi", "1.0", result -> {
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertNotNull(result.getResult());
+            thread.set(Thread.currentThread().getName());
+            latch.countDown();
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return thread.get();
+    }
+
+    private static BasicDataSource createInMemoryDatasource() throws Exception {
+        BasicDataSource ds = new BasicDataSource();
+        ds.setDriverClassName(Driver.class.getName());
+        ds.setUsername("sa");
+        ds.setPassword("");
+        ds.setUrl("jdbc:h2:mem:asyncregistry;DB_CLOSE_DELAY=-1");
+        try (Connection connection = ds.getConnection()) {
+            connection.setAutoCommit(true);
+            URL resource = AsyncJdbcRegistryTest.class.getClassLoader().getResource("ddls/apiman-gateway_h2.ddl");
+            try (InputStream is = resource.openStream()) {
+                for (String sql : new DdlParser().parse(is)) {
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        statement.execute();
+                    }
+                }
+            }
+        }
+        return ds;
+    }
+
+    /**
+     * Runs blocking code on its own thread, counting the calls.
+     */
+    public static class RecordingExecuteBlockingComponent implements IExecuteBlockingComponent {
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, BLOCKING_THREAD);
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final DefaultExecuteBlockingComponent delegate = new DefaultExecuteBlockingComponent();
+
+        @Override
+        public <T> void executeBlocking(IAsyncHandler<IAsyncFuture<T>> blockingCode, IAsyncResultHandler<T> resultHandler) {
+            blockingCalls.incrementAndGet();
+            executor.execute(() -> delegate.executeBlocking(blockingCode, resultHandler));
+        }
+    }
+
+    /**
+     * Never invoked - the test only talks to the registry.
+     */
+    public static class NoopConnectorFactory implements IConnectorFactory {
+
+        @Override
+        public IApiConnector createConnector(ApiRequest request, Api api, RequiredAuthType requiredAuthType,
+                boolean hasDataPolicy, IConnectorConfig connectorConfig) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Minimal engine config using the async JDBC registry.
+     */
+    private static class TestEngineConfig implements IEngineConfig {
+
+        @Override
+        public Class<? extends IRegistry> getRegistryClass(IPluginRegistry pluginRegistry) {
+            return AsyncJdbcRegistry.class;
+        }
+
+        @Override
+        public Map<String, String> getRegistryConfig() {
+            Map<String, String> config = new HashMap<>();
+            config.put("datasource.jndi-location", DB_JNDI_LOC);
+            config.put("cache-polling-startup-delay", "600");
+            return config;
+        }
+
+        @Override
+        public Class<? extends IDataEncrypter> getDataEncrypterClass(IPluginRegistry pluginRegistry) {
+            return DefaultDataEncrypter.class;
+        }
+
+        @Override
+        public Map<String, String> getDataEncrypterConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IPluginRegistry> getPluginRegistryClass() {
+            return DefaultPluginRegistry.class;
+        }
+
+        @Override
+        public Map<String, String> getPluginRegistryConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IConnectorFactory> getConnectorFactoryClass(IPluginRegistry pluginRegistry) {
+            return NoopConnectorFactory.class;
+        }
+
+        @Override
+        public Class<? extends IApiRequestPathParser> getApiRequestPathParserClass(IPluginRegistry pluginRegistry) {
+            return DefaultRequestPathParser.class;
+        }
+
+        @Override
+        public Map<String, String> getApiRequestPathParserConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, String> getConnectorFactoryConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IPolicyFactory> getPolicyFactoryClass(IPluginRegistry pluginRegistry) {
+            return PolicyFactoryImpl.class;
+        }
+
+        @Override
+        public Map<String, String> getPolicyFactoryConfig() {
+            return Collections.emptyMap();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends IComponent> Class<? extends T> getComponentClass(Class<? extends T> componentType,
+                IPluginRegistry pluginRegistry) {
+            if (componentType == IExecuteBlockingComponent.class) {
+                return (Class<? extends T>) RecordingExecuteBlockingComponent.class;
+            } else if (componentType == IBufferFactoryComponent.class) {
+                return (Class<? extends T>) ByteBufferFactoryComponent.class;
+            }
+            return null;
+        }
+
+        @Override
+        public <T extends IComponent> Map<String, String> getComponentConfig(Class<T> componentType) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IMetrics> getMetricsClass(IPluginRegistry pluginRegistry) {
+            return InMemoryMetrics.class;
+        }
+
+        @Override
+        public Map<String, String> getMetricsConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public List<EngineConfigTuple<? extends IGatewayInitializer>> getGatewayInitializers(IPluginRegistry pluginRegistry) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Class<? extends IDelegateFactory> getLoggerFactoryClass(IPluginRegistry pluginRegistry) {
+            return DefaultDelegateFactory.class;
+        }
+
+        @Override
+        public Map<String, String> getLoggerFactoryConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IPolicyErrorWriter> getPolicyErrorWriterClass(IPluginRegistry pluginRegistry) {
+            return DefaultPolicyErrorWriter.class;
+        }
+
+        @Override
+        public Map<String, String> getPolicyErrorWriterConfig() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Class<? extends IPolicyFailureWriter> getPolicyFailureWriterClass(IPluginRegistry pluginRegistry) {
+            return DefaultPolicyFailureWriter.class;
+        }
+
+        @Override
+        public Map<String, String> getPolicyFailureWriterConfig() {
+            return Collections.emptyMap();
+        }
+    }
+
+}
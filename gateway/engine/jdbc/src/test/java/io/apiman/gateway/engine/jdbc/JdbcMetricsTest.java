@@ -33,6 +33,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import javax.naming.InitialContext;
 
@@ -40,6 +42,7 @@ import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -52,6 +55,7 @@ import com.fasterxml.jackson.databind.util.ISO8601Utils;
 @SuppressWarnings("nls")
 public class JdbcMetricsTest {
 
+    private static final Logger logger = Logger.getLogger(JdbcMetricsTest.class.getName());
     private static final String DB_JNDI_LOC = "java:/comp/env/jdbc/ApiGatewayDS";
     private static BasicDataSource ds = null;
 
@@ -74,6 +78,7 @@ public class JdbcMetricsTest {
     public void reset() throws SQLException {
         QueryRunner run = new QueryRunner(ds);
         run.update("DELETE FROM gw_requests");
+        run.update("DELETE FROM gw_request_rollups");
     }
 
     /**
@@ -92,6 +97,7 @@ public class JdbcMetricsTest {
         
         Thread.sleep(200);
         assertRowCount(1, "SELECT * FROM gw_requests WHERE api_org_id = ?", "TestOrg");
+        assertRowCount(1, "SELECT * FROM gw_requests WHERE api_duration_ns = ? AND req_policies_duration_ns IS NULL", 300000000L);
         metrics.stop();
     }
 
@@ -170,7 +176,128 @@ public class JdbcMetricsTest {
         assertRowCount(2, "SELECT count(*) FROM gw_requests WHERE api_org_id = ? GROUP BY hour", "TestOrg");
         metrics.stop();
     }
-    
+
+    /**
+     * Test method for {@link io.apiman.gateway.engine.jdbc.JdbcMetrics#record(io.apiman.gateway.engine.metrics.RequestMetric)}.
+     */
+    @Test
+    public void testRollups() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("datasource.jndi-location", DB_JNDI_LOC);
+        config.put("rollups", "true");
+        JdbcMetrics metrics = new JdbcMetrics(config);
+        metrics.record(request(
+                "2016-02-10T09:30:10Z", 300, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                "TestOrg", "TestClient", "1.0", "12345", "user1",
+                200, "OK", false, 0, null, false, null, 0, 1024));
+        metrics.record(request(
+                "2016-02-10T09:30:15Z", 200, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                "TestOrg", "TestClient", "1.0", "12345", "user1",
+                500, "Error", false, 0, null, true, "Error", 10, 1024));
+        metrics.record(request(
+                "2016-02-10T09:31:15Z", 300, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                "TestOrg", "TestClient", "1.0", "12345", "user1",
+                200, "OK", false, 0, null, false, null, 0, 1024));
+        metrics.record(request(
+                "2016-02-10T09:30:20Z", 300, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", null,
+                null, null, null, null, null,
+                200, "OK", false, 0, null, false, null, 0, 1024));
+        Thread.sleep(200);
+
+        // Added to the existing rows
+        metrics.record(request(
+                "2016-02-10T09:30:50Z", 100, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                "TestOrg", "TestClient", "1.0", "12345", "user1",
+                200, "OK", false, 0, null, false, null, 0, 1024));
+        metrics.record(request(
+                "2016-02-10T09:30:55Z", 300, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", null,
+                null, null, null, null, null,
+                200, "OK", false, 0, null, false, null, 0, 1024));
+        Thread.sleep(200);
+
+        assertRowCount(0, "SELECT * FROM gw_requests");
+        assertRowCount(3, "SELECT * FROM gw_request_rollups WHERE api_org_id = ?", "TestOrg");
+        assertRowCount(2, "SELECT * FROM gw_request_rollups WHERE client_id = ?", "TestClient");
+        QueryRunner run = new QueryRunner(ds);
+        Object[] row = run.query("SELECT requests, errors, bytes_up, bytes_down, duration FROM gw_request_rollups "
+                + "WHERE client_id = ? ORDER BY minute", ROW_HANDLER, "TestClient");
+        Assert.assertArrayEquals(new Object[] { 3L, 1L, 10L, 3072L, 600L }, row);
+        row = run.query("SELECT requests, errors, bytes_up, bytes_down, duration FROM gw_request_rollups "
+                + "WHERE client_id IS NULL", ROW_HANDLER);
+        Assert.assertArrayEquals(new Object[] { 2L, 0L, 0L, 2048L, 600L }, row);
+        metrics.stop();
+    }
+
+    /**
+     * Records a large number of metrics and reports how long it takes to get them
+     * all into the (embedded H2) database.  Only runs when -Dapiman.test.load=true.
+     */
+    @Test
+    public void testBatchThroughput() throws Exception {
+        Assume.assumeTrue("Set -Dapiman.test.load=true to run the benchmark", Boolean.getBoolean("apiman.test.load"));
+        int count = 20000;
+        Map<String, String> config = new HashMap<>();
+        config.put("datasource.jndi-location", DB_JNDI_LOC);
+        JdbcMetrics metrics = new JdbcMetrics(config);
+        RequestMetric metric = request(
+                "2016-02-10T09:30:10Z", 300, "http://localhost:8080/test/1", "/test/1",
+                "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                "TestOrg", "TestClient", "1.0", "12345", "user1",
+                200, "OK", false, 0, null, false, null, 0, 1024);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            metrics.record(metric);
+        }
+        QueryRunner run = new QueryRunner(ds);
+        long rows = 0;
+        while (rows < count && System.currentTimeMillis() - start < 60000) {
+            Thread.sleep(10);
+            rows = run.query("SELECT count(*) FROM gw_requests", SCALAR_HANDLER);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Inserted " + rows + " metrics in " + elapsed + "ms (" + (rows * 1000 / Math.max(1, elapsed)) + "/s)");
+        Assert.assertEquals(count, rows);
+        metrics.stop();
+    }
+
+    /**
+     * Metrics must still be written to a gw_requests table created by an older DDL,
+     * without the *_duration_ns columns.
+     */
+    @Test
+    public void testRecordWithoutDurationColumns() throws Exception {
+        QueryRunner run = new QueryRunner(ds);
+        String[] columns = { "api_duration_ns", "gateway_duration_ns", "req_policies_duration_ns", "resp_policies_duration_ns" };
+        for (String column : columns) {
+            run.update("ALTER TABLE gw_requests DROP COLUMN " + column);
+        }
+        try {
+            Map<String, String> config = new HashMap<>();
+            config.put("datasource.jndi-location", DB_JNDI_LOC);
+            JdbcMetrics metrics = new JdbcMetrics(config);
+            metrics.record(request(
+                    "2016-02-10T09:30:00Z", 300, "http://localhost:8080/test/1", "/test/1",
+                    "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                    "TestOrg", "TestClient", "1.0", "12345", "user1",
+                    200, "OK", false, 0, null, false, null, 0, 1024));
+
+            Thread.sleep(200);
+            assertRowCount(1, "SELECT * FROM gw_requests WHERE api_org_id = ?", "TestOrg");
+            metrics.stop();
+        } finally {
+            for (String column : columns) {
+                run.update("ALTER TABLE gw_requests ADD COLUMN " + column + " BIGINT");
+            }
+        }
+    }
+
     /**
      * Asserts the row count of the given query.
      * @param count
@@ -199,6 +326,9 @@ public class JdbcMetricsTest {
         rval.setApiStart(start);
         rval.setApiEnd(rval.getRequestEnd());
         rval.setApiDuration(requestDuration);
+        rval.setRequestDurationNanos(TimeUnit.MILLISECONDS.toNanos(requestDuration));
+        rval.setApiDurationNanos(TimeUnit.MILLISECONDS.toNanos(requestDuration));
+        rval.setGatewayDurationNanos(0);
         rval.setUrl(url);
         rval.setResource(resource);
         rval.setMethod(method);
@@ -261,6 +391,30 @@ public class JdbcMetricsTest {
         }
     }
     
+    private static ResultSetHandler<Object[]> ROW_HANDLER = new ResultSetHandler<Object[]>() {
+
+        @Override
+        public Object[] handle(ResultSet rs) throws SQLException {
+            rs.next();
+            Object[] row = new Object[rs.getMetaData().getColumnCount()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = rs.getLong(i + 1);
+            }
+            return row;
+        }
+
+    };
+
+    private static ResultSetHandler<Long> SCALAR_HANDLER = new ResultSetHandler<Long>() {
+
+        @Override
+        public Long handle(ResultSet rs) throws SQLException {
+            rs.next();
+            return rs.getLong(1);
+        }
+
+    };
+
     private static ResultSetHandler<Integer> COUNT_HANDLER = new ResultSetHandler<Integer>() {
 
         @Override
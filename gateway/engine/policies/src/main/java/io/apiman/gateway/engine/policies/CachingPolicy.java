@@ -19,12 +19,17 @@ import static java.util.Optional.ofNullable;
 
 import java.io.IOException;
 
+import io.apiman.gateway.engine.async.IAsyncFuture;
+import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.PolicyFailure;
+import io.apiman.gateway.engine.beans.util.HeaderMap;
 import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
 import io.apiman.gateway.engine.components.ICacheStoreComponent;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
 import io.apiman.gateway.engine.impl.CachedResponse;
 import io.apiman.gateway.engine.io.AbstractStream;
 import io.apiman.gateway.engine.io.IApimanBuffer;
@@ -32,11 +37,15 @@ import io.apiman.gateway.engine.io.IReadWriteStream;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor;
+import io.apiman.gateway.engine.policies.caching.CachedApiResponse;
+import io.apiman.gateway.engine.policies.caching.InFlightRequests;
+import io.apiman.gateway.engine.policies.caching.InFlightRequests.InFlightRequest;
 import io.apiman.gateway.engine.policies.config.CachingConfig;
 import io.apiman.gateway.engine.policy.IConnectorInterceptor;
 import io.apiman.gateway.engine.policy.IDataPolicy;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
+import io.apiman.gateway.engine.policy.IPolicyFailureChain;
 
 /**
  * Policy that enables caching for back-end APIs responses.
@@ -49,6 +58,19 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
     private static final String SHOULD_CACHE_ATTR = CachingPolicy.class.getName() + ".should-cache"; //$NON-NLS-1$
     private static final String CACHE_ID_ATTR = CachingPolicy.class.getName() + ".cache-id"; //$NON-NLS-1$
     private static final String CACHED_RESPONSE = CachingPolicy.class.getName() + ".cached-response"; //$NON-NLS-1$
+    private static final String IN_FLIGHT_ATTR = CachingPolicy.class.getName() + ".in-flight"; //$NON-NLS-1$
+    private static final String STALE_ENTRY_ATTR = CachingPolicy.class.getName() + ".stale-entry"; //$NON-NLS-1$
+    private static final String STALE_IF_ERROR_ATTR = CachingPolicy.class.getName() + ".stale-if-error"; //$NON-NLS-1$
+    private static final String VALIDATED_ATTR = CachingPolicy.class.getName() + ".validated"; //$NON-NLS-1$
+
+    private static final String ETAG = "ETag"; //$NON-NLS-1$
+    private static final String LAST_MODIFIED = "Last-Modified"; //$NON-NLS-1$
+    private static final String IF_NONE_MATCH = "If-None-Match"; //$NON-NLS-1$
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since"; //$NON-NLS-1$
+    /** Headers of a 304 (Not Modified) response that update the cached response. */
+    private static final String[] REVALIDATED_HEADERS = { ETAG, LAST_MODIFIED, "Cache-Control", "Expires", "Date" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
 
     /**
      * Constructor.
@@ -69,6 +91,18 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
      * Otherwise an empty {@link CachedResponse} will be added to the context, this will be used to cache the response once it has been
      * received from the back-end API
      *
+     * Once a cache entry is older than the TTL it is stale:  the request is then forwarded to the
+     * back-end API in order to refresh it, conditionally (If-None-Match / If-Modified-Since) if the
+     * cached response has an ETag or Last-Modified header.  Within the stale-while-revalidate window
+     * only one request refreshes the entry while the others are served the stale entry, and within
+     * the stale-if-error window the stale entry is served if the back-end API responds with an error.
+     * Stale entries are only kept for the longer of those two windows, or (if longer, and the
+     * cached response has an ETag or Last-Modified header) the revalidation window.
+     *
+     * When request coalescing is enabled, only the first of several concurrent identical cache misses
+     * is forwarded to the back-end API:  the others wait (up to the configured timeout) for its
+     * response to be cached and are then served from the cache.
+     *
      * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object, io.apiman.gateway.engine.policy.IPolicyChain)
      */
     @Override
@@ -77,23 +111,27 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         if (config.getTtl() > 0) {
             // Check to see if there is a cache entry for this request.  If so, we need to
             // short-circuit the connector factory by providing a connector interceptor
-            String cacheId = buildCacheID(request);
+            final String cacheId = buildCacheID(request);
             context.setAttribute(CACHE_ID_ATTR, cacheId);
-            ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
-            cache.getBinary(cacheId, ApiResponse.class,
-                    new IAsyncResultHandler<ISignalReadStream<ApiResponse>>() {
+            final ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+            cache.getBinary(cacheId, CachedApiResponse.class,
+                    new IAsyncResultHandler<ISignalReadStream<CachedApiResponse>>() {
                         @Override
-                        public void handle(IAsyncResult<ISignalReadStream<ApiResponse>> result) {
+                        public void handle(IAsyncResult<ISignalReadStream<CachedApiResponse>> result) {
                             if (result.isError()) {
                                 chain.throwError(result.getError());
                             } else {
-                                ISignalReadStream<ApiResponse> cacheEntry = result.getResult();
-                                if (cacheEntry != null) {
-                                    context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry));
-                                    context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
-                                    context.setAttribute(CACHED_RESPONSE, cacheEntry.getHead());
+                                ISignalReadStream<CachedApiResponse> cacheEntry = result.getResult();
+                                if (cacheEntry != null && !isStale(cacheEntry.getHead(), config)) {
+                                    useCacheEntry(context, cacheEntry);
+                                    chain.doApply(request);
+                                } else if (cacheEntry != null) {
+                                    revalidate(request, context, config, chain, cacheId, cacheEntry);
+                                } else if (config.isCoalesceRequests()) {
+                                    coalesce(request, context, config, chain, cache, cacheId);
+                                } else {
+                                    chain.doApply(request);
                                 }
-                                chain.doApply(request);
                             }
                         }
                     });
@@ -103,6 +141,111 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         }
     }
 
+    /**
+     * Handles a cache miss when request coalescing is enabled:  either forwards the request
+     * (if no identical request is in flight) or waits for the in-flight request's response
+     * to be cached.
+     */
+    private void coalesce(final ApiRequest request, final IPolicyContext context, final CachingConfig config,
+            final IPolicyChain<ApiRequest> chain, final ICacheStoreComponent cache, final String cacheId) {
+        final IAsyncHandler<Boolean> resume = new IAsyncHandler<Boolean>() {
+            @Override
+            public void handle(Boolean cached) {
+                if (!cached) {
+                    // Not cached (or timed out) - go to the back-end API ourselves.
+                    chain.doApply(request);
+                    return;
+                }
+                cache.getBinary(cacheId, CachedApiResponse.class, (IAsyncResult<ISignalReadStream<CachedApiResponse>> result) -> {
+                    if (result.isSuccess() && result.getResult() != null) {
+                        useCacheEntry(context, result.getResult());
+                    }
+                    chain.doApply(request);
+                });
+            }
+        };
+
+        // The waiter is released (at the latest) when the in-flight request times out.
+        ContextWaiter waiter = new ContextWaiter();
+        InFlightRequest inFlight = inFlightRequests.join(cacheId, config.getCoalesceTimeout(), waiter);
+        if (inFlight != null) {
+            context.setAttribute(IN_FLIGHT_ATTR, inFlight);
+            chain.doApply(request);
+        } else {
+            waiter.resumeWith(context, resume);
+        }
+    }
+
+    /**
+     * Handles a stale cache entry:  forwards the request to the back-end API (conditionally, if
+     * possible) so that the entry is refreshed, unless another request is already refreshing it
+     * within the stale-while-revalidate window, in which case the stale entry is served.
+     */
+    private void revalidate(final ApiRequest request, final IPolicyContext context, final CachingConfig config,
+            final IPolicyChain<ApiRequest> chain, final String cacheId,
+            final ISignalReadStream<CachedApiResponse> cacheEntry) {
+        long staleness = System.currentTimeMillis() - cacheEntry.getHead().getCachedOn() - config.getTtl() * 1000;
+        if (staleness <= config.getStaleWhileRevalidate() * 1000) {
+            InFlightRequest inFlight = inFlightRequests.start(cacheId, config.getCoalesceTimeout());
+            if (inFlight == null) {
+                useCacheEntry(context, cacheEntry);
+                chain.doApply(request);
+                return;
+            }
+            context.setAttribute(IN_FLIGHT_ATTR, inFlight);
+        }
+
+        // Only make the request conditional if the client didn't - otherwise the client
+        // expects (and gets) the back-end API's response to its own conditions.
+        HeaderMap cachedHeaders = cacheEntry.getHead().getHeaders();
+        HeaderMap requestHeaders = request.getHeaders();
+        if (!requestHeaders.containsKey(IF_NONE_MATCH) && !requestHeaders.containsKey(IF_MODIFIED_SINCE)
+                && (cachedHeaders.containsKey(ETAG) || cachedHeaders.containsKey(LAST_MODIFIED))) {
+            if (cachedHeaders.containsKey(ETAG)) {
+                requestHeaders.put(IF_NONE_MATCH, cachedHeaders.get(ETAG));
+            }
+            if (cachedHeaders.containsKey(LAST_MODIFIED)) {
+                requestHeaders.put(IF_MODIFIED_SINCE, cachedHeaders.get(LAST_MODIFIED));
+            }
+            context.setAttribute(VALIDATED_ATTR, Boolean.TRUE);
+        }
+        context.setAttribute(STALE_ENTRY_ATTR, cacheEntry);
+        context.setAttribute(STALE_IF_ERROR_ATTR, staleness <= config.getStaleIfError() * 1000);
+        chain.doApply(request);
+    }
+
+    /**
+     * Returns true if the cached response is older than the TTL.  Entries cached before the
+     * cache time was recorded are never stale (they simply expire).
+     */
+    private static boolean isStale(CachedApiResponse cachedResponse, CachingConfig config) {
+        return cachedResponse.getCachedOn() > 0
+                && System.currentTimeMillis() - cachedResponse.getCachedOn() > config.getTtl() * 1000;
+    }
+
+    /**
+     * Returns how long (in seconds) a response is kept in the cache store:  the TTL plus
+     * however long it may be served stale or, if it can be conditionally revalidated, the
+     * revalidation window (if that is longer).
+     */
+    private static long getStoreTtl(CachingConfig config, ApiResponse response) {
+        long stale = Math.max(config.getStaleWhileRevalidate(), config.getStaleIfError());
+        HeaderMap headers = response.getHeaders();
+        if (headers.containsKey(ETAG) || headers.containsKey(LAST_MODIFIED)) {
+            stale = Math.max(stale, config.getRevalidateWindow());
+        }
+        return config.getTtl() + stale;
+    }
+
+    /**
+     * Short-circuits the back-end connection and serves the response from the cache entry.
+     */
+    private static void useCacheEntry(IPolicyContext context, ISignalReadStream<CachedApiResponse> cacheEntry) {
+        context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry));
+        context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
+        context.setAttribute(CACHED_RESPONSE, cacheEntry.getHead());
+    }
+
     /**
      * @see AbstractMappedPolicy#doApply(ApiResponse, IPolicyContext, Object, IPolicyChain)
      */
@@ -112,6 +255,20 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         chain.doApply(response);
     }
 
+    /**
+     * A failure means there is no response to cache, so release anyone waiting on this request.
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doProcessFailure(io.apiman.gateway.engine.beans.PolicyFailure, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object, io.apiman.gateway.engine.policy.IPolicyFailureChain)
+     */
+    @Override
+    protected void doProcessFailure(PolicyFailure failure, IPolicyContext context, CachingConfig config,
+            IPolicyFailureChain chain) {
+        InFlightRequest inFlight = context.getAttribute(IN_FLIGHT_ATTR, null);
+        if (inFlight != null) {
+            inFlight.complete(false);
+        }
+        chain.doFailure(failure);
+    }
+
     /**
      * @see io.apiman.gateway.engine.policies.AbstractMappedDataPolicy#requestDataHandler(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object)
      */
@@ -135,12 +292,26 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
                 ofNullable(policyConfiguration.getStatusCodes())
                     .map(statusCodes -> statusCodes.isEmpty() || statusCodes.contains(String.valueOf(response.getCode())))
                     .orElse(true));
+        final InFlightRequest inFlight = context.getAttribute(IN_FLIGHT_ATTR, null);
+
+        // Serve the stale cache entry instead if the back-end API says it hasn't changed, or
+        // if it failed and the entry is within the stale-if-error window.
+        final ISignalReadStream<CachedApiResponse> staleEntry = context.getAttribute(STALE_ENTRY_ATTR, null);
+        if (staleEntry != null) {
+            boolean notModified = response.getCode() == 304 && context.getAttribute(VALIDATED_ATTR, Boolean.FALSE);
+            boolean failed = response.getCode() >= 500 && context.getAttribute(STALE_IF_ERROR_ATTR, Boolean.FALSE);
+            if (notModified || failed) {
+                return serveStaleEntry(response, context, policyConfiguration, staleEntry, notModified, inFlight);
+            }
+        }
 
         if (shouldCache) {
             try {
                 String cacheId = context.getAttribute(CACHE_ID_ATTR, null);
                 ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
-                final ISignalWriteStream writeStream = cache.putBinary(cacheId, response, policyConfiguration.getTtl());
+                final ISignalWriteStream writeStream = cache.putBinary(cacheId,
+                        new CachedApiResponse(response, System.currentTimeMillis()),
+                        getStoreTtl(policyConfiguration, response));
                 return new AbstractStream<ApiResponse>() {
                     @Override
                     public ApiResponse getHead() {
@@ -158,17 +329,91 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
                     public void end() {
                         writeStream.end();
                         super.end();
+                        if (inFlight != null) {
+                            inFlight.complete(true);
+                        }
                     }
                 };
             } catch (ComponentNotFoundException | IOException e) {
-                // TODO log error
+                context.getLogger(CachingPolicy.class).error(e, "Failed to cache the response of {0}", //$NON-NLS-1$
+                        context.getAttribute(CACHE_ID_ATTR, null));
+                if (inFlight != null) {
+                    inFlight.complete(false);
+                }
                 return null;
             }
         } else {
+            if (inFlight != null) {
+                inFlight.complete(false);
+            }
             return null;
         }
     }
 
+    /**
+     * Replaces the back-end API's response (a 304 or an error) with the stale cache entry.  If
+     * the back-end API said the entry hasn't changed it is also cached again, so that it is fresh
+     * for another TTL.
+     */
+    private static IReadWriteStream<ApiResponse> serveStaleEntry(final ApiResponse response,
+            IPolicyContext context, CachingConfig policyConfiguration,
+            final ISignalReadStream<CachedApiResponse> staleEntry, boolean notModified,
+            final InFlightRequest inFlight) {
+        HeaderMap responseHeaders = response.getHeaders();
+        staleEntry.getHead().copyTo(response);
+        ISignalWriteStream refreshStream = null;
+        if (notModified) {
+            for (String header : REVALIDATED_HEADERS) {
+                if (responseHeaders.containsKey(header)) {
+                    response.getHeaders().put(header, responseHeaders.get(header));
+                }
+            }
+            try {
+                String cacheId = context.getAttribute(CACHE_ID_ATTR, null);
+                ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+                refreshStream = cache.putBinary(cacheId, new CachedApiResponse(response, System.currentTimeMillis()),
+                        getStoreTtl(policyConfiguration, response));
+            } catch (ComponentNotFoundException | IOException e) {
+                context.getLogger(CachingPolicy.class).error(e, "Failed to refresh the cache entry of {0}", //$NON-NLS-1$
+                        context.getAttribute(CACHE_ID_ATTR, null));
+            }
+        }
+
+        final ISignalWriteStream writeStream = refreshStream;
+        return new AbstractStream<ApiResponse>() {
+            @Override
+            public ApiResponse getHead() {
+                return response;
+            }
+            @Override
+            protected void handleHead(ApiResponse head) {
+            }
+            @Override
+            public void write(IApimanBuffer chunk) {
+                // Discard the back-end API's body (if any) - the cached body is sent instead.
+            }
+            @Override
+            public void end() {
+                staleEntry.bodyHandler(chunk -> {
+                    if (writeStream != null) {
+                        writeStream.write(chunk);
+                    }
+                    super.write(chunk);
+                });
+                staleEntry.endHandler(v -> {
+                    if (writeStream != null) {
+                        writeStream.end();
+                    }
+                    super.end();
+                    if (inFlight != null) {
+                        inFlight.complete(writeStream != null);
+                    }
+                });
+                staleEntry.transmit();
+            }
+        };
+    }
+
     /**
      * Builds a cached request id composed by the API key followed by the HTTP
      * verb and the destination. In the case where there's no API key the ID
@@ -187,4 +432,67 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         return req.toString();
     }
 
+    /**
+     * Waits on an in-flight request and then resumes the waiting request on its own context
+     * rather than on the thread that released it:  the result of an {@link IExecuteBlockingComponent}
+     * call is delivered on the context that made the call (e.g. the request's Vert.x event loop).
+     * If the gateway has no execute blocking component the request is resumed on the releasing
+     * thread.
+     */
+    private static final class ContextWaiter implements IAsyncHandler<Boolean> {
+
+        private IAsyncFuture<Boolean> future;
+        private Boolean released;
+
+        /**
+         * Called by the in-flight request, possibly before {@link #resumeWith(IPolicyContext, IAsyncHandler)}.
+         * @see io.apiman.gateway.engine.async.IAsyncHandler#handle(java.lang.Object)
+         */
+        @Override
+        public void handle(Boolean cached) {
+            IAsyncFuture<Boolean> waiting;
+            synchronized (this) {
+                waiting = future;
+                if (waiting == null) {
+                    released = cached;
+                    return;
+                }
+            }
+            waiting.completed(cached);
+        }
+
+        /**
+         * Sets what to do (on the calling request's context) once the in-flight request is done.
+         * @param context the policy context
+         * @param resume the handler called with whether the response was cached
+         */
+        public void resumeWith(IPolicyContext context, IAsyncHandler<Boolean> resume) {
+            IExecuteBlockingComponent executor;
+            try {
+                executor = context.getComponent(IExecuteBlockingComponent.class);
+            } catch (ComponentNotFoundException e) {
+                executor = null;
+            }
+            if (executor == null) {
+                IAsyncFuture<Boolean> direct = IAsyncFuture.create();
+                attach(direct.setActionHandler(result -> resume.handle(result.getResult())));
+                return;
+            }
+            // Nothing blocks here:  the future is completed when the waiter is released.
+            executor.<Boolean>executeBlocking(this::attach, result -> resume.handle(result.isSuccess() && result.getResult()));
+        }
+
+        private void attach(IAsyncFuture<Boolean> waiting) {
+            Boolean cached;
+            synchronized (this) {
+                cached = released;
+                if (cached == null) {
+                    future = waiting;
+                    return;
+                }
+            }
+            waiting.completed(cached);
+        }
+    }
+
 }
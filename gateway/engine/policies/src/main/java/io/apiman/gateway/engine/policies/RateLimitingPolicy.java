@@ -25,11 +25,13 @@ import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
 import io.apiman.gateway.engine.policies.config.RateLimitingConfig;
+import io.apiman.gateway.engine.policies.config.rates.RateLimitingAlgorithm;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingGranularity;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingPeriod;
 import io.apiman.gateway.engine.policies.i18n.Messages;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 
 import java.util.HashMap;
@@ -73,6 +75,7 @@ public class RateLimitingPolicy extends AbstractMappedPolicy<RateLimitingConfig>
             final IPolicyChain<ApiRequest> chain) {
         String bucketId = createBucketId(request, config);
         final RateBucketPeriod period = getPeriod(config);
+        final RateBucketAlgorithm algorithm = getAlgorithm(config);
 
         if (bucketId == NO_USER_AVAILABLE) {
             IPolicyFailureFactoryComponent failureFactory = context.getComponent(IPolicyFailureFactoryComponent.class);
@@ -88,7 +91,7 @@ public class RateLimitingPolicy extends AbstractMappedPolicy<RateLimitingConfig>
         }
 
         IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-        rateLimiter.accept(bucketId, period, config.getLimit(), 1, new IAsyncResultHandler<RateLimitResponse>() {
+        rateLimiter.accept(bucketId, period, algorithm, config.getLimit(), 1, new IAsyncResultHandler<RateLimitResponse>() {
             @Override
             public void handle(IAsyncResult<RateLimitResponse> result) {
                 if (result.isError()) {
@@ -228,6 +231,26 @@ public class RateLimitingPolicy extends AbstractMappedPolicy<RateLimitingConfig>
         }
     }
 
+    /**
+     * Gets the appropriate bucket algorithm from the config.
+     * @param config
+     */
+    protected static RateBucketAlgorithm getAlgorithm(RateLimitingConfig config) {
+        RateLimitingAlgorithm algorithm = config.getAlgorithm();
+        if (algorithm == null) {
+            return RateBucketAlgorithm.FixedWindow;
+        }
+        switch (algorithm) {
+        case SlidingWindow:
+            return RateBucketAlgorithm.SlidingWindow;
+        case TokenBucket:
+            return RateBucketAlgorithm.TokenBucket;
+        case FixedWindow:
+        default:
+            return RateBucketAlgorithm.FixedWindow;
+        }
+    }
+
     /**
      * @param config
      * @param rtr
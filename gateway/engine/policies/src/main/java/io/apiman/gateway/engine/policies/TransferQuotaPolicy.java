@@ -32,6 +32,7 @@ import io.apiman.gateway.engine.policies.config.TransferQuotaConfig;
 import io.apiman.gateway.engine.policies.i18n.Messages;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 
 import java.util.Map;
@@ -78,6 +79,7 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
         // *************************************************************
         String bucketId = "XFERQUOTA||" + RateLimitingPolicy.bucketId(request, config); //$NON-NLS-1$
         final RateBucketPeriod period = RateLimitingPolicy.getPeriod(config);
+        final RateBucketAlgorithm algorithm = RateLimitingPolicy.getAlgorithm(config);
 
         if (bucketId == RateLimitingPolicy.NO_USER_AVAILABLE) {
             IPolicyFailureFactoryComponent failureFactory = context.getComponent(IPolicyFailureFactoryComponent.class);
@@ -96,7 +98,7 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
         context.setAttribute(PERIOD_ATTR, period);
 
         IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-        rateLimiter.accept(bucketId, period, config.getLimit(), 0, new IAsyncResultHandler<RateLimitResponse>() {
+        rateLimiter.accept(bucketId, period, algorithm, config.getLimit(), 0, new IAsyncResultHandler<RateLimitResponse>() {
             @Override
             public void handle(IAsyncResult<RateLimitResponse> result) {
                 if (result.isError()) {
@@ -164,10 +166,11 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
         if (config.getDirection() == TransferDirectionType.upload || config.getDirection() == TransferDirectionType.both) {
             final String bucketId = context.getAttribute(BUCKET_ID_ATTR, (String) null);
             final RateBucketPeriod period = context.getAttribute(PERIOD_ATTR, (RateBucketPeriod) null);
+            final RateBucketAlgorithm algorithm = RateLimitingPolicy.getAlgorithm(config);
             final long uploadedBytes = context.getAttribute(BYTES_UPLOADED_ATTR, (Long) null);
 
             IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-            rateLimiter.accept(bucketId, period, config.getLimit(), uploadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
+            rateLimiter.accept(bucketId, period, algorithm, config.getLimit(), uploadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
                 @Override
                 public void handle(IAsyncResult<RateLimitResponse> result) {
                     if (result.isError()) {
@@ -246,9 +249,10 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
         if (config.getDirection() == TransferDirectionType.download || config.getDirection() == TransferDirectionType.both) {
             final String bucketId = context.getAttribute(BUCKET_ID_ATTR, (String) null);
             final RateBucketPeriod period = context.getAttribute(PERIOD_ATTR, (RateBucketPeriod) null);
+            final RateBucketAlgorithm algorithm = RateLimitingPolicy.getAlgorithm(config);
 
             IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-            rateLimiter.accept(bucketId, period, config.getLimit(), downloadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
+            rateLimiter.accept(bucketId, period, algorithm, config.getLimit(), downloadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
                 @Override
                 public void handle(IAsyncResult<RateLimitResponse> result) {
                     // No need to handle the response - it's too late to do anything meaningful with the result.
@@ -38,7 +38,7 @@ import io.apiman.gateway.engine.policy.IConnectorInterceptor;
 public class CacheConnectorInterceptor implements IConnectorInterceptor, IApiConnector,
         IApiConnection, IApiConnectionResponse {
 
-    private ISignalReadStream<ApiResponse> cacheEntry;
+    private ISignalReadStream<? extends ApiResponse> cacheEntry;
     private IAsyncResultHandler<IApiConnectionResponse> handler;
     private boolean finished = false;
     private boolean connected = false;
@@ -47,7 +47,7 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IApiCon
      * Constructor.
      * @param cacheEntry
      */
-    public CacheConnectorInterceptor(ISignalReadStream<ApiResponse> cacheEntry) {
+    public CacheConnectorInterceptor(ISignalReadStream<? extends ApiResponse> cacheEntry) {
         this.cacheEntry = cacheEntry;
     }
 
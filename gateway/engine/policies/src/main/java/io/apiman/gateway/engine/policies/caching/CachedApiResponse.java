@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.util.HeaderMap;
+
+import java.util.Map.Entry;
+
+/**
+ * The response head stored in the cache by the caching policy:  a copy of the
+ * back-end API's response, along with the time it was cached (so that the policy
+ * can tell whether the entry is fresh or stale).
+ */
+public class CachedApiResponse extends ApiResponse {
+
+    private static final long serialVersionUID = 6155950151327455542L;
+
+    private long cachedOn;
+
+    /**
+     * Constructor.
+     */
+    public CachedApiResponse() {
+    }
+
+    /**
+     * Constructor.
+     * @param response the response to copy
+     * @param cachedOn the time the response was cached
+     */
+    public CachedApiResponse(ApiResponse response, long cachedOn) {
+        setCode(response.getCode());
+        setMessage(response.getMessage());
+        setHeaders(copyHeaders(response.getHeaders()));
+        setCachedOn(cachedOn);
+    }
+
+    /**
+     * @return the time the response was cached (0 if unknown)
+     */
+    public long getCachedOn() {
+        return cachedOn;
+    }
+
+    /**
+     * @param cachedOn the cachedOn to set
+     */
+    public void setCachedOn(long cachedOn) {
+        this.cachedOn = cachedOn;
+    }
+
+    /**
+     * Copies the response head (code, message and headers) into the given response.
+     * @param response the response to copy into
+     */
+    public void copyTo(ApiResponse response) {
+        response.setCode(getCode());
+        response.setMessage(getMessage());
+        response.setHeaders(copyHeaders(getHeaders()));
+    }
+
+    private static HeaderMap copyHeaders(HeaderMap headers) {
+        HeaderMap copy = new HeaderMap();
+        for (Entry<String, String> header : headers) {
+            copy.add(header.getKey(), header.getValue());
+        }
+        return copy;
+    }
+
+}
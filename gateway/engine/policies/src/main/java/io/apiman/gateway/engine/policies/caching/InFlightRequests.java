@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.async.IAsyncHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the cacheable requests that are currently being forwarded to the back-end
+ * API, so that concurrent identical requests can wait for (and then be served from
+ * the cache entry of) the in-flight response, rather than all hitting the back-end
+ * at once (collapsed forwarding).
+ *
+ * An in-flight request is completed (as not cached) once it has been in flight for
+ * longer than the timeout, so its waiters are released even if the request failed
+ * in a way the policy never hears about (e.g. a connection error).  This uses a
+ * timer of its own, as not all gateways provide a periodic component.
+ *
+ * Waiters are released on a small, bounded pool rather than on the thread of whoever
+ * completes the in-flight request:  a waiter carries on with its own request, so it
+ * should hand the work back to that request's own context (see the caching policy).
+ */
+public class InFlightRequests {
+
+    private static final int RELEASER_THREADS = 4;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(InFlightRequests::daemon);
+    private static final ExecutorService releaser = createReleaser();
+
+    private final ConcurrentMap<String, InFlightRequest> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public InFlightRequests() {
+    }
+
+    /**
+     * Joins the in-flight request for the given cache id.  If there is none (or the
+     * current one has been in flight for longer than its timeout) a new one is started
+     * and returned:  the caller should forward its request to the back-end and then
+     * {@link InFlightRequest#complete(boolean)} it.  Otherwise the waiter is added to
+     * the in-flight request and null is returned; the waiter is later called with
+     * true if the response was cached, or false if it wasn't or the in-flight request
+     * timed out (in which case the caller should forward its own request).
+     * @param cacheId the cache id
+     * @param timeout the maximum time (in millis) to wait for an in-flight request
+     * @param waiter the waiter
+     */
+    public InFlightRequest join(String cacheId, long timeout, IAsyncHandler<Boolean> waiter) {
+        while (true) {
+            InFlightRequest current = inFlight.get(cacheId);
+            if (current == null) {
+                InFlightRequest request = new InFlightRequest(cacheId, System.currentTimeMillis() + timeout);
+                if (inFlight.putIfAbsent(cacheId, request) == null) {
+                    request.expireAfter(timeout);
+                    return request;
+                }
+            } else if (System.currentTimeMillis() > current.deadline) {
+                // The response never arrived (e.g. the request failed) - release its waiters.
+                current.complete(false);
+            } else if (current.addWaiter(waiter)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Starts a request for the given cache id, unless one is already in flight (and
+     * has been for less than its timeout).  Unlike {@link #join(String, long, IAsyncHandler)}
+     * the caller never waits:  this is used to make sure only one request refreshes a
+     * stale cache entry while the others are served the stale entry.
+     * @param cacheId the cache id
+     * @param timeout the maximum time (in millis) a request can be in flight
+     * @return the new in-flight request, or null if one is already in flight
+     */
+    public InFlightRequest start(String cacheId, long timeout) {
+        while (true) {
+            InFlightRequest current = inFlight.get(cacheId);
+            if (current == null) {
+                InFlightRequest request = new InFlightRequest(cacheId, System.currentTimeMillis() + timeout);
+                if (inFlight.putIfAbsent(cacheId, request) == null) {
+                    request.expireAfter(timeout);
+                    return request;
+                }
+            } else if (System.currentTimeMillis() > current.deadline) {
+                current.complete(false);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stops a waiter from waiting on the in-flight request for the given cache id.
+     * @param cacheId the cache id
+     * @param waiter the waiter
+     * @return true if the waiter was still waiting (and so will not be called)
+     */
+    public boolean leave(String cacheId, IAsyncHandler<Boolean> waiter) {
+        InFlightRequest current = inFlight.get(cacheId);
+        return current != null && current.removeWaiter(waiter);
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    private static ExecutorService createReleaser() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(RELEASER_THREADS, RELEASER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), InFlightRequests::daemon);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Thread daemon(Runnable r) {
+        Thread thread = new Thread(r, "apiman-in-flight-requests"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * A request being forwarded to the back-end API, and the identical requests
+     * waiting for its response.
+     */
+    public final class InFlightRequest {
+
+        private final String cacheId;
+        private final long deadline;
+        private List<IAsyncHandler<Boolean>> waiters = new ArrayList<>();
+        private volatile Future<?> expiry;
+
+        private InFlightRequest(String cacheId, long deadline) {
+            this.cacheId = cacheId;
+            this.deadline = deadline;
+        }
+
+        private void expireAfter(long timeout) {
+            expiry = timer.schedule(() -> complete(false), timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized boolean addWaiter(IAsyncHandler<Boolean> waiter) {
+            if (waiters == null) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        private synchronized boolean removeWaiter(IAsyncHandler<Boolean> waiter) {
+            return waiters != null && waiters.remove(waiter);
+        }
+
+        /**
+         * Completes the request, releasing everyone waiting on it (asynchronously, on
+         * the release pool).  Only the first call has any effect.
+         * @param cached whether the response was cached
+         */
+        public void complete(boolean cached) {
+            List<IAsyncHandler<Boolean>> released;
+            synchronized (this) {
+                if (waiters == null) {
+                    return;
+                }
+                released = waiters;
+                waiters = null;
+            }
+            Future<?> pending = expiry;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            inFlight.remove(cacheId, this);
+            for (IAsyncHandler<Boolean> waiter : released) {
+                releaser.execute(() -> waiter.handle(cached));
+            }
+        }
+    }
+
+}
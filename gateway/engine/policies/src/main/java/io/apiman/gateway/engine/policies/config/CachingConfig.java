@@ -27,6 +27,11 @@ public class CachingConfig {
 
     private long ttl; // in seconds
     private List<String> statusCodes = new ArrayList<>();
+    private boolean coalesceRequests;
+    private long coalesceTimeout = 5000; // in milliseconds
+    private long staleWhileRevalidate; // in seconds
+    private long staleIfError; // in seconds
+    private long revalidateWindow = 300; // in seconds
 
     /**
      * Constructor.
@@ -61,4 +66,75 @@ public class CachingConfig {
     public void setStatusCodes(List<String> statusCodes) {
         this.statusCodes = statusCodes;
     }
+
+    /**
+     * @return whether concurrent identical cache misses should wait for a single back-end request
+     */
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * @param coalesceRequests the coalesceRequests to set
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) to wait for an in-flight back-end request
+     */
+    public long getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    /**
+     * @param coalesceTimeout the coalesceTimeout to set
+     */
+    public void setCoalesceTimeout(long coalesceTimeout) {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
+    /**
+     * @return how long (in seconds) after expiring a cache entry can still be served while it is refreshed
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @param staleWhileRevalidate the staleWhileRevalidate to set
+     */
+    public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * @return how long (in seconds) after expiring a cache entry can still be served if the back-end API fails
+     */
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * @param staleIfError the staleIfError to set
+     */
+    public void setStaleIfError(long staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * @return how long (in seconds) after expiring a cache entry with an ETag or Last-Modified
+     *         header is kept so that it can be conditionally revalidated
+     */
+    public long getRevalidateWindow() {
+        return revalidateWindow;
+    }
+
+    /**
+     * @param revalidateWindow the revalidateWindow to set
+     */
+    public void setRevalidateWindow(long revalidateWindow) {
+        this.revalidateWindow = revalidateWindow;
+    }
 }
@@ -51,6 +51,32 @@ public class CachingPolicyConfigTest {
         parsed = policy.parseConfiguration(config);
         parsedConfig = (CachingConfig) parsed;
         Assert.assertEquals(12345L, parsedConfig.getTtl());
+        Assert.assertFalse(parsedConfig.isCoalesceRequests());
+
+        // Request coalescing
+        config = "{\n" +
+                "  \"ttl\" : 60,\n" +
+                "  \"coalesceRequests\" : true,\n" +
+                "  \"coalesceTimeout\" : 2500\n" +
+                "}";
+        parsedConfig = (CachingConfig) policy.parseConfiguration(config);
+        Assert.assertTrue(parsedConfig.isCoalesceRequests());
+        Assert.assertEquals(2500L, parsedConfig.getCoalesceTimeout());
+        Assert.assertEquals(0L, parsedConfig.getStaleWhileRevalidate());
+        Assert.assertEquals(0L, parsedConfig.getStaleIfError());
+        Assert.assertEquals(300L, parsedConfig.getRevalidateWindow());
+
+        // Stale responses
+        config = "{\n" +
+                "  \"ttl\" : 60,\n" +
+                "  \"staleWhileRevalidate\" : 30,\n" +
+                "  \"staleIfError\" : 3600,\n" +
+                "  \"revalidateWindow\" : 600\n" +
+                "}";
+        parsedConfig = (CachingConfig) policy.parseConfiguration(config);
+        Assert.assertEquals(30L, parsedConfig.getStaleWhileRevalidate());
+        Assert.assertEquals(3600L, parsedConfig.getStaleIfError());
+        Assert.assertEquals(600L, parsedConfig.getRevalidateWindow());
     }
 
 }
@@ -17,6 +17,7 @@ package io.apiman.gateway.engine.policies;
 
 import io.apiman.gateway.engine.policies.config.TransferDirectionType;
 import io.apiman.gateway.engine.policies.config.TransferQuotaConfig;
+import io.apiman.gateway.engine.policies.config.rates.RateLimitingAlgorithm;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingGranularity;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingPeriod;
 
@@ -47,6 +48,7 @@ public class TransferQuotaPolicyConfigTest {
         Assert.assertNull(parsedConfig.getUserHeader());
         Assert.assertNull(parsedConfig.getGranularity());
         Assert.assertNull(parsedConfig.getPeriod());
+        Assert.assertNull(parsedConfig.getAlgorithm());
         Assert.assertNull(parsedConfig.getHeaderLimit());
         Assert.assertNull(parsedConfig.getHeaderRemaining());
         Assert.assertNull(parsedConfig.getHeaderReset());
@@ -57,6 +59,7 @@ public class TransferQuotaPolicyConfigTest {
                 "  \"direction\" : \"both\",\r\n" +
                 "  \"granularity\" : \"User\",\r\n" +
                 "  \"period\" : \"Day\",\r\n" +
+                "  \"algorithm\" : \"TokenBucket\",\r\n" +
                 "  \"headerRemaining\" : \"X-Foo-Remaining\",\r\n" +
                 "  \"headerLimit\" : \"X-Foo-Limit\",\r\n" +
                 "  \"headerReset\" : \"X-Foo-Reset\",\r\n" +
@@ -75,6 +78,7 @@ public class TransferQuotaPolicyConfigTest {
         Assert.assertEquals(RateLimitingGranularity.User, parsedConfig.getGranularity());
         Assert.assertEquals(123456789123456789L, parsedConfig.getLimit());
         Assert.assertEquals(RateLimitingPeriod.Day, parsedConfig.getPeriod());
+        Assert.assertEquals(RateLimitingAlgorithm.TokenBucket, parsedConfig.getAlgorithm());
 
         Assert.assertEquals("X-Foo-Limit", parsedConfig.getHeaderLimit());
         Assert.assertEquals("X-Foo-Remaining", parsedConfig.getHeaderRemaining());
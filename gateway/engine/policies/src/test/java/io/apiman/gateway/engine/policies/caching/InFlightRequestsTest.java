@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.policies.caching.InFlightRequests.InFlightRequest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test.
+ */
+public class InFlightRequestsTest {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        InFlightRequests requests = new InFlightRequests();
+        List<Boolean> results = new CopyOnWriteArrayList<>();
+        IAsyncHandler<Boolean> waiter = cached -> results.add(cached);
+
+        InFlightRequest leader = requests.join("key", 10000, waiter);
+        Assert.assertNotNull(leader);
+        Assert.assertNull(requests.join("key", 10000, waiter));
+        Assert.assertNull(requests.join("key", 10000, waiter));
+        Assert.assertNotNull(requests.join("other-key", 10000, waiter));
+        Assert.assertTrue(results.isEmpty());
+
+        // The waiters are released on the release pool
+        leader.complete(true);
+        awaitSize(results, 2);
+        Assert.assertTrue(results.get(0));
+        Assert.assertTrue(results.get(1));
+
+        // Completing again has no effect, and the next miss becomes the new leader
+        leader.complete(false);
+        Thread.sleep(20);
+        Assert.assertEquals(2, results.size());
+        Assert.assertNotNull(requests.join("key", 10000, waiter));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        InFlightRequests requests = new InFlightRequests();
+        List<Boolean> results = new CopyOnWriteArrayList<>();
+        IAsyncHandler<Boolean> waiter1 = cached -> results.add(cached);
+        IAsyncHandler<Boolean> waiter2 = cached -> results.add(cached);
+
+        InFlightRequest leader = requests.join("key", 10, waiter1);
+        Assert.assertNull(requests.join("key", 10, waiter1));
+        Assert.assertNull(requests.join("key", 10, waiter2));
+
+        // A timed out waiter leaves and is not called on completion
+        Assert.assertTrue(requests.leave("key", waiter2));
+        Assert.assertFalse(requests.leave("key", waiter2));
+
+        // A stale in-flight request is replaced (if it hasn't expired already), releasing its waiters
+        Thread.sleep(20);
+        InFlightRequest newLeader = requests.join("key", 10000, waiter1);
+        Assert.assertNotNull(newLeader);
+        Assert.assertNotSame(leader, newLeader);
+        awaitSize(results, 1);
+        Assert.assertFalse(results.get(0));
+
+        // The stale leader completing late doesn't affect the new one
+        leader.complete(true);
+        Assert.assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        InFlightRequests requests = new InFlightRequests();
+        List<Boolean> results = new CopyOnWriteArrayList<>();
+        IAsyncHandler<Boolean> waiter = cached -> results.add(cached);
+
+        // Only one request at a time is started, and nobody waits on it
+        InFlightRequest leader = requests.start("key", 10);
+        Assert.assertNotNull(leader);
+        Assert.assertNull(requests.start("key", 10));
+        Assert.assertNull(requests.join("key", 10, waiter));
+
+        // A stale in-flight request is replaced
+        Thread.sleep(20);
+        InFlightRequest newLeader = requests.start("key", 10000);
+        Assert.assertNotNull(newLeader);
+        Assert.assertNotSame(leader, newLeader);
+        awaitSize(results, 1);
+        Assert.assertFalse(results.get(0));
+
+        newLeader.complete(true);
+        Assert.assertEquals(0, requests.size());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        InFlightRequests requests = new InFlightRequests();
+        CountDownLatch released = new CountDownLatch(1);
+        List<Boolean> results = new CopyOnWriteArrayList<>();
+        IAsyncHandler<Boolean> waiter = cached -> {
+            results.add(cached);
+            released.countDown();
+        };
+
+        // The leader never completes (e.g. its request failed) and no other request comes
+        // along - the waiter is still released once the timeout is up.
+        Assert.assertNotNull(requests.join("key", 50, waiter));
+        Assert.assertNull(requests.join("key", 50, waiter));
+        Assert.assertTrue(released.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, results.size());
+        Assert.assertFalse(results.get(0));
+        Assert.assertEquals(0, requests.size());
+    }
+
+    /**
+     * Waits for the given number of results - waiters are released asynchronously.
+     */
+    private static void awaitSize(List<Boolean> results, int size) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (results.size() < size && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(size, results.size());
+    }
+
+}
@@ -17,10 +17,14 @@ package io.apiman.gateway.engine.prometheus;
 
 import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric.CircuitState;
+import io.apiman.gateway.engine.metrics.PolicyMetric;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
-import io.prometheus.client.Summary;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.common.TextFormat;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
@@ -29,17 +33,34 @@ import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.Json;
 
-import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Prometheus scrape metrics.
  *
+ * Requests are labelled by method, status class (e.g. 2xx), API, API version and
+ * client, which keeps the number of time series low.  The label children for each
+ * combination are cached, so recording a request doesn't allocate label arrays.
+ *
+ * The circuit state of each back-end endpoint (if the circuit breaker is enabled) is
+ * exported as a gauge per endpoint and state, which is 1 for the current state and 0
+ * for the others.
+ *
  * Config:
  * <ul>
  *   <li>port - port for web-server to listen on for scrape requests</li>
+ *   <li>requestDurationBuckets - comma separated request duration histogram buckets (in milliseconds)</li>
+ *   <li>apiDurationBuckets - comma separated back-end API duration histogram buckets (in milliseconds)</li>
+ *   <li>gatewayDurationBuckets - comma separated gateway duration (request duration less back-end API
+ *       duration) histogram buckets (in milliseconds)</li>
+ *   <li>policiesDurationBuckets - comma separated policy chain duration histogram buckets (in milliseconds)</li>
+ *   <li>policyProfiling.rate - profile the policies of one in every N requests (default 0, disabled)</li>
  * </ul>
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
@@ -52,12 +73,24 @@ public class PrometheusScrapeMetrics implements IMetrics {
     private static final String API_VERSION = "apiVersion";
     private static final String API = "api";
     private static final String METHOD = "method";
-    private static final String RESPONSE_CODE = "responseCode";
+    private static final String STATUS_CLASS = "statusClass";
     private static final String FAILURE_CODE = "failureCode";
+    private static final String CHAIN = "chain";
+    private static final String POLICY = "policy";
+    private static final String ENDPOINT = "endpoint";
+    private static final String STATE = "state";
+
+    private static final String DEFAULT_BUCKETS = "5,10,25,50,100,250,500,1000,2500,5000,10000";
+    private static final String DEFAULT_GATEWAY_BUCKETS = "0.5,1,2.5,5,10,25,50,100,250,500,1000";
+    private static final double NANOS_PER_MILLI = 1000000d;
+    private static final String[] STATUS_CLASSES = { "0xx", "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private static final int SCRAPE_CHUNK_SIZE = 16 * 1024;
 
     private final Map<String, String> componentConfig;
     private final Vertx vertx;
     private final HttpServer webServer;
+    private final int policyProfilingRate;
+    private final ConcurrentMap<LabelKey, LabelChildren> labelChildren = new ConcurrentHashMap<>();
 
     final CollectorRegistry collectorRegistry = new CollectorRegistry();
 
@@ -66,7 +99,7 @@ public class PrometheusScrapeMetrics implements IMetrics {
             .name("requests_total").help("Total requests.")
             .namespace(APIMAN)
             .labelNames(METHOD,
-                    RESPONSE_CODE,
+                    STATUS_CLASS,
                     API,
                     API_VERSION,
                     CLIENT)
@@ -76,7 +109,7 @@ public class PrometheusScrapeMetrics implements IMetrics {
             .name("errors_total").help("Total errors.")
             .namespace(APIMAN)
             .labelNames(METHOD,
-                    RESPONSE_CODE,
+                    STATUS_CLASS,
                     API,
                     API_VERSION,
                     CLIENT)
@@ -86,34 +119,98 @@ public class PrometheusScrapeMetrics implements IMetrics {
             .name("policy_failures_total").help("Total policy failures.")
             .namespace(APIMAN)
             .labelNames(METHOD,
-                    RESPONSE_CODE,
+                    STATUS_CLASS,
                     FAILURE_CODE,
                     API,
                     API_VERSION,
                     CLIENT)
             .register(collectorRegistry);
 
-    final Summary requestDuration = Summary.build()
-            .name("request_duration_milliseconds").help("Request duration in milliseconds.")
+    final Counter bytesUploadedCtr = Counter.build()
+            .name("bytes_uploaded_total").help("Total bytes uploaded (request bodies).")
             .namespace(APIMAN)
             .labelNames(METHOD,
-                    RESPONSE_CODE,
+                    STATUS_CLASS,
                     API,
                     API_VERSION,
                     CLIENT)
             .register(collectorRegistry);
 
+    final Counter bytesDownloadedCtr = Counter.build()
+            .name("bytes_downloaded_total").help("Total bytes downloaded (response bodies).")
+            .namespace(APIMAN)
+            .labelNames(METHOD,
+                    STATUS_CLASS,
+                    API,
+                    API_VERSION,
+                    CLIENT)
+            .register(collectorRegistry);
+
+    final Gauge backendCircuitState = Gauge.build()
+            .name("backend_circuit_state").help("Circuit state of the back-end API endpoints (1 for the current state).")
+            .namespace(APIMAN)
+            .labelNames(ENDPOINT,
+                    STATE)
+            .register(collectorRegistry);
+
+    final Histogram requestDuration;
+    final Histogram apiDuration;
+    final Histogram gatewayDuration;
+    final Histogram policiesDuration;
+    final Histogram policyApplyDuration;
+    final Histogram policyWaitDuration;
+
+    final Counter policyDataBytesCtr = Counter.build()
+            .name("policy_data_bytes_total").help("Total bytes through policy data handlers (profiled requests only).")
+            .namespace(APIMAN)
+            .labelNames(POLICY,
+                    CHAIN)
+            .register(collectorRegistry);
+
     public PrometheusScrapeMetrics(Map<String, String> componentConfig,
             Handler<AsyncResult<HttpServer>> listenHandler) {
         this.vertx = Vertx.vertx();
         this.componentConfig = componentConfig;
+        this.requestDuration = buildHistogram("request_duration_milliseconds",
+                "Request duration in milliseconds.", "requestDurationBuckets", DEFAULT_BUCKETS,
+                METHOD, STATUS_CLASS, API, API_VERSION, CLIENT);
+        this.apiDuration = buildHistogram("api_duration_milliseconds",
+                "Back-end API duration in milliseconds.", "apiDurationBuckets", DEFAULT_BUCKETS,
+                METHOD, STATUS_CLASS, API, API_VERSION, CLIENT);
+        this.gatewayDuration = buildHistogram("gateway_duration_milliseconds",
+                "Time spent in the gateway (excluding the back-end API) in milliseconds.",
+                "gatewayDurationBuckets", DEFAULT_GATEWAY_BUCKETS,
+                METHOD, STATUS_CLASS, API, API_VERSION, CLIENT);
+        this.policiesDuration = buildHistogram("policies_duration_milliseconds",
+                "Policy chain duration in milliseconds.", "policiesDurationBuckets", DEFAULT_GATEWAY_BUCKETS,
+                API, API_VERSION, CHAIN);
+        this.policyApplyDuration = buildHistogram("policy_apply_duration_milliseconds",
+                "Time spent applying a policy in milliseconds (profiled requests only).",
+                "policiesDurationBuckets", DEFAULT_GATEWAY_BUCKETS, POLICY, CHAIN);
+        this.policyWaitDuration = buildHistogram("policy_wait_duration_milliseconds",
+                "Time spent waiting on a policy (e.g. for a rate limiter or LDAP) in milliseconds (profiled requests only).",
+                "policiesDurationBuckets", DEFAULT_GATEWAY_BUCKETS, POLICY, CHAIN);
+        String profilingRate = componentConfig.get("policyProfiling.rate");
+        this.policyProfilingRate = profilingRate == null ? 0 : Integer.parseInt(profilingRate);
         this.webServer = setupWebserver(listenHandler);
     }
 
     public PrometheusScrapeMetrics(Map<String, String> componentConfig) {
-        this.vertx = Vertx.vertx();
-        this.componentConfig = componentConfig;
-        this.webServer = setupWebserver(null);
+        this(componentConfig, null);
+    }
+
+    private Histogram buildHistogram(String name, String help, String bucketsKey, String defaultBuckets,
+            String... labelNames) {
+        String buckets = componentConfig.getOrDefault(bucketsKey, defaultBuckets);
+        return Histogram.build()
+                .name(name).help(help)
+                .namespace(APIMAN)
+                .labelNames(labelNames)
+                .buckets(Arrays.stream(buckets.split(","))
+                        .map(String::trim)
+                        .mapToDouble(Double::parseDouble)
+                        .toArray())
+                .register(collectorRegistry);
     }
 
     private HttpServer setupWebserver(Handler<AsyncResult<HttpServer>> listenHandler) {
@@ -121,14 +218,18 @@ public class PrometheusScrapeMetrics implements IMetrics {
         Objects.requireNonNull(port, "Must specify port for scrape server to listen on");
         return vertx.createHttpServer().requestHandler(request -> {
             HttpServerResponse response = request.response();
-            StringWriter sw = new StringWriter();
+            response.putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
+                .setChunked(true);
+            ResponseWriter writer = new ResponseWriter(response);
             try {
-                TextFormat.write004(sw, collectorRegistry.metricFamilySamples());
-                response.setStatusCode(200)
-                    .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
-                    .setChunked(true)
-                    .write(sw.toString());
+                TextFormat.write004(writer, collectorRegistry.metricFamilySamples());
+                writer.flush();
             } catch (Exception e) {
+                if (writer.written) {
+                    // Too late to report the error - the client will see a truncated response.
+                    response.close();
+                    return;
+                }
                 response.setStatusCode(500)
                     .write(Json.encode(e));
             }
@@ -140,43 +241,104 @@ public class PrometheusScrapeMetrics implements IMetrics {
     public void setComponentRegistry(IComponentRegistry componentRegistry) {
     }
 
+    @Override
+    public int getPolicyProfilingRate() {
+        return policyProfilingRate;
+    }
+
     @Override
     public void record(RequestMetric metric) {
-        doRequestsCtr(requestsCtr, metric);
-        doRequestDuration(metric);
+        String statusClass = statusClass(metric.getResponseCode());
+        LabelChildren children = labelChildren(metric, statusClass);
+        children.requests.inc();
+        children.requestDuration.observe(millis(metric.getRequestDurationNanos(), metric.getRequestDuration()));
+        if (metric.getApiEnd() != null) {
+            children.apiDuration.observe(millis(metric.getApiDurationNanos(), metric.getApiDuration()));
+        }
+        if (metric.getGatewayDurationNanos() >= 0) {
+            children.gatewayDuration().observe(metric.getGatewayDurationNanos() / NANOS_PER_MILLI);
+        }
+        if (metric.getRequestPoliciesDurationNanos() >= 0) {
+            children.requestPoliciesDuration().observe(metric.getRequestPoliciesDurationNanos() / NANOS_PER_MILLI);
+        }
+        if (metric.getResponsePoliciesDurationNanos() >= 0) {
+            children.responsePoliciesDuration().observe(metric.getResponsePoliciesDurationNanos() / NANOS_PER_MILLI);
+        }
+        if (metric.getBytesUploaded() > 0) {
+            children.bytesUploaded.inc(metric.getBytesUploaded());
+        }
+        if (metric.getBytesDownloaded() > 0) {
+            children.bytesDownloaded.inc(metric.getBytesDownloaded());
+        }
 
         if (metric.isError()) {
-            doRequestsCtr(errorsCtr, metric);
+            children.errors().inc();
         }
 
         if (metric.isFailure()) {
-            doFailureCtr(metric);
+            doFailureCtr(metric, statusClass);
+        }
+
+        if (metric.getPolicyMetrics() != null) {
+            doPolicyMetrics(metric.getPolicyMetrics());
         }
     }
 
-    private void doFailureCtr(RequestMetric metric) {
+    @Override
+    public void recordBackendHealth(BackendHealthMetric metric) {
+        String endpoint = metric.getEndpoint() == null ? "" : metric.getEndpoint();
+        synchronized (backendCircuitState) {
+            for (CircuitState state : CircuitState.values()) {
+                backendCircuitState.labels(endpoint, state.name()).set(state == metric.getState() ? 1 : 0);
+            }
+        }
+    }
+
+    private void doPolicyMetrics(List<PolicyMetric> policyMetrics) {
+        synchronized (policyMetrics) {
+            for (PolicyMetric policyMetric : policyMetrics) {
+                String[] labels = nullToEmpty(policyMetric.getPolicyImpl(), policyMetric.getChain());
+                policyApplyDuration.labels(labels).observe(policyMetric.getApplyDuration() / NANOS_PER_MILLI);
+                if (policyMetric.getWaitDuration() > 0) {
+                    policyWaitDuration.labels(labels).observe(policyMetric.getWaitDuration() / NANOS_PER_MILLI);
+                }
+                if (policyMetric.getDataBytes() > 0) {
+                    policyDataBytesCtr.labels(labels).inc(policyMetric.getDataBytes());
+                }
+            }
+        }
+    }
+
+    private LabelChildren labelChildren(RequestMetric metric, String statusClass) {
+        LabelKey key = new LabelKey(metric.getMethod(), statusClass, metric.getApiId(),
+                metric.getApiVersion(), metric.getClientId());
+        LabelChildren children = labelChildren.get(key);
+        if (children == null) {
+            children = labelChildren.computeIfAbsent(key, LabelChildren::new);
+        }
+        return children;
+    }
+
+    private void doFailureCtr(RequestMetric metric, String statusClass) {
         failureCtr.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
+                statusClass,
                 Integer.toString(metric.getFailureCode()),
                 metric.getApiId(),
                 metric.getApiVersion(),
                 metric.getClientId())).inc();
     }
 
-    protected void doRequestsCtr(Counter ctr, RequestMetric metric) {
-        ctr.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
-                metric.getApiId(),
-                metric.getApiVersion(),
-                metric.getClientId())).inc();
+    /**
+     * The (fractional) milliseconds of the given nanosecond duration, falling back to the
+     * given millisecond duration when the nanosecond one isn't known.
+     */
+    private static double millis(long nanos, long fallbackMillis) {
+        return nanos >= 0 ? nanos / NANOS_PER_MILLI : fallbackMillis;
     }
 
-    protected void doRequestDuration(RequestMetric metric) {
-        requestDuration.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
-                metric.getApiId(),
-                metric.getApiVersion(),
-                metric.getClientId())).observe(metric.getRequestDuration());
+    private static String statusClass(int responseCode) {
+        int statusClass = responseCode / 100;
+        return statusClass >= 0 && statusClass < STATUS_CLASSES.length ? STATUS_CLASSES[statusClass] : Integer.toString(responseCode);
     }
 
     /**
@@ -184,7 +346,7 @@ public class PrometheusScrapeMetrics implements IMetrics {
      * @param labelValues the label values, which may contain {@code null} elements
      * @return the label values with {@code null} elements replaced with empty strings
      */
-    private String[] nullToEmpty(String... labelValues) {
+    private static String[] nullToEmpty(String... labelValues) {
         return Arrays.stream(labelValues)
                 .map(labelValue -> null == labelValue ? "" : labelValue)
                 .toArray(String[]::new);
@@ -193,5 +355,150 @@ public class PrometheusScrapeMetrics implements IMetrics {
     public void close(Handler<AsyncResult<Void>> completionHandler) {
         webServer.close(completionHandler);
         collectorRegistry.clear();
+        labelChildren.clear();
+    }
+
+    /**
+     * The label values of a request:  method, status class, API, API version and client.
+     */
+    private static final class LabelKey {
+        private final String method;
+        private final String statusClass;
+        private final String api;
+        private final String apiVersion;
+        private final String client;
+        private final int hash;
+
+        LabelKey(String method, String statusClass, String api, String apiVersion, String client) {
+            this.method = method;
+            this.statusClass = statusClass;
+            this.api = api;
+            this.apiVersion = apiVersion;
+            this.client = client;
+            this.hash = Objects.hash(method, statusClass, api, apiVersion, client);
+        }
+
+        String[] labelValues() {
+            return nullToEmpty(method, statusClass, api, apiVersion, client);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LabelKey)) {
+                return false;
+            }
+            LabelKey other = (LabelKey) obj;
+            return Objects.equals(method, other.method) && Objects.equals(statusClass, other.statusClass)
+                    && Objects.equals(api, other.api) && Objects.equals(apiVersion, other.apiVersion)
+                    && Objects.equals(client, other.client);
+        }
+    }
+
+    /**
+     * The (cached) metric children for one combination of label values.
+     */
+    private final class LabelChildren {
+        private final String[] labelValues;
+        private final Counter.Child requests;
+        private final Counter.Child bytesUploaded;
+        private final Counter.Child bytesDownloaded;
+        private final Histogram.Child requestDuration;
+        private final Histogram.Child apiDuration;
+        private volatile Counter.Child errors;
+        private volatile Histogram.Child gatewayDuration;
+        private volatile Histogram.Child requestPoliciesDuration;
+        private volatile Histogram.Child responsePoliciesDuration;
+
+        LabelChildren(LabelKey key) {
+            labelValues = key.labelValues();
+            requests = requestsCtr.labels(labelValues);
+            bytesUploaded = bytesUploadedCtr.labels(labelValues);
+            bytesDownloaded = bytesDownloadedCtr.labels(labelValues);
+            requestDuration = PrometheusScrapeMetrics.this.requestDuration.labels(labelValues);
+            apiDuration = PrometheusScrapeMetrics.this.apiDuration.labels(labelValues);
+        }
+
+        /**
+         * The errors child is only created once there is an error, so that no error
+         * series is exported for requests that never fail.
+         */
+        Counter.Child errors() {
+            if (errors == null) {
+                errors = errorsCtr.labels(labelValues);
+            }
+            return errors;
+        }
+
+        // Likewise the gateway and policy chain durations are only exported once known.
+
+        Histogram.Child gatewayDuration() {
+            if (gatewayDuration == null) {
+                gatewayDuration = PrometheusScrapeMetrics.this.gatewayDuration.labels(labelValues);
+            }
+            return gatewayDuration;
+        }
+
+        Histogram.Child requestPoliciesDuration() {
+            if (requestPoliciesDuration == null) {
+                requestPoliciesDuration = policiesDuration.labels(labelValues[2], labelValues[3], "request");
+            }
+            return requestPoliciesDuration;
+        }
+
+        Histogram.Child responsePoliciesDuration() {
+            if (responsePoliciesDuration == null) {
+                responsePoliciesDuration = policiesDuration.labels(labelValues[2], labelValues[3], "response");
+            }
+            return responsePoliciesDuration;
+        }
+    }
+
+    /**
+     * Streams the scrape output to the response in chunks, rather than rendering it
+     * all in memory first.
+     */
+    private static final class ResponseWriter extends Writer {
+        private final HttpServerResponse response;
+        private final StringBuilder chunk = new StringBuilder(SCRAPE_CHUNK_SIZE);
+        private boolean written;
+
+        ResponseWriter(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chunk.append(cbuf, off, len);
+            if (chunk.length() >= SCRAPE_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            chunk.append(str, off, off + len);
+            if (chunk.length() >= SCRAPE_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (chunk.length() > 0) {
+                response.write(chunk.toString());
+                chunk.setLength(0);
+                written = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
     }
 }
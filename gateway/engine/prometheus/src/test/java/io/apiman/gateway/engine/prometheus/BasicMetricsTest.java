@@ -15,6 +15,8 @@
  */
 package io.apiman.gateway.engine.prometheus;
 
+import io.apiman.gateway.engine.metrics.BackendHealthMetric;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric.CircuitState;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
 import java.io.IOException;
@@ -78,9 +80,11 @@ public class BasicMetricsTest {
     public void validMetrics_WithClientId() throws IOException {
         @SuppressWarnings("serial")
         final Set<String> expected = new LinkedHashSet<String>(){{
-            add("apiman_request_duration_milliseconds_count{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
-            add("apiman_request_duration_milliseconds_sum{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 644.0");
-            add("apiman_requests_total{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
+            add("apiman_requests_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
+            add("apiman_bytes_uploaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 0.0");
+            add("apiman_bytes_downloaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 0.0");
+            addAll(histogram("apiman_request_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 644, 1));
+            addAll(histogram("apiman_api_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 589, 1));
         }};
 
         final RequestMetric requestMetric = buildRequestMetric("clientId", false, 200, "hamsters are cool");
@@ -96,9 +100,11 @@ public class BasicMetricsTest {
     public void validMetrics_NullClientId() throws IOException {
         @SuppressWarnings("serial")
         final Set<String> expected = new LinkedHashSet<String>(){{
-            add("apiman_request_duration_milliseconds_count{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 1.0");
-            add("apiman_request_duration_milliseconds_sum{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 644.0");
-            add("apiman_requests_total{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 1.0");
+            add("apiman_requests_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 1.0");
+            add("apiman_bytes_uploaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 0.0");
+            add("apiman_bytes_downloaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",} 0.0");
+            addAll(histogram("apiman_request_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",", 644, 1));
+            addAll(histogram("apiman_api_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"\",", 589, 1));
         }};
 
         final RequestMetric requestMetric = buildRequestMetric(null, false, 200, "hamsters are cool");
@@ -114,10 +120,12 @@ public class BasicMetricsTest {
     public void errorMetrics() throws IOException {
         @SuppressWarnings("serial")
         final Set<String> expected = new LinkedHashSet<String>(){{
-            add("apiman_request_duration_milliseconds_count{method=\"GET\",responseCode=\"404\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
-            add("apiman_request_duration_milliseconds_sum{method=\"GET\",responseCode=\"404\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 644.0");
-            add("apiman_requests_total{method=\"GET\",responseCode=\"404\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
-            add("apiman_errors_total{method=\"GET\",responseCode=\"404\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
+            add("apiman_requests_total{method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
+            add("apiman_errors_total{method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1.0");
+            add("apiman_bytes_uploaded_total{method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 0.0");
+            add("apiman_bytes_downloaded_total{method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 0.0");
+            addAll(histogram("apiman_request_duration_milliseconds", "method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 644, 1));
+            addAll(histogram("apiman_api_duration_milliseconds", "method=\"GET\",statusClass=\"4xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 589, 1));
         }};
 
         final RequestMetric requestMetric = buildRequestMetric("clientId", true, 404, "could not find hamsters");
@@ -129,6 +137,76 @@ public class BasicMetricsTest {
         assertTrue(equals(expected, rString));
     }
 
+    @Test
+    public void statusClassMetrics() throws IOException {
+        @SuppressWarnings("serial")
+        final Set<String> expected = new LinkedHashSet<String>(){{
+            add("apiman_requests_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 2.0");
+            add("apiman_bytes_uploaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 0.0");
+            add("apiman_bytes_downloaded_total{method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 1024.0");
+            addAll(histogram("apiman_request_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 1288, 2));
+            addAll(histogram("apiman_api_duration_milliseconds", "method=\"GET\",statusClass=\"2xx\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",", 1178, 2));
+        }};
+
+        prometheusMetrics.record(buildRequestMetric("clientId", false, 200, "hamsters are cool"));
+        final RequestMetric created = buildRequestMetric("clientId", false, 201, "hamster created");
+        created.setBytesDownloaded(1024);
+        prometheusMetrics.record(created);
+
+        final Request request = new Request.Builder().url("http://localhost:9876/").get().build();
+        final Response response = client.newCall(request).execute();
+        final String rString = response.body().string();
+        assertTrue(equals(expected, rString));
+    }
+
+    @Test
+    public void backendHealthMetrics() throws IOException {
+        @SuppressWarnings("serial")
+        final Set<String> expected = new LinkedHashSet<String>(){{
+            add("apiman_backend_circuit_state{endpoint=\"http://a\",state=\"CLOSED\",} 0.0");
+            add("apiman_backend_circuit_state{endpoint=\"http://a\",state=\"OPEN\",} 0.0");
+            add("apiman_backend_circuit_state{endpoint=\"http://a\",state=\"HALF_OPEN\",} 1.0");
+            add("apiman_backend_circuit_state{endpoint=\"http://b\",state=\"CLOSED\",} 0.0");
+            add("apiman_backend_circuit_state{endpoint=\"http://b\",state=\"OPEN\",} 1.0");
+            add("apiman_backend_circuit_state{endpoint=\"http://b\",state=\"HALF_OPEN\",} 0.0");
+        }};
+
+        prometheusMetrics.recordBackendHealth(buildBackendHealthMetric("http://a", CircuitState.OPEN));
+        prometheusMetrics.recordBackendHealth(buildBackendHealthMetric("http://b", CircuitState.OPEN));
+        prometheusMetrics.recordBackendHealth(buildBackendHealthMetric("http://a", CircuitState.HALF_OPEN));
+
+        final Request request = new Request.Builder().url("http://localhost:9876/").get().build();
+        final Response response = client.newCall(request).execute();
+        final String rString = response.body().string();
+        assertTrue(equals(expected, rString));
+        assertTrue(rString.contains("apiman_backend_circuit_state{endpoint=\"http://a\",state=\"HALF_OPEN\",} 1.0"));
+    }
+
+    private BackendHealthMetric buildBackendHealthMetric(String endpoint, CircuitState state) {
+        final BackendHealthMetric metric = new BackendHealthMetric();
+        metric.setTimestamp(new Date());
+        metric.setEndpoint(endpoint);
+        metric.setState(state);
+        return metric;
+    }
+
+    /**
+     * The expected histogram lines for the given number of observations (of the
+     * same duration, 589ms or 644ms) with the default buckets.
+     */
+    private Set<String> histogram(String name, String labels, double sum, int count) {
+        final Set<String> lines = new LinkedHashSet<>();
+        for (String le : new String[] { "5.0", "10.0", "25.0", "50.0", "100.0", "250.0", "500.0" }) {
+            lines.add(name + "_bucket{" + labels + "le=\"" + le + "\",} 0.0");
+        }
+        for (String le : new String[] { "1000.0", "2500.0", "5000.0", "10000.0", "+Inf" }) {
+            lines.add(name + "_bucket{" + labels + "le=\"" + le + "\",} " + (double) count);
+        }
+        lines.add(name + "_count{" + labels + "} " + (double) count);
+        lines.add(name + "_sum{" + labels + "} " + sum);
+        return lines;
+    }
+
     private RequestMetric buildRequestMetric(String clientId, boolean error, int responseCode, String responseMessage) {
         final RequestMetric requestMetric = new RequestMetric();
         requestMetric.setClientId(clientId);
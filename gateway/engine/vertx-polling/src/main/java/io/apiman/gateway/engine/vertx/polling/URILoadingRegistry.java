@@ -116,7 +116,7 @@ public class URILoadingRegistry extends InMemoryRegistry implements AsyncInitial
             regs.entrySet().stream().forEach(pair -> {
                 // Clear the registrys' internal maps to prepare for reload.
                 // NB: If we add production hot reloading, we'll need to work around this (e.g. clone?).
-                pair.getKey().getMap().clear();
+                pair.getKey().clear();
                 // Re-subscribe the registry.
                 newLoader.subscribe(pair.getKey(), result -> {
                     checkAndFlip(ctr.decrementAndGet(), newLoader, doneHandler);
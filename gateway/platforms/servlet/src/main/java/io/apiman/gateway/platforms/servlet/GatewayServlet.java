@@ -31,6 +31,7 @@ import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.beans.util.HeaderMap;
 import io.apiman.gateway.engine.beans.util.QueryMap;
+import io.apiman.gateway.engine.impl.VirtualThreads;
 import io.apiman.gateway.engine.io.ByteBuffer;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
@@ -40,12 +41,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayDeque;
 import java.util.Enumeration;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -57,11 +68,30 @@ import javax.servlet.http.HttpServletResponse;
  * {@link ApiResponse} into an HTTP Servlet Response that is suitable for returning
  * to the caller.
  *
+ * When the 'async' init-param is set to true (and the container supports it) requests
+ * are handled using Servlet 3.1 non-blocking I/O:  the container thread is released as
+ * soon as the request has been handed to the engine, and the request and response
+ * bodies are streamed from/to the client as the container signals that it is ready.
+ * Such a request is ended (with a 504 if nothing has been sent yet) if it takes longer
+ * than the 'async-timeout' init-param (in millis, 5 minutes by default).
+ * This should be combined with a non-blocking connector factory (e.g. the
+ * {@link io.apiman.gateway.platforms.servlet.connectors.AsyncHttpConnectorFactory}).
+ *
+ * Otherwise, when the 'virtual-threads' init-param is set to true (and the JDK supports
+ * virtual threads) each request is handled, in the usual blocking way, on its own virtual
+ * thread rather than on a container thread.  On JDKs without virtual threads the request
+ * is handled on the container thread as normal.
+ *
  * @author eric.wittmann@redhat.com
  */
 public abstract class GatewayServlet extends HttpServlet {
 
     private static final long serialVersionUID = 958726685958622333L;
+    private static final long DEFAULT_ASYNC_TIMEOUT = 5 * 60 * 1000L;
+
+    private boolean async;
+    private long asyncTimeout;
+    private ExecutorService virtualThreadExecutor;
 
     /**
      * Constructor.
@@ -69,6 +99,20 @@ public abstract class GatewayServlet extends HttpServlet {
     public GatewayServlet() {
     }
 
+    /**
+     * @see javax.servlet.GenericServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        async = "true".equals(getInitParameter("async")); //$NON-NLS-1$ //$NON-NLS-2$
+        String timeout = getInitParameter("async-timeout"); //$NON-NLS-1$
+        asyncTimeout = timeout == null ? DEFAULT_ASYNC_TIMEOUT : Long.parseLong(timeout.trim());
+        if ("true".equals(getInitParameter("virtual-threads"))) { //$NON-NLS-1$ //$NON-NLS-2$
+            virtualThreadExecutor = VirtualThreads.getExecutor();
+        }
+    }
+
     /**
      * @see javax.servlet.http.HttpServlet#service(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -76,7 +120,13 @@ public abstract class GatewayServlet extends HttpServlet {
     protected void service(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
         String method = req.getMethod();
-        doAction(req, resp, method);
+        if (async && req.isAsyncSupported()) {
+            doAsyncAction(req, resp, method);
+        } else if (virtualThreadExecutor != null && req.isAsyncSupported()) {
+            doVirtualThreadAction(req, resp, method);
+        } else {
+            doAction(req, resp, method);
+        }
     }
 
     /**
@@ -179,6 +229,122 @@ public abstract class GatewayServlet extends HttpServlet {
         try { latch.await(); } catch (InterruptedException e) { }
     }
 
+    /**
+     * Handles the request (see {@link #doAction(HttpServletRequest, HttpServletResponse, String)})
+     * on a new virtual thread, releasing the container thread in the meantime.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doVirtualThreadAction(final HttpServletRequest req, final HttpServletResponse resp, final String action) {
+        final AsyncContext asyncContext = req.startAsync();
+        // As for a request handled on the container thread, there is no overall timeout - the
+        // connector's own timeouts apply.
+        asyncContext.setTimeout(0);
+        try {
+            virtualThreadExecutor.execute(() -> {
+                try {
+                    doAction(req, resp, action);
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            try {
+                doAction(req, resp, action);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    /**
+     * Generic non-blocking handler for all types of http actions/verbs.  Returns as soon as
+     * the request has been handed off to the engine - the response is completed later,
+     * from whichever thread the engine (or the container) calls back on.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doAsyncAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        // Read the request.  Note: the thread-local request cannot be used here, as
+        // the container thread is released before the request is done with.
+        ApiRequest srequest;
+        try {
+            srequest = readRequest(req, new ApiRequest());
+            srequest.setType(action);
+        } catch (Exception e) {
+            writeError(null, resp, e);
+            return;
+        }
+
+        final AsyncContext asyncContext = req.startAsync();
+        final AsyncTimeoutHandler timeoutHandler = new AsyncTimeoutHandler(resp);
+        asyncContext.setTimeout(asyncTimeout);
+        asyncContext.addListener(timeoutHandler);
+        final ApiRequest finalRequest = srequest;
+
+        // Now execute the request via the apiman engine
+        IApiRequestExecutor executor = getEngine().executor(srequest, new IAsyncResultHandler<IEngineResult>() {
+            @Override
+            public void handle(IAsyncResult<IEngineResult> asyncResult) {
+                if (asyncResult.isSuccess()) {
+                    IEngineResult engineResult = asyncResult.getResult();
+                    if (engineResult.isResponse()) {
+                        try {
+                            final AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext,
+                                    resp.getOutputStream(), engineResult);
+                            if (!timeoutHandler.setWriter(writer)) {
+                                engineResult.abort();
+                                return;
+                            }
+                            writeResponse(resp, engineResult.getApiResponse());
+                            resp.getOutputStream().setWriteListener(writer);
+                            engineResult.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+                                @Override
+                                public void handle(IApimanBuffer chunk) {
+                                    writer.write(chunk);
+                                }
+                            });
+                            engineResult.endHandler(new IAsyncHandler<Void>() {
+                                @Override
+                                public void handle(Void result) {
+                                    writer.end();
+                                }
+                            });
+                        } catch (IOException e) {
+                            engineResult.abort(e);
+                            asyncContext.complete();
+                        }
+                    } else if (!timeoutHandler.isTimedOut()) {
+                        writeFailure(finalRequest, resp, engineResult.getPolicyFailure());
+                        asyncContext.complete();
+                    }
+                } else if (!timeoutHandler.isTimedOut()) {
+                    writeError(finalRequest, resp, asyncResult.getError());
+                    asyncContext.complete();
+                }
+            }
+        });
+        executor.streamHandler(new IAsyncHandler<ISignalWriteStream>() {
+            @Override
+            public void handle(ISignalWriteStream connectorStream) {
+                try {
+                    ServletInputStream is = req.getInputStream();
+                    AsyncRequestReader reader = new AsyncRequestReader(is, connectorStream);
+                    if (!timeoutHandler.setReader(reader)) {
+                        connectorStream.abort();
+                        return;
+                    }
+                    is.setReadListener(reader);
+                } catch (Throwable e) {
+                    connectorStream.abort(e);
+                }
+            }
+        });
+        executor.execute();
+    }
+
     /**
      * Gets the engine - subclasses must implement this.
      * @return gets the engine
@@ -205,6 +371,18 @@ public abstract class GatewayServlet extends HttpServlet {
      * @throws IOException
      */
     protected ApiRequest readRequest(HttpServletRequest request) throws Exception {
+        return readRequest(request, GatewayThreadContext.getApiRequest());
+    }
+
+    /**
+     * Reads a {@link ApiRequest} from information found in the inbound
+     * portion of the http request, into the given (empty) api request.
+     * @param request the http servlet request
+     * @param srequest the api request to populate
+     * @return a valid {@link ApiRequest}
+     * @throws IOException
+     */
+    protected ApiRequest readRequest(HttpServletRequest request, ApiRequest srequest) throws Exception {
         ApiRequestPathInfo pathInfo = getEngine().getApiRequestPathParser().parseEndpoint(request.getPathInfo(), wrapMultiMap(request));//parseApiRequestPath(request);
         if (pathInfo.orgId == null) {
             throw new Exception(Messages.i18n.format("GatewayServlet.InvalidApiEndpoint")); //$NON-NLS-1$
@@ -213,7 +391,6 @@ public abstract class GatewayServlet extends HttpServlet {
 
         String apiKey = getApiKey(request, queryParams);
 
-        ApiRequest srequest = GatewayThreadContext.getApiRequest();
         srequest.setApiKey(apiKey);
         srequest.setApiOrgId(pathInfo.orgId);
         srequest.setApiId(pathInfo.apiId);
@@ -425,4 +602,312 @@ public abstract class GatewayServlet extends HttpServlet {
         return rval;
     }
 
+    /**
+     * Ends an async request that has taken longer than the async timeout:  the request and
+     * response streams are aborted and, if the response hasn't been started, a 504 is sent.
+     */
+    private static final class AsyncTimeoutHandler implements AsyncListener {
+
+        private final HttpServletResponse resp;
+        private AsyncRequestReader reader;
+        private AsyncResponseWriter writer;
+        private boolean timedOut;
+
+        /**
+         * Constructor.
+         * @param resp
+         */
+        public AsyncTimeoutHandler(HttpServletResponse resp) {
+            this.resp = resp;
+        }
+
+        /**
+         * @param reader the request reader
+         * @return false if the request has already timed out
+         */
+        public synchronized boolean setReader(AsyncRequestReader reader) {
+            this.reader = reader;
+            return !timedOut;
+        }
+
+        /**
+         * @param writer the response writer
+         * @return false if the request has already timed out
+         */
+        public synchronized boolean setWriter(AsyncResponseWriter writer) {
+            this.writer = writer;
+            return !timedOut;
+        }
+
+        /**
+         * @return true if the request has timed out
+         */
+        public synchronized boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @see javax.servlet.AsyncListener#onTimeout(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            AsyncRequestReader timedOutReader;
+            AsyncResponseWriter timedOutWriter;
+            synchronized (this) {
+                timedOut = true;
+                timedOutReader = reader;
+                timedOutWriter = writer;
+            }
+            TimeoutException error = new TimeoutException("Request timed out."); //$NON-NLS-1$
+            if (timedOutReader != null) {
+                timedOutReader.onError(error);
+            }
+            if (timedOutWriter != null) {
+                timedOutWriter.onError(error);
+            } else {
+                if (!resp.isCommitted()) {
+                    resp.setStatus(504);
+                }
+                event.getAsyncContext().complete();
+            }
+        }
+
+        /**
+         * @see javax.servlet.AsyncListener#onComplete(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        /**
+         * @see javax.servlet.AsyncListener#onError(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+        }
+
+        /**
+         * @see javax.servlet.AsyncListener#onStartAsync(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+
+    /**
+     * Reads the body of the inbound request as the container makes it available, and
+     * writes it to the back-end connection.  Stops reading while the connection is full,
+     * resuming once it has drained.
+     */
+    private static final class AsyncRequestReader implements ReadListener {
+
+        private final ServletInputStream in;
+        private final ISignalWriteStream connectorStream;
+        private final ByteBuffer buffer = new ByteBuffer(2048);
+        private boolean finished;
+
+        /**
+         * Constructor.
+         * @param in
+         * @param connectorStream
+         */
+        public AsyncRequestReader(ServletInputStream in, ISignalWriteStream connectorStream) {
+            this.in = in;
+            this.connectorStream = connectorStream;
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onDataAvailable()
+         */
+        @Override
+        public void onDataAvailable() throws IOException {
+            read();
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onAllDataRead()
+         */
+        @Override
+        public void onAllDataRead() throws IOException {
+            end();
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            connectorStream.abort(t);
+        }
+
+        /**
+         * Reads for as long as the container has data available and the back-end
+         * connection can take it.  Note: isReady() must only be called when we intend to
+         * read - once it returns false the container will call onDataAvailable() again.
+         */
+        private synchronized void read() {
+            try {
+                while (!finished && !connectorStream.isFull() && in.isReady()) {
+                    if (buffer.readFrom(in) == -1) {
+                        end();
+                        return;
+                    }
+                    connectorStream.write(buffer);
+                }
+                if (!finished && connectorStream.isFull()) {
+                    connectorStream.drainHandler(new IAsyncHandler<Void>() {
+                        @Override
+                        public void handle(Void result) {
+                            read();
+                        }
+                    });
+                }
+            } catch (Throwable e) {
+                onError(e);
+            }
+        }
+
+        private void end() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            connectorStream.end();
+        }
+    }
+
+    /**
+     * Writes the body of the API response to the client as the container allows.  Chunks
+     * that cannot be written yet are queued until the container calls onWritePossible(),
+     * and the engine result is paused while more than {@link #HIGH_WATER_MARK} bytes are
+     * queued (resuming once fewer than {@link #LOW_WATER_MARK} are).  The async context is
+     * completed once the response has ended and been fully written.
+     */
+    private static final class AsyncResponseWriter implements WriteListener {
+
+        private static final int HIGH_WATER_MARK = 64 * 1024;
+        private static final int LOW_WATER_MARK = 16 * 1024;
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final IEngineResult engineResult;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean paused;
+        private boolean ended;
+        private boolean completed;
+
+        /**
+         * Constructor.
+         * @param asyncContext
+         * @param out
+         * @param engineResult
+         */
+        public AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream out, IEngineResult engineResult) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+            this.engineResult = engineResult;
+        }
+
+        /**
+         * Queues a chunk of the response body (the chunk's buffer may be re-used by the
+         * caller, so a copy is queued) and writes as much as possible.
+         * @param chunk
+         */
+        public void write(IApimanBuffer chunk) {
+            byte[] bytes = chunk.getBytes();
+            boolean pause = false;
+            synchronized (this) {
+                pending.add(bytes);
+                pendingBytes += bytes.length;
+                if (!paused && pendingBytes > HIGH_WATER_MARK) {
+                    paused = pause = true;
+                }
+            }
+            if (pause) {
+                engineResult.pause();
+            }
+            flush();
+        }
+
+        /**
+         * Called when the response body has ended.
+         */
+        public void end() {
+            synchronized (this) {
+                ended = true;
+            }
+            flush();
+        }
+
+        /**
+         * @see javax.servlet.WriteListener#onWritePossible()
+         */
+        @Override
+        public void onWritePossible() throws IOException {
+            flush();
+        }
+
+        /**
+         * @see javax.servlet.WriteListener#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                pending.clear();
+                pendingBytes = 0;
+            }
+            engineResult.abort(t);
+            asyncContext.complete();
+        }
+
+        /**
+         * Writes queued chunks for as long as the container allows it.  Note: once
+         * isReady() returns false the container will call onWritePossible() again.
+         */
+        private void flush() {
+            IOException error = null;
+            boolean resume = false;
+            synchronized (this) {
+                try {
+                    while (!completed && out.isReady()) {
+                        byte[] bytes = pending.poll();
+                        if (bytes == null) {
+                            if (ended) {
+                                completed = true;
+                                asyncContext.complete();
+                            }
+                            break;
+                        }
+                        pendingBytes -= bytes.length;
+                        out.write(bytes);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                if (error == null && paused && !completed && pendingBytes < LOW_WATER_MARK) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (error != null) {
+                onError(error);
+            } else if (resume) {
+                engineResult.resume();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.common.config.options.BasicAuthOptions;
+import io.apiman.common.util.ApimanPathUtils;
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import okio.BufferedSink;
+
+/**
+ * Models a live, asynchronous connection to a back end API.  Unlike the
+ * {@link HttpApiConnection}, none of its methods block the calling thread:  the
+ * request is handed to the http client's dispatcher, request body chunks are
+ * queued until the dispatcher sends them (see {@link #isFull()}) and the response
+ * is delivered to the result handler from the dispatcher's thread.  The response body
+ * is read on a dispatcher thread too, stopping while the receiver has asked for a
+ * {@link #pause()}.
+ */
+public class AsyncHttpApiConnection implements IApiConnection, IApiConnectionResponse {
+
+    // Request body backpressure:  full above the high water mark, drained below the low one.
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final int LOW_WATER_MARK = 16 * 1024;
+
+    private final ApiRequest request;
+    private final Api api;
+    private final RequiredAuthType requiredAuthType;
+    private final boolean hasDataPolicy;
+    private final IConnectorConfig connectorConfig;
+    private final IAsyncResultHandler<IApiConnectionResponse> responseHandler;
+
+    private final StreamingRequestBody requestBody;
+    private final ExecutorService executor;
+    private Call call;
+    private Response clientResponse;
+    private ApiResponse response;
+
+    // Response body transmission - the (single) reading loop stops while paused.
+    private final ByteBuffer readBuffer = new ByteBuffer(2048);
+    private InputStream responseStream;
+    private boolean transmitting;
+    private boolean reading;
+    private boolean paused;
+
+    private IAsyncHandler<IApimanBuffer> bodyHandler;
+    private IAsyncHandler<Void> endHandler;
+
+    private volatile boolean connected;
+    private volatile boolean finished;
+
+    /**
+     * Constructor.
+     *
+     * @param client the http client to use (already configured for the API's endpoint)
+     * @param request the request
+     * @param api the API
+     * @param requiredAuthType the authorization type
+     * @param hasDataPolicy if policy chain contains data policies
+     * @param connectorConfig the dynamic connector configuration as possibly modified by policies
+     * @param handler the result handler
+     * @throws ConnectorException when unable to connect
+     */
+    public AsyncHttpApiConnection(OkHttpClient client, ApiRequest request, Api api,
+            RequiredAuthType requiredAuthType, boolean hasDataPolicy, IConnectorConfig connectorConfig,
+            IAsyncResultHandler<IApiConnectionResponse> handler) throws ConnectorException {
+        this.request = request;
+        this.api = api;
+        this.requiredAuthType = requiredAuthType;
+        this.hasDataPolicy = hasDataPolicy;
+        this.connectorConfig = connectorConfig;
+        this.responseHandler = handler;
+        this.requestBody = hasRequestBody(request.getType()) ? new StreamingRequestBody(client.getReadTimeout()) : null;
+        this.executor = client.getDispatcher().getExecutorService();
+
+        try {
+            connect(client);
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Sends the request (head) to the back end system.
+     */
+    private void connect(OkHttpClient client) throws IOException {
+        String endpoint = ApimanPathUtils.join(api.getEndpoint(), request.getDestination());
+        if (request.getQueryParams() != null && !request.getQueryParams().isEmpty()) {
+            String delim = "?"; //$NON-NLS-1$
+            for (Entry<String, String> entry : request.getQueryParams()) {
+                endpoint += delim + entry.getKey();
+                if (entry.getValue() != null) {
+                    endpoint += "=" + URLEncoder.encode(entry.getValue(), "UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                delim = "&"; //$NON-NLS-1$
+            }
+        }
+        boolean isSsl = endpoint.toLowerCase().startsWith("https"); //$NON-NLS-1$
+        Request.Builder builder = new Request.Builder().url(endpoint);
+
+        if (requiredAuthType == RequiredAuthType.MTLS && !isSsl) {
+            throw new ConnectorException("Mutually authenticating TLS requested, but insecure endpoint protocol was indicated."); //$NON-NLS-1$
+        }
+        if (requiredAuthType == RequiredAuthType.BASIC) {
+            BasicAuthOptions options = new BasicAuthOptions(api.getEndpointProperties());
+            if (options.getUsername() != null && options.getPassword() != null) {
+                if (options.isRequireSSL() && !isSsl) {
+                    throw new ConnectorException("Endpoint security requested (BASIC auth) but endpoint is not secure (SSL)."); //$NON-NLS-1$
+                }
+                String up = options.getUsername() + ':' + options.getPassword();
+                builder.header("Authorization", "Basic " + Base64.encodeBase64String(up.getBytes())); //$NON-NLS-1$ //$NON-NLS-2$
+                connectorConfig.suppressRequestHeader("Authorization"); //$NON-NLS-1$
+            }
+        }
+
+        // Set the request headers.  Host and the framing headers are set by the client.
+        long contentLength = -1;
+        for (Entry<String, String> entry : request.getHeaders()) {
+            String hkey = entry.getKey();
+            String hval = entry.getValue();
+            if ("Content-Length".equalsIgnoreCase(hkey)) { //$NON-NLS-1$
+                if (!hasDataPolicy) {
+                    contentLength = parseContentLength(hval);
+                }
+            } else if (!"Host".equalsIgnoreCase(hkey) && !"Transfer-Encoding".equalsIgnoreCase(hkey) //$NON-NLS-1$ //$NON-NLS-2$
+                    && !connectorConfig.getSuppressedRequestHeaders().contains(hkey)) {
+                builder.addHeader(hkey, hval);
+            }
+        }
+        if (requestBody != null) {
+            requestBody.contentLength = contentLength;
+            String contentType = request.getHeaders().get("Content-Type"); //$NON-NLS-1$
+            requestBody.contentType = contentType == null ? null : MediaType.parse(contentType);
+        }
+        builder.method(request.getType(), requestBody);
+
+        connected = true;
+        call = client.newCall(builder.build());
+        call.enqueue(new Callback() {
+            @Override
+            public void onResponse(Response resp) throws IOException {
+                responseReceived(resp);
+            }
+
+            @Override
+            public void onFailure(Request req, IOException e) {
+                failed(e);
+            }
+        });
+    }
+
+    /**
+     * Called (on the dispatcher thread) once the response head has arrived.
+     * @param resp the client response
+     */
+    private void responseReceived(Response resp) {
+        clientResponse = resp;
+        response = new ApiResponse();
+        Headers headers = resp.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            String headerName = headers.name(i);
+            if (!connectorConfig.getSuppressedResponseHeaders().contains(headerName)) {
+                response.getHeaders().add(headerName, headers.value(i));
+            }
+        }
+        response.setCode(resp.code());
+        response.setMessage(resp.message());
+        responseHandler.handle(AsyncResultImpl.<IApiConnectionResponse> create(this));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#bodyHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+        this.bodyHandler = bodyHandler;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#endHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void endHandler(IAsyncHandler<Void> endHandler) {
+        this.endHandler = endHandler;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#getHead()
+     */
+    @Override
+    public ApiResponse getHead() {
+        return response;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IStream#isFinished()
+     */
+    @Override
+    public boolean isFinished() {
+        return !connected;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IApiConnection#isConnected()
+     */
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IAbortable#abort()
+     */
+    @Override
+    public void abort(Throwable t) {
+        finished = true;
+        connected = false;
+        if (requestBody != null) {
+            requestBody.abort();
+        }
+        if (call != null) {
+            call.cancel();
+        }
+        if (clientResponse != null) {
+            try {
+                clientResponse.body().close();
+            } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#write(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void write(IApimanBuffer chunk) {
+        if (!connected || requestBody == null) {
+            return;
+        }
+        // The chunk (and its buffer) may be re-used by the caller, so queue a copy.
+        if (chunk instanceof ByteBuffer) {
+            byte[] buffer = (byte[]) chunk.getNativeBuffer();
+            byte[] copy = new byte[chunk.length()];
+            System.arraycopy(buffer, 0, copy, 0, chunk.length());
+            requestBody.offer(copy);
+        } else {
+            requestBody.offer(chunk.getBytes());
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#end()
+     */
+    @Override
+    public void end() {
+        if (requestBody != null) {
+            requestBody.end();
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalWriteStream#isFull()
+     */
+    @Override
+    public boolean isFull() {
+        return requestBody != null && requestBody.isFull();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalWriteStream#drainHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void drainHandler(IAsyncHandler<Void> drainHandler) {
+        if (requestBody != null) {
+            requestBody.drainHandler(drainHandler);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#transmit()
+     */
+    @Override
+    public void transmit() {
+        synchronized (this) {
+            transmitting = true;
+            if (paused) {
+                return;
+            }
+            reading = true;
+        }
+        read();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#pause()
+     */
+    @Override
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#resume()
+     */
+    @Override
+    public void resume() {
+        synchronized (this) {
+            paused = false;
+            if (!transmitting || reading || !connected) {
+                return;
+            }
+            reading = true;
+        }
+        try {
+            executor.execute(this::read);
+        } catch (RejectedExecutionException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Reads the response body, handing each chunk to the body handler, until it ends
+     * or transmission is paused.
+     */
+    private void read() {
+        try {
+            if (responseStream == null) {
+                responseStream = clientResponse.body().byteStream();
+            }
+            while (true) {
+                synchronized (this) {
+                    if (paused) {
+                        reading = false;
+                        return;
+                    }
+                }
+                int numBytes = readBuffer.readFrom(responseStream);
+                if (numBytes == -1) {
+                    break;
+                }
+                bodyHandler.handle(readBuffer);
+            }
+            clientResponse.body().close();
+            connected = false;
+            endHandler.handle(null);
+        } catch (Throwable e) {
+            // The response has already been (partially) sent to the client, so all we
+            // can do is abort the connection.
+            if (connected) {
+                abort(e);
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reports a failure to connect (or to get a response) to the result handler - once.
+     * @param error the error
+     */
+    private void failed(Exception error) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        connected = false;
+        if (requestBody != null) {
+            requestBody.abort();
+        }
+        ConnectorException ce;
+        if (error instanceof ConnectorException) {
+            ce = (ConnectorException) error;
+        } else if (error instanceof UnknownHostException || error instanceof ConnectException || error instanceof NoRouteToHostException) {
+            ce = new ConnectorException("Unable to connect to backend: " + error.getMessage(), error); //$NON-NLS-1$
+            ce.setStatusCode(502); // BAD GATEWAY
+        } else if (error instanceof SocketTimeoutException || error instanceof InterruptedIOException) {
+            ce = new ConnectorException("Connection to backend terminated: " + error.getMessage(), error); //$NON-NLS-1$
+            ce.setStatusCode(504); // GATEWAY TIMEOUT
+        } else {
+            ce = new ConnectorException(error);
+        }
+        responseHandler.handle(AsyncResultImpl.<IApiConnectionResponse> create(ce));
+    }
+
+    private static boolean hasRequestBody(String method) {
+        return "POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method) || "PATCH".equalsIgnoreCase(method); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    private static long parseContentLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A request body that is written (by the http client's dispatcher thread) as its
+     * chunks arrive.  Chunks are queued in between - the queue being "full" once it
+     * holds more than {@link #HIGH_WATER_MARK} bytes.  If no chunk arrives within the
+     * read timeout the request fails, rather than tying up the dispatcher thread for
+     * good.  All access to the queue must be synchronized on the body.
+     */
+    private static final class StreamingRequestBody extends RequestBody {
+
+        private final long timeout;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int queuedBytes;
+        private boolean ended;
+        private boolean aborted;
+        private IAsyncHandler<Void> drainHandler;
+
+        private MediaType contentType;
+        private long contentLength = -1;
+
+        /**
+         * Constructor.
+         * @param timeout how long (in millis) to wait for the next chunk, 0 meaning forever
+         */
+        StreamingRequestBody(long timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        synchronized void offer(byte[] chunk) {
+            chunks.add(chunk);
+            queuedBytes += chunk.length;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            chunks.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+
+        synchronized boolean isFull() {
+            return queuedBytes > HIGH_WATER_MARK;
+        }
+
+        void drainHandler(IAsyncHandler<Void> drainHandler) {
+            synchronized (this) {
+                if (queuedBytes >= LOW_WATER_MARK) {
+                    this.drainHandler = drainHandler;
+                    return;
+                }
+            }
+            // Already drained (in between the caller's isFull() check and now)
+            drainHandler.handle(null);
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            while (true) {
+                byte[] chunk;
+                boolean flush;
+                IAsyncHandler<Void> drained = null;
+                synchronized (this) {
+                    long waitUntil = System.currentTimeMillis() + timeout;
+                    while (chunks.isEmpty() && !ended && !aborted) {
+                        long wait = 0;
+                        if (timeout > 0) {
+                            wait = waitUntil - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                throw new SocketTimeoutException("Timed out waiting for the request body."); //$NON-NLS-1$
+                            }
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (aborted) {
+                        throw new IOException("Request aborted."); //$NON-NLS-1$
+                    }
+                    chunk = chunks.poll();
+                    if (chunk == null) {
+                        return; // ended
+                    }
+                    queuedBytes -= chunk.length;
+                    if (drainHandler != null && queuedBytes < LOW_WATER_MARK) {
+                        drained = drainHandler;
+                        drainHandler = null;
+                    }
+                    flush = chunks.isEmpty();
+                }
+                if (drained != null) {
+                    drained.handle(null);
+                }
+                sink.write(chunk);
+                if (flush) {
+                    sink.flush();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.platforms.servlet.connectors.ssl.SSLSessionStrategy;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Connector factory that uses HTTP to invoke back end systems without blocking the
+ * calling (e.g. servlet container) thread - see {@link AsyncHttpApiConnection}.  The
+ * back end requests are run by the http client's dispatcher, the size of which can be
+ * configured via 'async.maxRequests' and 'async.maxRequestsPerHost' (default 1000).
+ *
+ * Example:
+ *
+ *     apiman-gateway.connector-factory=io.apiman.gateway.platforms.servlet.connectors.AsyncHttpConnectorFactory
+ */
+public class AsyncHttpConnectorFactory extends HttpConnectorFactory {
+
+    private final OkHttpClient asyncClient;
+    private volatile OkHttpClient standardSslClient;
+    private volatile OkHttpClient mutualAuthSslClient;
+
+    /**
+     * Constructor.
+     * @param config map of configuration options
+     */
+    public AsyncHttpConnectorFactory(Map<String, String> config) {
+        super(config);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(getInt(config, "async.maxRequests", 1000)); //$NON-NLS-1$
+        dispatcher.setMaxRequestsPerHost(getInt(config, "async.maxRequestsPerHost", 1000)); //$NON-NLS-1$
+        asyncClient = getHttpClient().clone();
+        asyncClient.setDispatcher(dispatcher);
+    }
+
+    /**
+     * @see io.apiman.gateway.platforms.servlet.connectors.HttpConnectorFactory#createConnector(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.auth.RequiredAuthType, boolean, io.apiman.gateway.engine.IConnectorConfig)
+     */
+    @Override
+    public IApiConnector createConnector(ApiRequest request, final Api api,
+            final RequiredAuthType requiredAuthType, boolean hasDataPolicy,
+            final IConnectorConfig connectorConfig) {
+        return (req, handler) -> new AsyncHttpApiConnection(getClient(api, requiredAuthType), req, api,
+                requiredAuthType, hasDataPolicy, connectorConfig, handler);
+    }
+
+    /**
+     * Gets the http client to use for the API:  one with the right SSL setup for the
+     * required auth type, and with the API's own timeouts (if any).
+     */
+    private OkHttpClient getClient(Api api, RequiredAuthType requiredAuthType) {
+        OkHttpClient client;
+        if (!api.getEndpoint().toLowerCase().startsWith("https")) { //$NON-NLS-1$
+            client = asyncClient;
+        } else if (requiredAuthType == RequiredAuthType.MTLS) {
+            if (mutualAuthSslClient == null) {
+                mutualAuthSslClient = createSslClient(requiredAuthType);
+            }
+            client = mutualAuthSslClient;
+        } else {
+            if (standardSslClient == null) {
+                standardSslClient = createSslClient(requiredAuthType);
+            }
+            client = standardSslClient;
+        }
+
+        Map<String, String> endpointProperties = api.getEndpointProperties();
+        if (endpointProperties.containsKey("timeouts.connect") || endpointProperties.containsKey("timeouts.read")) { //$NON-NLS-1$ //$NON-NLS-2$
+            // Shares the connection pool and dispatcher with the original
+            client = client.clone();
+            try {
+                if (endpointProperties.containsKey("timeouts.connect")) { //$NON-NLS-1$
+                    client.setConnectTimeout(Long.parseLong(endpointProperties.get("timeouts.connect")), TimeUnit.MILLISECONDS); //$NON-NLS-1$
+                }
+                if (endpointProperties.containsKey("timeouts.read")) { //$NON-NLS-1$
+                    client.setReadTimeout(Long.parseLong(endpointProperties.get("timeouts.read")), TimeUnit.MILLISECONDS); //$NON-NLS-1$
+                }
+            } catch (NumberFormatException e) {
+                // Ignore invalid timeouts, as the blocking connector does
+            }
+        }
+        return client;
+    }
+
+    private OkHttpClient createSslClient(RequiredAuthType requiredAuthType) {
+        SSLSessionStrategy sslStrategy = getSslStrategy(requiredAuthType);
+        OkHttpClient client = asyncClient.clone();
+        client.setSslSocketFactory(sslStrategy.getSocketFactory());
+        client.setHostnameVerifier(sslStrategy.getHostnameVerifier());
+        return client;
+    }
+
+    private static int getInt(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+}
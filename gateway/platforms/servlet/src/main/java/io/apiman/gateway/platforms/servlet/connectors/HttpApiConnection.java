@@ -58,7 +58,8 @@ import org.apache.commons.io.IOUtils;
 import com.squareup.okhttp.OkHttpClient;
 
 /**
- * Models a live connection to a back end API.
+ * Models a live connection to a back end API.  The response body is read (and handed on)
+ * on the thread that calls {@link #transmit()}, which blocks while transmission is paused.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -81,6 +82,7 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
 
     private boolean hasDataPolicy;
     private boolean isError = false;
+    private boolean paused;
 
     private IConnectorConfig connectorConfig;
 
@@ -303,6 +305,9 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
                     connected = false;
                     connection.disconnect();
                 } catch (Exception e) {}
+                synchronized (this) {
+                    notifyAll();
+                }
             }
         } catch (IOException e) {
             // TODO log this error but don't rethrow it
@@ -380,6 +385,10 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
             int numBytes = buffer.readFrom(is);
             while (numBytes != -1) {
                 bodyHandler.handle(buffer);
+                if (!awaitResume()) {
+                    // Aborted while paused
+                    return;
+                }
                 numBytes = buffer.readFrom(is);
             }
             IOUtils.closeQuietly(is);
@@ -397,6 +406,40 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
         }
     }
 
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#pause()
+     */
+    @Override
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#resume()
+     */
+    @Override
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * Blocks the transmitting thread for as long as transmission is paused.
+     * @return false if the connection was aborted in the meantime
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    private synchronized boolean awaitResume() throws InterruptedIOException {
+        while (paused && connected) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return connected;
+    }
+
     private void handleConnectionError(Exception error) {
         ConnectorException ce = null;
         if (error instanceof UnknownHostException || error instanceof ConnectException || error instanceof NoRouteToHostException) {
@@ -100,6 +100,13 @@ public class HttpConnectorFactory implements IConnectorFactory {
         return client;
     }
 
+    /**
+     * @return the http client
+     */
+    protected OkHttpClient getHttpClient() {
+        return okClient;
+    }
+
     /**
      * @see io.apiman.gateway.engine.IConnectorFactory#createConnector(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.auth.RequiredAuthType)
      */
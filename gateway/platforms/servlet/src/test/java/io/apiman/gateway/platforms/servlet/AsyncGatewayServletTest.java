@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet;
+
+import io.apiman.gateway.engine.IApiRequestExecutor;
+import io.apiman.gateway.engine.IApiRequestPathParser;
+import io.apiman.gateway.engine.IEngine;
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.IPolicyErrorWriter;
+import io.apiman.gateway.engine.IPolicyFailureWriter;
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.impl.DefaultPolicyErrorWriter;
+import io.apiman.gateway.engine.impl.DefaultPolicyFailureWriter;
+import io.apiman.gateway.engine.impl.DefaultRequestPathParser;
+import io.apiman.gateway.engine.impl.EngineResultImpl;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the non-blocking (Servlet 3.1) request handling of the {@link GatewayServlet}:  the
+ * request body is only read while the back-end connection isn't full, the back-end response
+ * is paused while the client is slow to read it, and requests time out.
+ */
+@SuppressWarnings("nls")
+public class AsyncGatewayServletTest {
+
+    private static final int REQUEST_SIZE = 1024 * 1024;
+    private static final int RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private static final AtomicInteger drains = new AtomicInteger();
+    private static final AtomicInteger pauses = new AtomicInteger();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private Server server;
+    private int port;
+
+    @Before
+    public void setupJetty() throws Exception {
+        drains.set(0);
+        pauses.set(0);
+
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/");
+        sch.addServlet(gatewayServlet(30000), "/gateway/*");
+        sch.addServlet(gatewayServlet(500), "/timeout/*");
+
+        server = new Server(0);
+        server.setStopAtShutdown(true);
+        server.setHandler(sch);
+        server.start();
+        port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    private static ServletHolder gatewayServlet(long asyncTimeout) {
+        ServletHolder holder = new ServletHolder(new TestGatewayServlet());
+        holder.setAsyncSupported(true);
+        holder.setInitParameter("async", "true");
+        holder.setInitParameter("async-timeout", String.valueOf(asyncTimeout));
+        return holder;
+    }
+
+    @After
+    public void destroyJetty() throws Exception {
+        server.stop();
+        server.destroy();
+    }
+
+    @Test
+    public void shouldStreamWithBackpressure() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/gateway/Org/Api/1.0").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(REQUEST_SIZE);
+        try (OutputStream out = connection.getOutputStream()) {
+            byte[] chunk = new byte[8192];
+            for (int i = 0; i < REQUEST_SIZE / chunk.length; i++) {
+                out.write(chunk);
+            }
+        }
+
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertEquals(String.valueOf(REQUEST_SIZE), connection.getHeaderField("X-Received"));
+
+        // Read slowly at first, so that the response piles up in the gateway
+        Thread.sleep(1000);
+        long read = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int numBytes;
+            while ((numBytes = in.read(buffer)) != -1) {
+                for (int i = 0; i < numBytes; i++) {
+                    Assert.assertEquals((byte) ((read + i) % 251), buffer[i]);
+                }
+                read += numBytes;
+            }
+        }
+        Assert.assertEquals(RESPONSE_SIZE, read);
+        Assert.assertTrue("The request body should have been held back", drains.get() > 0);
+        Assert.assertTrue("The response should have been paused", pauses.get() > 0);
+    }
+
+    @Test
+    public void shouldTimeOut() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/timeout/Org/Hang/1.0").openConnection();
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(504, connection.getResponseCode());
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * The gateway servlet, using the test engine.
+     */
+    private static class TestGatewayServlet extends GatewayServlet {
+
+        private static final long serialVersionUID = -3196349361738412226L;
+
+        private final IEngine engine = new TestEngine();
+
+        @Override
+        protected IEngine getEngine() {
+            return engine;
+        }
+
+        @Override
+        protected IPolicyErrorWriter getErrorWriter() {
+            return new DefaultPolicyErrorWriter();
+        }
+
+        @Override
+        protected IPolicyFailureWriter getFailureWriter() {
+            return new DefaultPolicyFailureWriter();
+        }
+    }
+
+    /**
+     * An engine that consumes the request body through a back-end connection which is
+     * regularly full, then responds with {@link #RESPONSE_SIZE} bytes.  Requests for the
+     * 'Hang' API never get a response.
+     */
+    private static class TestEngine implements IEngine {
+
+        private final IApiRequestPathParser pathParser = new DefaultRequestPathParser(Collections.emptyMap());
+
+        @Override
+        public String getVersion() {
+            return "test";
+        }
+
+        @Override
+        public IApiRequestExecutor executor(ApiRequest request, IAsyncResultHandler<IEngineResult> resultHandler) {
+            return new IApiRequestExecutor() {
+                private IAsyncHandler<ISignalWriteStream> streamHandler;
+
+                @Override
+                public void streamHandler(IAsyncHandler<ISignalWriteStream> handler) {
+                    this.streamHandler = handler;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return false;
+                }
+
+                @Override
+                public void execute() {
+                    if (!"Hang".equals(request.getApiId())) {
+                        streamHandler.handle(new SlowConnection(resultHandler));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public IRegistry getRegistry() {
+            return null;
+        }
+
+        @Override
+        public IPluginRegistry getPluginRegistry() {
+            return null;
+        }
+
+        @Override
+        public IApiRequestPathParser getApiRequestPathParser() {
+            return pathParser;
+        }
+    }
+
+    /**
+     * The back-end connection:  full after every 64KB of request body until it drains a
+     * little later, and responding (once the request has ended) as fast as it is allowed to.
+     */
+    private static class SlowConnection implements ISignalWriteStream, ISignalReadStream<ApiResponse> {
+
+        private final IAsyncResultHandler<IEngineResult> resultHandler;
+        private final ApiResponse response = new ApiResponse();
+        private EngineResultImpl engineResult;
+        private long received;
+        private long receivedAtDrain;
+        private IAsyncHandler<Void> drainHandler;
+        private boolean paused;
+        private volatile boolean finished;
+
+        public SlowConnection(IAsyncResultHandler<IEngineResult> resultHandler) {
+            this.resultHandler = resultHandler;
+        }
+
+        @Override
+        public synchronized void write(IApimanBuffer chunk) {
+            received += chunk.length();
+        }
+
+        @Override
+        public synchronized boolean isFull() {
+            return received - receivedAtDrain > 64 * 1024;
+        }
+
+        @Override
+        public synchronized void drainHandler(IAsyncHandler<Void> drainHandler) {
+            this.drainHandler = drainHandler;
+            scheduler.schedule(() -> {
+                IAsyncHandler<Void> drained;
+                synchronized (this) {
+                    receivedAtDrain = received;
+                    drained = this.drainHandler;
+                    this.drainHandler = null;
+                }
+                drains.incrementAndGet();
+                drained.handle(null);
+            }, 10, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void end() {
+            response.setCode(200);
+            response.setMessage("OK");
+            synchronized (this) {
+                response.getHeaders().put("X-Received", String.valueOf(received));
+            }
+            engineResult = new EngineResultImpl(response);
+            engineResult.setConnectorResponseStream(this);
+            resultHandler.handle(AsyncResultImpl.<IEngineResult> create(engineResult));
+            new Thread(this::transmit).start();
+        }
+
+        @Override
+        public void transmit() {
+            byte[] bytes = new byte[8192];
+            for (int sent = 0; sent < RESPONSE_SIZE && !finished; sent += bytes.length) {
+                synchronized (this) {
+                    while (paused && !finished) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) ((sent + i) % 251);
+                }
+                engineResult.write(new ByteBuffer(bytes, bytes.length));
+            }
+            if (!finished) {
+                engineResult.end();
+            }
+        }
+
+        @Override
+        public synchronized void pause() {
+            if (!paused) {
+                paused = true;
+                pauses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized void resume() {
+            paused = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void abort(Throwable t) {
+            finished = true;
+            notifyAll();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public ApiResponse getHead() {
+            return response;
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+        }
+    }
+
+}
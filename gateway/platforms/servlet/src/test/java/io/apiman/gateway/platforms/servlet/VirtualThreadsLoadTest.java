@@ -0,0 +1,379 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiRequestExecutor;
+import io.apiman.gateway.engine.IApiRequestPathParser;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IEngine;
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.IPolicyErrorWriter;
+import io.apiman.gateway.engine.IPolicyFailureWriter;
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
+import io.apiman.gateway.engine.impl.DefaultExecuteBlockingComponent;
+import io.apiman.gateway.engine.impl.DefaultPolicyErrorWriter;
+import io.apiman.gateway.engine.impl.DefaultPolicyFailureWriter;
+import io.apiman.gateway.engine.impl.DefaultRequestPathParser;
+import io.apiman.gateway.engine.impl.EngineResultImpl;
+import io.apiman.gateway.engine.impl.VirtualThreads;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.platforms.servlet.connectors.ConnectorConfigImpl;
+import io.apiman.gateway.platforms.servlet.connectors.HttpConnectorFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Load test of the (blocking) {@link GatewayServlet} with a slow back-end, comparing requests
+ * handled on the container's (bounded) thread pool with requests handled on virtual threads
+ * (the 'virtual-threads' init-param), and of the {@link DefaultExecuteBlockingComponent} with
+ * virtual threads.  Reports the peak concurrency seen by the back-end and the (heap) memory
+ * used per in-flight request - platform thread stacks are not on the heap, so are not included.
+ *
+ * Only run when the 'apiman.test.load' system property is set to true, e.g.
+ * <pre>mvn test -Dtest=VirtualThreadsLoadTest -Dapiman.test.load=true</pre>
+ * The virtual thread tests are skipped on JDKs without them.
+ */
+@SuppressWarnings("nls")
+public class VirtualThreadsLoadTest {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreadsLoadTest.class.getName());
+
+    private static final int REQUESTS = 200;
+    private static final int GATEWAY_THREADS = 20;
+    private static final long BACKEND_DELAY = 200;
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicInteger peak = new AtomicInteger();
+
+    private Server backend;
+    private Server gateway;
+    private String backendUrl;
+
+    @Before
+    public void setupBackend() throws Exception {
+        Assume.assumeTrue("Set -Dapiman.test.load=true to run the load tests", Boolean.getBoolean("apiman.test.load"));
+
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/");
+        sch.addServlet(new ServletHolder(new SlowServlet()), "/*");
+
+        backend = new Server(new QueuedThreadPool(REQUESTS + 20));
+        ServerConnector connector = new ServerConnector(backend);
+        connector.setAcceptQueueSize(REQUESTS);
+        backend.addConnector(connector);
+        backend.setStopAtShutdown(true);
+        backend.setHandler(sch);
+        backend.start();
+        backendUrl = "http://localhost:" + connector.getLocalPort() + "/slow";
+
+        inFlight.set(0);
+        peak.set(0);
+    }
+
+    @After
+    public void destroyJetty() throws Exception {
+        for (Server server : new Server[] { gateway, backend }) {
+            if (server != null) {
+                server.stop();
+                server.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void platformThreads() throws Exception {
+        int port = startGateway(false);
+        run("platform threads", port);
+        // Each request holds on to one of the container's threads while the back-end is slow
+        Assert.assertTrue("Peak " + peak.get(), peak.get() <= GATEWAY_THREADS);
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        Assume.assumeTrue("Virtual threads are not available on this JDK", VirtualThreads.isAvailable());
+        int port = startGateway(true);
+        run("virtual threads", port);
+        Assert.assertTrue("Peak " + peak.get(), peak.get() > GATEWAY_THREADS);
+    }
+
+    @Test
+    public void executeBlockingOnVirtualThreads() throws Exception {
+        Assume.assumeTrue("Virtual threads are not available on this JDK", VirtualThreads.isAvailable());
+        IExecuteBlockingComponent component = new DefaultExecuteBlockingComponent(Collections.singletonMap("virtualThreads", "true"));
+        AtomicInteger successes = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < REQUESTS; i++) {
+            component.<Integer>executeBlocking(future -> {
+                try {
+                    future.completed(get(backendUrl));
+                } catch (IOException e) {
+                    future.fail(e);
+                }
+            }, result -> {
+                if (result.isSuccess() && result.getResult() == 200) {
+                    successes.incrementAndGet();
+                }
+                done.countDown();
+            });
+        }
+        // The blocking code doesn't run on (and hold up) the calling thread
+        Assert.assertTrue(System.currentTimeMillis() - start < BACKEND_DELAY * 2);
+
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        logger.info(String.format("execute blocking: %d requests in %d ms, peak back-end concurrency %d",
+                REQUESTS, System.currentTimeMillis() - start, peak.get()));
+        Assert.assertEquals(REQUESTS, successes.get());
+        Assert.assertTrue("Peak " + peak.get(), peak.get() > GATEWAY_THREADS);
+    }
+
+    /**
+     * Starts the gateway with a small, bounded, container thread pool.
+     */
+    private int startGateway(boolean virtualThreads) throws Exception {
+        ServletHolder holder = new ServletHolder(new TestGatewayServlet(backendUrl));
+        holder.setAsyncSupported(true);
+        holder.setInitParameter("virtual-threads", String.valueOf(virtualThreads));
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/");
+        sch.addServlet(holder, "/gateway/*");
+
+        gateway = new Server(new QueuedThreadPool(GATEWAY_THREADS));
+        ServerConnector connector = new ServerConnector(gateway, 1, 1);
+        connector.setAcceptQueueSize(REQUESTS);
+        gateway.addConnector(connector);
+        gateway.setStopAtShutdown(true);
+        gateway.setHandler(sch);
+        gateway.start();
+        return connector.getLocalPort();
+    }
+
+    private void run(String mode, int port) throws Exception {
+        String url = "http://localhost:" + port + "/gateway/Org/Api/1.0/";
+        ExecutorService clients = Executors.newFixedThreadPool(REQUESTS);
+        AtomicInteger successes = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        try {
+            long baseline = usedMemory();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < REQUESTS; i++) {
+                clients.execute(() -> {
+                    try {
+                        if (get(url) == 200) {
+                            successes.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        logger.warning(e.toString());
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            // Sample the heap while the back-end is busy
+            Thread.sleep(BACKEND_DELAY / 2);
+            long perRequest = (usedMemory() - baseline) / Math.max(1, inFlight.get());
+
+            Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+            logger.info(String.format("%s: %d requests in %d ms, peak back-end concurrency %d, ~%d heap bytes per in-flight request",
+                    mode, REQUESTS, System.currentTimeMillis() - start, peak.get(), perRequest));
+            Assert.assertEquals(REQUESTS, successes.get());
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    private static int get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // Discard the body
+            }
+        }
+        return connection.getResponseCode();
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The gateway servlet, using the test engine.
+     */
+    private static class TestGatewayServlet extends GatewayServlet {
+
+        private static final long serialVersionUID = 4510265218742013362L;
+
+        private final transient IEngine engine;
+
+        public TestGatewayServlet(String backendUrl) {
+            engine = new TestEngine(backendUrl);
+        }
+
+        @Override
+        protected IEngine getEngine() {
+            return engine;
+        }
+
+        @Override
+        protected IPolicyErrorWriter getErrorWriter() {
+            return new DefaultPolicyErrorWriter();
+        }
+
+        @Override
+        protected IPolicyFailureWriter getFailureWriter() {
+            return new DefaultPolicyFailureWriter();
+        }
+    }
+
+    /**
+     * An engine without any policies, which proxies every request to the back-end using the
+     * (blocking) {@link HttpConnectorFactory}.
+     */
+    private static class TestEngine implements IEngine {
+
+        private final IApiRequestPathParser pathParser = new DefaultRequestPathParser(Collections.emptyMap());
+        private final IConnectorFactory connectorFactory = new HttpConnectorFactory(new HashMap<>());
+        private final Api api = new Api();
+
+        public TestEngine(String backendUrl) {
+            api.setOrganizationId("Org");
+            api.setApiId("Api");
+            api.setVersion("1.0");
+            api.setEndpoint(backendUrl);
+        }
+
+        @Override
+        public String getVersion() {
+            return "test";
+        }
+
+        @Override
+        public IApiRequestExecutor executor(ApiRequest request, IAsyncResultHandler<IEngineResult> resultHandler) {
+            return new IApiRequestExecutor() {
+                private IAsyncHandler<ISignalWriteStream> streamHandler;
+
+                @Override
+                public void streamHandler(IAsyncHandler<ISignalWriteStream> handler) {
+                    this.streamHandler = handler;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return false;
+                }
+
+                @Override
+                public void execute() {
+                    IApiConnection connection = connectorFactory
+                            .createConnector(request, api, RequiredAuthType.DEFAULT, false, new ConnectorConfigImpl())
+                            .connect(request, result -> {
+                                if (!result.isSuccess()) {
+                                    resultHandler.handle(AsyncResultImpl.create(result.getError(), IEngineResult.class));
+                                    return;
+                                }
+                                IApiConnectionResponse response = result.getResult();
+                                EngineResultImpl engineResult = new EngineResultImpl(response.getHead());
+                                engineResult.setConnectorResponseStream(response);
+                                response.bodyHandler(engineResult::write);
+                                response.endHandler(v -> engineResult.end());
+                                resultHandler.handle(AsyncResultImpl.<IEngineResult> create(engineResult));
+                                response.transmit();
+                            });
+                    streamHandler.handle(connection);
+                }
+            };
+        }
+
+        @Override
+        public IRegistry getRegistry() {
+            return null;
+        }
+
+        @Override
+        public IPluginRegistry getPluginRegistry() {
+            return null;
+        }
+
+        @Override
+        public IApiRequestPathParser getApiRequestPathParser() {
+            return pathParser;
+        }
+    }
+
+    /**
+     * Sleeps for a while before responding, tracking how many requests it is handling at once.
+     */
+    private static class SlowServlet extends HttpServlet {
+
+        private static final long serialVersionUID = -5618470562343587413L;
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            int current = inFlight.incrementAndGet();
+            peak.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(BACKEND_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            resp.setStatus(200);
+            resp.getWriter().write("OK");
+        }
+    }
+
+}
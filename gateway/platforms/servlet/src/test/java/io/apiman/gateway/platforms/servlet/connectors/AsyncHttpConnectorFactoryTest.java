@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.ByteBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the non-blocking {@link AsyncHttpConnectorFactory} against an echo back-end.
+ */
+@SuppressWarnings("nls")
+public class AsyncHttpConnectorFactoryTest {
+
+    private Server server;
+
+    ApiRequest request = new ApiRequest();
+    Api api = new Api();
+
+    @Before
+    public void setupJetty() throws Exception {
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/echo");
+        sch.addServlet(new ServletHolder(new EchoBodyServlet()), "/*");
+
+        server = new Server(0);
+        server.setStopAtShutdown(true);
+        server.setHandler(sch);
+        server.start();
+
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        request.setApiKey("12345");
+        request.setDestination("/");
+        request.setRemoteAddr("http://localhost:" + port + "/echo");
+        api.setEndpoint("http://localhost:" + port + "/echo");
+    }
+
+    @After
+    public void destroyJetty() throws Exception {
+        server.stop();
+        server.destroy();
+    }
+
+    @Test
+    public void shouldSendGet() throws Exception {
+        request.setType("GET");
+        IApiConnectionResponse response = send(null);
+        Assert.assertEquals(200, response.getHead().getCode());
+        Assert.assertEquals("GET:", readBody(response));
+    }
+
+    @Test
+    public void shouldStreamPostBody() throws Exception {
+        request.setType("POST");
+        String body = largeBody();
+        IApiConnectionResponse response = send(body);
+        Assert.assertEquals(200, response.getHead().getCode());
+        Assert.assertEquals("POST:" + body, readBody(response));
+    }
+
+    @Test
+    public void shouldPauseAndResumeResponseBody() throws Exception {
+        request.setType("POST");
+        String body = largeBody();
+        IApiConnectionResponse response = send(body);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AtomicInteger chunks = new AtomicInteger();
+        CountDownLatch firstChunk = new CountDownLatch(1);
+        CountDownLatch ended = new CountDownLatch(1);
+        response.bodyHandler(buffer -> {
+            synchronized (out) {
+                out.write(buffer.getBytes(), 0, buffer.length());
+            }
+            if (chunks.incrementAndGet() == 1) {
+                response.pause();
+                firstChunk.countDown();
+            }
+        });
+        response.endHandler(v -> ended.countDown());
+        response.transmit();
+        Assert.assertTrue(firstChunk.await(10, TimeUnit.SECONDS));
+
+        // Nothing more is read while paused
+        Thread.sleep(200);
+        Assert.assertEquals(1, chunks.get());
+        Assert.assertEquals(1, ended.getCount());
+
+        response.resume();
+        Assert.assertTrue(ended.await(10, TimeUnit.SECONDS));
+        synchronized (out) {
+            Assert.assertEquals("POST:" + body, new String(out.toByteArray(), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void shouldFailToConnect() throws Exception {
+        request.setType("GET");
+        api.setEndpoint("http://localhost:1/echo");
+        IAsyncResult<IApiConnectionResponse> result = connect(null);
+        Assert.assertTrue(result.isError());
+        Assert.assertEquals(502, ((ConnectorException) result.getError()).getStatusCode());
+    }
+
+    private IApiConnectionResponse send(String body) throws Exception {
+        IAsyncResult<IApiConnectionResponse> result = connect(body);
+        Assert.assertTrue(result.isSuccess());
+        return result.getResult();
+    }
+
+    private IAsyncResult<IApiConnectionResponse> connect(String body) throws Exception {
+        AsyncHttpConnectorFactory factory = new AsyncHttpConnectorFactory(new HashMap<>());
+        AtomicReference<IAsyncResult<IApiConnectionResponse>> ref = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        IApiConnection connection = factory.createConnector(request, api, RequiredAuthType.DEFAULT, false, new ConnectorConfigImpl())
+                .connect(request, result -> {
+                    ref.set(result);
+                    latch.countDown();
+                });
+        if (body != null) {
+            // Respect the connection's back-pressure, as the engine does
+            byte[] bytes = body.getBytes("UTF-8");
+            for (int offset = 0; offset < bytes.length; offset += 1024) {
+                while (connection.isFull()) {
+                    CountDownLatch drained = new CountDownLatch(1);
+                    connection.drainHandler(v -> drained.countDown());
+                    Assert.assertTrue(drained.await(10, TimeUnit.SECONDS));
+                }
+                int length = Math.min(1024, bytes.length - offset);
+                connection.write(new ByteBuffer(Arrays.copyOfRange(bytes, offset, offset + length), length));
+            }
+        }
+        connection.end();
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return ref.get();
+    }
+
+    private static String largeBody() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            body.append("chunk-").append(i).append('\n');
+        }
+        return body.toString();
+    }
+
+    private static String readBody(IApiConnectionResponse response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CountDownLatch latch = new CountDownLatch(1);
+        response.bodyHandler(buffer -> out.write(buffer.getBytes(), 0, buffer.length()));
+        response.endHandler(v -> latch.countDown());
+        response.transmit();
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Responds with the request method followed by the request body.
+     */
+    private static class EchoBodyServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 3414568717543012416L;
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            resp.setStatus(200);
+            resp.getOutputStream().write((req.getMethod() + ":").getBytes("UTF-8"));
+            InputStream in = req.getInputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                resp.getOutputStream().write(buffer, 0, read);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IMetrics;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorRejectedException;
+import io.apiman.gateway.engine.impl.CircuitBreakerConnectorFactory;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric;
+import io.apiman.gateway.engine.metrics.BackendHealthMetric.CircuitState;
+import io.apiman.gateway.engine.metrics.RequestMetric;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the circuit breaker and concurrency limit of the {@link CircuitBreakerConnectorFactory}
+ * (wrapping the servlet connector factory) against a back-end that fails on demand.
+ */
+@SuppressWarnings("nls")
+public class CircuitBreakerConnectorFactoryTest {
+
+    private static volatile boolean failing = false;
+
+    private Server server;
+    private List<BackendHealthMetric> healthMetrics = new ArrayList<>();
+    private Map<String, String> config = new HashMap<>();
+
+    ApiRequest request = new ApiRequest();
+    Api api = new Api();
+    {
+        request.setApiKey("12345");
+        request.setDestination("/");
+        request.setRemoteAddr("http://localhost:8010/echo");
+        request.setType("GET");
+
+        api.setEndpoint("http://localhost:8010/echo");
+    }
+
+    @Before
+    public void setupJetty() throws Exception {
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/echo");
+        sch.addServlet(new ServletHolder(new FailingEchoServlet()), "/*");
+
+        server = new Server(8010);
+        server.setStopAtShutdown(true);
+        server.setHandler(sch);
+        server.start();
+
+        failing = false;
+        config.put("circuit-breaker.enabled", "true");
+        config.put("circuit-breaker.failureThreshold", "3");
+        config.put("circuit-breaker.openMillis", "500");
+    }
+
+    @After
+    public void destroyJetty() throws Exception {
+        server.stop();
+        server.destroy();
+    }
+
+    @Test
+    public void shouldOpenAndCloseCircuit() throws Exception {
+        IConnectorFactory factory = createFactory();
+
+        failing = true;
+        for (int i = 0; i < 3; i++) {
+            IAsyncResult<IApiConnectionResponse> result = send(factory);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals(503, result.getResult().getHead().getCode());
+        }
+        // The circuit is now open: fail fast, without going near the back-end
+        assertRejected(send(factory), ConnectorRejectedException.CIRCUIT_OPEN);
+        Assert.assertEquals(1, healthMetrics.size());
+        Assert.assertEquals(CircuitState.OPEN, healthMetrics.get(0).getState());
+        Assert.assertEquals(3, healthMetrics.get(0).getConsecutiveFailures());
+
+        // Once the back-end recovers the trial request closes the circuit again
+        failing = false;
+        Thread.sleep(600);
+        IAsyncResult<IApiConnectionResponse> result = send(factory);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(200, result.getResult().getHead().getCode());
+        Assert.assertEquals(CircuitState.HALF_OPEN, healthMetrics.get(1).getState());
+        Assert.assertEquals(CircuitState.CLOSED, healthMetrics.get(2).getState());
+        Assert.assertEquals(200, send(factory).getResult().getHead().getCode());
+    }
+
+    @Test
+    public void shouldReopenCircuitIfStillFailing() throws Exception {
+        IConnectorFactory factory = createFactory();
+
+        failing = true;
+        for (int i = 0; i < 3; i++) {
+            send(factory);
+        }
+        Thread.sleep(600);
+        // The trial request fails, so the circuit opens again immediately
+        Assert.assertEquals(503, send(factory).getResult().getHead().getCode());
+        assertRejected(send(factory), ConnectorRejectedException.CIRCUIT_OPEN);
+        Assert.assertEquals(CircuitState.OPEN, healthMetrics.get(healthMetrics.size() - 1).getState());
+    }
+
+    @Test
+    public void shouldOpenCircuitOnConnectionErrors() throws Exception {
+        IConnectorFactory factory = createFactory();
+        api.setEndpoint("http://localhost:8011/echo");
+
+        for (int i = 0; i < 3; i++) {
+            IAsyncResult<IApiConnectionResponse> result = send(factory);
+            Assert.assertTrue(result.isError());
+            Assert.assertFalse(result.getError() instanceof ConnectorRejectedException);
+        }
+        assertRejected(send(factory), ConnectorRejectedException.CIRCUIT_OPEN);
+
+        // Other endpoints are unaffected
+        api.setEndpoint("http://localhost:8010/echo");
+        Assert.assertEquals(200, send(factory).getResult().getHead().getCode());
+    }
+
+    @Test
+    public void shouldKeyLoadBalancedApisByAllEndpoints() throws Exception {
+        IConnectorFactory factory = createFactory();
+        api.getEndpointProperties().put("lb.endpoints", "http://localhost:8011/echo, http://localhost:8012/echo");
+
+        failing = true;
+        for (int i = 0; i < 3; i++) {
+            send(factory);
+        }
+        assertRejected(send(factory), ConnectorRejectedException.CIRCUIT_OPEN);
+        Assert.assertEquals("http://localhost:8010/echo,http://localhost:8011/echo,http://localhost:8012/echo",
+                healthMetrics.get(0).getEndpoint());
+
+        // An API with the same (but only that) endpoint has a circuit of its own
+        failing = false;
+        api.getEndpointProperties().remove("lb.endpoints");
+        Assert.assertEquals(200, send(factory).getResult().getHead().getCode());
+    }
+
+    @Test
+    public void shouldLimitConcurrency() throws Exception {
+        config.put("circuit-breaker.limit.initial", "2");
+        IConnectorFactory factory = createFactory();
+
+        List<AtomicReference<IAsyncResult<IApiConnectionResponse>>> results = new ArrayList<>();
+        List<IApiConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            AtomicReference<IAsyncResult<IApiConnectionResponse>> ref = new AtomicReference<>();
+            results.add(ref);
+            connections.add(factory.createConnector(request, api, RequiredAuthType.DEFAULT, false, new ConnectorConfigImpl())
+                    .connect(request, ref::set));
+        }
+        // Two requests are awaiting a response, so the third is rejected
+        Assert.assertNull(results.get(0).get());
+        Assert.assertNull(results.get(1).get());
+        assertRejected(results.get(2).get(), ConnectorRejectedException.CONCURRENCY_LIMIT_EXCEEDED);
+        Assert.assertFalse(connections.get(2).isConnected());
+
+        connections.get(0).end();
+        consume(results.get(0).get());
+        Assert.assertEquals(200, send(factory).getResult().getHead().getCode());
+        connections.get(1).end();
+        consume(results.get(1).get());
+    }
+
+    private IConnectorFactory createFactory() {
+        return new CircuitBreakerConnectorFactory(new HttpConnectorFactory(new HashMap<>()), new CapturingMetrics(), config);
+    }
+
+    private IAsyncResult<IApiConnectionResponse> send(IConnectorFactory factory) {
+        AtomicReference<IAsyncResult<IApiConnectionResponse>> ref = new AtomicReference<>();
+        IApiConnection connection = factory.createConnector(request, api, RequiredAuthType.DEFAULT, false, new ConnectorConfigImpl())
+                .connect(request, ref::set);
+        if (connection.isConnected()) {
+            connection.end();
+        }
+        consume(ref.get());
+        return ref.get();
+    }
+
+    private static void consume(IAsyncResult<IApiConnectionResponse> result) {
+        if (result.isSuccess()) {
+            result.getResult().bodyHandler(buffer -> {});
+            result.getResult().endHandler(v -> {});
+            result.getResult().transmit();
+        }
+    }
+
+    private static void assertRejected(IAsyncResult<IApiConnectionResponse> result, int failureCode) {
+        Assert.assertTrue(result.isError());
+        Assert.assertTrue(result.getError() instanceof ConnectorRejectedException);
+        ConnectorRejectedException rejection = (ConnectorRejectedException) result.getError();
+        Assert.assertEquals(failureCode, rejection.getFailureCode());
+        Assert.assertEquals(503, rejection.getPolicyFailure().getResponseCode());
+    }
+
+    private class CapturingMetrics implements IMetrics {
+
+        @Override
+        public void record(RequestMetric metric) {
+        }
+
+        @Override
+        public void setComponentRegistry(IComponentRegistry registry) {
+        }
+
+        @Override
+        public void recordBackendHealth(BackendHealthMetric metric) {
+            healthMetrics.add(metric);
+        }
+    }
+
+    /**
+     * Responds with a 503 while the back-end is 'failing', otherwise with a 200.
+     */
+    private static class FailingEchoServlet extends HttpServlet {
+
+        private static final long serialVersionUID = -1286549392745398045L;
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            if (failing) {
+                resp.sendError(503);
+            } else {
+                resp.setStatus(200);
+                resp.getWriter().write(req.getMethod());
+            }
+        }
+    }
+
+}
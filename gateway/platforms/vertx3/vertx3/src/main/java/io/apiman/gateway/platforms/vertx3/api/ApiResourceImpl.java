@@ -27,6 +27,8 @@ import io.apiman.gateway.engine.beans.ApiEndpoint;
 import io.apiman.gateway.engine.beans.exceptions.PublishingException;
 import io.apiman.gateway.engine.beans.exceptions.RegistrationException;
 import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.connector.ConnectorFactory;
+import io.vertx.core.Vertx;
 
 import java.net.URI;
 
@@ -41,10 +43,12 @@ public class ApiResourceImpl extends AbstractResource implements IApiResource {
 
     private VertxEngineConfig apimanConfig;
     private IRegistry registry;
+    private Vertx vertx;
 
-    public ApiResourceImpl(VertxEngineConfig apimanConfig, IEngine engine) {
+    public ApiResourceImpl(VertxEngineConfig apimanConfig, IEngine engine, Vertx vertx) {
         this.apimanConfig = apimanConfig;
         this.registry = engine.getRegistry();
+        this.vertx = vertx;
     }
 
     @Override
@@ -66,9 +70,18 @@ public class ApiResourceImpl extends AbstractResource implements IApiResource {
             if (result.isError()) {
                 throwError(result.getError());
             }
+            apiRetired(api);
         });
     }
 
+    /**
+     * Lets the connector factories (of all verticles) drop the retired API's backend.
+     */
+    private void apiRetired(Api api) {
+        vertx.eventBus().publish(ConnectorFactory.API_RETIRED_ADDRESS,
+                ConnectorFactory.getApiKey(api.getOrganizationId(), api.getApiId(), api.getVersion()));
+    }
+
     @Override
     @SuppressWarnings("nls")
     public ApiEndpoint getApiEndpoint(String organizationId, String apiId, String version)
@@ -113,7 +126,13 @@ public class ApiResourceImpl extends AbstractResource implements IApiResource {
         api.setOrganizationId(organizationId);
         api.setApiId(apiId);
         api.setVersion(version);
-        registry.retireApi(api, handlerWithEmptyResult(response));
+        IAsyncResultHandler<Void> handler = handlerWithEmptyResult(response);
+        registry.retireApi(api, result -> {
+            if (result.isSuccess()) {
+                apiRetired(api);
+            }
+            handler.handle(result);
+        });
     }
 
     @Override
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.api;
+
+import io.apiman.gateway.platforms.vertx3.connector.ConnectorFactory;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.UUID;
+
+/**
+ * Responds with the backend endpoint stats of each API (GET /system/backends).  Every
+ * gateway verticle has its own connector factory (and connection pools), so the stats
+ * of all of them are collected over the event bus and added up per endpoint.
+ */
+@SuppressWarnings("nls")
+public class BackendStatsHandler implements Handler<RoutingContext> {
+
+    private static final long COLLECT_TIMEOUT = 500;
+    private static final String[] SUMMED = { "outstanding", "requests", "failures", "ejections",
+            "maxConnections", "maxWaitQueue" };
+
+    private final Vertx vertx;
+
+    /**
+     * Constructor.
+     * @param vertx the vertx instance
+     */
+    public BackendStatsHandler(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        JsonObject stats = new JsonObject();
+        String replyAddress = ConnectorFactory.BACKEND_STATS_ADDRESS + "." + UUID.randomUUID();
+        MessageConsumer<JsonObject> consumer = vertx.eventBus().<JsonObject>localConsumer(replyAddress,
+                message -> merge(stats, message.body()));
+        consumer.completionHandler(registered -> {
+            vertx.eventBus().publish(ConnectorFactory.BACKEND_STATS_ADDRESS, replyAddress);
+            vertx.setTimer(COLLECT_TIMEOUT, timer -> {
+                consumer.unregister();
+                context.response()
+                    .putHeader("Content-Type", "application/json")
+                    .end(stats.encodePrettily());
+            });
+        });
+    }
+
+    /**
+     * Adds the stats of one connector factory to the stats collected so far.
+     * @param stats the stats collected so far
+     * @param factoryStats the stats of a connector factory
+     */
+    static void merge(JsonObject stats, JsonObject factoryStats) {
+        for (String apiKey : factoryStats.fieldNames()) {
+            JsonArray endpoints = stats.getJsonArray(apiKey);
+            if (endpoints == null) {
+                stats.put(apiKey, factoryStats.getJsonArray(apiKey).copy());
+                continue;
+            }
+            for (Object o : factoryStats.getJsonArray(apiKey)) {
+                JsonObject endpoint = (JsonObject) o;
+                JsonObject existing = find(endpoints, endpoint.getString("uri"));
+                if (existing == null) {
+                    endpoints.add(endpoint.copy());
+                    continue;
+                }
+                for (String field : SUMMED) {
+                    existing.put(field, existing.getLong(field, 0L) + endpoint.getLong(field, 0L));
+                }
+                existing.put("ejected", existing.getBoolean("ejected", false) || endpoint.getBoolean("ejected", false));
+                existing.put("latencyEwma", Math.max(existing.getDouble("latencyEwma", 0.0), endpoint.getDouble("latencyEwma", 0.0)));
+            }
+        }
+    }
+
+    private static JsonObject find(JsonArray endpoints, String uri) {
+        for (Object o : endpoints) {
+            JsonObject endpoint = (JsonObject) o;
+            if (uri.equals(endpoint.getString("uri"))) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The (parsed) backend of a single API: its endpoints and how to balance between them.
+ * Built once per published version of the API, so that nothing needs to be parsed on
+ * the request path.
+ */
+class ApiBackend {
+
+    static final String STRATEGY_LEAST_OUTSTANDING = "least-outstanding"; //$NON-NLS-1$
+    static final String STRATEGY_EWMA = "ewma"; //$NON-NLS-1$
+
+    private final String endpoint;
+    private final Map<String, String> endpointProperties;
+    private final RequiredAuthType authType;
+    private final List<BackendEndpoint> endpoints;
+    private final boolean ewma;
+
+    /**
+     * Constructor.
+     * @param endpoint the API's endpoint
+     * @param endpointProperties the API's endpoint properties
+     * @param authType the required auth type
+     * @param endpoints the backend endpoints, the API's own endpoint first
+     * @param strategy the balancing strategy
+     */
+    ApiBackend(String endpoint, Map<String, String> endpointProperties, RequiredAuthType authType,
+            List<BackendEndpoint> endpoints, String strategy) {
+        this.endpoint = endpoint;
+        this.endpointProperties = endpointProperties;
+        this.authType = authType;
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.ewma = STRATEGY_EWMA.equalsIgnoreCase(strategy);
+    }
+
+    /**
+     * @param endpoint the API's endpoint
+     * @param endpointProperties the API's endpoint properties
+     * @param authType the required auth type
+     * @return true if this backend was built from the given API configuration
+     */
+    boolean isFor(String endpoint, Map<String, String> endpointProperties, RequiredAuthType authType) {
+        return this.endpoint.equals(endpoint) && this.endpointProperties.equals(endpointProperties)
+                && this.authType == authType;
+    }
+
+    /**
+     * Selects the endpoint to send the next request to:  the least loaded one that is
+     * not currently ejected.  If all of them are ejected, then one is tried anyway
+     * rather than failing the request outright.
+     * @return the selected endpoint
+     */
+    BackendEndpoint select() {
+        int size = endpoints.size();
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+        // Start at a random offset so that ties are spread over the endpoints
+        int start = ThreadLocalRandom.current().nextInt(size);
+        long now = System.currentTimeMillis();
+        BackendEndpoint selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            BackendEndpoint candidate = endpoints.get((start + i) % size);
+            if (candidate.isEjected(now)) {
+                continue;
+            }
+            double score = ewma ? candidate.getLatencyScore() : candidate.getOutstanding();
+            if (selected == null || score < selectedScore) {
+                selected = candidate;
+                selectedScore = score;
+            }
+        }
+        return selected == null ? endpoints.get(start) : selected;
+    }
+
+    /**
+     * @return the backend endpoints
+     */
+    List<BackendEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+}
@@ -39,6 +39,13 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
     private int requestTimeout = HttpClientOptions.DEFAULT_CONNECT_TIMEOUT * 2;
     private boolean keepAlive = HttpClientOptions.DEFAULT_KEEP_ALIVE;
     private boolean tryUseCompression = HttpClientOptions.DEFAULT_TRY_USE_COMPRESSION;
+    private int maxConnections = HttpClientOptions.DEFAULT_MAX_POOL_SIZE;
+    private int maxWaitQueue = HttpClientOptions.DEFAULT_MAX_WAIT_QUEUE_SIZE;
+    private boolean pipelining = HttpClientOptions.DEFAULT_PIPELINING;
+    private int pipeliningLimit = HttpClientOptions.DEFAULT_PIPELINING_LIMIT;
+    private boolean http2 = false;
+    private int http2MaxConnections = HttpClientOptions.DEFAULT_HTTP2_MAX_POOL_SIZE;
+    private int http2MultiplexingLimit = HttpClientOptions.DEFAULT_HTTP2_MULTIPLEXING_LIMIT;
     private TLSOptions tlsOptions;
     private URI endpoint;
     private boolean isSsl;
@@ -56,6 +63,23 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
     protected void parse(Map<String, String> options) {
         connectionTimeout = parseInt(options, "http.timeouts.connect", HttpClientOptions.DEFAULT_CONNECT_TIMEOUT);
         requestTimeout = parseInt(options, "http.timeouts.read", HttpClientOptions.DEFAULT_CONNECT_TIMEOUT * 2);
+        parsePoolOptions(getSubmap(options, "http.pool."));
+    }
+
+    /**
+     * Parses the connection pool options; either the global ones (http.pool.*) or
+     * those of a single API (pool.* endpoint properties).
+     * @param options the pool options
+     */
+    public ApimanHttpConnectorOptions parsePoolOptions(Map<String, String> options) {
+        maxConnections = parseInt(options, "max-connections", maxConnections);
+        maxWaitQueue = parseInt(options, "max-wait-queue", maxWaitQueue);
+        pipelining = parseBool(options, "pipelining", pipelining);
+        pipeliningLimit = parseInt(options, "pipelining-limit", pipeliningLimit);
+        http2 = parseBool(options, "http2", http2);
+        http2MaxConnections = parseInt(options, "http2-max-connections", http2MaxConnections);
+        http2MultiplexingLimit = parseInt(options, "http2-multiplexing-limit", http2MultiplexingLimit);
+        return this;
     }
 
     /**
@@ -151,6 +175,118 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
         return this;
     }
 
+    /**
+     * @return the maximum number of (HTTP/1.x) connections per backend host
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections the maxConnections to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of requests waiting for a connection (-1 is unbounded)
+     */
+    public int getMaxWaitQueue() {
+        return maxWaitQueue;
+    }
+
+    /**
+     * @param maxWaitQueue the maxWaitQueue to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setMaxWaitQueue(int maxWaitQueue) {
+        this.maxWaitQueue = maxWaitQueue;
+        return this;
+    }
+
+    /**
+     * @return whether to pipeline HTTP/1.1 requests
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * @param pipelining the pipelining to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of pipelined requests per connection
+     */
+    public int getPipeliningLimit() {
+        return pipeliningLimit;
+    }
+
+    /**
+     * @param pipeliningLimit the pipeliningLimit to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setPipeliningLimit(int pipeliningLimit) {
+        this.pipeliningLimit = pipeliningLimit;
+        return this;
+    }
+
+    /**
+     * @return whether to talk HTTP/2 to the backend
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @param http2 the http2 to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setHttp2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of HTTP/2 connections per backend host
+     */
+    public int getHttp2MaxConnections() {
+        return http2MaxConnections;
+    }
+
+    /**
+     * @param http2MaxConnections the http2MaxConnections to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setHttp2MaxConnections(int http2MaxConnections) {
+        this.http2MaxConnections = http2MaxConnections;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of concurrent streams per HTTP/2 connection (-1 is the server's limit)
+     */
+    public int getHttp2MultiplexingLimit() {
+        return http2MultiplexingLimit;
+    }
+
+    /**
+     * @param http2MultiplexingLimit the http2MultiplexingLimit to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setHttp2MultiplexingLimit(int http2MultiplexingLimit) {
+        this.http2MultiplexingLimit = http2MultiplexingLimit;
+        return this;
+    }
+
     public TLSOptions getTlsOptions() {
         return tlsOptions;
     }
@@ -191,6 +327,13 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
         result = prime * result + ((tlsOptions == null) ? 0 : tlsOptions.hashCode());
         result = prime * result + (tryUseCompression ? 1231 : 1237);
         result = prime * result + (isSsl ? 0 : 1);
+        result = prime * result + maxConnections;
+        result = prime * result + maxWaitQueue;
+        result = prime * result + (pipelining ? 1231 : 1237);
+        result = prime * result + pipeliningLimit;
+        result = prime * result + (http2 ? 1231 : 1237);
+        result = prime * result + http2MaxConnections;
+        result = prime * result + http2MultiplexingLimit;
         return result;
     }
     /* (non-Javadoc)
@@ -218,6 +361,22 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
             return false;
         if (tryUseCompression != other.tryUseCompression)
             return false;
+        if (isSsl != other.isSsl)
+            return false;
+        if (maxConnections != other.maxConnections)
+            return false;
+        if (maxWaitQueue != other.maxWaitQueue)
+            return false;
+        if (pipelining != other.pipelining)
+            return false;
+        if (pipeliningLimit != other.pipeliningLimit)
+            return false;
+        if (http2 != other.http2)
+            return false;
+        if (http2MaxConnections != other.http2MaxConnections)
+            return false;
+        if (http2MultiplexingLimit != other.http2MultiplexingLimit)
+            return false;
         return true;
     }
 
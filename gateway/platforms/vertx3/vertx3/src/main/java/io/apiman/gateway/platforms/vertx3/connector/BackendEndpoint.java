@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import io.vertx.core.json.JsonObject;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the backend endpoints of an API, along with its (live) stats.  The stats
+ * are used to balance requests between the endpoints of an API, and to (passively)
+ * eject an endpoint that keeps failing for a while.
+ */
+public class BackendEndpoint {
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final URI uri;
+    private final ApimanHttpConnectorOptions options;
+    private final ApimanHttpConnectorOptions dataPolicyOptions;
+    private final int ejectionFailures;
+    private final long ejectionMillis;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+    private volatile double latencyEwma;
+
+    /**
+     * Constructor.
+     * @param options the connector options for requests without a data policy
+     * @param dataPolicyOptions the connector options for requests with a data policy
+     * @param ejectionFailures number of consecutive failures that eject the endpoint (0 to never eject)
+     * @param ejectionMillis how long an ejected endpoint is left alone
+     */
+    BackendEndpoint(ApimanHttpConnectorOptions options, ApimanHttpConnectorOptions dataPolicyOptions,
+            int ejectionFailures, long ejectionMillis) {
+        this.uri = options.getUri();
+        this.options = options;
+        this.dataPolicyOptions = dataPolicyOptions;
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    /**
+     * @param hasDataPolicy whether the request has a data policy
+     * @return the connector options for a request
+     */
+    ApimanHttpConnectorOptions getOptions(boolean hasDataPolicy) {
+        return hasDataPolicy ? dataPolicyOptions : options;
+    }
+
+    /**
+     * Called when a request is sent to the endpoint.
+     */
+    void requestStarted() {
+        requests.incrementAndGet();
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Called when the endpoint has responded.
+     * @param statusCode the response status code
+     * @param latencyNanos the time it took for the response to arrive
+     */
+    void responseReceived(int statusCode, long latencyNanos) {
+        // Racing updates lose a sample at worst, which is fine for an average.
+        double latency = latencyNanos / 1000000.0;
+        latencyEwma = latencyEwma == 0 ? latency : latencyEwma + EWMA_WEIGHT * (latency - latencyEwma);
+        if (statusCode == 502 || statusCode == 503 || statusCode == 504) {
+            requestFailed();
+        } else {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * Called when the request failed (e.g. the endpoint could not be reached).
+     */
+    void requestFailed() {
+        failures.incrementAndGet();
+        if (ejectionFailures > 0 && consecutiveFailures.incrementAndGet() >= ejectionFailures) {
+            consecutiveFailures.set(0);
+            ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+            ejections.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called when the request is over, one way or another.
+     */
+    void requestEnded() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * @param now the current time in millis
+     * @return true if the endpoint is currently ejected
+     */
+    boolean isEjected(long now) {
+        return now < ejectedUntil;
+    }
+
+    /**
+     * @return the load score of the endpoint based on its average latency (lower is better)
+     */
+    double getLatencyScore() {
+        return latencyEwma * (outstanding.get() + 1);
+    }
+
+    /**
+     * @return the endpoint's URI
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the number of requests currently in progress
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the total number of requests sent to the endpoint
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the total number of failed requests
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of times the endpoint has been ejected
+     */
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    /**
+     * @return true if the endpoint is currently ejected
+     */
+    public boolean isEjected() {
+        return isEjected(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the (exponentially weighted) average time to a response in millis
+     */
+    public double getLatencyEwma() {
+        return latencyEwma;
+    }
+
+    /**
+     * Vert.x doesn't expose the state of its connection pools (other than through its
+     * metrics SPI), so the pool is described by its limits and the number of requests
+     * currently using it.
+     * @return the endpoint's stats and pool limits as JSON
+     */
+    @SuppressWarnings("nls")
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("uri", uri.toString())
+                .put("outstanding", getOutstanding())
+                .put("requests", getRequests())
+                .put("failures", getFailures())
+                .put("ejections", getEjections())
+                .put("ejected", isEjected())
+                .put("latencyEwma", getLatencyEwma())
+                .put("maxConnections", options.isHttp2() ? options.getHttp2MaxConnections() : options.getMaxConnections())
+                .put("maxWaitQueue", options.getMaxWaitQueue());
+    }
+
+}
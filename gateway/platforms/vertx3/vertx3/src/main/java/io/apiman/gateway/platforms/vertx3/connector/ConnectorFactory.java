@@ -15,9 +15,11 @@
  */
 package io.apiman.gateway.platforms.vertx3.connector;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import io.apiman.common.config.options.AbstractOptions;
 import io.apiman.common.config.options.TLSOptions;
 import io.apiman.gateway.engine.IApiConnector;
 import io.apiman.gateway.engine.IConnectorConfig;
@@ -29,17 +31,34 @@ import io.apiman.gateway.platforms.vertx3.http.HttpClientOptionsFactory;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Create Vert.x connectors to the enable apiman to connect to a backend API.
  *
+ * Connection pooling is configured globally (http.pool.*) and can be overridden per
+ * API (pool.* endpoint properties).  An API may also list additional backend endpoints
+ * (lb.endpoints), in which case requests are balanced between them (lb.strategy) and
+ * failing endpoints are ejected for a while (lb.ejection.failures, lb.ejection.time).
+ *
+ * The backend endpoint stats of each API are sent (as JSON) to the address given in the
+ * body of any message published to {@link #BACKEND_STATS_ADDRESS}.  The backend of an API
+ * is dropped when its key is published to {@link #API_RETIRED_ADDRESS}, or when it hasn't
+ * been used for a while (http.backend-cache.idle-timeout).
+ *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 public class ConnectorFactory implements IConnectorFactory {
@@ -53,9 +72,29 @@ public class ConnectorFactory implements IConnectorFactory {
     private Vertx vertx;
     private TLSOptions tlsOptions;
     private Map<String, String> config;
-    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> clientCache = CacheBuilder.newBuilder()
-                // TODO make this tuneable.
-                .maximumSize(2000)
+    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> clientCache;
+    private Cache<String, ApiBackend> backends;
+
+    /**
+     * Event bus address (local) on which the backend stats are requested.
+     */
+    public static final String BACKEND_STATS_ADDRESS = "apiman.gateway.connector.backend-stats"; //$NON-NLS-1$
+    /**
+     * Event bus address on which retired APIs are announced (by key, see {@link #getApiKey(String, String, String)}).
+     */
+    public static final String API_RETIRED_ADDRESS = "apiman.gateway.connector.api-retired"; //$NON-NLS-1$
+
+    /**
+     * Constructor
+     * @param vertx a vertx instance
+     * @param config the config
+     */
+    public ConnectorFactory(Vertx vertx, Map<String, String> config) {
+        this.vertx = vertx;
+        this.config = config;
+        this.tlsOptions = new TLSOptions(config);
+        this.clientCache = CacheBuilder.newBuilder()
+                .maximumSize(parseLong(config, "http.client-cache.max-size", 2000)) //$NON-NLS-1$
                 // Close any evicted connections.
                 .<ApimanHttpConnectorOptions, HttpClient>removalListener(eviction -> eviction.getValue().close())
                 // Either grab from cache or build new (which will be cached automatically).
@@ -67,41 +106,121 @@ public class ConnectorFactory implements IConnectorFactory {
                                 .setConnectTimeout(opts.getConnectionTimeout())
                                 .setIdleTimeout(opts.getIdleTimeout())
                                 .setKeepAlive(opts.isKeepAlive())
-                                .setTryUseCompression(opts.isTryUseCompression());
+                                .setTryUseCompression(opts.isTryUseCompression())
+                                .setMaxPoolSize(opts.getMaxConnections())
+                                .setMaxWaitQueueSize(opts.getMaxWaitQueue())
+                                .setPipelining(opts.isPipelining())
+                                .setPipeliningLimit(opts.getPipeliningLimit())
+                                .setHttp2MaxPoolSize(opts.getHttp2MaxConnections())
+                                .setHttp2MultiplexingLimit(opts.getHttp2MultiplexingLimit());
+                        if (opts.isHttp2()) {
+                            // h2 over TLS (negotiated via ALPN) or h2c (via upgrade) for plain HTTP
+                            vxClientOptions.setProtocolVersion(HttpVersion.HTTP_2)
+                                .setUseAlpn(opts.isSsl());
+                        }
                         return vertx.createHttpClient(vxClientOptions);
                     }
                 });
-
-    /**
-     * Constructor
-     * @param vertx a vertx instance
-     * @param config the config
-     */
-    public ConnectorFactory(Vertx vertx, Map<String, String> config) {
-        this.vertx = vertx;
-        this.config = config;
-        this.tlsOptions = new TLSOptions(config);
+        // Backends of retired (or otherwise unused) APIs are eventually dropped
+        this.backends = CacheBuilder.newBuilder()
+                .expireAfterAccess(parseLong(config, "http.backend-cache.idle-timeout", 3600000), TimeUnit.MILLISECONDS) //$NON-NLS-1$
+                .build();
+        vertx.eventBus().<String>consumer(API_RETIRED_ADDRESS, message -> backends.invalidate(message.body()));
+        vertx.eventBus().<String>localConsumer(BACKEND_STATS_ADDRESS,
+                message -> vertx.eventBus().send(message.body(), getBackendStats()));
     }
 
     // In the future we can switch to different back-end implementations here!
     @Override
     public IApiConnector createConnector(ApiRequest req, Api api, RequiredAuthType authType, boolean hasDataPolicy, IConnectorConfig connectorConfig) {
         return (request, resultHandler) -> {
-            // Apply options from config as our base case
-            ApimanHttpConnectorOptions httpOptions = new ApimanHttpConnectorOptions(config)
-                    .setHasDataPolicy(hasDataPolicy)
-                    .setRequiredAuthType(authType)
-                    .setTlsOptions(tlsOptions)
-                    .setUri(parseApiEndpoint(api))
-                    .setSsl(api.getEndpoint().toLowerCase().startsWith("https")); //$NON-NLS-1$
-            // If API has endpoint properties indicating timeouts, then override config.
-            setAttributesFromApiEndpointProperties(api, httpOptions);
+            BackendEndpoint backend = getBackend(api, authType).select();
             // Get from cache
+            ApimanHttpConnectorOptions httpOptions = backend.getOptions(hasDataPolicy);
             HttpClient client = clientFromCache(httpOptions);
-            return new HttpConnector(vertx, client, request, api, httpOptions, connectorConfig, resultHandler).connect();
+            return new HttpConnector(vertx, client, request, api, httpOptions, connectorConfig, resultHandler, backend).connect();
          };
     }
 
+    /**
+     * Returns the live stats of the backend endpoints of each API (by API key) that has
+     * been invoked through this factory:  the load balancing counters and the configured
+     * connection pool limits of each endpoint.
+     * @return the backend endpoint stats of each API
+     */
+    public JsonObject getBackendStats() {
+        JsonObject stats = new JsonObject();
+        backends.asMap().forEach((key, backend) -> {
+            JsonArray endpoints = new JsonArray();
+            for (BackendEndpoint endpoint : backend.getEndpoints()) {
+                endpoints.add(endpoint.toJson());
+            }
+            stats.put(key, endpoints);
+        });
+        return stats;
+    }
+
+    /**
+     * @param orgId the organization id
+     * @param apiId the API id
+     * @param version the API version
+     * @return the key of the API's backend
+     */
+    public static String getApiKey(String orgId, String apiId, String version) {
+        return orgId + ":" + apiId + ":" + version; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Gets the (parsed) backend of the API; only (re)built when the API was first seen
+     * or when it has since been re-published with a different endpoint configuration.
+     */
+    ApiBackend getBackend(Api api, RequiredAuthType authType) {
+        String key = getApiKey(api.getOrganizationId(), api.getApiId(), api.getVersion());
+        ApiBackend backend = backends.getIfPresent(key);
+        if (backend == null || !backend.isFor(api.getEndpoint(), api.getEndpointProperties(), authType)) {
+            backend = createBackend(api, authType);
+            backends.put(key, backend);
+        }
+        return backend;
+    }
+
+    private ApiBackend createBackend(Api api, RequiredAuthType authType) {
+        Map<String, String> endpointProperties = new HashMap<>(api.getEndpointProperties());
+        List<String> uris = new ArrayList<>();
+        uris.add(api.getEndpoint());
+        String additional = endpointProperties.get("lb.endpoints"); //$NON-NLS-1$
+        if (additional != null) {
+            for (String uri : additional.split(",")) { //$NON-NLS-1$
+                if (!uri.trim().isEmpty()) {
+                    uris.add(uri.trim());
+                }
+            }
+        }
+        int ejectionFailures = (int) parseLong(endpointProperties, "lb.ejection.failures", 5); //$NON-NLS-1$
+        long ejectionMillis = parseLong(endpointProperties, "lb.ejection.time", 30000); //$NON-NLS-1$
+
+        List<BackendEndpoint> endpoints = new ArrayList<>(uris.size());
+        for (String uri : uris) {
+            endpoints.add(new BackendEndpoint(createOptions(api, uri, authType, false),
+                    createOptions(api, uri, authType, true), ejectionFailures, ejectionMillis));
+        }
+        return new ApiBackend(api.getEndpoint(), endpointProperties, authType, endpoints,
+                endpointProperties.getOrDefault("lb.strategy", ApiBackend.STRATEGY_LEAST_OUTSTANDING)); //$NON-NLS-1$
+    }
+
+    private ApimanHttpConnectorOptions createOptions(Api api, String endpoint, RequiredAuthType authType, boolean hasDataPolicy) {
+        // Apply options from config as our base case
+        ApimanHttpConnectorOptions httpOptions = new ApimanHttpConnectorOptions(config)
+                .setHasDataPolicy(hasDataPolicy)
+                .setRequiredAuthType(authType)
+                .setTlsOptions(tlsOptions)
+                .setUri(parseApiEndpoint(endpoint))
+                .setSsl(endpoint.toLowerCase().startsWith("https")); //$NON-NLS-1$
+        // If API has endpoint properties indicating timeouts, then override config.
+        setAttributesFromApiEndpointProperties(api, httpOptions);
+        return httpOptions;
+    }
+
     private HttpClient clientFromCache(ApimanHttpConnectorOptions key) {
         try {
             return clientCache.get(key);
@@ -110,9 +229,9 @@ public class ConnectorFactory implements IConnectorFactory {
         }
     }
 
-    private URI parseApiEndpoint(Api api) {
+    private URI parseApiEndpoint(String endpoint) {
         try {
-            return new URI(api.getEndpoint());
+            return new URI(endpoint);
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
@@ -134,6 +253,19 @@ public class ConnectorFactory implements IConnectorFactory {
                 int connectTimeoutMs = Integer.parseInt(endpointProperties.get("timeouts.connect")); //$NON-NLS-1$
                 options.setConnectionTimeout(connectTimeoutMs);
             }
+            options.parsePoolOptions(AbstractOptions.getSubmap(endpointProperties, "pool.")); //$NON-NLS-1$
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long parseLong(Map<String, String> map, String key, long defaultValue) {
+        String value = map.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
         } catch (NumberFormatException e) {
             throw new RuntimeException(e);
         }
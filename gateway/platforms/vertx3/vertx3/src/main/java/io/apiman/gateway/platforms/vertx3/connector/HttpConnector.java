@@ -78,6 +78,8 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
 
     private boolean inboundFinished = false;
     private boolean outboundFinished = false;
+    private boolean transmitting = false;
+    private boolean paused = false;
 
     private Api api;
     private String apiPath;
@@ -95,6 +97,10 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
     private ApimanHttpConnectorOptions options;
     private IConnectorConfig connectorConfig;
 
+    private BackendEndpoint backend;
+    private long startNanos;
+    private boolean ended = false;
+
 
     /**
      * Construct an {@link HttpConnector} instance. The {@link #resultHandler} must remain exclusive to a
@@ -128,6 +134,26 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
        verifyConnection();
     }
 
+    /**
+     * Construct an {@link HttpConnector} instance that reports to the stats of the given
+     * backend endpoint.
+     *
+     * @param vertx a vertx
+     * @param client the vertx http client
+     * @param api an API
+     * @param request a request with fields filled
+     * @param options the connector options
+     * @param connectorConfig the dynamic connector configuration as possibly modified by policies
+     * @param resultHandler a handler, called when reading is permitted
+     * @param backend the backend endpoint being connected to
+     */
+    public HttpConnector(Vertx vertx, HttpClient client, ApiRequest request, Api api, ApimanHttpConnectorOptions options,
+            IConnectorConfig connectorConfig, IAsyncResultHandler<IApiConnectionResponse> resultHandler,
+            BackendEndpoint backend) {
+        this(vertx, client, request, api, options, connectorConfig, resultHandler);
+        this.backend = backend;
+    }
+
     private int getPort() {
         if (apiEndpoint.getPort() != -1)
             return apiEndpoint.getPort();
@@ -156,6 +182,11 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
         logger.debug("Connecting to {0} | ssl?: {1} port: {2} verb: {3} path: {4}",
                 apiHost, options.isSsl(), apiPort, HttpMethod.valueOf(apiRequest.getType()), endpoint);
 
+        if (backend != null) {
+            backend.requestStarted();
+            startNanos = System.nanoTime();
+        }
+
         clientRequest = client.request(HttpMethod.valueOf(apiRequest.getType()),
                 apiPort,
                 apiHost,
@@ -163,6 +194,10 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
                 (HttpClientResponse vxClientResponse) -> {
                     clientResponse = vxClientResponse;
 
+                    if (backend != null) {
+                        backend.responseReceived(vxClientResponse.statusCode(), System.nanoTime() - startNanos);
+                    }
+
                     // Pause until we're given permission to xfer the response.
                     vxClientResponse.pause();
 
@@ -173,6 +208,7 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
                     });
 
                     vxClientResponse.endHandler((Handler<Void>) v -> {
+                        requestEnded();
                         endHandler.handle((Void) null);
                     });
 
@@ -221,12 +257,32 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
     @Override
     public void transmit() {
         logger.debug("Resuming");
-        clientResponse.resume();
+        transmitting = true;
+        if (!paused) {
+            clientResponse.resume();
+        }
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+        if (clientResponse != null) {
+            clientResponse.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        if (transmitting) {
+            clientResponse.resume();
+        }
     }
 
     @Override
     public void abort(Throwable t) {
         bodyHandler(null);
+        requestEnded();
 
         if(clientRequest != null) {
            clientRequest.end();
@@ -290,6 +346,13 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
         return clientRequest.writeQueueFull();
     }
 
+    private void requestEnded() {
+        if (backend != null && !ended) {
+            ended = true;
+            backend.requestEnded();
+        }
+    }
+
     private String queryParams(QueryMap queryParams) {
         if (queryParams == null || queryParams.isEmpty())
             return "";
@@ -323,6 +386,11 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
                 ce.setStatusCode(504); // GATEWAY TIMEOUT
             }
 
+            if (backend != null && !ended) {
+                backend.requestFailed();
+            }
+            requestEnded();
+
             resultHandler.handle(AsyncResultImpl
                     .<IApiConnectionResponse> create(ce));
         }
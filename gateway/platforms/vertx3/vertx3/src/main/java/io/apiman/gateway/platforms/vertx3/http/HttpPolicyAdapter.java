@@ -122,8 +122,14 @@ public class HttpPolicyAdapter {
                 vertxResponse.setChunked(true);
             }
 
+            // Pump the body to the client, pausing the back-end response while the
+            // client's write queue is full.
+            vertxResponse.drainHandler(drained -> engineResult.resume());
             engineResult.bodyHandler(buffer -> {
                 vertxResponse.write((Buffer) buffer.getNativeBuffer());
+                if (vertxResponse.writeQueueFull()) {
+                    engineResult.pause();
+                }
             });
 
             engineResult.endHandler(end -> vertxResponse.end());
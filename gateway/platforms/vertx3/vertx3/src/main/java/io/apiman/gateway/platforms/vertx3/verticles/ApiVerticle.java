@@ -16,6 +16,7 @@
 package io.apiman.gateway.platforms.vertx3.verticles;
 
 import io.apiman.gateway.platforms.vertx3.api.ApiResourceImpl;
+import io.apiman.gateway.platforms.vertx3.api.BackendStatsHandler;
 import io.apiman.gateway.platforms.vertx3.api.ClientResourceImpl;
 import io.apiman.gateway.platforms.vertx3.api.OrgResourceImpl;
 import io.apiman.gateway.platforms.vertx3.api.RestExceptionMapper;
@@ -68,7 +69,7 @@ public class ApiVerticle extends ApimanVerticleWithEngine {
 
         addResources(deployment.getRegistry(),
                 new SystemResourceImpl(apimanConfig, engine),
-                new ApiResourceImpl(apimanConfig, engine),
+                new ApiResourceImpl(apimanConfig, engine, vertx),
                 new ClientResourceImpl(apimanConfig, engine),
                 new OrgResourceImpl(apimanConfig, engine));
 
@@ -89,6 +90,9 @@ public class ApiVerticle extends ApimanVerticleWithEngine {
         router.route("/*")
             .handler(authHandler);
 
+        router.get("/system/backends")
+            .handler(new BackendStatsHandler(vertx));
+
         router.route("/*") // We did the previous stuff, now we call into JaxRS.
             .handler(context -> resteasyRh.handle(new Router2ResteasyRequestAdapter(context)));
 
@@ -51,6 +51,19 @@ public abstract class ApimanVerticleWithEngine extends ApimanVerticleBase {
         policyErrorWriter = initPolicyErrorWriter();
     }
 
+    @Override
+    public void stop(Future<Void> stopFuture) {
+        if (engine == null) {
+            stopFuture.complete();
+            return;
+        }
+        // Shutting the engine down may block (e.g. to write out buffered metrics)
+        vertx.<Void>executeBlocking(future -> {
+            engine.shutdown();
+            future.complete();
+        }, stopFuture.completer());
+    }
+
     private IPolicyFailureWriter initPolicyFailureWriter() {
         Class<? extends IPolicyFailureWriter> clazz = apimanConfig.getPolicyFailureWriterClass(engine.getPluginRegistry());
         Map<String, String> conf = apimanConfig.getPolicyFailureWriterConfig();
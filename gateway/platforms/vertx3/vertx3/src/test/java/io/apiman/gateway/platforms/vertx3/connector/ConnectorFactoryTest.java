@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.beans.Api;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the load balancing, ejection and backend caching of the {@link ConnectorFactory}.
+ */
+@SuppressWarnings("nls")
+public class ConnectorFactoryTest {
+
+    private Vertx vertx;
+    private ConnectorFactory factory;
+
+    @Before
+    public void setup() {
+        vertx = Vertx.vertx();
+        factory = new ConnectorFactory(vertx, new HashMap<>());
+    }
+
+    @After
+    public void teardown() {
+        vertx.close();
+    }
+
+    @Test
+    public void shouldSelectLeastOutstanding() {
+        List<BackendEndpoint> endpoints = endpoints(3, 0, 0);
+        ApiBackend backend = new ApiBackend("http://a", Collections.emptyMap(), RequiredAuthType.DEFAULT,
+                endpoints, ApiBackend.STRATEGY_LEAST_OUTSTANDING);
+        endpoints.get(0).requestStarted();
+        endpoints.get(0).requestStarted();
+        endpoints.get(2).requestStarted();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(endpoints.get(1), backend.select());
+        }
+
+        // Spreads the load once they are equally loaded
+        endpoints.get(1).requestStarted();
+        endpoints.get(1).requestStarted();
+        endpoints.get(0).requestEnded();
+        List<BackendEndpoint> selected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            BackendEndpoint endpoint = backend.select();
+            Assert.assertNotSame(endpoints.get(1), endpoint);
+            selected.add(endpoint);
+        }
+        Assert.assertTrue(selected.contains(endpoints.get(0)));
+        Assert.assertTrue(selected.contains(endpoints.get(2)));
+    }
+
+    @Test
+    public void shouldSelectLowestLatency() {
+        List<BackendEndpoint> endpoints = endpoints(2, 0, 0);
+        ApiBackend backend = new ApiBackend("http://a", Collections.emptyMap(), RequiredAuthType.DEFAULT,
+                endpoints, ApiBackend.STRATEGY_EWMA);
+        endpoints.get(0).responseReceived(200, 50000000L);
+        endpoints.get(1).responseReceived(200, 10000000L);
+        Assert.assertSame(endpoints.get(1), backend.select());
+
+        // The faster endpoint is busy enough to be the slower choice
+        for (int i = 0; i < 5; i++) {
+            endpoints.get(1).requestStarted();
+        }
+        Assert.assertSame(endpoints.get(0), backend.select());
+    }
+
+    @Test
+    public void shouldEjectAndRecover() throws Exception {
+        List<BackendEndpoint> endpoints = endpoints(2, 3, 200);
+        ApiBackend backend = new ApiBackend("http://a", Collections.emptyMap(), RequiredAuthType.DEFAULT,
+                endpoints, ApiBackend.STRATEGY_LEAST_OUTSTANDING);
+        BackendEndpoint failing = endpoints.get(0);
+        // Not consecutive
+        failing.requestFailed();
+        failing.requestFailed();
+        failing.responseReceived(200, 1000000L);
+        failing.requestFailed();
+        Assert.assertFalse(failing.isEjected());
+
+        failing.responseReceived(503, 1000000L);
+        failing.requestFailed();
+        Assert.assertTrue(failing.isEjected());
+        Assert.assertEquals(1, failing.getEjections());
+        Assert.assertEquals(5, failing.getFailures());
+        // Busier, but the only one left
+        endpoints.get(1).requestStarted();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(endpoints.get(1), backend.select());
+        }
+
+        Thread.sleep(300);
+        Assert.assertFalse(failing.isEjected());
+        Assert.assertSame(failing, backend.select());
+    }
+
+    @Test
+    public void shouldTryEjectedEndpointsRatherThanFail() {
+        List<BackendEndpoint> endpoints = endpoints(2, 1, 60000);
+        ApiBackend backend = new ApiBackend("http://a", Collections.emptyMap(), RequiredAuthType.DEFAULT,
+                endpoints, ApiBackend.STRATEGY_LEAST_OUTSTANDING);
+        endpoints.get(0).requestFailed();
+        endpoints.get(1).requestFailed();
+        Assert.assertNotNull(backend.select());
+    }
+
+    @Test
+    public void shouldRebuildBackendWhenApiChanges() {
+        Api api = api("http://localhost:8080/a");
+        ApiBackend backend = factory.getBackend(api, RequiredAuthType.DEFAULT);
+        Assert.assertSame(backend, factory.getBackend(api("http://localhost:8080/a"), RequiredAuthType.DEFAULT));
+        Assert.assertEquals(1, backend.getEndpoints().size());
+
+        // Endpoint properties
+        api.getEndpointProperties().put("lb.endpoints", "http://localhost:8081/a, http://localhost:8082/a");
+        ApiBackend rebuilt = factory.getBackend(api, RequiredAuthType.DEFAULT);
+        Assert.assertNotSame(backend, rebuilt);
+        Assert.assertEquals(Arrays.asList(URI.create("http://localhost:8080/a"), URI.create("http://localhost:8081/a"),
+                URI.create("http://localhost:8082/a")), uris(rebuilt));
+
+        // Auth type
+        Assert.assertNotSame(rebuilt, factory.getBackend(api, RequiredAuthType.MTLS));
+
+        // Endpoint
+        api.setEndpoint("http://localhost:9090/a");
+        Assert.assertEquals(URI.create("http://localhost:9090/a"),
+                factory.getBackend(api, RequiredAuthType.MTLS).getEndpoints().get(0).getUri());
+    }
+
+    @Test
+    public void shouldDropBackendWhenApiRetired() throws Exception {
+        Api api = api("http://localhost:8080/a");
+        ApiBackend backend = factory.getBackend(api, RequiredAuthType.DEFAULT);
+        Assert.assertTrue(factory.getBackendStats().containsKey("Org:Api:1.0"));
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (factory.getBackendStats().containsKey("Org:Api:1.0") && System.currentTimeMillis() < giveUp) {
+            // The consumer is registered asynchronously
+            vertx.eventBus().publish(ConnectorFactory.API_RETIRED_ADDRESS, ConnectorFactory.getApiKey("Org", "Api", "1.0"));
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(factory.getBackendStats().containsKey("Org:Api:1.0"));
+        Assert.assertNotSame(backend, factory.getBackend(api, RequiredAuthType.DEFAULT));
+    }
+
+    @Test
+    public void shouldReportBackendStats() {
+        Api api = api("http://localhost:8080/a");
+        api.getEndpointProperties().put("lb.endpoints", "http://localhost:8081/a");
+        api.getEndpointProperties().put("pool.max-connections", "7");
+        BackendEndpoint endpoint = factory.getBackend(api, RequiredAuthType.DEFAULT).getEndpoints().get(1);
+        endpoint.requestStarted();
+        endpoint.requestStarted();
+        endpoint.requestFailed();
+        endpoint.requestEnded();
+
+        JsonArray endpoints = factory.getBackendStats().getJsonArray("Org:Api:1.0");
+        Assert.assertEquals(2, endpoints.size());
+        JsonObject stats = endpoints.getJsonObject(1);
+        Assert.assertEquals("http://localhost:8081/a", stats.getString("uri"));
+        Assert.assertEquals(2L, stats.getLong("requests").longValue());
+        Assert.assertEquals(1L, stats.getLong("outstanding").longValue());
+        Assert.assertEquals(1L, stats.getLong("failures").longValue());
+        Assert.assertEquals(7L, stats.getLong("maxConnections").longValue());
+    }
+
+    private static List<BackendEndpoint> endpoints(int count, int ejectionFailures, long ejectionMillis) {
+        List<BackendEndpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ApimanHttpConnectorOptions options = new ApimanHttpConnectorOptions()
+                    .setUri(URI.create("http://localhost:" + (8080 + i)));
+            endpoints.add(new BackendEndpoint(options, options, ejectionFailures, ejectionMillis));
+        }
+        return endpoints;
+    }
+
+    private static List<URI> uris(ApiBackend backend) {
+        List<URI> uris = new ArrayList<>();
+        for (BackendEndpoint endpoint : backend.getEndpoints()) {
+            uris.add(endpoint.getUri());
+        }
+        return uris;
+    }
+
+    private static Api api(String endpoint) {
+        Api api = new Api();
+        api.setOrganizationId("Org");
+        api.setApiId("Api");
+        api.setVersion("1.0");
+        api.setEndpoint(endpoint);
+        api.setEndpointProperties(new HashMap<>());
+        return api;
+    }
+
+}
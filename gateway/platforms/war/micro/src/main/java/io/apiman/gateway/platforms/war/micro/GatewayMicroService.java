@@ -330,6 +330,10 @@ public class GatewayMicroService {
         addSecurityHandler(gatewayServer);
         gatewayServer.setContextPath("/gateway");
         ServletHolder servlet = new ServletHolder(new WarGatewayServlet());
+        servlet.setAsyncSupported(true);
+        servlet.setInitParameter("async", System.getProperty("apiman.micro.gateway.async", "false"));
+        servlet.setInitParameter("async-timeout", System.getProperty("apiman.micro.gateway.async-timeout", "300000"));
+        servlet.setInitParameter("virtual-threads", System.getProperty("apiman.micro.gateway.virtual-threads", "false"));
         gatewayServer.addServlet(servlet, "/*");
 
         handlers.addHandler(gatewayServer);
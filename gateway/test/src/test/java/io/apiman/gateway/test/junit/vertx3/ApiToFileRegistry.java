@@ -88,7 +88,7 @@ public class ApiToFileRegistry extends InMemoryRegistry {
 
     public void reset() {
         fileSystem.writeFileBlocking(file.getAbsolutePath(), Buffer.buffer(""));
-        super.getMap().clear();
+        super.clear();
         apis.clear();
         clients.clear();
         clientMap.clear();